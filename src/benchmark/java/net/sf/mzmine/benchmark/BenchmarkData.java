@@ -0,0 +1,374 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.benchmark;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.main.impl.MZmineConfigurationImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import com.google.common.collect.Range;
+
+/**
+ * Synthetic LC-MS data for the benchmarks. A sample consists of compounds with
+ * a gaussian elution profile, measured as profile scans (each ion is a
+ * gaussian m/z peak) on top of random noise. The same compounds can be
+ * measured in several samples, with small shifts of m/z and retention time, so
+ * that the peak lists of the samples can be aligned and gap filled.
+ *
+ * All data is generated from a fixed seed, so each benchmark processes exactly
+ * the same data on every commit and the results can be compared.
+ */
+public final class BenchmarkData {
+
+    public static final long SEED = 20161018L;
+
+    public static final double MIN_MZ = 100.0, MAX_MZ = 1000.0;
+
+    // Retention time of the first scan and time between scans, in minutes
+    public static final double FIRST_RT = 0.5, SCAN_INTERVAL = 0.02;
+
+    // Elution profile width (sigma) in minutes, and m/z profile width
+    private static final double RT_SIGMA = 0.05, MZ_SIGMA = 0.002;
+
+    // Number of data points of each ion in a profile scan, and their spacing
+    private static final int PROFILE_POINTS = 9;
+    private static final double PROFILE_STEP = 0.001;
+
+    private static final double NOISE_INTENSITY = 200.0;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * A compound measured in the synthetic samples
+     */
+    public static final class Compound {
+        public final double mz, rt, height;
+
+        Compound(double mz, double rt, double height) {
+            this.mz = mz;
+            this.rt = rt;
+            this.height = height;
+        }
+
+        /**
+         * Returns the intensity of the apex data point of this compound at
+         * given retention time
+         */
+        public double getIntensity(double scanRT) {
+            final double x = (scanRT - rt) / RT_SIGMA;
+            return height * Math.exp(-0.5 * x * x);
+        }
+
+        /**
+         * Returns the retention time range in which this compound is above 1%
+         * of its height
+         */
+        public Range<Double> getRTRange() {
+            final double halfWidth = 3 * RT_SIGMA;
+            return Range.closed(rt - halfWidth, rt + halfWidth);
+        }
+    }
+
+    /**
+     * Sets up the parts of MZmineCore needed by the modules, without starting
+     * the task controller or the desktop. Many parameter classes read the
+     * number formats of the configuration when they are loaded, so this must be
+     * called before any module parameters are used.
+     */
+    public static synchronized void initializeCore() {
+        if (MZmineCore.getConfiguration() != null)
+            return;
+        try {
+            Field field = MZmineCore.class.getDeclaredField("configuration");
+            field.setAccessible(true);
+            field.set(null, new MZmineConfigurationImpl());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(
+                    "Cannot initialize MZmine configuration", e);
+        }
+    }
+
+    /**
+     * Runs given task in the current thread. A task which does not finish
+     * successfully would make the benchmark meaningless, so its error is
+     * thrown.
+     */
+    public static void runTask(Task task) {
+        task.run();
+        if (task.getStatus() != TaskStatus.FINISHED) {
+            throw new IllegalStateException(task.getTaskDescription()
+                    + " did not finish: " + task.getErrorMessage());
+        }
+    }
+
+    /**
+     * Returns the retention time of the scan at given index
+     */
+    public static double getScanRT(int scanIndex) {
+        return FIRST_RT + scanIndex * SCAN_INTERVAL;
+    }
+
+    /**
+     * Generates compounds eluting within the time covered by given number of
+     * scans, sorted by m/z
+     */
+    public static Compound[] generateCompounds(Random random,
+            int numOfCompounds, int numOfScans) {
+        final double firstRT = getScanRT(0) + 3 * RT_SIGMA;
+        final double lastRT = getScanRT(numOfScans - 1) - 3 * RT_SIGMA;
+        Compound compounds[] = new Compound[numOfCompounds];
+        for (int i = 0; i < numOfCompounds; i++) {
+            double mz = MIN_MZ + 1 + random.nextDouble()
+                    * (MAX_MZ - MIN_MZ - 2);
+            double rt = firstRT + random.nextDouble() * (lastRT - firstRT);
+            // Log-uniform heights between 1e4 and 1e7
+            double height = Math.pow(10, 4 + 3 * random.nextDouble());
+            compounds[i] = new Compound(mz, rt, height);
+        }
+        Arrays.sort(compounds, new Comparator<Compound>() {
+            @Override
+            public int compare(Compound c1, Compound c2) {
+                return Double.compare(c1.mz, c2.mz);
+            }
+        });
+        return compounds;
+    }
+
+    /**
+     * Returns the compounds as measured in another sample, with given m/z
+     * error (in ppm) and retention time shift (in minutes) added randomly
+     */
+    public static Compound[] shiftCompounds(Random random,
+            Compound compounds[], double maxPPMError, double maxRTShift) {
+        Compound shifted[] = new Compound[compounds.length];
+        final double rtShift = (random.nextDouble() - 0.5) * maxRTShift;
+        for (int i = 0; i < compounds.length; i++) {
+            Compound c = compounds[i];
+            double mz = c.mz * (1 + (random.nextDouble() - 0.5) * 2
+                    * maxPPMError / 1e6);
+            double height = c.height * (0.5 + random.nextDouble());
+            shifted[i] = new Compound(mz, c.rt + rtShift, height);
+        }
+        return shifted;
+    }
+
+    /**
+     * Generates the profile data points of the scan at given index, sorted by
+     * m/z
+     */
+    public static DataPoint[] generateProfileScan(Random random,
+            Compound compounds[], int scanIndex, int numOfNoisePoints) {
+        final double rt = getScanRT(scanIndex);
+        List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+        for (Compound c : compounds) {
+            final double apex = c.getIntensity(rt);
+            if (apex < NOISE_INTENSITY)
+                continue;
+            for (int p = 0; p < PROFILE_POINTS; p++) {
+                final double offset = (p - PROFILE_POINTS / 2) * PROFILE_STEP;
+                final double x = offset / MZ_SIGMA;
+                dataPoints.add(new SimpleDataPoint(c.mz + offset, apex
+                        * Math.exp(-0.5 * x * x)));
+            }
+        }
+        for (int i = 0; i < numOfNoisePoints; i++) {
+            double mz = MIN_MZ + random.nextDouble() * (MAX_MZ - MIN_MZ);
+            dataPoints.add(new SimpleDataPoint(mz, random.nextDouble()
+                    * NOISE_INTENSITY));
+        }
+        return sortByMZ(dataPoints);
+    }
+
+    /**
+     * Generates the mass list of the scan at given index: one data point per
+     * compound above the noise, with a small m/z error, plus noise, sorted by
+     * m/z
+     */
+    public static DataPoint[] generateMassList(Random random,
+            Compound compounds[], int scanIndex, int numOfNoisePoints) {
+        final double rt = getScanRT(scanIndex);
+        List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+        for (Compound c : compounds) {
+            final double intensity = c.getIntensity(rt);
+            if (intensity < NOISE_INTENSITY)
+                continue;
+            double mz = c.mz + (random.nextDouble() - 0.5) * MZ_SIGMA;
+            dataPoints.add(new SimpleDataPoint(mz, intensity));
+        }
+        for (int i = 0; i < numOfNoisePoints; i++) {
+            double mz = MIN_MZ + random.nextDouble() * (MAX_MZ - MIN_MZ);
+            dataPoints.add(new SimpleDataPoint(mz, random.nextDouble()
+                    * NOISE_INTENSITY));
+        }
+        return sortByMZ(dataPoints);
+    }
+
+    /**
+     * Generates profile MS1 scans, which are not stored in any raw data file
+     */
+    public static Scan[] generateScans(Random random, Compound compounds[],
+            int numOfScans, int numOfNoisePoints) {
+        Scan scans[] = new Scan[numOfScans];
+        for (int i = 0; i < numOfScans; i++) {
+            DataPoint dataPoints[] = generateProfileScan(random, compounds, i,
+                    numOfNoisePoints);
+            scans[i] = createScan(null, i + 1, getScanRT(i), dataPoints);
+        }
+        return scans;
+    }
+
+    /**
+     * Creates a raw data file containing profile MS1 scans of given compounds.
+     * The data points are written to the temporary storage file, just like
+     * when importing a real file.
+     */
+    public static RawDataFileImpl createRawDataFile(String name,
+            Random random, Compound compounds[], int numOfScans,
+            int numOfNoisePoints) throws IOException {
+        RawDataFileImpl dataFile = new RawDataFileImpl(name);
+        for (int i = 0; i < numOfScans; i++) {
+            DataPoint dataPoints[] = generateProfileScan(random, compounds, i,
+                    numOfNoisePoints);
+            dataFile.addScan(createScan(dataFile, i + 1, getScanRT(i),
+                    dataPoints));
+        }
+        dataFile.finishWriting();
+        return dataFile;
+    }
+
+    private static Scan createScan(RawDataFile dataFile, int scanNumber,
+            double rt, DataPoint dataPoints[]) {
+        return new SimpleScan(dataFile, scanNumber, 1, rt, 0, 0, new int[0],
+                dataPoints, MassSpectrumType.PROFILE, PolarityType.POSITIVE,
+                "", Range.closed(MIN_MZ, MAX_MZ));
+    }
+
+    /**
+     * Creates the peak list of a single sample. Each compound is detected with
+     * given probability.
+     */
+    public static SimplePeakList createPeakList(String name, Random random,
+            RawDataFile dataFile, Compound compounds[],
+            double detectionRate) {
+        SimplePeakList peakList = new SimplePeakList(name, dataFile);
+        int rowID = 1;
+        for (Compound c : compounds) {
+            if (random.nextDouble() >= detectionRate)
+                continue;
+            SimplePeakListRow row = new SimplePeakListRow(rowID++);
+            row.addPeak(dataFile, createFeature(dataFile, c));
+            peakList.addRow(row);
+        }
+        return peakList;
+    }
+
+    /**
+     * Creates an aligned peak list of several samples, which measured the
+     * compounds with the shifts given by sampleCompounds[sample][compound].
+     * Each compound is detected in each sample with given probability, the
+     * others are gaps. Compounds not detected in any sample are skipped.
+     */
+    public static SimplePeakList createAlignedPeakList(String name,
+            Random random, RawDataFile dataFiles[],
+            Compound sampleCompounds[][], double detectionRate) {
+        SimplePeakList peakList = new SimplePeakList(name, dataFiles);
+        int rowID = 1;
+        for (int i = 0; i < sampleCompounds[0].length; i++) {
+            SimplePeakListRow row = new SimplePeakListRow(rowID);
+            for (int s = 0; s < dataFiles.length; s++) {
+                if (random.nextDouble() >= detectionRate)
+                    continue;
+                row.addPeak(dataFiles[s],
+                        createFeature(dataFiles[s], sampleCompounds[s][i]));
+            }
+            if (row.getNumberOfPeaks() == 0)
+                continue;
+            peakList.addRow(row);
+            rowID++;
+        }
+        return peakList;
+    }
+
+    /**
+     * Creates a detected feature from the elution profile of given compound
+     */
+    public static SimpleFeature createFeature(RawDataFile dataFile, Compound c) {
+        Range<Double> elution = c.getRTRange();
+        int firstScan = Math.max(0, (int) Math.ceil((elution.lowerEndpoint()
+                - FIRST_RT) / SCAN_INTERVAL));
+        int lastScan = (int) Math.floor((elution.upperEndpoint() - FIRST_RT)
+                / SCAN_INTERVAL);
+        int numOfScans = Math.max(1, lastScan - firstScan + 1);
+
+        int scanNumbers[] = new int[numOfScans];
+        DataPoint dataPoints[] = new DataPoint[numOfScans];
+        int apexIndex = 0;
+        double area = 0;
+        for (int i = 0; i < numOfScans; i++) {
+            scanNumbers[i] = firstScan + i + 1;
+            double intensity = c.getIntensity(getScanRT(firstScan + i));
+            dataPoints[i] = new SimpleDataPoint(c.mz, intensity);
+            if (intensity > dataPoints[apexIndex].getIntensity())
+                apexIndex = i;
+            area += intensity * SCAN_INTERVAL;
+        }
+
+        double height = dataPoints[apexIndex].getIntensity();
+        Range<Double> rtRange = Range.closed(getScanRT(firstScan),
+                getScanRT(firstScan + numOfScans - 1));
+        return new SimpleFeature(dataFile, c.mz, getScanRT(firstScan
+                + apexIndex), height, area, scanNumbers, dataPoints,
+                FeatureStatus.DETECTED, scanNumbers[apexIndex], -1, rtRange,
+                Range.singleton(c.mz), Range.closed(0.0, height));
+    }
+
+    private static DataPoint[] sortByMZ(List<DataPoint> dataPoints) {
+        DataPoint sorted[] = dataPoints.toArray(new DataPoint[0]);
+        Arrays.sort(sorted, new DataPointSorter(SortingProperty.MZ,
+                SortingDirection.Ascending));
+        return sorted;
+    }
+
+}
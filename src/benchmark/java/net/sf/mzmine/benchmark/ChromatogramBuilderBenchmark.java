@@ -0,0 +1,106 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.modules.masslistmethods.chromatogrambuilder.HighestDataPointConnector;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MaximumMZTolerance;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building chromatograms from the mass lists of all scans of a raw data file
+ * using HighestDataPointConnector, with and without its m/z index
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChromatogramBuilderBenchmark {
+
+    private static final int NUM_OF_SCANS = 1000;
+    private static final int NUM_OF_COMPOUNDS = 5000;
+    private static final int NUM_OF_NOISE_POINTS = 200;
+
+    @Param({ "false", "true" })
+    public boolean useMZIndex;
+
+    private RawDataFileImpl dataFile;
+    private int scanNumbers[];
+    private DataPoint massLists[][];
+    private MaximumMZTolerance mzTolerance;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                NUM_OF_COMPOUNDS, NUM_OF_SCANS);
+
+        // The chromatograms read the retention times from the raw data file,
+        // but the data points come from the mass lists
+        dataFile = BenchmarkData.createRawDataFile("Chromatogram benchmark",
+                random, compounds, NUM_OF_SCANS, 0);
+        scanNumbers = dataFile.getScanNumbers(1);
+        massLists = new DataPoint[NUM_OF_SCANS][];
+        for (int i = 0; i < NUM_OF_SCANS; i++)
+            massLists[i] = BenchmarkData.generateMassList(random, compounds,
+                    i, NUM_OF_NOISE_POINTS);
+
+        mzTolerance = new MaximumMZTolerance(0.005, 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataFile.close();
+    }
+
+    @Benchmark
+    public Object buildChromatograms() {
+        HighestDataPointConnector connector = new HighestDataPointConnector(
+                dataFile, scanNumbers, 0.05, 1000, mzTolerance, useMZIndex);
+        for (int i = 0; i < scanNumbers.length; i++) {
+            // addScan() sorts the array by intensity, so pass a copy
+            connector.addScan(scanNumbers[i], massLists[i].clone());
+        }
+        return connector.finishChromatograms();
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.centroid.CentroidMassDetector;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.centroid.CentroidMassDetectorParameters;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.exactmass.ExactMassDetector;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.exactmass.ExactMassDetectorParameters;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.localmaxima.LocalMaxMassDetector;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.localmaxima.LocalMaxMassDetectorParameters;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive.RecursiveMassDetector;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive.RecursiveMassDetectorParameters;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet.WaveletMassDetector;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet.WaveletMassDetectorParameters;
+import net.sf.mzmine.parameters.ParameterSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Mass detection of profile scans by each of the local mass detectors
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MassDetectorBenchmark {
+
+    private static final int NUM_OF_SCANS = 100;
+    private static final int NUM_OF_COMPOUNDS = 2000;
+    private static final int NUM_OF_NOISE_POINTS = 2000;
+
+    private static final double NOISE_LEVEL = 500.0;
+
+    @Param({ "centroid", "exactmass", "localmaxima", "recursive", "wavelet" })
+    public String detectorName;
+
+    private MassDetector detector;
+    private ParameterSet parameters;
+    private Scan scans[];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                NUM_OF_COMPOUNDS, NUM_OF_SCANS);
+        scans = BenchmarkData.generateScans(random, compounds, NUM_OF_SCANS,
+                NUM_OF_NOISE_POINTS);
+
+        switch (detectorName) {
+        case "centroid":
+            detector = new CentroidMassDetector();
+            parameters = new CentroidMassDetectorParameters();
+            parameters.getParameter(CentroidMassDetectorParameters.noiseLevel)
+                    .setValue(NOISE_LEVEL);
+            break;
+        case "exactmass":
+            detector = new ExactMassDetector();
+            parameters = new ExactMassDetectorParameters();
+            parameters.getParameter(ExactMassDetectorParameters.noiseLevel)
+                    .setValue(NOISE_LEVEL);
+            break;
+        case "localmaxima":
+            detector = new LocalMaxMassDetector();
+            parameters = new LocalMaxMassDetectorParameters();
+            parameters.getParameter(LocalMaxMassDetectorParameters.noiseLevel)
+                    .setValue(NOISE_LEVEL);
+            break;
+        case "recursive":
+            detector = new RecursiveMassDetector();
+            parameters = new RecursiveMassDetectorParameters();
+            parameters.getParameter(RecursiveMassDetectorParameters.noiseLevel)
+                    .setValue(NOISE_LEVEL);
+            parameters.getParameter(
+                    RecursiveMassDetectorParameters.minimumMZPeakWidth)
+                    .setValue(0.001);
+            parameters.getParameter(
+                    RecursiveMassDetectorParameters.maximumMZPeakWidth)
+                    .setValue(0.1);
+            break;
+        case "wavelet":
+            detector = new WaveletMassDetector();
+            parameters = new WaveletMassDetectorParameters();
+            parameters.getParameter(WaveletMassDetectorParameters.noiseLevel)
+                    .setValue(NOISE_LEVEL);
+            parameters.getParameter(WaveletMassDetectorParameters.scaleLevel)
+                    .setValue(3);
+            parameters
+                    .getParameter(WaveletMassDetectorParameters.waveletWindow)
+                    .setValue(0.3);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown mass detector "
+                    + detectorName);
+        }
+    }
+
+    @Benchmark
+    public void detectMasses(Blackhole blackhole) {
+        for (Scan scan : scans)
+            blackhole.consume(detector.getMassValues(scan, null, parameters));
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Range;
+
+/**
+ * Searching the rows of a peak list by retention time and m/z ranges, as done
+ * by the gap filler, the aligners and the identification modules
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeakListSearchBenchmark {
+
+    private static final int NUM_OF_SCANS = 3000;
+    private static final int NUM_OF_QUERIES = 1000;
+
+    @Param({ "1000", "20000" })
+    public int numOfRows;
+
+    private RawDataFile dataFile;
+    private SimplePeakList peakList;
+    private Range<Double> rtRanges[], mzRanges[];
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                numOfRows, NUM_OF_SCANS);
+
+        // The features do not read any data points, so the file has no scans
+        dataFile = new RawDataFileImpl("Peak list benchmark");
+        peakList = BenchmarkData.createPeakList("Peak list benchmark",
+                random, dataFile, compounds, 1.0);
+
+        // Typical gap filling and alignment windows around existing rows
+        rtRanges = new Range[NUM_OF_QUERIES];
+        mzRanges = new Range[NUM_OF_QUERIES];
+        for (int i = 0; i < NUM_OF_QUERIES; i++) {
+            Compound c = compounds[random.nextInt(compounds.length)];
+            rtRanges[i] = Range.closed(c.rt - 0.2, c.rt + 0.2);
+            mzRanges[i] = Range.closed(c.mz - 0.01, c.mz + 0.01);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataFile.close();
+    }
+
+    @Benchmark
+    public void getRowsInsideScanAndMZRange(Blackhole blackhole) {
+        for (int i = 0; i < NUM_OF_QUERIES; i++)
+            blackhole.consume(peakList.getRowsInsideScanAndMZRange(
+                    rtRanges[i], mzRanges[i]));
+    }
+
+}
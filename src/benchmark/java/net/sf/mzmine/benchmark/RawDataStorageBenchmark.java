@@ -0,0 +1,125 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
+import net.sf.mzmine.project.impl.DataPointsCache;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing and reading the data points of a raw data file through its temporary
+ * storage file. Reading is measured with and without the data points cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RawDataStorageBenchmark {
+
+    private static final int NUM_OF_SCANS = 500;
+    private static final int NUM_OF_COMPOUNDS = 2000;
+    private static final int NUM_OF_NOISE_POINTS = 500;
+
+    // Size of the data points cache in bytes, 0 disables the cache
+    @Param({ "0", "268435456" })
+    public long cacheSize;
+
+    private DataPoint scans[][];
+    private RawDataFileImpl dataFile;
+    private int storageIDs[];
+    private long originalCacheSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                NUM_OF_COMPOUNDS, NUM_OF_SCANS);
+        scans = new DataPoint[NUM_OF_SCANS][];
+        for (int i = 0; i < NUM_OF_SCANS; i++)
+            scans[i] = BenchmarkData.generateProfileScan(random, compounds, i,
+                    NUM_OF_NOISE_POINTS);
+
+        originalCacheSize = DataPointsCache.getInstance().getMaxSize();
+        DataPointsCache.getInstance().setMaxSize(cacheSize);
+
+        dataFile = new RawDataFileImpl("Storage benchmark");
+        storageIDs = new int[NUM_OF_SCANS];
+        for (int i = 0; i < NUM_OF_SCANS; i++)
+            storageIDs[i] = dataFile.storeDataPoints(scans[i]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataFile.close();
+        DataPointsCache.getInstance().setMaxSize(originalCacheSize);
+    }
+
+    @Benchmark
+    public void storeDataPoints() throws IOException {
+        RawDataFileImpl newFile = new RawDataFileImpl("Store benchmark");
+        try {
+            for (DataPoint dataPoints[] : scans)
+                newFile.storeDataPoints(dataPoints);
+        } finally {
+            newFile.close();
+        }
+    }
+
+    @Benchmark
+    public void readDataPoints(Blackhole blackhole) throws IOException {
+        for (int storageID : storageIDs)
+            blackhole.consume(dataFile.readDataPoints(storageID));
+    }
+
+    @Benchmark
+    public void readDataPointsIntoBuffer(Blackhole blackhole)
+            throws IOException {
+        DataPointsBuffer buffer = new DataPointsBuffer();
+        for (int storageID : storageIDs) {
+            dataFile.readDataPoints(storageID, buffer);
+            blackhole.consume(buffer.getIntensity(buffer.size() - 1));
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment.join;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.mzmine.benchmark.BenchmarkData;
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MaximumMZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Alignment of the peak lists of several samples by JoinAlignerTask
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinAlignerBenchmark {
+
+    private static final int NUM_OF_SCANS = 3000;
+    private static final int NUM_OF_COMPOUNDS = 5000;
+    private static final double DETECTION_RATE = 0.8;
+
+    @Param({ "2", "10" })
+    public int numOfSamples;
+
+    private RawDataFileImpl dataFiles[];
+    private ParameterSet parameters;
+    private MZmineProjectImpl project;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                NUM_OF_COMPOUNDS, NUM_OF_SCANS);
+
+        // The features do not read any data points, so the files have no
+        // scans
+        dataFiles = new RawDataFileImpl[numOfSamples];
+        PeakList peakLists[] = new PeakList[numOfSamples];
+        for (int i = 0; i < numOfSamples; i++) {
+            dataFiles[i] = new RawDataFileImpl("Sample " + (i + 1));
+            Compound sampleCompounds[] = BenchmarkData.shiftCompounds(random,
+                    compounds, 5, 0.1);
+            peakLists[i] = BenchmarkData.createPeakList("Sample " + (i + 1)
+                    + " peaks", random, dataFiles[i], sampleCompounds,
+                    DETECTION_RATE);
+        }
+
+        parameters = new JoinAlignerParameters().cloneParameterSet();
+        parameters.getParameter(JoinAlignerParameters.peakLists).setValue(
+                PeakListsSelectionType.SPECIFIC_PEAKLISTS, peakLists);
+        parameters.getParameter(JoinAlignerParameters.peakListName).setValue(
+                "Aligned peak list");
+        parameters.getParameter(JoinAlignerParameters.MZTolerance).setValue(
+                new MaximumMZTolerance(0.005, 10));
+        parameters.getParameter(JoinAlignerParameters.MZWeight).setValue(
+                10.0);
+        parameters.getParameter(JoinAlignerParameters.RTTolerance).setValue(
+                new RTTolerance(true, 0.2));
+        parameters.getParameter(JoinAlignerParameters.RTWeight).setValue(1.0);
+        parameters.getParameter(JoinAlignerParameters.SameChargeRequired)
+                .setValue(false);
+        parameters.getParameter(JoinAlignerParameters.SameIDRequired)
+                .setValue(false);
+        parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
+                .setValue(false);
+    }
+
+    /**
+     * The aligned peak list is added to the project, so every alignment gets
+     * a new project
+     */
+    @Setup(Level.Invocation)
+    public void createProject() {
+        project = new MZmineProjectImpl();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (RawDataFile dataFile : dataFiles)
+            dataFile.close();
+    }
+
+    @Benchmark
+    public void alignPeakLists() {
+        BenchmarkData.runTask(new JoinAlignerTask(project, parameters));
+    }
+
+}
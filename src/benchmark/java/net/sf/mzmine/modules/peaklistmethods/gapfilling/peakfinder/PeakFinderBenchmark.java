@@ -0,0 +1,130 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.mzmine.benchmark.BenchmarkData;
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MaximumMZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Gap filling of an aligned peak list by PeakFinderTask, reading the scans of
+ * all raw data files. Only the mode without retention time correction is
+ * measured, because the other mode picks its master sample randomly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeakFinderBenchmark {
+
+    private static final int NUM_OF_SCANS = 1000;
+    private static final int NUM_OF_COMPOUNDS = 2000;
+    private static final int NUM_OF_NOISE_POINTS = 300;
+    private static final double DETECTION_RATE = 0.7;
+
+    @Param({ "2", "6" })
+    public int numOfSamples;
+
+    private RawDataFile dataFiles[];
+    private PeakList peakList;
+    private ParameterSet parameters;
+    private MZmineProjectImpl project;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                NUM_OF_COMPOUNDS, NUM_OF_SCANS);
+
+        dataFiles = new RawDataFile[numOfSamples];
+        Compound sampleCompounds[][] = new Compound[numOfSamples][];
+        for (int i = 0; i < numOfSamples; i++) {
+            sampleCompounds[i] = BenchmarkData.shiftCompounds(random,
+                    compounds, 5, 0.05);
+            dataFiles[i] = BenchmarkData.createRawDataFile("Sample "
+                    + (i + 1), random, sampleCompounds[i], NUM_OF_SCANS,
+                    NUM_OF_NOISE_POINTS);
+        }
+        peakList = BenchmarkData.createAlignedPeakList("Aligned peak list",
+                random, dataFiles, sampleCompounds, DETECTION_RATE);
+
+        parameters = new PeakFinderParameters().cloneParameterSet();
+        parameters.getParameter(PeakFinderParameters.suffix).setValue(
+                "gap-filled");
+        parameters.getParameter(PeakFinderParameters.intTolerance).setValue(
+                0.5);
+        parameters.getParameter(PeakFinderParameters.MZTolerance).setValue(
+                new MaximumMZTolerance(0.005, 10));
+        parameters.getParameter(PeakFinderParameters.RTTolerance).setValue(
+                new RTTolerance(true, 0.2));
+        parameters.getParameter(PeakFinderParameters.RTCorrection).setValue(
+                false);
+        parameters.getParameter(PeakFinderParameters.autoRemove).setValue(
+                false);
+    }
+
+    /**
+     * The gap-filled peak list is added to the project, so every run gets a
+     * new project
+     */
+    @Setup(Level.Invocation)
+    public void createProject() {
+        project = new MZmineProjectImpl();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (RawDataFile dataFile : dataFiles)
+            dataFile.close();
+    }
+
+    @Benchmark
+    public void fillGaps() {
+        BenchmarkData.runTask(new PeakFinderTask(project, peakList,
+                parameters));
+    }
+
+}
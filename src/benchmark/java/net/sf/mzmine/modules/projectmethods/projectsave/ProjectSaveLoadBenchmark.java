@@ -0,0 +1,161 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.sf.mzmine.benchmark.BenchmarkData;
+import net.sf.mzmine.benchmark.BenchmarkData.Compound;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_24.PeakListOpenHandler_2_24;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.RawDataFileOpenHandler_2_5;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.util.StreamCopy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Saving and loading the raw data file and the peak list of a project, using
+ * the same handlers and zip entries as ProjectSavingTask and
+ * ProjectOpeningTask. The user parameters and the configuration are not part
+ * of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectSaveLoadBenchmark {
+
+    private static final int NUM_OF_SCANS = 1000;
+    private static final int NUM_OF_COMPOUNDS = 5000;
+    private static final int NUM_OF_NOISE_POINTS = 300;
+
+    private static final String FILE_ID = "1";
+
+    private RawDataFileImpl dataFile;
+    private PeakList peakList;
+    private File savedProject, projectFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkData.initializeCore();
+        Random random = new Random(BenchmarkData.SEED);
+        Compound compounds[] = BenchmarkData.generateCompounds(random,
+                NUM_OF_COMPOUNDS, NUM_OF_SCANS);
+        dataFile = BenchmarkData.createRawDataFile("Sample", random,
+                compounds, NUM_OF_SCANS, NUM_OF_NOISE_POINTS);
+        peakList = BenchmarkData.createPeakList("Sample peaks", random,
+                dataFile, compounds, 0.8);
+
+        savedProject = File.createTempFile("mzmine-benchmark", ".mzmine");
+        projectFile = File.createTempFile("mzmine-benchmark", ".mzmine");
+        saveProject(savedProject);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataFile.close();
+        savedProject.delete();
+        projectFile.delete();
+    }
+
+    @Benchmark
+    public void saveProject() throws Exception {
+        saveProject(projectFile);
+    }
+
+    @Benchmark
+    public void loadProject(Blackhole blackhole) throws Exception {
+        Hashtable<String, RawDataFile> dataFilesIDMap = new Hashtable<String, RawDataFile>();
+        File scansFile = null;
+        ZipFile zipFile = new ZipFile(savedProject);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                InputStream is = zipFile.getInputStream(entry);
+                if (entry.getName().endsWith(".scans")) {
+                    scansFile = RawDataFileImpl.createNewDataPointsFile();
+                    FileOutputStream os = new FileOutputStream(scansFile);
+                    new StreamCopy().copy(is, os);
+                    os.close();
+                } else if (entry.getName().endsWith(".xml")) {
+                    RawDataFile loadedFile = new RawDataFileOpenHandler_2_5()
+                            .readRawDataFile(is, scansFile);
+                    dataFilesIDMap.put(FILE_ID, loadedFile);
+                } else if (entry.getName().endsWith(".peaks")) {
+                    blackhole.consume(new PeakListOpenHandler_2_24(
+                            dataFilesIDMap).readPeakList(is));
+                }
+                is.close();
+            }
+        } finally {
+            zipFile.close();
+            // Closing the loaded file removes its scans file
+            for (RawDataFile loadedFile : dataFilesIDMap.values())
+                loadedFile.close();
+        }
+    }
+
+    private void saveProject(File file) throws Exception {
+        Hashtable<RawDataFile, String> dataFilesIDMap = new Hashtable<RawDataFile, String>();
+        ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(
+                file));
+        try {
+            RawDataFileSaveHandler rawDataFileSaveHandler = new RawDataFileSaveHandler(
+                    zipStream);
+            rawDataFileSaveHandler.writeRawDataFile(dataFile,
+                    Integer.parseInt(FILE_ID));
+            dataFilesIDMap.put(dataFile, FILE_ID);
+
+            zipStream.putNextEntry(new ZipEntry("Peak list #1 "
+                    + peakList.getName() + ".peaks"));
+            new PeakListBinarySaveHandler(zipStream, dataFilesIDMap)
+                    .savePeakList(peakList);
+        } finally {
+            zipStream.close();
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+/**
+ * Reusable primitive storage of the m/z and intensity values of a mass
+ * spectrum, kept in two parallel arrays. The buffer is filled by
+ * Scan.getDataPoints(DataPointsBuffer) or MassList.getDataPoints(
+ * DataPointsBuffer) and may be reused for any number of spectra, so a module
+ * iterating over all scans of a raw data file does not need to create an
+ * object for every data point. The backing arrays may be longer than the
+ * number of data points, only the first size() values are valid.
+ * 
+ * This class is not thread-safe, each thread has to use its own buffer.
+ */
+public final class DataPointsBuffer {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private double mzValues[], intensityValues[];
+    private int size = 0;
+
+    public DataPointsBuffer() {
+	this(DEFAULT_CAPACITY);
+    }
+
+    public DataPointsBuffer(int initialCapacity) {
+	mzValues = new double[initialCapacity];
+	intensityValues = new double[initialCapacity];
+    }
+
+    /**
+     * @return Number of data points in this buffer
+     */
+    public int size() {
+	return size;
+    }
+
+    public double getMZ(int index) {
+	return mzValues[index];
+    }
+
+    public double getIntensity(int index) {
+	return intensityValues[index];
+    }
+
+    /**
+     * Returns the backing array of m/z values. Only the first size() values
+     * are valid. The array is replaced when the buffer grows, so it should not
+     * be kept across calls which modify the buffer.
+     */
+    public @Nonnull double[] getMZValues() {
+	return mzValues;
+    }
+
+    /**
+     * Returns the backing array of intensity values, see getMZValues()
+     */
+    public @Nonnull double[] getIntensityValues() {
+	return intensityValues;
+    }
+
+    /**
+     * Removes all data points, keeping the allocated arrays
+     */
+    public void clear() {
+	size = 0;
+    }
+
+    /**
+     * Makes sure the backing arrays can hold given number of data points.
+     * Existing values are preserved.
+     */
+    public void ensureCapacity(int capacity) {
+	if (mzValues.length >= capacity)
+	    return;
+	int newCapacity = Math.max(capacity, mzValues.length * 2);
+	mzValues = Arrays.copyOf(mzValues, newCapacity);
+	intensityValues = Arrays.copyOf(intensityValues, newCapacity);
+    }
+
+    /**
+     * Sets the number of valid data points, after the backing arrays were
+     * filled directly. The capacity must be sufficient.
+     */
+    public void setSize(int size) {
+	if ((size < 0) || (size > mzValues.length))
+	    throw new IllegalArgumentException("Invalid size " + size
+		    + ", capacity is " + mzValues.length);
+	this.size = size;
+    }
+
+    public void add(double mz, double intensity) {
+	ensureCapacity(size + 1);
+	mzValues[size] = mz;
+	intensityValues[size] = intensity;
+	size++;
+    }
+
+    /**
+     * Replaces the content of this buffer with the values of given data points
+     */
+    public void setDataPoints(@Nonnull DataPoint dataPoints[]) {
+	clear();
+	ensureCapacity(dataPoints.length);
+	for (int i = 0; i < dataPoints.length; i++) {
+	    mzValues[i] = dataPoints[i].getMZ();
+	    intensityValues[i] = dataPoints[i].getIntensity();
+	}
+	size = dataPoints.length;
+    }
+
+    /**
+     * Returns the index of the first data point with m/z value greater or
+     * equal to given m/z, or size() if there is no such data point. We assume
+     * the data points are sorted by m/z.
+     */
+    public int findFirstMZ(double mz) {
+	int low = 0, high = size;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (mzValues[middle] < mz)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Returns the index of the data point with the highest intensity, or -1
+     * if the buffer is empty. If there are more such data points, the first
+     * one is returned.
+     */
+    public int getHighestDataPointIndex() {
+	int topIndex = -1;
+	for (int i = 0; i < size; i++) {
+	    if ((topIndex < 0) || (intensityValues[i] > intensityValues[topIndex]))
+		topIndex = i;
+	}
+	return topIndex;
+    }
+
+    /**
+     * Creates a DataPoint instance for the data point at given index
+     */
+    public @Nonnull DataPoint getDataPoint(int index) {
+	return new SimpleDataPoint(mzValues[index], intensityValues[index]);
+    }
+
+    /**
+     * Creates DataPoint instances for all data points in this buffer
+     */
+    public @Nonnull DataPoint[] toDataPoints() {
+	DataPoint dataPoints[] = new DataPoint[size];
+	for (int i = 0; i < size; i++) {
+	    dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+	}
+	return dataPoints;
+    }
+
+}
@@ -136,7 +136,25 @@ public interface MZmineProject {
      */
     public PeakList[] getPeakLists(RawDataFile file);
 
+    /**
+     * Notifies the GUI that given object (e.g. a peak list row) was changed.
+     * Notifications are coalesced and delivered later, so this method can be
+     * called from any thread.
+     */
     public void notifyObjectChanged(Object object, boolean structureChanged);
+
+    /**
+     * Starts a bulk update of the project. Until the matching endBulkUpdate(),
+     * change notifications are only collected, and they are delivered together
+     * afterwards. Bulk updates may be nested. Tasks changing many objects
+     * should call endBulkUpdate() in a finally block.
+     */
+    public void beginBulkUpdate();
+
+    /**
+     * Ends a bulk update started by beginBulkUpdate()
+     */
+    public void endBulkUpdate();
     
     public void addProjectListener(MZmineProjectListener newListener);
     
@@ -36,4 +36,10 @@ public interface MassList {
     @Nonnull
     public DataPoint[] getDataPoints();
 
+    /**
+     * Fills the given buffer with the data points of this mass list, see
+     * Scan.getDataPoints(DataPointsBuffer)
+     */
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer);
+
 }
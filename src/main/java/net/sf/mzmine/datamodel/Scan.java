@@ -109,6 +109,17 @@ public interface Scan extends MassSpectrum {
      */
     public int[] getFragmentScanNumbers();
 
+    /**
+     * Fills the given buffer with the data points of this scan, sorted in m/z
+     * order. Unlike getDataPoints(), this method does not create an object for
+     * each data point, so it should be preferred by modules which process all
+     * scans of a raw data file.
+     * 
+     * @param buffer
+     *            Buffer to fill, its previous content is discarded
+     */
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer);
+
     @Nonnull
     public MassList[] getMassLists();
 
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+import com.google.common.collect.Range;
+
+/**
+ * Index of the rows and peaks of a peak list, sorted by m/z. Range queries only
+ * test the rows inside the m/z range, and return them in the same order as
+ * they appear in the peak list (which is the order in which they were added).
+ *
+ * SimplePeakListRow instances notify the index through their peak lists when
+ * their average values change. Rows of other implementations are not indexed
+ * and are always tested. Peaks are indexed per raw data file on the first
+ * query for that file, assuming their m/z and RT do not change while they
+ * belong to a row.
+ */
+class PeakListIndex {
+
+    private static final Comparator<Entry> mzComparator = new Comparator<Entry>() {
+	@Override
+	public int compare(Entry e1, Entry e2) {
+	    int result = Double.compare(e1.mz, e2.mz);
+	    if (result == 0)
+		result = Long.compare(e1.seq, e2.seq);
+	    return result;
+	}
+    };
+
+    private static final Comparator<Entry> seqComparator = new Comparator<Entry>() {
+	@Override
+	public int compare(Entry e1, Entry e2) {
+	    return Long.compare(e1.seq, e2.seq);
+	}
+    };
+
+    /**
+     * Indexed row or peak. Peaks share the sequence number of their row.
+     */
+    private static final class Entry {
+	final Object item;
+	final long seq;
+	double mz, rt;
+
+	// Peak entries of a row, and the per-file set containing a peak entry
+	Entry peakEntries[];
+	TreeSet<Entry> peakSet;
+
+	Entry(Object item, long seq, double mz, double rt) {
+	    this.item = item;
+	    this.seq = seq;
+	    this.mz = mz;
+	    this.rt = rt;
+	}
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeSet<Entry> rows = new TreeSet<Entry>(mzComparator);
+    private final Map<PeakListRow, Entry> rowEntries = new IdentityHashMap<PeakListRow, Entry>();
+    private final List<Entry> untrackedRows = new ArrayList<Entry>();
+    private final Map<RawDataFile, TreeSet<Entry>> peaks = new HashMap<RawDataFile, TreeSet<Entry>>();
+    private long nextSeq = 0;
+
+    /**
+     * Returns false if given row cannot be indexed, because it is already
+     * present in the index
+     */
+    boolean addRow(PeakListRow row) {
+	lock.writeLock().lock();
+	try {
+	    if (rowEntries.containsKey(row))
+		return false;
+	    Entry entry = new Entry(row, nextSeq++, row.getAverageMZ(),
+		    row.getAverageRT());
+	    rowEntries.put(row, entry);
+	    if (row instanceof SimplePeakListRow) {
+		rows.add(entry);
+		addPeakEntries(entry);
+	    } else {
+		untrackedRows.add(entry);
+	    }
+	    return true;
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    void removeRow(PeakListRow row) {
+	lock.writeLock().lock();
+	try {
+	    Entry entry = rowEntries.remove(row);
+	    if (entry == null)
+		return;
+	    if (!rows.remove(entry))
+		untrackedRows.remove(entry);
+	    removePeakEntries(entry);
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Updates the position of given row after its average values or peaks
+     * changed
+     */
+    void updateRow(PeakListRow row) {
+	lock.writeLock().lock();
+	try {
+	    Entry entry = rowEntries.get(row);
+	    if ((entry == null) || (!rows.remove(entry)))
+		return;
+	    removePeakEntries(entry);
+	    entry.mz = row.getAverageMZ();
+	    entry.rt = row.getAverageRT();
+	    rows.add(entry);
+	    addPeakEntries(entry);
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    PeakListRow[] getRows(Range<Double> rtRange, Range<Double> mzRange) {
+	List<Entry> found = new ArrayList<Entry>();
+	lock.readLock().lock();
+	try {
+	    for (Entry entry : subSet(rows, mzRange)) {
+		if (rtRange.contains(entry.rt) && mzRange.contains(entry.mz))
+		    found.add(entry);
+	    }
+	    for (Entry entry : untrackedRows) {
+		PeakListRow row = (PeakListRow) entry.item;
+		if (rtRange.contains(row.getAverageRT())
+			&& mzRange.contains(row.getAverageMZ()))
+		    found.add(entry);
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+
+	Collections.sort(found, seqComparator);
+	PeakListRow result[] = new PeakListRow[found.size()];
+	for (int i = 0; i < result.length; i++)
+	    result[i] = (PeakListRow) found.get(i).item;
+	return result;
+    }
+
+    Feature[] getPeaks(RawDataFile file, Range<Double> rtRange,
+	    Range<Double> mzRange) {
+	// Build the index for this file on the first query. The read lock
+	// cannot be upgraded, so the write lock is taken separately.
+	boolean indexed;
+	lock.readLock().lock();
+	try {
+	    indexed = peaks.containsKey(file);
+	} finally {
+	    lock.readLock().unlock();
+	}
+	if (!indexed) {
+	    lock.writeLock().lock();
+	    try {
+		indexPeaks(file);
+	    } finally {
+		lock.writeLock().unlock();
+	    }
+	}
+
+	List<Entry> found = new ArrayList<Entry>();
+	lock.readLock().lock();
+	try {
+	    TreeSet<Entry> filePeaks = peaks.get(file);
+	    for (Entry entry : subSet(filePeaks, mzRange)) {
+		if (rtRange.contains(entry.rt) && mzRange.contains(entry.mz))
+		    found.add(entry);
+	    }
+	    for (Entry entry : untrackedRows) {
+		Feature peak = ((PeakListRow) entry.item).getPeak(file);
+		if ((peak != null) && rtRange.contains(peak.getRT())
+			&& mzRange.contains(peak.getMZ()))
+		    found.add(new Entry(peak, entry.seq, 0, 0));
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+
+	Collections.sort(found, seqComparator);
+	Feature result[] = new Feature[found.size()];
+	for (int i = 0; i < result.length; i++)
+	    result[i] = (Feature) found.get(i).item;
+	return result;
+    }
+
+    /**
+     * Indexes the peaks of given file in all tracked rows. Must be called with
+     * the write lock held.
+     */
+    private void indexPeaks(RawDataFile file) {
+	if (peaks.containsKey(file))
+	    return;
+	TreeSet<Entry> filePeaks = new TreeSet<Entry>(mzComparator);
+	peaks.put(file, filePeaks);
+	for (Entry rowEntry : rows) {
+	    Entry peakEntry = createPeakEntry(rowEntry, file, filePeaks);
+	    if (peakEntry == null)
+		continue;
+	    Entry oldEntries[] = rowEntry.peakEntries;
+	    if (oldEntries == null) {
+		rowEntry.peakEntries = new Entry[] { peakEntry };
+	    } else {
+		rowEntry.peakEntries = Arrays.copyOf(oldEntries,
+			oldEntries.length + 1);
+		rowEntry.peakEntries[oldEntries.length] = peakEntry;
+	    }
+	}
+    }
+
+    /**
+     * Adds entries for the peaks of given row in all files which are already
+     * indexed. The entries are remembered in the row entry, so they can be
+     * removed when the row changes.
+     */
+    private void addPeakEntries(Entry rowEntry) {
+	if (peaks.isEmpty())
+	    return;
+	List<Entry> entries = new ArrayList<Entry>(peaks.size());
+	for (Map.Entry<RawDataFile, TreeSet<Entry>> filePeaks : peaks
+		.entrySet()) {
+	    Entry peakEntry = createPeakEntry(rowEntry, filePeaks.getKey(),
+		    filePeaks.getValue());
+	    if (peakEntry != null)
+		entries.add(peakEntry);
+	}
+	rowEntry.peakEntries = entries.toArray(new Entry[0]);
+    }
+
+    private Entry createPeakEntry(Entry rowEntry, RawDataFile file,
+	    TreeSet<Entry> filePeaks) {
+	Feature peak = ((PeakListRow) rowEntry.item).getPeak(file);
+	if (peak == null)
+	    return null;
+	Entry peakEntry = new Entry(peak, rowEntry.seq, peak.getMZ(),
+		peak.getRT());
+	peakEntry.peakSet = filePeaks;
+	filePeaks.add(peakEntry);
+	return peakEntry;
+    }
+
+    private void removePeakEntries(Entry rowEntry) {
+	if (rowEntry.peakEntries == null)
+	    return;
+	for (Entry peakEntry : rowEntry.peakEntries)
+	    peakEntry.peakSet.remove(peakEntry);
+	rowEntry.peakEntries = null;
+    }
+
+    private static NavigableSet<Entry> subSet(TreeSet<Entry> set,
+	    Range<Double> mzRange) {
+	NavigableSet<Entry> result = set;
+	if (mzRange.hasLowerBound())
+	    result = result.tailSet(new Entry(null, Long.MIN_VALUE,
+		    mzRange.lowerEndpoint(), 0), true);
+	if (mzRange.hasUpperBound())
+	    result = result.headSet(new Entry(null, Long.MAX_VALUE,
+		    mzRange.upperEndpoint(), 0), true);
+	return result;
+    }
+
+}
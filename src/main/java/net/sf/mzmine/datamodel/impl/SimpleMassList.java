@@ -22,6 +22,7 @@ package net.sf.mzmine.datamodel.impl;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
 
@@ -59,6 +60,11 @@ public class SimpleMassList implements MassList {
 	return mzPeaks;
     }
 
+    @Override
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer) {
+	buffer.setDataPoints(mzPeaks);
+    }
+
     public void setDataPoints(DataPoint mzPeaks[]) {
 	this.mzPeaks = mzPeaks;
     }
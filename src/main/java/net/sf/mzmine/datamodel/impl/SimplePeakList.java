@@ -50,6 +50,14 @@ public class SimplePeakList implements PeakList {
     private String dateCreated;
     private Range<Double> mzRange, rtRange;
 
+    /**
+     * Index for the range queries. It is built on the first query and then
+     * kept up to date, unless a row is added to this peak list more than
+     * once, in which case we fall back to a linear search.
+     */
+    private volatile PeakListIndex index;
+    private boolean indexDisabled = false;
+
     public static DateFormat dateFormat = new SimpleDateFormat(
 	    "yyyy/MM/dd HH:mm:ss");
 
@@ -161,6 +169,10 @@ public class SimplePeakList implements PeakList {
 
     public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange,
 	    Range<Double> mzRange) {
+	PeakListIndex currentIndex = getIndex();
+	if (currentIndex != null)
+	    return currentIndex.getRows(rtRange, mzRange);
+
 	Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
 
 	for (PeakListRow row : peakListRows) {
@@ -179,7 +191,17 @@ public class SimplePeakList implements PeakList {
 		throw (new IllegalArgumentException("Data file " + testFile
 			+ " is not in this peak list"));
 	}
-	peakListRows.add(row);
+	// Register the peak list first, so that changes of the row are not
+	// missed by the index. Unknown rows are ignored by rowChanged().
+	if (row instanceof SimplePeakListRow)
+	    ((SimplePeakListRow) row).addPeakList(this);
+	// The list and the index must be updated together, otherwise the
+	// index could be built with the row already in it
+	synchronized (this) {
+	    peakListRows.add(row);
+	    if ((index != null) && (!index.addRow(row)))
+		disableIndex();
+	}
 	if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
 	    maxDataPointIntensity = row.getDataPointMaxIntensity();
 	}
@@ -224,6 +246,10 @@ public class SimplePeakList implements PeakList {
      */
     public Feature[] getPeaksInsideScanAndMZRange(RawDataFile file,
 	    Range<Double> rtRange, Range<Double> mzRange) {
+	PeakListIndex currentIndex = getIndex();
+	if (currentIndex != null)
+	    return currentIndex.getPeaks(file, rtRange, mzRange);
+
 	Vector<Feature> peaksInside = new Vector<Feature>();
 
 	Feature[] peaks = getPeaks(file);
@@ -239,7 +265,15 @@ public class SimplePeakList implements PeakList {
      * @see net.sf.mzmine.datamodel.PeakList#removeRow(net.sf.mzmine.datamodel.PeakListRow)
      */
     public void removeRow(PeakListRow row) {
-	peakListRows.remove(row);
+	boolean lastOccurrence;
+	synchronized (this) {
+	    peakListRows.remove(row);
+	    lastOccurrence = !peakListRows.contains(row);
+	    if (index != null)
+		index.removeRow(row);
+	}
+	if ((row instanceof SimplePeakListRow) && lastOccurrence)
+	    ((SimplePeakListRow) row).removePeakList(this);
 
 	// We have to update the project tree model
 	MZmineProjectImpl project = (MZmineProjectImpl) MZmineCore
@@ -257,6 +291,41 @@ public class SimplePeakList implements PeakList {
 	removeRow(peakListRows.get(rowNum));
     }
 
+    /**
+     * Returns the index for range queries, or null if it cannot be used
+     */
+    private PeakListIndex getIndex() {
+	PeakListIndex currentIndex = index;
+	if (currentIndex != null)
+	    return currentIndex;
+	synchronized (this) {
+	    if ((index == null) && (!indexDisabled)) {
+		currentIndex = new PeakListIndex();
+		for (PeakListRow row : peakListRows) {
+		    if (!currentIndex.addRow(row)) {
+			disableIndex();
+			return null;
+		    }
+		}
+		index = currentIndex;
+	    }
+	    return index;
+	}
+    }
+
+    private void disableIndex() {
+	index = null;
+	indexDisabled = true;
+    }
+
+    /**
+     * Called by SimplePeakListRow when its average values change
+     */
+    synchronized void rowChanged(SimplePeakListRow row) {
+	if (index != null)
+	    index.updateRow(row);
+    }
+
     private void updateMaxIntensity() {
 	maxDataPointIntensity = 0;
 	mzRange = null;
@@ -19,11 +19,14 @@
 
 package net.sf.mzmine.datamodel.impl;
 
+import java.lang.ref.WeakReference;
 import java.text.Format;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Vector;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -55,6 +58,16 @@ public class SimplePeakListRow implements PeakListRow {
     private double averageRT, averageMZ, averageHeight, averageArea;
     private int rowCharge;
 
+    /**
+     * Peak lists containing this row, which are notified when the average
+     * values change, so they can update their index. The references are weak,
+     * because a row may be reused in a derived peak list and must not keep
+     * the original peak list (and its index) reachable after the original
+     * peak list was removed from the project.
+     */
+    @SuppressWarnings("unchecked")
+    private volatile WeakReference<SimplePeakList> peakLists[] = new WeakReference[0];
+
     public SimplePeakListRow(int myID) {
 	this.myID = myID;
 	peaks = new Hashtable<RawDataFile, Feature>();
@@ -78,6 +91,7 @@ public class SimplePeakListRow implements PeakListRow {
     public void removePeak(RawDataFile file) {
 	this.peaks.remove(file);
 	calculateAverageValues();
+	notifyPeakLists();
     }
 
     /**
@@ -105,6 +119,7 @@ public class SimplePeakListRow implements PeakListRow {
 	    maxDataPointIntensity = peak.getRawDataPointsIntensityRange()
 		    .upperEndpoint();
 	calculateAverageValues();
+	notifyPeakLists();
 
     }
 
@@ -192,6 +207,7 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public void setAverageMZ(double mz) {
 	this.averageMZ = mz;
+	notifyPeakLists();
     }
 
     /**
@@ -199,6 +215,46 @@ public class SimplePeakListRow implements PeakListRow {
      */
     public void setAverageRT(double rt) {
 	this.averageRT = rt;
+	notifyPeakLists();
+    }
+
+    synchronized void addPeakList(SimplePeakList peakList) {
+	List<WeakReference<SimplePeakList>> newPeakLists = new ArrayList<>(
+		peakLists.length + 1);
+	for (WeakReference<SimplePeakList> ref : peakLists) {
+	    SimplePeakList existing = ref.get();
+	    if (existing == peakList)
+		return;
+	    if (existing != null)
+		newPeakLists.add(ref);
+	}
+	newPeakLists.add(new WeakReference<SimplePeakList>(peakList));
+	setPeakLists(newPeakLists);
+    }
+
+    synchronized void removePeakList(SimplePeakList peakList) {
+	List<WeakReference<SimplePeakList>> newPeakLists = new ArrayList<>(
+		peakLists.length);
+	for (WeakReference<SimplePeakList> ref : peakLists) {
+	    SimplePeakList existing = ref.get();
+	    if ((existing != null) && (existing != peakList))
+		newPeakLists.add(ref);
+	}
+	setPeakLists(newPeakLists);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setPeakLists(List<WeakReference<SimplePeakList>> newPeakLists) {
+	peakLists = newPeakLists.toArray(new WeakReference[newPeakLists
+		.size()]);
+    }
+
+    private void notifyPeakLists() {
+	for (WeakReference<SimplePeakList> ref : peakLists) {
+	    SimplePeakList peakList = ref.get();
+	    if (peakList != null)
+		peakList.rowChanged(this);
+	}
     }
 
     /**
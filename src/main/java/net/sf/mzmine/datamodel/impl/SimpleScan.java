@@ -25,6 +25,7 @@ import java.util.Vector;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
@@ -103,6 +104,11 @@ public class SimpleScan implements Scan {
 	return dataPoints;
     }
 
+    @Override
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer) {
+	buffer.setDataPoints(dataPoints);
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
@@ -20,7 +20,8 @@
 package net.sf.mzmine.desktop.impl.projecttree;
 
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import javax.swing.SwingUtilities;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -46,7 +47,9 @@ public class PeakListTreeModel extends DefaultTreeModel {
 
     public static final String peakListsNodeName = "Peak lists";
 
-    private Hashtable<Object, DefaultMutableTreeNode> treeObjects = new Hashtable<Object, DefaultMutableTreeNode>();
+    // Nodes of all objects in the tree, by object identity. Only accessed
+    // from Swing thread.
+    private final Map<Object, DefaultMutableTreeNode> treeObjects = new IdentityHashMap<Object, DefaultMutableTreeNode>();
 
     private DefaultMutableTreeNode rootNode;
 
@@ -77,16 +80,17 @@ public class PeakListTreeModel extends DefaultTreeModel {
 	treeObjects.put(object, newNode);
 
 	if (object instanceof PeakList) {
-	    int childCount = getChildCount(rootNode);
-	    insertNodeInto(newNode, rootNode, childCount);
+	    // Build the row nodes first, so the tree fires a single event
 	    final PeakList peakList = (PeakList) object;
 	    PeakListRow rows[] = peakList.getRows();
 	    for (int i = 0; i < rows.length; i++) {
 		DefaultMutableTreeNode rowNode = new DefaultMutableTreeNode(
 			rows[i]);
 		treeObjects.put(rows[i], rowNode);
-		insertNodeInto(rowNode, newNode, i);
+		newNode.add(rowNode);
 	    }
+	    int childCount = getChildCount(rootNode);
+	    insertNodeInto(newNode, rootNode, childCount);
 	}
 
 	if (object instanceof MassList) {
@@ -159,6 +163,10 @@ public class PeakListTreeModel extends DefaultTreeModel {
 	}
     }
 
+    /**
+     * This method must be called from Swing thread. Objects which are not in
+     * the tree (anymore) are ignored.
+     */
     public void notifyObjectChanged(Object object, boolean structureChanged) {
 	if (rootNode.getUserObject() == object) {
 	    if (structureChanged)
@@ -167,30 +175,34 @@ public class PeakListTreeModel extends DefaultTreeModel {
 		nodeChanged(rootNode);
 	    return;
 	}
-	Enumeration<?> nodes = rootNode.breadthFirstEnumeration();
-	while (nodes.hasMoreElements()) {
-	    DefaultMutableTreeNode node = (DefaultMutableTreeNode) nodes
-		    .nextElement();
 
-	    if (node.getUserObject() == object) {
-		if (structureChanged) {
-		    if (object instanceof PeakList) {
-			node.removeAllChildren();
-			PeakList peakList = (PeakList) object;
-			PeakListRow rows[] = peakList.getRows();
-			for (int i = 0; i < rows.length; i++) {
-			    DefaultMutableTreeNode rowNode = new DefaultMutableTreeNode(
-				    rows[i]);
-			    treeObjects.put(rows[i], rowNode);
-			    insertNodeInto(rowNode, node, i);
-			}
-		    }
-		    nodeStructureChanged(node);
-		} else
-		    nodeChanged(node);
-		return;
+	final DefaultMutableTreeNode node = treeObjects.get(object);
+	if (node == null)
+	    return;
+
+	if (!structureChanged) {
+	    nodeChanged(node);
+	    return;
+	}
+
+	if (object instanceof PeakList) {
+	    Enumeration<?> children = node.children();
+	    while (children.hasMoreElements()) {
+		DefaultMutableTreeNode rowNode = (DefaultMutableTreeNode) children
+			.nextElement();
+		treeObjects.remove(rowNode.getUserObject());
+	    }
+	    node.removeAllChildren();
+	    PeakList peakList = (PeakList) object;
+	    PeakListRow rows[] = peakList.getRows();
+	    for (int i = 0; i < rows.length; i++) {
+		DefaultMutableTreeNode rowNode = new DefaultMutableTreeNode(
+			rows[i]);
+		treeObjects.put(rows[i], rowNode);
+		node.add(rowNode);
 	    }
 	}
+	nodeStructureChanged(node);
 
     }
 
@@ -21,7 +21,8 @@ package net.sf.mzmine.desktop.impl.projecttree;
 
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import javax.swing.SwingUtilities;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -47,7 +48,9 @@ public class RawDataTreeModel extends DefaultTreeModel {
 
     public static final String dataFilesNodeName = "Raw data files";
 
-    private Hashtable<Object, DefaultMutableTreeNode> treeObjects = new Hashtable<Object, DefaultMutableTreeNode>();
+    // Nodes of all objects in the tree, by object identity. Only accessed
+    // from Swing thread.
+    private final Map<Object, DefaultMutableTreeNode> treeObjects = new IdentityHashMap<Object, DefaultMutableTreeNode>();
 
     private ProjectTreeNode rootNode;
 
@@ -79,8 +82,7 @@ public class RawDataTreeModel extends DefaultTreeModel {
 
 	if (object instanceof RawDataFile) {
 
-	    int childCount = getChildCount(rootNode);
-	    insertNodeInto(newNode, rootNode, childCount);
+	    // Build the scan nodes first, so the tree fires a single event
 	    RawDataFile dataFile = (RawDataFile) object;
 	    int scanNumbers[] = dataFile.getScanNumbers();
 	    for (int i = 0; i < scanNumbers.length; i++) {
@@ -88,14 +90,14 @@ public class RawDataTreeModel extends DefaultTreeModel {
 		DefaultMutableTreeNode scanNode = new DefaultMutableTreeNode(
 			scan);
 		treeObjects.put(scan, scanNode);
-		insertNodeInto(scanNode, newNode, i);
+		newNode.add(scanNode);
 
 		MassList massLists[] = scan.getMassLists();
 		for (int j = 0; j < massLists.length; j++) {
 		    DefaultMutableTreeNode mlNode = new DefaultMutableTreeNode(
 			    massLists[j]);
 		    treeObjects.put(massLists[j], mlNode);
-		    insertNodeInto(mlNode, scanNode, j);
+		    scanNode.add(mlNode);
 
                 }
 
@@ -106,9 +108,12 @@ public class RawDataTreeModel extends DefaultTreeModel {
             for (RemoteJob job : jobs) {
                 DefaultMutableTreeNode jobNode = new DefaultMutableTreeNode(job);
                 treeObjects.put(job, jobNode);
-                insertNodeInto(jobNode, newNode, i++);
+                newNode.insert(jobNode, i++);
             }
 
+	    int childCount = getChildCount(rootNode);
+	    insertNodeInto(newNode, rootNode, childCount);
+
         }
 
         else if (object instanceof RemoteJob) {
@@ -188,6 +193,10 @@ public class RawDataTreeModel extends DefaultTreeModel {
 	}
     }
 
+    /**
+     * This method must be called from Swing thread. Objects which are not in
+     * the tree (anymore) are ignored.
+     */
     public void notifyObjectChanged(Object object, boolean structureChanged) {
 	if (rootNode.getUserObject() == object) {
 	    if (structureChanged)
@@ -196,18 +205,15 @@ public class RawDataTreeModel extends DefaultTreeModel {
 		nodeChanged(rootNode);
 	    return;
 	}
-	Enumeration<?> nodes = rootNode.breadthFirstEnumeration();
-	while (nodes.hasMoreElements()) {
-	    DefaultMutableTreeNode node = (DefaultMutableTreeNode) nodes
-		    .nextElement();
-	    if (node.getUserObject() == object) {
-		if (structureChanged)
-		    nodeStructureChanged(node);
-		else
-		    nodeChanged(node);
-		return;
-	    }
-	}
+
+	final DefaultMutableTreeNode node = treeObjects.get(object);
+	if (node == null)
+	    return;
+
+	if (structureChanged)
+	    nodeStructureChanged(node);
+	else
+	    nodeChanged(node);
 
     }
 
@@ -34,6 +34,7 @@ import net.sf.mzmine.parameters.parametertypes.PasswordParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
+import net.sf.mzmine.project.impl.DataPointsCache;
 import net.sf.mzmine.util.ExitCode;
 
 import org.w3c.dom.Element;
@@ -61,6 +62,11 @@ public class MZminePreferences extends SimpleParameterSet {
 
     public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+    public static final IntegerParameter dataPointsCacheSize = new IntegerParameter(
+            "Scan data cache size (MB)",
+            "Memory used to keep recently read scan data points, shared by all raw data files (0 disables the cache)",
+            256, 0, null);
+
     public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
             "Use proxy", "Use proxy for internet connection?",
             new ProxySettings());
@@ -94,7 +100,8 @@ public class MZminePreferences extends SimpleParameterSet {
     		
     public MZminePreferences() {
 		super(new Parameter[] { mzFormat, rtFormat, intensityFormat,
-				numOfStdDevs, numOfThreads, proxySettings, rExecPath,
+				numOfStdDevs, numOfThreads, dataPointsCacheSize,
+				proxySettings, rExecPath,
 				sendStatistics, windowSetttings, vtmxServer, vtmxUsername,
 				vtmxPassword, vtmxProject });
     }
@@ -109,6 +116,8 @@ public class MZminePreferences extends SimpleParameterSet {
             // Update proxy settings
             updateSystemProxySettings();
 
+            updateDataPointsCacheSize();
+
             // Repaint windows to update number formats
             MZmineCore.getDesktop().getMainWindow().repaint();
         }
@@ -119,6 +128,7 @@ public class MZminePreferences extends SimpleParameterSet {
     public void loadValuesFromXML(Element xmlElement) {
         super.loadValuesFromXML(xmlElement);
         updateSystemProxySettings();
+        updateDataPointsCacheSize();
     }
 
 	public VeritomyxSettings getVeritomyxSettings() {
@@ -130,6 +140,13 @@ public class MZminePreferences extends SimpleParameterSet {
 		return new VeritomyxSettings(server, username, password, projectID);
 	}
 
+    private void updateDataPointsCacheSize() {
+        Integer cacheSize = getParameter(dataPointsCacheSize).getValue();
+        if (cacheSize == null)
+            return;
+        DataPointsCache.getInstance().setMaxSize(cacheSize * 1024L * 1024L);
+    }
+
     private void updateSystemProxySettings() {
         // Update system proxy settings
         Boolean proxyEnabled = getParameter(proxySettings).getValue();
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExitCode;
+
+/**
+ * Monitors a batch run in headless mode. While the batch is running, a
+ * heartbeat file describing the running tasks is rewritten periodically. When
+ * the batch is finished, a report with the resource usage of the whole run,
+ * of every batch step and of every task is written. The report is written as
+ * CSV if the file name ends with .csv, otherwise as JSON.
+ *
+ * All values are collected through TaskMetrics, so the modules do not need to
+ * report anything themselves.
+ */
+class HeadLessRunMonitor implements Runnable {
+
+    static final int DEFAULT_HEARTBEAT_INTERVAL = 10;
+
+    // Heap usage of the running tasks is sampled more often than the heartbeat
+    private static final int HEAP_SAMPLING_INTERVAL = 1000;
+
+    private static Logger logger = Logger.getLogger(HeadLessRunMonitor.class
+	    .getName());
+
+    private final File batchFile, reportFile, heartbeatFile;
+    private final int heartbeatInterval;
+    private final TaskMetrics runMetrics;
+
+    private TaskMetrics previousMetrics;
+    private Thread monitorThread;
+    private volatile boolean finished = false;
+    private volatile ExitCode exitCode;
+
+    /**
+     * @param reportFile
+     *            file for the final report, or null
+     * @param heartbeatFile
+     *            file for the heartbeat, or null
+     * @param heartbeatInterval
+     *            seconds between two heartbeats
+     */
+    HeadLessRunMonitor(File batchFile, File reportFile, File heartbeatFile,
+	    int heartbeatInterval) {
+	this.batchFile = batchFile;
+	this.reportFile = reportFile;
+	this.heartbeatFile = heartbeatFile;
+	this.heartbeatInterval = Math.max(1, heartbeatInterval);
+	this.runMetrics = new TaskMetrics("Batch " + batchFile.getName(), null);
+    }
+
+    /**
+     * Starts monitoring. The batch must be run by the calling thread, which is
+     * counted as the batch task.
+     */
+    void start() {
+	runMetrics.started(null);
+	previousMetrics = TaskMetrics.enter(runMetrics);
+	monitorThread = new Thread(this, "Run monitor thread");
+	monitorThread.setDaemon(true);
+	monitorThread.setPriority(Thread.MIN_PRIORITY);
+	monitorThread.start();
+    }
+
+    /**
+     * Stops monitoring and writes the final heartbeat and the report
+     */
+    void finish(ExitCode exitCode) {
+	TaskMetrics.exit(previousMetrics);
+	runMetrics.finished(exitCode == ExitCode.OK ? TaskStatus.FINISHED
+		: TaskStatus.ERROR);
+	this.exitCode = exitCode;
+	finished = true;
+
+	monitorThread.interrupt();
+	try {
+	    monitorThread.join();
+	} catch (InterruptedException e) {
+	    // Ignore
+	}
+
+	writeHeartbeat();
+
+	if (reportFile != null) {
+	    try {
+		writeFile(reportFile, createReport());
+		logger.info("Run report written to " + reportFile);
+	    } catch (IOException e) {
+		logger.log(Level.SEVERE, "Could not write run report "
+			+ reportFile, e);
+	    }
+	}
+    }
+
+    /**
+     * Monitor thread main method
+     */
+    public void run() {
+	long nextHeartbeat = 0;
+	while (!finished) {
+	    TaskMetrics.sampleHeap();
+	    if (System.currentTimeMillis() >= nextHeartbeat) {
+		writeHeartbeat();
+		nextHeartbeat = System.currentTimeMillis() + heartbeatInterval
+			* 1000L;
+	    }
+	    try {
+		Thread.sleep(HEAP_SAMPLING_INTERVAL);
+	    } catch (InterruptedException e) {
+		// Interrupted by finish()
+	    }
+	}
+    }
+
+    private void writeHeartbeat() {
+	if (heartbeatFile == null)
+	    return;
+	try {
+	    writeFile(heartbeatFile, createHeartbeat());
+	} catch (IOException e) {
+	    logger.log(Level.WARNING, "Could not write heartbeat file "
+		    + heartbeatFile, e);
+	}
+    }
+
+    /**
+     * Writes the file through a temporary file, so external monitors never
+     * read a partially written file
+     */
+    private static void writeFile(File file, String content)
+	    throws IOException {
+	File tmpFile = new File(file.getAbsoluteFile().getParentFile(), "."
+		+ file.getName() + ".tmp");
+	try (Writer writer = Files.newBufferedWriter(tmpFile.toPath(),
+		StandardCharsets.UTF_8)) {
+	    writer.write(content);
+	}
+	try {
+	    Files.move(tmpFile.toPath(), file.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(tmpFile.toPath(), file.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    private String createHeartbeat() {
+	Runtime runtime = Runtime.getRuntime();
+	StringBuilder json = new StringBuilder();
+	json.append("{\n");
+	appendField(json, 1, "time", formatTime(System.currentTimeMillis()));
+	appendField(json, 1, "batchFile", batchFile.getPath());
+	appendField(json, 1, "status", exitCode != null ? exitCode.toString()
+		: runMetrics.getStatus().toString());
+	appendField(json, 1, "heapUsedBytes",
+		runtime.totalMemory() - runtime.freeMemory());
+	appendField(json, 1, "heapMaxBytes", runtime.maxMemory());
+	appendMetricsFields(json, 1, runMetrics);
+
+	// Only tasks executed by the task controller, not batch steps
+	json.append("  \"runningTasks\": [");
+	boolean first = true;
+	for (TaskMetrics metrics : TaskMetrics.getRunningMetrics()) {
+	    Task task = metrics.getTask();
+	    if (task == null)
+		continue;
+	    json.append(first ? "\n" : ",\n");
+	    first = false;
+	    json.append("    {\n");
+	    appendField(json, 3, "name", metrics.getName());
+	    appendField(json, 3, "progress", task.getFinishedPercentage());
+	    appendField(json, 3, "wallTimeMs", metrics.getWallTime());
+	    appendField(json, 3, "scansRead", metrics.getScansRead());
+	    trimLastComma(json);
+	    json.append("    }");
+	}
+	json.append(first ? "]\n" : "\n  ]\n");
+	json.append("}\n");
+	return json.toString();
+    }
+
+    private String createReport() {
+	if (reportFile.getName().toLowerCase().endsWith(".csv"))
+	    return createCSVReport();
+
+	StringBuilder json = new StringBuilder();
+	json.append("{\n");
+	appendField(json, 1, "batchFile", batchFile.getPath());
+	appendField(json, 1, "exitCode", exitCode.toString());
+	appendField(json, 1, "startTime", formatTime(runMetrics.getStartTime()));
+	appendField(json, 1, "endTime", formatTime(runMetrics.getEndTime()));
+	appendField(json, 1, "availableProcessors", Runtime.getRuntime()
+		.availableProcessors());
+	appendField(json, 1, "heapMaxBytes", Runtime.getRuntime().maxMemory());
+	json.append("  \"run\": ");
+	appendMetrics(json, 1, runMetrics);
+	json.append("\n}\n");
+	return json.toString();
+    }
+
+    /**
+     * Appends the metrics and their children as a JSON object. The children
+     * of the run are the batch steps, the children of a step are its tasks.
+     */
+    private void appendMetrics(StringBuilder json, int depth,
+	    TaskMetrics metrics) {
+	json.append("{\n");
+	appendField(json, depth + 1, "name", metrics.getName());
+	appendField(json, depth + 1, "status", metrics.getStatus().toString());
+	appendMetricsFields(json, depth + 1, metrics);
+
+	indent(json, depth + 1);
+	json.append("\"children\": [");
+	List<TaskMetrics> children = metrics.getChildren();
+	for (int i = 0; i < children.size(); i++) {
+	    json.append(i == 0 ? "\n" : ",\n");
+	    indent(json, depth + 2);
+	    appendMetrics(json, depth + 2, children.get(i));
+	}
+	if (!children.isEmpty()) {
+	    json.append("\n");
+	    indent(json, depth + 1);
+	}
+	json.append("]\n");
+	indent(json, depth);
+	json.append("}");
+    }
+
+    private void appendMetricsFields(StringBuilder json, int depth,
+	    TaskMetrics metrics) {
+	final long wallTime = metrics.getWallTime();
+	appendField(json, depth, "wallTimeMs", wallTime);
+	appendField(json, depth, "cpuTimeMs", metrics.getCpuTime() / 1000000);
+	appendField(json, depth, "peakHeapBytes", metrics.getPeakHeap());
+	appendField(json, depth, "bytesRead", metrics.getBytesRead());
+	appendField(json, depth, "scansRead", metrics.getScansRead());
+	appendField(json, depth, "rowsCreated", metrics.getRowsCreated());
+	appendField(json, depth, "scansPerSecond",
+		perSecond(metrics.getScansRead(), wallTime));
+	appendField(json, depth, "rowsPerSecond",
+		perSecond(metrics.getRowsCreated(), wallTime));
+    }
+
+    /**
+     * Creates the CSV report, one line per run, step and task. The id column
+     * contains the position in the tree, e.g. 2.3 is the third task of the
+     * second step.
+     */
+    private String createCSVReport() {
+	StringBuilder csv = new StringBuilder();
+	csv.append("id,level,name,status,wall_time_ms,cpu_time_ms,"
+		+ "peak_heap_bytes,bytes_read,scans_read,rows_created,"
+		+ "scans_per_second,rows_per_second\n");
+	appendCSVLine(csv, "0", 0, runMetrics);
+	return csv.toString();
+    }
+
+    private void appendCSVLine(StringBuilder csv, String id, int depth,
+	    TaskMetrics metrics) {
+	final long wallTime = metrics.getWallTime();
+	csv.append(id).append(',');
+	csv.append(depth == 0 ? "run" : depth == 1 ? "step" : "task").append(
+		',');
+	csv.append('"').append(metrics.getName().replace("\"", "\"\""))
+		.append("\",");
+	csv.append(metrics.getStatus()).append(',');
+	csv.append(wallTime).append(',');
+	csv.append(metrics.getCpuTime() / 1000000).append(',');
+	csv.append(metrics.getPeakHeap()).append(',');
+	csv.append(metrics.getBytesRead()).append(',');
+	csv.append(metrics.getScansRead()).append(',');
+	csv.append(metrics.getRowsCreated()).append(',');
+	csv.append(perSecond(metrics.getScansRead(), wallTime)).append(',');
+	csv.append(perSecond(metrics.getRowsCreated(), wallTime)).append('\n');
+
+	List<TaskMetrics> children = metrics.getChildren();
+	for (int i = 0; i < children.size(); i++) {
+	    String childId = depth == 0 ? String.valueOf(i + 1) : id + "."
+		    + (i + 1);
+	    appendCSVLine(csv, childId, depth + 1, children.get(i));
+	}
+    }
+
+    /**
+     * Returns the throughput, rounded to two decimal places
+     */
+    private static double perSecond(long count, long wallTimeMs) {
+	if (wallTimeMs <= 0)
+	    return 0;
+	return Math.round(count * 100000.0 / wallTimeMs) / 100.0;
+    }
+
+    private static String formatTime(long time) {
+	if (time == 0)
+	    return null;
+	SimpleDateFormat format = new SimpleDateFormat(
+		"yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US);
+	return format.format(new Date(time));
+    }
+
+    private static void appendField(StringBuilder json, int depth,
+	    String name, Object value) {
+	indent(json, depth);
+	json.append('"').append(name).append("\": ");
+	if (value == null) {
+	    json.append("null");
+	} else if ((value instanceof Number) || (value instanceof Boolean)) {
+	    json.append(value);
+	} else {
+	    appendString(json, value.toString());
+	}
+	json.append(",\n");
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+	json.append('"');
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    switch (c) {
+	    case '"':
+		json.append("\\\"");
+		break;
+	    case '\\':
+		json.append("\\\\");
+		break;
+	    case '\n':
+		json.append("\\n");
+		break;
+	    case '\r':
+		json.append("\\r");
+		break;
+	    case '\t':
+		json.append("\\t");
+		break;
+	    default:
+		if (c < 0x20)
+		    json.append(String.format("\\u%04x", (int) c));
+		else
+		    json.append(c);
+	    }
+	}
+	json.append('"');
+    }
+
+    private static void trimLastComma(StringBuilder json) {
+	int comma = json.lastIndexOf(",\n");
+	if (comma == json.length() - 2)
+	    json.delete(comma, comma + 1);
+    }
+
+    private static void indent(StringBuilder json, int depth) {
+	for (int i = 0; i < depth; i++)
+	    json.append("  ");
+    }
+
+}
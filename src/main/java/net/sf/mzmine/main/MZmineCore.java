@@ -267,8 +267,46 @@ public final class MZmineCore {
 		logger.severe("Cannot read batch file " + batchFile);
 		System.exit(1);
 	    }
-	    ExitCode exitCode = BatchModeModule.runBatch(
-		    projectManager.getCurrentProject(), batchFile);
+
+	    // Optional files for monitoring the run: -report <file> writes a
+	    // JSON or CSV report at the end, -heartbeat <file> is rewritten
+	    // every -heartbeatInterval <seconds> while the batch is running
+	    File reportFile = null, heartbeatFile = null;
+	    int heartbeatInterval = HeadLessRunMonitor.DEFAULT_HEARTBEAT_INTERVAL;
+	    for (int i = 1; i < args.length; i += 2) {
+		if (i + 1 >= args.length) {
+		    logger.severe("Missing value of option " + args[i]);
+		    System.exit(1);
+		}
+		if (args[i].equals("-report")) {
+		    reportFile = new File(args[i + 1]);
+		} else if (args[i].equals("-heartbeat")) {
+		    heartbeatFile = new File(args[i + 1]);
+		} else if (args[i].equals("-heartbeatInterval")) {
+		    try {
+			heartbeatInterval = Integer.parseInt(args[i + 1]);
+		    } catch (NumberFormatException e) {
+			logger.severe("Invalid heartbeat interval " + args[i + 1]);
+			System.exit(1);
+		    }
+		} else {
+		    logger.severe("Unknown option " + args[i]);
+		    System.exit(1);
+		}
+	    }
+
+	    HeadLessRunMonitor monitor = new HeadLessRunMonitor(batchFile,
+		    reportFile, heartbeatFile, heartbeatInterval);
+	    monitor.start();
+	    ExitCode exitCode = ExitCode.ERROR;
+	    try {
+		exitCode = BatchModeModule.runBatch(
+			projectManager.getCurrentProject(), batchFile);
+	    } finally {
+		// Also report the metrics of a run which failed with an
+		// exception
+		monitor.finish(exitCode);
+	    }
 	    if (exitCode == ExitCode.OK)
 		System.exit(0);
 	    else
@@ -21,7 +21,11 @@ package net.sf.mzmine.modules.batchmode;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -29,32 +33,90 @@ import net.sf.mzmine.datamodel.MZmineProjectListener;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExitCode;
 
 /**
- * Batch mode task
+ * Batch mode task. Consecutive steps which process each raw data file or peak
+ * list on its own are pipelined: every file goes through these steps in its
+ * own lane, so a file can continue with the next step while other files are
+ * still being processed. All other steps, such as alignment or gap filling,
+ * wait until all files are finished with the previous step.
  */
 public class BatchTask extends AbstractTask {
 
+    /**
+     * Modules of these categories create an independent task for each input
+     * raw data file or peak list
+     */
+    private static final Set<MZmineModuleCategory> PER_FILE_CATEGORIES = EnumSet
+            .of(MZmineModuleCategory.RAWDATAFILTERING,
+                    MZmineModuleCategory.PEAKPICKING,
+                    MZmineModuleCategory.ISOTOPES,
+                    MZmineModuleCategory.PEAKLISTPICKING,
+                    MZmineModuleCategory.PEAKLISTFILTERING);
+
+    /**
+     * Lane of the batch step task executed by the current thread, so new data
+     * files and peak lists can be attributed to their lane
+     */
+    private final ThreadLocal<Lane> currentLane = new ThreadLocal<Lane>();
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private int totalSteps, processedSteps;
 
+    // Number of steps finished by the lanes of the current pipelined steps
+    private int processedLaneSteps, totalLanes;
+
+    // Set when a step task finishes, guarded by this
+    private boolean stepTaskFinished = false;
+
     private final MZmineProject project;
     private final BatchQueue queue;
 
+    // Resource usage of each step, including the tasks it started
+    private TaskMetrics stepMetrics[];
+
+    // Number of lanes currently executing each step, guarded by this. The
+    // step metrics end when the last lane leaves the step.
+    private int activeLanes[];
+
+    // Guarded by this, because new items are reported by the step tasks
     private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
     private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
 
+    /**
+     * Processing state of one raw data file (and the peak lists created from
+     * it) during pipelined steps. The lists have the same meaning as the lists
+     * of the whole batch and are guarded by the BatchTask.
+     */
+    private static final class Lane {
+        final String name;
+        final List<RawDataFile> createdDataFiles = new ArrayList<>(),
+                previousCreatedDataFiles = new ArrayList<>();
+        final List<PeakList> createdPeakLists = new ArrayList<>(),
+                previousCreatedPeakLists = new ArrayList<>();
+        final List<Task> runningTasks = new ArrayList<>();
+        int nextStep;
+
+        Lane(String name) {
+            this.name = name;
+        }
+    }
+
     BatchTask(MZmineProject project, ParameterSet parameters) {
         this.project = project;
         this.queue = parameters.getParameter(BatchModeParameters.batchQueue)
@@ -71,34 +133,76 @@ public class BatchTask extends AbstractTask {
         setStatus(TaskStatus.PROCESSING);
         logger.info("Starting a batch of " + totalSteps + " steps");
 
-        // Listen for new items in the project
+        // The step metrics are part of the metrics of the batch, if the batch
+        // is executed as a task
+        TaskMetrics batchMetrics = TaskMetrics.getCurrent();
+        stepMetrics = new TaskMetrics[totalSteps];
+        activeLanes = new int[totalSteps];
+        for (int i = 0; i < totalSteps; i++) {
+            stepMetrics[i] = new TaskMetrics("Step " + (i + 1) + ": "
+                    + queue.get(i).getModule().getName(), batchMetrics);
+        }
+
+        // Listen for new items in the project. Items added by step tasks of
+        // a lane belong to that lane, others to the whole batch.
         MZmineProjectListener listener = new MZmineProjectListener() {
             @Override
             public void peakListAdded(PeakList newPeakList) {
-                createdPeakLists.add(newPeakList);
+                Lane lane = currentLane.get();
+                synchronized (BatchTask.this) {
+                    if (lane != null)
+                        lane.createdPeakLists.add(newPeakList);
+                    else
+                        createdPeakLists.add(newPeakList);
+                }
             }
 
             @Override
             public void dataFileAdded(RawDataFile newFile) {
-                createdDataFiles.add(newFile);
+                Lane lane = currentLane.get();
+                synchronized (BatchTask.this) {
+                    if (lane != null)
+                        lane.createdDataFiles.add(newFile);
+                    else
+                        createdDataFiles.add(newFile);
+                }
             }
         };
         project.addProjectListener(listener);
 
         // Process individual batch steps
-        for (int i = 0; i < totalSteps; i++) {
-
-            processQueueStep(i);
-            processedSteps++;
+        int stepNumber = 0;
+        while (stepNumber < totalSteps) {
+
+            // Find the consecutive steps which can be pipelined
+            int lastStep = stepNumber;
+            while ((lastStep < totalSteps) && isPerFileStep(lastStep))
+                lastStep++;
+
+            List<Lane> lanes = null;
+            if (lastStep > stepNumber)
+                lanes = createLanes();
+
+            if (lanes != null) {
+                processPipelinedSteps(stepNumber, lastStep, lanes);
+                stepNumber = lastStep;
+            } else {
+                processQueueStep(stepNumber);
+                processedSteps++;
+                stepNumber++;
+            }
 
             // If we are canceled or ran into error, stop here
             if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+                project.removeProjectListener(listener);
+                finishStepMetrics();
                 return;
             }
 
         }
 
         project.removeProjectListener(listener);
+        finishStepMetrics();
 
         logger.info("Finished a batch of " + totalSteps + " steps");
         setStatus(TaskStatus.FINISHED);
@@ -107,6 +211,21 @@ public class BatchTask extends AbstractTask {
 
     private void processQueueStep(int stepNumber) {
 
+        // Everything done for this step is counted in its metrics
+        TaskMetrics metrics = stepMetrics[stepNumber];
+        metrics.started(null);
+        TaskMetrics previousMetrics = TaskMetrics.enter(metrics);
+        try {
+            runQueueStep(stepNumber);
+        } finally {
+            TaskMetrics.exit(previousMetrics);
+            metrics.finished(getStepStatus());
+        }
+
+    }
+
+    private void runQueueStep(int stepNumber) {
+
         logger.info("Starting step # " + (stepNumber + 1));
 
         // Run next step of the batch
@@ -115,44 +234,12 @@ public class BatchTask extends AbstractTask {
                 .getModule();
         ParameterSet batchStepParameters = currentStep.getParameterSet();
 
-        // If the last step did not produce any data files or peak lists, use
-        // the ones from the previous step
-        if (createdDataFiles.isEmpty())
-            createdDataFiles.addAll(previousCreatedDataFiles);
-        if (createdPeakLists.isEmpty())
-            createdPeakLists.addAll(previousCreatedPeakLists);
-
-        // Update the RawDataFilesParameter parameters to reflect the current
-        // state of the batch
-        for (Parameter<?> p : batchStepParameters.getParameters()) {
-            if (p instanceof RawDataFilesParameter) {
-                RawDataFilesParameter rdp = (RawDataFilesParameter) p;
-                RawDataFile createdFiles[] = createdDataFiles
-                        .toArray(new RawDataFile[0]);
-                rdp.getValue().setBatchLastFiles(createdFiles);
-            }
-        }
-
-        // Update the PeakListsParameter parameters to reflect the current
-        // state of the batch
-        for (Parameter<?> p : batchStepParameters.getParameters()) {
-            if (p instanceof PeakListsParameter) {
-                PeakListsParameter rdp = (PeakListsParameter) p;
-                PeakList createdPls[] = createdPeakLists
-                        .toArray(new PeakList[0]);
-                rdp.getValue().setBatchLastPeakLists(createdPls);
-            }
+        synchronized (this) {
+            setBatchLastItems(batchStepParameters, createdDataFiles,
+                    previousCreatedDataFiles, createdPeakLists,
+                    previousCreatedPeakLists);
         }
 
-        // Clear the saved data files and peak lists. Save them to the
-        // "previous" lists, in case the next step does not produce any new data
-        previousCreatedDataFiles.clear();
-        previousCreatedDataFiles.addAll(createdDataFiles);
-        previousCreatedPeakLists.clear();
-        previousCreatedPeakLists.addAll(createdPeakLists);
-        createdDataFiles.clear();
-        createdPeakLists.clear();
-
         // Check if the parameter settings are valid
         ArrayList<String> messages = new ArrayList<String>();
         boolean paramsCheck = batchStepParameters
@@ -181,8 +268,10 @@ public class BatchTask extends AbstractTask {
         boolean allTasksFinished = false;
 
         // Submit the tasks to the task controller for processing
-        MZmineCore.getTaskController()
-                .addTasks(currentStepTasks.toArray(new Task[0]));
+        Task submittedTasks[] = new Task[currentStepTasks.size()];
+        for (int i = 0; i < submittedTasks.length; i++)
+            submittedTasks[i] = new StepTask(currentStepTasks.get(i), null);
+        MZmineCore.getTaskController().addTasks(submittedTasks);
 
         while (!allTasksFinished) {
 
@@ -223,25 +312,469 @@ public class BatchTask extends AbstractTask {
 
             }
 
-            // Wait 1s before checking the tasks again
-            if (!allTasksFinished) {
-                synchronized (this) {
-                    try {
-                        this.wait(1000);
-                    } catch (InterruptedException e) {
-                        // ignore
+            // Wait until a step task finishes before checking the tasks
+            // again
+            if (!allTasksFinished)
+                waitForStepTask();
+
+        }
+
+    }
+
+    /**
+     * Updates the RawDataFilesParameter and PeakListsParameter parameters of
+     * a batch step to reflect the current state of the batch (or of a lane).
+     * Must be called while holding the lock of this task.
+     */
+    private static void setBatchLastItems(ParameterSet batchStepParameters,
+            List<RawDataFile> createdDataFiles,
+            List<RawDataFile> previousCreatedDataFiles,
+            List<PeakList> createdPeakLists,
+            List<PeakList> previousCreatedPeakLists) {
+
+        // If the last step did not produce any data files or peak lists, use
+        // the ones from the previous step
+        if (createdDataFiles.isEmpty())
+            createdDataFiles.addAll(previousCreatedDataFiles);
+        if (createdPeakLists.isEmpty())
+            createdPeakLists.addAll(previousCreatedPeakLists);
+
+        // Update the RawDataFilesParameter parameters to reflect the current
+        // state of the batch
+        for (Parameter<?> p : batchStepParameters.getParameters()) {
+            if (p instanceof RawDataFilesParameter) {
+                RawDataFilesParameter rdp = (RawDataFilesParameter) p;
+                RawDataFile createdFiles[] = createdDataFiles
+                        .toArray(new RawDataFile[0]);
+                rdp.getValue().setBatchLastFiles(createdFiles);
+            }
+        }
+
+        // Update the PeakListsParameter parameters to reflect the current
+        // state of the batch
+        for (Parameter<?> p : batchStepParameters.getParameters()) {
+            if (p instanceof PeakListsParameter) {
+                PeakListsParameter rdp = (PeakListsParameter) p;
+                PeakList createdPls[] = createdPeakLists
+                        .toArray(new PeakList[0]);
+                rdp.getValue().setBatchLastPeakLists(createdPls);
+            }
+        }
+
+        // Clear the saved data files and peak lists. Save them to the
+        // "previous" lists, in case the next step does not produce any new data
+        previousCreatedDataFiles.clear();
+        previousCreatedDataFiles.addAll(createdDataFiles);
+        previousCreatedPeakLists.clear();
+        previousCreatedPeakLists.addAll(createdPeakLists);
+        createdDataFiles.clear();
+        createdPeakLists.clear();
+
+    }
+
+    /**
+     * Checks if given step creates an independent task for each raw data file
+     * or peak list created by the previous steps
+     */
+    private boolean isPerFileStep(int stepNumber) {
+
+        MZmineProcessingStep<?> step = queue.get(stepNumber);
+        MZmineProcessingModule method = (MZmineProcessingModule) step
+                .getModule();
+        if (!PER_FILE_CATEGORIES.contains(method.getModuleCategory()))
+            return false;
+
+        boolean hasBatchLastInput = false;
+        for (Parameter<?> p : step.getParameterSet().getParameters()) {
+            if (p instanceof RawDataFilesParameter) {
+                RawDataFilesParameter rdp = (RawDataFilesParameter) p;
+                if ((rdp.getValue() == null)
+                        || (rdp.getValue().getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+                    return false;
+                hasBatchLastInput = true;
+            }
+            if (p instanceof PeakListsParameter) {
+                PeakListsParameter plp = (PeakListsParameter) p;
+                if ((plp.getValue() == null)
+                        || (plp.getValue().getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+                    return false;
+                hasBatchLastInput = true;
+            }
+        }
+        return hasBatchLastInput;
+
+    }
+
+    /**
+     * Splits the current state of the batch into one lane per raw data file.
+     * Each peak list joins the lane of its raw data file.
+     * 
+     * @return lanes, or null if the peak lists cannot be split by raw data
+     *         file (e.g. aligned peak lists)
+     */
+    private synchronized List<Lane> createLanes() {
+
+        List<RawDataFile> dataFiles = createdDataFiles.isEmpty() ? previousCreatedDataFiles
+                : createdDataFiles;
+        List<PeakList> peakLists = createdPeakLists.isEmpty() ? previousCreatedPeakLists
+                : createdPeakLists;
+
+        for (PeakList peakList : peakLists) {
+            if (peakList.getRawDataFiles().length != 1)
+                return null;
+        }
+
+        Map<RawDataFile, Lane> lanes = new LinkedHashMap<>();
+        for (RawDataFile dataFile : dataFiles)
+            getLane(lanes, dataFile).createdDataFiles.add(dataFile);
+        for (PeakList peakList : peakLists)
+            getLane(lanes, peakList.getRawDataFiles()[0]).createdPeakLists
+                    .add(peakList);
+
+        if (lanes.isEmpty())
+            return null;
+
+        // The lanes take over the state of the batch
+        createdDataFiles.clear();
+        previousCreatedDataFiles.clear();
+        createdPeakLists.clear();
+        previousCreatedPeakLists.clear();
+
+        return new ArrayList<>(lanes.values());
+
+    }
+
+    private static Lane getLane(Map<RawDataFile, Lane> lanes,
+            RawDataFile dataFile) {
+        Lane lane = lanes.get(dataFile);
+        if (lane == null) {
+            lane = new Lane(dataFile.getName());
+            lanes.put(dataFile, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Processes the steps firstStep to lastStep (exclusive) in every lane. A
+     * lane starts its next step as soon as all tasks of its previous step are
+     * finished. Afterwards, the state of the lanes is merged back into the
+     * state of the batch, in the order of the lanes.
+     */
+    private void processPipelinedSteps(int firstStep, int lastStep,
+            List<Lane> lanes) {
+
+        logger.info("Starting steps # " + (firstStep + 1) + " to # "
+                + lastStep + " for " + lanes.size() + " files");
+
+        synchronized (this) {
+            processedLaneSteps = 0;
+            totalLanes = lanes.size();
+        }
+
+        for (Lane lane : lanes)
+            lane.nextStep = firstStep;
+
+        while (true) {
+
+            // If we canceled the batch, cancel all running tasks
+            if (isCanceled()) {
+                cancelLaneTasks(lanes);
+                return;
+            }
+
+            boolean allLanesFinished = true;
+
+            for (Lane lane : lanes) {
+
+                if (!lane.runningTasks.isEmpty()) {
+
+                    boolean laneTasksFinished = true;
+
+                    for (Task stepTask : lane.runningTasks) {
+
+                        TaskStatus stepStatus = stepTask.getStatus();
+
+                        // If any of them is not finished, keep checking
+                        if (stepStatus != TaskStatus.FINISHED)
+                            laneTasksFinished = false;
+
+                        // If there was an error, we have to stop the whole
+                        // batch
+                        if (stepStatus == TaskStatus.ERROR) {
+                            setStatus(TaskStatus.ERROR);
+                            setErrorMessage(stepTask.getTaskDescription()
+                                    + ": " + stepTask.getErrorMessage());
+                            cancelLaneTasks(lanes);
+                            return;
+                        }
+
+                        // If user canceled any of the tasks, we have to
+                        // cancel the whole batch
+                        if (stepStatus == TaskStatus.CANCELED) {
+                            setStatus(TaskStatus.CANCELED);
+                            cancelLaneTasks(lanes);
+                            return;
+                        }
+
                     }
+
+                    if (!laneTasksFinished) {
+                        allLanesFinished = false;
+                        continue;
+                    }
+
+                    lane.runningTasks.clear();
+                    finishLaneStep(lane);
+
                 }
+
+                // Start the next step of this lane. Steps which do not
+                // produce any tasks are finished immediately.
+                while (lane.runningTasks.isEmpty()
+                        && (lane.nextStep < lastStep)) {
+                    if (!startLaneStep(lane)) {
+                        cancelLaneTasks(lanes);
+                        return;
+                    }
+                    if (lane.runningTasks.isEmpty())
+                        finishLaneStep(lane);
+                }
+
+                if (!lane.runningTasks.isEmpty())
+                    allLanesFinished = false;
+
+            }
+
+            if (allLanesFinished)
+                break;
+
+            // Wait until a step task finishes
+            waitForStepTask();
+
+        }
+
+        synchronized (this) {
+            for (Lane lane : lanes) {
+                createdDataFiles.addAll(lane.createdDataFiles);
+                previousCreatedDataFiles
+                        .addAll(lane.previousCreatedDataFiles);
+                createdPeakLists.addAll(lane.createdPeakLists);
+                previousCreatedPeakLists
+                        .addAll(lane.previousCreatedPeakLists);
+            }
+            processedSteps += lastStep - firstStep;
+            processedLaneSteps = 0;
+            totalLanes = 0;
+        }
+
+    }
+
+    /**
+     * Runs the module of the next step of given lane and submits its tasks.
+     * Steps without any input in this lane are skipped.
+     * 
+     * @return false if the step could not be started
+     */
+    private boolean startLaneStep(final Lane lane) {
+
+        synchronized (this) {
+            if (activeLanes[lane.nextStep]++ == 0)
+                stepMetrics[lane.nextStep].started(null);
+        }
+
+        MZmineProcessingStep<?> currentStep = queue.get(lane.nextStep);
+        MZmineProcessingModule method = (MZmineProcessingModule) currentStep
+                .getModule();
+
+        // Each lane needs its own copy of the parameters
+        ParameterSet batchStepParameters = currentStep.getParameterSet()
+                .cloneParameterSet();
+
+        boolean hasInput;
+        synchronized (this) {
+            setBatchLastItems(batchStepParameters, lane.createdDataFiles,
+                    lane.previousCreatedDataFiles, lane.createdPeakLists,
+                    lane.previousCreatedPeakLists);
+            hasInput = true;
+            for (Parameter<?> p : batchStepParameters.getParameters()) {
+                if ((p instanceof RawDataFilesParameter)
+                        && lane.previousCreatedDataFiles.isEmpty())
+                    hasInput = false;
+                if ((p instanceof PeakListsParameter)
+                        && lane.previousCreatedPeakLists.isEmpty())
+                    hasInput = false;
             }
+        }
+
+        if (!hasInput)
+            return true;
+
+        logger.finest("Starting step # " + (lane.nextStep + 1) + " for "
+                + lane.name);
+
+        // Check if the parameter settings are valid
+        ArrayList<String> messages = new ArrayList<String>();
+        boolean paramsCheck = batchStepParameters
+                .checkParameterValues(messages);
+        if (!paramsCheck) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(
+                    "Invalid parameter settings for module " + method.getName()
+                            + ": " + Arrays.toString(messages.toArray()));
+            return false;
+        }
+
+        // The tasks started by the module are counted in the step metrics
+        TaskMetrics previousMetrics = TaskMetrics
+                .enter(stepMetrics[lane.nextStep]);
+        try {
+
+            ArrayList<Task> currentStepTasks = new ArrayList<Task>();
+            ExitCode exitCode = method.runModule(project, batchStepParameters,
+                    currentStepTasks);
+
+            if (exitCode != ExitCode.OK) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("Could not start batch step "
+                        + method.getName());
+                return false;
+            }
+
+            if (currentStepTasks.isEmpty())
+                return true;
+
+            for (Task stepTask : currentStepTasks)
+                lane.runningTasks.add(new StepTask(stepTask, lane));
+
+            // Submit the tasks to the task controller for processing
+            MZmineCore.getTaskController()
+                    .addTasks(lane.runningTasks.toArray(new Task[0]));
+
+            return true;
+
+        } finally {
+            TaskMetrics.exit(previousMetrics);
+        }
+
+    }
+
+    private synchronized void finishLaneStep(Lane lane) {
+        if (--activeLanes[lane.nextStep] == 0)
+            stepMetrics[lane.nextStep].finished(getStepStatus());
+        lane.nextStep++;
+        processedLaneSteps++;
+    }
+
+    /**
+     * Returns the status of a step which ends now, based on the status of the
+     * batch
+     */
+    private TaskStatus getStepStatus() {
+        TaskStatus status = getStatus();
+        if (status == TaskStatus.PROCESSING)
+            return TaskStatus.FINISHED;
+        return status;
+    }
+
+    /**
+     * Ends the metrics of steps which were interrupted by an error or by
+     * canceling the batch
+     */
+    private void finishStepMetrics() {
+        for (TaskMetrics metrics : stepMetrics) {
+            if (metrics.getStatus() == TaskStatus.PROCESSING)
+                metrics.finished(getStepStatus());
+        }
+    }
+
+    private void cancelLaneTasks(List<Lane> lanes) {
+        for (Lane lane : lanes) {
+            for (Task stepTask : lane.runningTasks)
+                stepTask.cancel();
+        }
+    }
+
+    /**
+     * Waits until a step task finishes. The timeout of 1s covers tasks which
+     * were canceled before they started.
+     */
+    private synchronized void waitForStepTask() {
+        if (!stepTaskFinished) {
+            try {
+                this.wait(1000);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+        stepTaskFinished = false;
+    }
+
+    private synchronized void stepTaskFinished() {
+        stepTaskFinished = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Task of a batch step, which runs the actual task on behalf of its lane
+     * (null for steps which are not pipelined) and wakes up the batch when it
+     * is finished
+     */
+    private final class StepTask implements Task {
+
+        private final Task actualTask;
+        private final Lane lane;
+
+        StepTask(Task actualTask, Lane lane) {
+            this.actualTask = actualTask;
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            if (lane != null)
+                currentLane.set(lane);
+            try {
+                actualTask.run();
+            } finally {
+                currentLane.remove();
+                stepTaskFinished();
+            }
+        }
+
+        @Override
+        public String getTaskDescription() {
+            return actualTask.getTaskDescription();
+        }
+
+        @Override
+        public double getFinishedPercentage() {
+            return actualTask.getFinishedPercentage();
+        }
+
+        @Override
+        public TaskStatus getStatus() {
+            return actualTask.getStatus();
+        }
+
+        @Override
+        public String getErrorMessage() {
+            return actualTask.getErrorMessage();
+        }
 
+        @Override
+        public void cancel() {
+            actualTask.cancel();
         }
 
     }
 
-    public double getFinishedPercentage() {
+    public synchronized double getFinishedPercentage() {
         if (totalSteps == 0)
             return 0;
-        return (double) processedSteps / totalSteps;
+        double steps = processedSteps;
+        if (totalLanes > 0)
+            steps += (double) processedLaneSteps / totalLanes;
+        return steps / totalSteps;
     }
 
     public String getTaskDescription() {
@@ -23,6 +23,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator.PeakInvestigatorMzTolerance;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
@@ -58,12 +59,19 @@ public class ChromatogramBuilderParameters extends SimpleParameterSet {
 			new MZTolerance[] { new MaximumMZTolerance(),
 					new PeakInvestigatorMzTolerance() });
 
+    public static final BooleanParameter useMZIndex = new BooleanParameter(
+            "Indexed m/z search",
+            "If checked, the chromatograms being built are kept sorted by m/z, which makes connecting the m/z peaks much faster for large mass lists.\n"
+                    + "The resulting chromatograms are identical either way.",
+            true);
+
     public static final StringParameter suffix = new StringParameter("Suffix",
             "This string is added to filename as suffix", "chromatograms");
 
     public ChromatogramBuilderParameters() {
         super(new Parameter[] { dataFiles, scanSelection, massList,
-                minimumTimeSpan, minimumHeight, mzTolerance, suffix });
+                minimumTimeSpan, minimumHeight, mzTolerance, useMZIndex,
+                suffix });
     }
 
 }
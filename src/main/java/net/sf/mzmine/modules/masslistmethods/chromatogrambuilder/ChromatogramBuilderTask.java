@@ -57,6 +57,7 @@ public class ChromatogramBuilderTask extends AbstractTask {
     private String suffix, massListName;
     private MZTolerance mzTolerance;
     private double minimumTimeSpan, minimumHeight;
+    private boolean useMZIndex;
 
     private SimplePeakList newPeakList;
 
@@ -85,6 +86,9 @@ public class ChromatogramBuilderTask extends AbstractTask {
         this.minimumHeight = parameters
                 .getParameter(ChromatogramBuilderParameters.minimumHeight)
                 .getValue();
+        this.useMZIndex = parameters
+                .getParameter(ChromatogramBuilderParameters.useMZIndex)
+                .getValue();
 
         this.suffix = parameters
                 .getParameter(ChromatogramBuilderParameters.suffix).getValue();
@@ -148,7 +152,7 @@ public class ChromatogramBuilderTask extends AbstractTask {
         Chromatogram[] chromatograms;
         HighestDataPointConnector massConnector = new HighestDataPointConnector(
                 dataFile, allScanNumbers, minimumTimeSpan, minimumHeight,
-                mzTolerance);
+                mzTolerance, useMZIndex);
 
         for (Scan scan : scans) {
 
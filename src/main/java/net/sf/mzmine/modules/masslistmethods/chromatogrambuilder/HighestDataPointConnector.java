@@ -20,9 +20,11 @@
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import com.google.common.collect.Range;
 
@@ -35,29 +37,74 @@ import net.sf.mzmine.util.SortingProperty;
 
 public class HighestDataPointConnector {
 
+    // Special indices used to delimit searches in mzIndex
+    private static final int LOW_PROBE = -1, HIGH_PROBE = Integer.MAX_VALUE;
+
     private final MZTolerance mzTolerance;
     private final double minimumTimeSpan, minimumHeight;
     private final RawDataFile dataFile;
     private final int allScanNumbers[];
+    private final boolean useMZIndex;
 
     // Mapping of last data point m/z --> chromatogram
     private Set<Chromatogram> buildingChromatograms;
 
+    // Tolerance ranges and intensities of the last data points of the
+    // building chromatograms, in the iteration order of
+    // buildingChromatograms. Reused between scans.
+    private Chromatogram testedChromatograms[] = new Chromatogram[0];
+    private double lastLowMZ[] = new double[0], lastHighMZ[] = new double[0],
+            lastIntensity[] = new double[0];
+
+    // Indices of the building chromatograms, sorted by the lower bound of
+    // their tolerance range. Only used if useMZIndex is set.
+    private final TreeSet<Integer> mzIndex;
+    private double maxToleranceWidth, probeLowMZ, probeHighMZ;
+
     public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
             double minimumTimeSpan, double minimumHeight,
             MZTolerance mzTolerance) {
+        this(dataFile, allScanNumbers, minimumTimeSpan, minimumHeight,
+                mzTolerance, false);
+    }
+
+    /**
+     * @param useMZIndex
+     *            if true, the building chromatograms are kept sorted by m/z so
+     *            that the chromatogram matching each m/z peak is found in
+     *            logarithmic time. The resulting chromatograms are the same as
+     *            with the linear search.
+     */
+    public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
+            double minimumTimeSpan, double minimumHeight,
+            MZTolerance mzTolerance, boolean useMZIndex) {
 
         this.mzTolerance = mzTolerance;
         this.minimumHeight = minimumHeight;
         this.minimumTimeSpan = minimumTimeSpan;
         this.dataFile = dataFile;
         this.allScanNumbers = allScanNumbers;
+        this.useMZIndex = useMZIndex;
 
         // We use LinkedHashSet to maintain a reproducible ordering. If we use
         // plain HashSet, the resulting peak list row IDs will have different
         // order every time the method is invoked.
         buildingChromatograms = new LinkedHashSet<Chromatogram>();
 
+        if (useMZIndex) {
+            mzIndex = new TreeSet<Integer>(new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    int result = Double.compare(getLowMZ(i1), getLowMZ(i2));
+                    if (result == 0)
+                        result = Integer.compare(i1, i2);
+                    return result;
+                }
+            });
+        } else {
+            mzIndex = null;
+        }
+
     }
 
     public void addScan(int scanNumber, DataPoint mzValues[]) {
@@ -69,31 +116,41 @@ public class HighestDataPointConnector {
         // Set of already connected chromatograms in each iteration
         Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
 
-        // TODO: these two nested cycles should be optimized for speed
+        // Calculate the tolerance range of each chromatogram once per scan,
+        // instead of once for each m/z peak. Both MZTolerance implementations
+        // return closed ranges.
+        final int numOfChromatograms = buildingChromatograms.size();
+        if (useMZIndex) {
+            mzIndex.clear();
+            maxToleranceWidth = 0;
+        }
+        ensureCapacity(numOfChromatograms);
+        int index = 0;
+        for (Chromatogram testChrom : buildingChromatograms) {
+            updateLastMzPeak(index, testChrom);
+            testedChromatograms[index] = testChrom;
+            if (useMZIndex)
+                addToIndex(index);
+            index++;
+        }
+
         for (DataPoint mzPeak : mzValues) {
 
-            // Search for best chromatogram, which has highest last data point
-            Chromatogram bestChromatogram = null;
-
-            for (Chromatogram testChrom : buildingChromatograms) {
-
-                DataPoint lastMzPeak = testChrom.getLastMzPeak();
-                Range<Double> toleranceRange = mzTolerance
-                        .getToleranceRange(lastMzPeak);
-                if (toleranceRange.contains(mzPeak.getMZ())) {
-                    if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-                            .getIntensity() > bestChromatogram.getLastMzPeak()
-                                    .getIntensity())) {
-                        bestChromatogram = testChrom;
-                    }
-                }
+            final double mz = mzPeak.getMZ();
 
-            }
+            // Search for best chromatogram, which has highest last data point
+            final int bestIndex;
+            if (useMZIndex)
+                bestIndex = findBestIndexed(mz);
+            else
+                bestIndex = findBestLinear(mz, numOfChromatograms);
 
             // If we found best chromatogram, check if it is already connected.
             // In such case, we may discard this mass and continue. If we
             // haven't found a chromatogram, we may create a new one.
-            if (bestChromatogram != null) {
+            Chromatogram bestChromatogram;
+            if (bestIndex >= 0) {
+                bestChromatogram = testedChromatograms[bestIndex];
                 if (connectedChromatograms.contains(bestChromatogram)) {
                     continue;
                 }
@@ -103,6 +160,15 @@ public class HighestDataPointConnector {
 
             // Add this mzPeak to the chromatogram
             bestChromatogram.addMzPeak(scanNumber, mzPeak);
+            if (bestIndex >= 0) {
+                // The index is sorted by the tolerance range, so the entry
+                // must be removed before the range changes
+                if (useMZIndex)
+                    mzIndex.remove(bestIndex);
+                updateLastMzPeak(bestIndex, bestChromatogram);
+                if (useMZIndex)
+                    addToIndex(bestIndex);
+            }
 
             // Move the chromatogram to the set of connected chromatograms
             connectedChromatograms.add(bestChromatogram);
@@ -140,7 +206,89 @@ public class HighestDataPointConnector {
         // All remaining chromatograms in buildingChromatograms are discarded
         // and buildingChromatograms is replaced with connectedChromatograms
         buildingChromatograms = connectedChromatograms;
+        Arrays.fill(testedChromatograms, null);
+        if (useMZIndex)
+            mzIndex.clear();
+
+    }
+
+    /**
+     * Returns the index of the chromatogram whose tolerance range contains
+     * given m/z and whose last data point is the most intense, or -1. Ties are
+     * resolved in favor of the chromatogram which comes first in
+     * buildingChromatograms.
+     */
+    private int findBestLinear(double mz, int numOfChromatograms) {
+        int bestIndex = -1;
+        for (int i = 0; i < numOfChromatograms; i++) {
+            if ((mz >= lastLowMZ[i]) && (mz <= lastHighMZ[i])) {
+                if ((bestIndex < 0)
+                        || (lastIntensity[i] > lastIntensity[bestIndex])) {
+                    bestIndex = i;
+                }
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Same as findBestLinear(), but only tests the chromatograms whose
+     * tolerance range starts within maxToleranceWidth below given m/z.
+     */
+    private int findBestIndexed(double mz) {
+
+        // Widen the search window by a few ulps, so that rounding of the
+        // subtraction never excludes a matching chromatogram. Candidates are
+        // checked against their exact range below.
+        probeLowMZ = mz - maxToleranceWidth - 2 * Math.ulp(mz)
+                - Math.ulp(maxToleranceWidth);
+        probeHighMZ = mz;
+
+        int bestIndex = -1;
+        for (int i : mzIndex.subSet(LOW_PROBE, true, HIGH_PROBE, true)) {
+            if ((mz >= lastLowMZ[i]) && (mz <= lastHighMZ[i])) {
+                if ((bestIndex < 0)
+                        || (lastIntensity[i] > lastIntensity[bestIndex])
+                        || ((lastIntensity[i] == lastIntensity[bestIndex])
+                                && (i < bestIndex))) {
+                    bestIndex = i;
+                }
+            }
+        }
+        return bestIndex;
+    }
+
+    private void addToIndex(int index) {
+        mzIndex.add(index);
+        maxToleranceWidth = Math.max(maxToleranceWidth,
+                lastHighMZ[index] - lastLowMZ[index]);
+    }
+
+    private double getLowMZ(int index) {
+        if (index == LOW_PROBE)
+            return probeLowMZ;
+        if (index == HIGH_PROBE)
+            return probeHighMZ;
+        return lastLowMZ[index];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (testedChromatograms.length >= capacity)
+            return;
+        int newCapacity = Math.max(capacity, testedChromatograms.length * 2);
+        testedChromatograms = new Chromatogram[newCapacity];
+        lastLowMZ = new double[newCapacity];
+        lastHighMZ = new double[newCapacity];
+        lastIntensity = new double[newCapacity];
+    }
 
+    private void updateLastMzPeak(int index, Chromatogram chromatogram) {
+        DataPoint lastMzPeak = chromatogram.getLastMzPeak();
+        Range<Double> toleranceRange = mzTolerance
+                .getToleranceRange(lastMzPeak);
+        lastLowMZ[index] = toleranceRange.lowerEndpoint();
+        lastHighMZ[index] = toleranceRange.upperEndpoint();
+        lastIntensity[index] = lastMzPeak.getIntensity();
     }
 
     public Chromatogram[] finishChromatograms() {
@@ -19,10 +19,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.IsotopePattern;
@@ -39,6 +45,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.RangeUtils;
 
@@ -51,8 +58,12 @@ class JoinAlignerTask extends AbstractTask {
     private final MZmineProject project;
     private PeakList peakLists[], alignedPeakList;
 
-    // Processed rows counter
-    private int processedRows, totalRows;
+    // Number of chunks per available thread, to balance the score calculation
+    private static final int SCORE_CHUNKS_PER_THREAD = 4;
+
+    // Processed rows counter, updated by the score calculation sub-tasks
+    private final AtomicInteger processedRows = new AtomicInteger();
+    private int totalRows;
 
     private String peakListName;
     private MZTolerance mzTolerance;
@@ -111,7 +122,7 @@ class JoinAlignerTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0f;
-        return (double) processedRows / (double) totalRows;
+        return (double) processedRows.get() / (double) totalRows;
     }
 
     /**
@@ -159,88 +170,66 @@ class JoinAlignerTask extends AbstractTask {
         // Iterate source peak lists
         for (PeakList peakList : peakLists) {
 
-            // Create a sorted set of scores matching
-            TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
-
-            PeakListRow allRows[] = peakList.getRows();
-
-            // Calculate scores for all possible alignments of this row
-            for (PeakListRow row : allRows) {
-
-                if (isCanceled())
-                    return;
-
-                // Calculate limits for a row with which the row can be aligned
-                Range<Double> mzRange = mzTolerance.getToleranceRange(row
-                        .getAverageMZ());
-                Range<Double> rtRange = rtTolerance.getToleranceRange(row
-                        .getAverageRT());
-
-                // Get all rows of the aligned peaklist within parameter limits
-                PeakListRow candidateRows[] = alignedPeakList
-                        .getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-                // Calculate scores and store them
-                for (PeakListRow candidate : candidateRows) {
-
-                    if (sameChargeRequired) {
-                        if (!PeakUtils.compareChargeState(row, candidate))
-                            continue;
-                    }
-
-                    if (sameIDRequired) {
-                        if (!PeakUtils.compareIdentities(row, candidate))
-                            continue;
-                    }
-
-                    if (compareIsotopePattern) {
-                        IsotopePattern ip1 = row.getBestIsotopePattern();
-                        IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-                        if ((ip1 != null) && (ip2 != null)) {
-                            ParameterSet isotopeParams = parameters
-                                    .getParameter(
-                                            JoinAlignerParameters.compareIsotopePattern)
-                                    .getEmbeddedParameters();
-
-                            if (!IsotopePatternScoreCalculator.checkMatch(ip1,
-                                    ip2, isotopeParams)) {
-                                continue;
-                            }
-                        }
+            final PeakListRow allRows[] = peakList.getRows();
+
+            // Calculate scores for all possible alignments of each row. The
+            // rows are split into chunks, which are processed in parallel.
+            final int chunkSize = Math.max(1, (allRows.length
+                    + SCORE_CHUNKS_PER_THREAD * getParallelism() - 1)
+                    / (SCORE_CHUNKS_PER_THREAD * getParallelism()));
+            List<Callable<List<RowVsRowScore>>> scoreTasks = new ArrayList<Callable<List<RowVsRowScore>>>();
+            for (int start = 0; start < allRows.length; start += chunkSize) {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(start + chunkSize,
+                        allRows.length);
+                scoreTasks.add(new Callable<List<RowVsRowScore>>() {
+                    @Override
+                    public List<RowVsRowScore> call() {
+                        return calculateScores(allRows, chunkStart, chunkEnd);
                     }
+                });
+            }
 
-                    RowVsRowScore score = new RowVsRowScore(row, candidate,
-                            RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                            RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
-
-                    scoreSet.add(score);
-
+            List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>();
+            try {
+                for (List<RowVsRowScore> chunkScores : runSubTasks(scoreTasks)) {
+                    if (chunkScores != null)
+                        scores.addAll(chunkScores);
                 }
-
-                processedRows++;
-
+            } catch (ExecutionException e) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+                return;
             }
 
+            if (isCanceled())
+                return;
+
             // Create a table of mappings for best scores
-            Hashtable<PeakListRow, PeakListRow> alignmentMapping = new Hashtable<PeakListRow, PeakListRow>();
+            Map<PeakListRow, PeakListRow> alignmentMapping = new HashMap<PeakListRow, PeakListRow>();
+            Set<PeakListRow> filledRows = new HashSet<PeakListRow>();
 
-            // Iterate scores by descending order
-            Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
-            while (scoreIterator.hasNext()) {
+            // Iterate scores by descending order, until all rows are mapped
+            double scoreValues[] = new double[scores.size()];
+            for (int i = 0; i < scoreValues.length; i++)
+                scoreValues[i] = scores.get(i).getScore();
+            ScoreQueue scoreQueue = new ScoreQueue(scoreValues);
+            while ((!scoreQueue.isEmpty())
+                    && (alignmentMapping.size() < allRows.length)) {
 
-                RowVsRowScore score = scoreIterator.next();
+                RowVsRowScore score = scores.get(scoreQueue.poll());
 
                 // Check if the row is already mapped
                 if (alignmentMapping.containsKey(score.getPeakListRow()))
                     continue;
 
                 // Check if the aligned row is already filled
-                if (alignmentMapping.containsValue(score.getAlignedRow()))
+                if (filledRows.contains(score.getAlignedRow()))
                     continue;
 
                 alignmentMapping.put(score.getPeakListRow(),
                         score.getAlignedRow());
+                filledRows.add(score.getAlignedRow());
 
             }
 
@@ -265,7 +254,7 @@ class JoinAlignerTask extends AbstractTask {
                 // aligned row
                 PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-                processedRows++;
+                processedRows.incrementAndGet();
 
             }
 
@@ -284,4 +273,137 @@ class JoinAlignerTask extends AbstractTask {
 
     }
 
+    /**
+     * Calculates the scores of the given rows against all rows of the aligned
+     * peak list within the tolerances. Scores are returned in the order of
+     * the rows and of the candidates returned by the aligned peak list.
+     */
+    private List<RowVsRowScore> calculateScores(PeakListRow rows[],
+            int start, int end) {
+
+        List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>();
+
+        for (int i = start; i < end; i++) {
+
+            if (isCanceled())
+                return scores;
+
+            PeakListRow row = rows[i];
+
+            // Calculate limits for a row with which the row can be aligned
+            Range<Double> mzRange = mzTolerance.getToleranceRange(row
+                    .getAverageMZ());
+            Range<Double> rtRange = rtTolerance.getToleranceRange(row
+                    .getAverageRT());
+
+            // Get all rows of the aligned peaklist within parameter limits
+            PeakListRow candidateRows[] = alignedPeakList
+                    .getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+            // Calculate scores and store them
+            for (PeakListRow candidate : candidateRows) {
+
+                if (sameChargeRequired) {
+                    if (!PeakUtils.compareChargeState(row, candidate))
+                        continue;
+                }
+
+                if (sameIDRequired) {
+                    if (!PeakUtils.compareIdentities(row, candidate))
+                        continue;
+                }
+
+                if (compareIsotopePattern) {
+                    IsotopePattern ip1 = row.getBestIsotopePattern();
+                    IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+                    if ((ip1 != null) && (ip2 != null)) {
+                        ParameterSet isotopeParams = parameters
+                                .getParameter(
+                                        JoinAlignerParameters.compareIsotopePattern)
+                                .getEmbeddedParameters();
+
+                        if (!IsotopePatternScoreCalculator.checkMatch(ip1,
+                                ip2, isotopeParams)) {
+                            continue;
+                        }
+                    }
+                }
+
+                RowVsRowScore score = new RowVsRowScore(row, candidate,
+                        RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
+                        RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+                scores.add(score);
+
+            }
+
+            processedRows.incrementAndGet();
+
+        }
+
+        return scores;
+    }
+
+    /**
+     * Binary heap of score indices, which returns the highest score first.
+     * Equal scores are returned in reverse order of their indices, as the
+     * TreeSet previously used for the scores did.
+     */
+    private static final class ScoreQueue {
+
+        private final double scores[];
+        private final int heap[];
+        private int size;
+
+        ScoreQueue(double scores[]) {
+            this.scores = scores;
+            size = scores.length;
+            heap = new int[size];
+            for (int i = 0; i < size; i++)
+                heap[i] = i;
+            for (int i = size / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int poll() {
+            int top = heap[0];
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                siftDown(0);
+            }
+            return top;
+        }
+
+        private boolean before(int index1, int index2) {
+            if (scores[index1] > scores[index2])
+                return true;
+            if (scores[index1] < scores[index2])
+                return false;
+            return index1 > index2;
+        }
+
+        private void siftDown(int pos) {
+            int item = heap[pos];
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size)
+                    break;
+                if ((child + 1 < size) && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], item))
+                    break;
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            heap[pos] = item;
+        }
+
+    }
+
 }
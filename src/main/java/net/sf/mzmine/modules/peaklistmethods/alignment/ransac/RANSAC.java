@@ -21,8 +21,11 @@ package net.sf.mzmine.modules.peaklistmethods.alignment.ransac;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 import net.sf.mzmine.parameters.ParameterSet;
 
@@ -30,8 +33,6 @@ import org.apache.commons.math.analysis.polynomials.PolynomialFunction;
 import org.apache.commons.math.optimization.fitting.PolynomialFitter;
 import org.apache.commons.math.optimization.general.GaussNewtonOptimizer;
 
-import com.google.common.collect.Range;
-
 public class RANSAC {
 
     /**
@@ -46,9 +47,27 @@ public class RANSAC {
     private int n;
     private double d = 1;
     private int k = 0;
-    private int AlsoNumber;
     private double numRatePoints, t;
     private boolean Linear;
+    private Long seed;
+
+    // Probability that at least one iteration picks only inliers, used to
+    // estimate the number of iterations and to stop early
+    private static final double CONFIDENCE = 0.99;
+
+    // Iterations are run in batches of chunks, each chunk in parallel with its
+    // own random generator. The stopping criterion is checked after each
+    // batch. The chunks do not depend on the number of threads, so the result
+    // is reproducible when a random seed is set.
+    private static final int ITERATIONS_PER_CHUNK = 16;
+    private static final int CHUNKS_PER_BATCH = 16;
+
+    // RT values of the possible alignments, sorted by RT
+    private double rt[], rt2[];
+
+    // Points up to lowerHalfEnd (exclusive) are in the lower half of the RT
+    // range, points from upperHalfStart are in the upper half
+    private int lowerHalfEnd, upperHalfStart;
 
     public RANSAC(ParameterSet parameters) {
 
@@ -64,6 +83,15 @@ public class RANSAC {
 	this.Linear = parameters.getParameter(RansacAlignerParameters.Linear)
 		.getValue();
 
+	if (parameters.getParameter(RansacAlignerParameters.RandomSeed)
+		.getValue()) {
+	    Integer seedValue = parameters
+		    .getParameter(RansacAlignerParameters.RandomSeed)
+		    .getEmbeddedParameter().getValue();
+	    if (seedValue != null)
+		this.seed = seedValue.longValue();
+	}
+
     }
 
     /**
@@ -111,193 +139,278 @@ public class RANSAC {
     private double getK() {
 	double w = numRatePoints;
 	double b = Math.pow(w, n);
-	return Math.log10(1 - 0.99) / Math.log10(1 - b)
+	return Math.log10(1 - CONFIDENCE) / Math.log10(1 - b)
 		+ (Math.sqrt(1 - b) / b);
     }
 
     /**
-     * RANSAC algorithm
+     * Returns the number of iterations needed to pick only inliers at least
+     * once with the target confidence, given the ratio of inliers
+     */
+    private double getRequiredIterations(double inlierRatio) {
+	double b = Math.pow(inlierRatio, n);
+	if (b >= 1)
+	    return 1;
+	if (b <= 0)
+	    return Double.POSITIVE_INFINITY;
+	return Math.log(1 - CONFIDENCE) / Math.log(1 - b);
+    }
+
+    /**
+     * RANSAC algorithm. Runs at most k iterations, and stops as soon as the
+     * inlier ratio of the best model shows that enough iterations were run.
+     * Points of the best model are marked as Aligned.
      * 
      * @param data
      *            vector with the points which represent all possible
      *            alignments.
      */
     public void ransac(List<AlignStructMol> data) {
-	double besterr = 9.9E99;
-
-	for (int iterations = 0; iterations < k; iterations++) {
-	    AlsoNumber = n;
-	    // Get the initial points
-	    boolean initN = getInitN(data);
-	    if (!initN) {
-		continue;
-	    }
 
-	    // Calculate the model
-	    fittPolinomialFunction(data, Linear);
-
-	    // If the model has the minimun number of points
-	    if (AlsoNumber >= d) {
-		// Get the error of the model based on the number of points
-		double error = 9.9E99;
-		try {
-		    error = newError(data);
-		} catch (Exception ex) {
-		    Logger.getLogger(RANSAC.class.getName()).log(Level.SEVERE,
-			    null, ex);
-		}
+	if (data.size() <= n)
+	    return;
 
-		// If the error is less than the error of the last model
-		if (error < besterr) {
-		    besterr = error;
-		    for (int i = 0; i < data.size(); i++) {
-			AlignStructMol alignStruct = data.get(i);
-			if (alignStruct.ransacAlsoInLiers
-				|| alignStruct.ransacMaybeInLiers) {
-			    alignStruct.Aligned = true;
-			} else {
-			    alignStruct.Aligned = false;
-			}
-
-			alignStruct.ransacAlsoInLiers = false;
-			alignStruct.ransacMaybeInLiers = false;
-
-		    }
-		}
+	Collections.sort(data, new AlignStructMol());
+	rt = new double[data.size()];
+	rt2 = new double[data.size()];
+	for (int i = 0; i < data.size(); i++) {
+	    rt[i] = data.get(i).RT;
+	    rt2[i] = data.get(i).RT2;
+	}
+
+	double min = rt[0];
+	double max = rt[rt.length - 1];
+	double middle = ((max - min) / 2) + min;
+	lowerHalfEnd = 0;
+	while ((lowerHalfEnd < rt.length) && (rt[lowerHalfEnd] <= middle))
+	    lowerHalfEnd++;
+	upperHalfStart = 0;
+	while ((upperHalfStart < rt.length) && (rt[upperHalfStart] < middle))
+	    upperHalfStart++;
+
+	Model bestModel = null;
+	int iterations = 0;
+	int chunkIndex = 0;
+	while (iterations < k) {
+
+	    List<IterationChunk> chunks = new ArrayList<IterationChunk>();
+	    for (int i = 0; (i < CHUNKS_PER_BATCH) && (iterations < k); i++) {
+		int chunkSize = Math.min(ITERATIONS_PER_CHUNK, k - iterations);
+		chunks.add(new IterationChunk(chunkIndex++, chunkSize));
+		iterations += chunkSize;
 	    }
-	    // remove the model
-	    for (int i = 0; i < data.size(); i++) {
-		AlignStructMol alignStruct = data.get(i);
-		alignStruct.ransacAlsoInLiers = false;
-		alignStruct.ransacMaybeInLiers = false;
+	    runChunks(chunks);
+
+	    // Best model has the most points, the first one wins ties
+	    for (IterationChunk chunk : chunks) {
+		Model model = chunk.bestModel;
+		if ((model != null)
+			&& ((bestModel == null) || (model.numOfPoints > bestModel.numOfPoints)))
+		    bestModel = model;
 	    }
 
+	    if ((bestModel != null)
+		    && (iterations >= getRequiredIterations((double) bestModel.numOfPoints
+			    / rt.length)))
+		break;
+
+	}
+
+	if (bestModel == null)
+	    return;
+
+	boolean inliers[] = getInliers(bestModel);
+	for (int i = 0; i < data.size(); i++) {
+	    AlignStructMol alignStruct = data.get(i);
+	    alignStruct.Aligned = inliers[i];
+	    alignStruct.ransacAlsoInLiers = false;
+	    alignStruct.ransacMaybeInLiers = false;
 	}
+
     }
 
     /**
-     * Take the initial points ramdoly. The points are divided by the initial
-     * number of points. If the fractions contain enough number of points took
-     * one point from each part.
-     * 
-     * @param data
-     *            vector with the points which represent all possible
-     *            alignments.
-     * @return false if there is any problem.
+     * Model fitted to a random sample of points
      */
-    private boolean getInitN(List<AlignStructMol> data) {
-	if (data.size() > n) {
-	    Collections.sort(data, new AlignStructMol());
-	    double min = data.get(0).RT;
-	    double max = data.get(data.size() - 1).RT;
-
-	    Range<Double> rtRange = Range.closed(min, ((max - min) / 2) + min);
-
-	    int cont = 0, bucle = 0;
-	    while (cont < n / 2 && bucle < 1000) {
-		int index = (int) (data.size() * Math.random());
-		if (!data.get(index).ransacMaybeInLiers
-			&& rtRange.contains(data.get(index).RT)) {
-		    data.get(index).ransacMaybeInLiers = true;
-		    cont++;
+    private static final class Model {
+	final int sample[];
+	final PolynomialFunction function;
+	final int numOfPoints;
+
+	Model(int sample[], PolynomialFunction function, int numOfPoints) {
+	    this.sample = sample;
+	    this.function = function;
+	    this.numOfPoints = numOfPoints;
+	}
+    }
 
-		}
+    /**
+     * Consecutive iterations run by one thread
+     */
+    private final class IterationChunk extends RecursiveAction {
 
-		bucle++;
-	    }
-	    if (bucle >= 1000) {
-		getN(data, (n / 2) - cont);
-	    }
+	private static final long serialVersionUID = 1L;
 
-	    bucle = 0;
-	    rtRange = Range.closed(((max - min) / 2) + min, max);
+	private final int chunkIndex, numOfIterations;
+	private Model bestModel;
 
-	    while (cont < n && bucle < 1000) {
+	IterationChunk(int chunkIndex, int numOfIterations) {
+	    this.chunkIndex = chunkIndex;
+	    this.numOfIterations = numOfIterations;
+	}
 
-		int index = (int) (data.size() * Math.random());
-		if (!data.get(index).ransacMaybeInLiers
-			&& rtRange.contains(data.get(index).RT)) {
-		    data.get(index).ransacMaybeInLiers = true;
-		    cont++;
-		}
-		bucle++;
-	    }
-	    if (bucle >= 1000) {
-		getN(data, n - cont);
+	@Override
+	protected void compute() {
+	    Random random;
+	    if (seed != null)
+		random = new Random(seed * 0x9E3779B97F4A7C15L + chunkIndex);
+	    else
+		random = ThreadLocalRandom.current();
+
+	    boolean selected[] = new boolean[rt.length];
+	    for (int i = 0; i < numOfIterations; i++) {
+		Model model = fitModel(random, selected);
+		if ((model != null)
+			&& ((bestModel == null) || (model.numOfPoints > bestModel.numOfPoints)))
+		    bestModel = model;
 	    }
-	    return true;
+	}
+    }
+
+    private void runChunks(final List<IterationChunk> chunks) {
+	if (ForkJoinTask.inForkJoinPool()) {
+	    ForkJoinTask.invokeAll(chunks);
 	} else {
-	    return false;
+	    ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+		    invokeAll(chunks);
+		}
+	    });
 	}
     }
 
-    private void getN(List<AlignStructMol> data, int newN) {
-	if (newN < 1) {
-	    return;
+    /**
+     * One RANSAC iteration: fits the model to a random sample, and returns it
+     * if it has the minimum number of points
+     */
+    private Model fitModel(Random random, boolean selected[]) {
+
+	// Get the initial points
+	int sample[] = getInitN(random, selected);
+
+	// Calculate the model
+	PolynomialFunction function = fittPolinomialFunction(sample);
+
+	// Count the points which fit the model (alsoNumber counts the points
+	// of the sample twice, as the original implementation did)
+	int alsoNumber = n;
+	int numOfPoints = 0;
+	for (int i = 0; i < rt.length; i++) {
+	    if ((function != null) && (Math.abs(rt2[i] - function.value(rt[i])) < t)) {
+		alsoNumber++;
+		numOfPoints++;
+	    } else if (selected[i]) {
+		numOfPoints++;
+	    }
+	}
+
+	for (int index : sample)
+	    selected[index] = false;
+
+	// If the model has the minimun number of points
+	if (alsoNumber < d)
+	    return null;
+
+	return new Model(sample, function, numOfPoints);
+
+    }
+
+    /**
+     * Returns the points of the sample and the points which fit the model
+     */
+    private boolean[] getInliers(Model model) {
+	boolean inliers[] = new boolean[rt.length];
+	for (int index : model.sample)
+	    inliers[index] = true;
+	if (model.function != null) {
+	    for (int i = 0; i < rt.length; i++) {
+		if (Math.abs(rt2[i] - model.function.value(rt[i])) < t)
+		    inliers[i] = true;
+	    }
 	}
+	return inliers;
+    }
+
+    /**
+     * Take the initial points ramdoly. Half of the points are taken from the
+     * lower half of the RT range, the other half from the upper half. If a half
+     * does not contain enough points, the rest is taken from all points.
+     * 
+     * @param selected
+     *            marks the points of the sample, must be cleared by the caller
+     * @return indexes of the sample points
+     */
+    private int[] getInitN(Random random, boolean selected[]) {
+	int sample[] = new int[n];
 	int cont = 0;
-	while (cont < newN) {
-	    int index = (int) (data.size() * Math.random());
-	    if (!data.get(index).ransacMaybeInLiers) {
-		data.get(index).ransacMaybeInLiers = true;
-		cont++;
+	cont = pickPoints(random, selected, sample, cont, n / 2, 0,
+		lowerHalfEnd);
+	cont = pickPoints(random, selected, sample, cont, n, upperHalfStart,
+		rt.length);
+	pickPoints(random, selected, sample, cont, n, 0, rt.length);
+	return sample;
+    }
+
+    /**
+     * Adds random points between start (inclusive) and end (exclusive) to the
+     * sample, until it contains target points or there are no more unselected
+     * points in the range
+     * 
+     * @return number of points in the sample
+     */
+    private int pickPoints(Random random, boolean selected[], int sample[],
+	    int cont, int target, int start, int end) {
+	int available = end - start;
+	for (int i = 0; i < cont; i++) {
+	    if ((sample[i] >= start) && (sample[i] < end))
+		available--;
+	}
+	while ((cont < target) && (available > 0)) {
+	    int index = start + random.nextInt(end - start);
+	    if (!selected[index]) {
+		selected[index] = true;
+		sample[cont++] = index;
+		available--;
 	    }
 	}
+	return cont;
     }
 
-    private void fittPolinomialFunction(List<AlignStructMol> data,
-	    boolean linear) {
-	List<AlignStructMol> points = new ArrayList<AlignStructMol>();
+    /**
+     * Fits the model to the sample points
+     * 
+     * @return the model, or null if it could not be fitted
+     */
+    private PolynomialFunction fittPolinomialFunction(int sample[]) {
 
 	int degree = 3;
-	if (linear) {
+	if (Linear) {
 	    degree = 1;
 	}
 
 	PolynomialFitter fitter = new PolynomialFitter(degree,
 		new GaussNewtonOptimizer(true));
-	for (int i = 0; i < data.size(); i++) {
-	    AlignStructMol point = data.get(i);
-	    if (point.ransacMaybeInLiers) {
-		points.add(point);
-		fitter.addObservedPoint(1, point.RT, point.RT2);
-	    }
+	for (int index : sample) {
+	    fitter.addObservedPoint(1, rt[index], rt2[index]);
 	}
 	try {
-	    PolynomialFunction function = fitter.fit();
-	    for (AlignStructMol point : data) {
-		double y = point.RT2;
-		double bestY = function.value(point.RT);
-		if (Math.abs(y - bestY) < t) {
-		    point.ransacAlsoInLiers = true;
-		    AlsoNumber++;
-		} else {
-		    point.ransacAlsoInLiers = false;
-		}
-	    }
+	    return fitter.fit();
 	} catch (Exception ex) {
+	    return null;
 	}
     }
 
-    /**
-     * calculate the error in the model
-     * 
-     * @param data
-     *            vector with the points which represent all possible
-     *            alignments.
-     * @param regression
-     *            regression of the alignment points
-     * @return the error in the model
-     */
-    private double newError(List<AlignStructMol> data) throws Exception {
-
-	double numT = 1;
-	for (int i = 0; i < data.size(); i++) {
-	    if (data.get(i).ransacAlsoInLiers || data.get(i).ransacMaybeInLiers) {
-		numT++;
-	    }
-	}
-	return 1 / numT;
-
-    }
 }
@@ -26,6 +26,7 @@ import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.PercentParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
@@ -68,6 +69,12 @@ public class RansacAlignerParameters extends SimpleParameterSet {
     public static final BooleanParameter Linear = new BooleanParameter(
 	    "Linear model", "Switch between polynomial model or lineal model");
 
+    public static final OptionalParameter<IntegerParameter> RandomSeed = new OptionalParameter<IntegerParameter>(
+	    new IntegerParameter(
+		    "Random seed",
+		    "If checked, the random points of the RANSAC iterations are generated from this seed,"
+			    + "\nso that the alignment is reproducible"));
+
     public static final BooleanParameter SameChargeRequired = new BooleanParameter(
 	    "Require same charge state",
 	    "If checked, only rows having same charge state can be aligned");
@@ -82,6 +89,6 @@ public class RansacAlignerParameters extends SimpleParameterSet {
     public RansacAlignerParameters() {
 	super(new Parameter[] { peakLists, peakListName, MZTolerance,
 		RTToleranceBefore, RTToleranceAfter, Iterations, NMinPoints,
-		Margin, Linear, SameChargeRequired });
+		Margin, Linear, RandomSeed, SameChargeRequired });
     }
 }
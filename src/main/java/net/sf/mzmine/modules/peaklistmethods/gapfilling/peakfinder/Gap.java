@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Vector;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.Feature.FeatureStatus;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -66,7 +67,13 @@ class Gap {
 
     }
 
-    void offerNextScan(Scan scan) {
+    /**
+     * Offers the next scan of the raw data file to this gap
+     * 
+     * @param dataPoints
+     *            data points of the scan, already read into the buffer
+     */
+    void offerNextScan(Scan scan, DataPointsBuffer dataPoints) {
 
 	double scanRT = scan.getRetentionTime();
 
@@ -80,12 +87,13 @@ class Gap {
 	    return;
 
 	// Find top m/z peak in our range
-	DataPoint basePeak = ScanUtils.findBasePeak(scan, mzRange);
+	int basePeak = ScanUtils.findBasePeakIndex(dataPoints, mzRange);
 
 	GapDataPoint currentDataPoint;
-	if (basePeak != null) {
+	if (basePeak >= 0) {
 	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
-		    basePeak.getMZ(), scanRT, basePeak.getIntensity());
+		    dataPoints.getMZ(basePeak), scanRT,
+		    dataPoints.getIntensity(basePeak));
 	} else {
 	    currentDataPoint = new GapDataPoint(scan.getScanNumber(),
 		    RangeUtils.rangeCenter(mzRange), scanRT, 0);
@@ -116,6 +124,20 @@ class Gap {
 
     }
 
+    Range<Double> getRTRange() {
+	return rtRange;
+    }
+
+    /**
+     * Returns true if this gap ignores all scans after a scan with given
+     * retention time, because the RT range was passed and the last peak is
+     * finished
+     */
+    boolean isFinished(double scanRT) {
+	return (scanRT > rtRange.upperEndpoint())
+		&& (currentPeakDataPoints == null);
+    }
+
     public void noMoreOffers() {
 
 	// Check peak that was last constructed
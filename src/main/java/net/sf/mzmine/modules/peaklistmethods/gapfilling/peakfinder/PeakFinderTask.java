@@ -19,9 +19,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakIdentity;
@@ -38,6 +45,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 
 import com.google.common.collect.Range;
 
@@ -53,7 +61,8 @@ class PeakFinderTask extends AbstractTask {
     private RTTolerance rtTolerance;
     private boolean rtCorrection;
     private ParameterSet parameters;
-    private int processedScans, totalScans;
+    private final AtomicInteger processedScans = new AtomicInteger();
+    private int totalScans;
     private boolean MASTERLIST = true, removeOriginal;
     private int masterSample = 0;
 
@@ -107,240 +116,344 @@ class PeakFinderTask extends AbstractTask {
 	    processedPeakList.addRow(newRow);
 	}
 
-	if (rtCorrection) {
-	    totalScans *= 2;
-	    // Fill the gaps of a random sample using all the other samples and
-	    // take it as master list
-	    // to fill the gaps of the other samples
-	    masterSample = (int) Math.floor(Math.random()
-		    * peakList.getNumberOfRawDataFiles());
-	    fillList(MASTERLIST);
-
-	    // Process all raw data files
-	    fillList(!MASTERLIST);
-
-	} else {
-
-	    // Process all raw data files
-	    for (RawDataFile dataFile : peakList.getRawDataFiles()) {
-
-		// Canceled?
-		if (isCanceled()) {
-		    return;
+	try {
+
+	    if (rtCorrection) {
+		totalScans *= 2;
+		// Fill the gaps of a random sample using all the other samples
+		// and take it as master list to fill the gaps of the other
+		// samples
+		masterSample = (int) Math.floor(Math.random()
+			* peakList.getNumberOfRawDataFiles());
+		fillList(MASTERLIST);
+
+		// Process all raw data files
+		fillList(!MASTERLIST);
+
+	    } else {
+
+		// Each raw data file fills its own column of the new peak list,
+		// so the files can be processed in parallel
+		List<Callable<Void>> subTasks = new ArrayList<Callable<Void>>();
+		for (final RawDataFile dataFile : peakList.getRawDataFiles()) {
+		    subTasks.add(new Callable<Void>() {
+			@Override
+			public Void call() {
+			    fillColumn(dataFile);
+			    return null;
+			}
+		    });
 		}
+		runSubTasks(subTasks);
+	    }
 
-		Vector<Gap> gaps = new Vector<Gap>();
-
-		// Fill each row of this raw data file column, create new empty
-		// gaps
-		// if necessary
-		for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-		    PeakListRow sourceRow = peakList.getRow(row);
-		    PeakListRow newRow = processedPeakList.getRow(row);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
+	}
 
-		    Feature sourcePeak = sourceRow.getPeak(dataFile);
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-		    if (sourcePeak == null) {
+	// Append processed peak list to the project
+	project.addPeakList(processedPeakList);
 
-			// Create a new gap
+        // Add quality parameters to peaks
+	QualityParameters.calculateQualityParameters(processedPeakList);
 
-			Range<Double> mzRange = mzTolerance
-				.getToleranceRange(sourceRow.getAverageMZ());
-			Range<Double> rtRange = rtTolerance
-				.getToleranceRange(sourceRow.getAverageRT());
+	// Add task description to peakList
+	processedPeakList
+		.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+			"Gap filling ", parameters));
 
-			Gap newGap = new Gap(newRow, dataFile, mzRange,
-				rtRange, intTolerance);
+	// Remove the original peaklist if requested
+	if (removeOriginal)
+	    project.removePeakList(peakList);
 
-			gaps.add(newGap);
+	logger.info("Finished gap-filling on " + peakList);
+	setStatus(TaskStatus.FINISHED);
 
-		    } else {
-			newRow.addPeak(dataFile, sourcePeak);
-		    }
+    }
 
-		}
+    /**
+     * Fills the column of given raw data file in the new peak list, creating
+     * new empty gaps if necessary
+     */
+    private void fillColumn(RawDataFile dataFile) {
 
-		// Stop processing this file if there are no gaps
-		if (gaps.size() == 0) {
-		    processedScans += dataFile.getNumOfScans();
-		    continue;
-		}
+	List<Gap> gaps = new ArrayList<Gap>();
 
-		// Get all scans of this data file
-		int scanNumbers[] = dataFile.getScanNumbers(1);
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow sourceRow = peakList.getRow(row);
+	    PeakListRow newRow = processedPeakList.getRow(row);
 
-		// Process each scan
-		for (int scanNumber : scanNumbers) {
+	    Feature sourcePeak = sourceRow.getPeak(dataFile);
 
-		    // Canceled?
-		    if (isCanceled()) {
-			return;
-		    }
+	    if (sourcePeak == null) {
 
-		    // Get the scan
-		    Scan scan = dataFile.getScan(scanNumber);
+		// Create a new gap
 
-		    // Feed this scan to all gaps
-		    for (Gap gap : gaps) {
-			gap.offerNextScan(scan);
-		    }
+		Range<Double> mzRange = mzTolerance.getToleranceRange(sourceRow
+			.getAverageMZ());
+		Range<Double> rtRange = rtTolerance.getToleranceRange(sourceRow
+			.getAverageRT());
 
-		    processedScans++;
-		}
+		Gap newGap = new Gap(newRow, dataFile, mzRange, rtRange,
+			intTolerance);
 
-		// Finalize gaps
-		for (Gap gap : gaps) {
-		    gap.noMoreOffers();
-		}
+		gaps.add(newGap);
 
+	    } else {
+		newRow.addPeak(dataFile, sourcePeak);
 	    }
-	}
 
-	// Append processed peak list to the project
-	project.addPeakList(processedPeakList);
-
-        // Add quality parameters to peaks
-	QualityParameters.calculateQualityParameters(processedPeakList);
+	}
 
-	// Add task description to peakList
-	processedPeakList
-		.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
-			"Gap filling ", parameters));
+	fillGaps(dataFile, gaps);
 
-	// Remove the original peaklist if requested
-	if (removeOriginal)
-	    project.removePeakList(peakList);
+    }
 
-	logger.info("Finished gap-filling on " + peakList);
-	setStatus(TaskStatus.FINISHED);
+    public void fillList(final boolean masterList) throws ExecutionException {
 
-    }
+	final RawDataFile masterFile = peakList.getRawDataFile(masterSample);
+	final int numOfRows = peakList.getNumberOfRows();
 
-    public void fillList(boolean masterList) {
+	// Every other sample is processed in parallel. While building the
+	// master list, all of them fill the master column, so their gaps are
+	// collected in separate rows first.
+	final List<Callable<PeakListRow[]>> subTasks = new ArrayList<Callable<PeakListRow[]>>();
 	for (int i = 0; i < peakList.getNumberOfRawDataFiles(); i++) {
 	    if (i != masterSample) {
 
-		RawDataFile datafile1;
-		RawDataFile datafile2;
+		final RawDataFile datafile1;
+		final RawDataFile datafile2;
 
 		if (masterList) {
-		    datafile1 = peakList.getRawDataFile(masterSample);
+		    datafile1 = masterFile;
 		    datafile2 = peakList.getRawDataFile(i);
 		} else {
 		    datafile1 = peakList.getRawDataFile(i);
-		    datafile2 = peakList.getRawDataFile(masterSample);
+		    datafile2 = masterFile;
 		}
-		RegressionInfo info = new RegressionInfo();
 
-		for (PeakListRow row : peakList.getRows()) {
-		    Feature peaki = row.getPeak(datafile1);
-		    Feature peake = row.getPeak(datafile2);
-		    if (peaki != null && peake != null) {
-			info.addData(peake.getRT(), peaki.getRT());
+		subTasks.add(new Callable<PeakListRow[]>() {
+		    @Override
+		    public PeakListRow[] call() {
+			PeakListRow filledRows[] = null;
+			if (masterList)
+			    filledRows = new PeakListRow[numOfRows];
+			fillColumn(datafile1, datafile2, masterList, filledRows);
+			return filledRows;
 		    }
-		}
+		});
+	    }
+	}
 
-		info.setFunction();
+	if (masterList) {
+	    for (int row = 0; row < numOfRows; row++) {
+		Feature sourcePeak = peakList.getRow(row).getPeak(masterFile);
+		if (sourcePeak != null)
+		    processedPeakList.getRow(row).addPeak(masterFile,
+			    sourcePeak);
+	    }
+	}
 
-		// Canceled?
-		if (isCanceled()) {
-		    return;
+	List<PeakListRow[]> results = runSubTasks(subTasks);
+
+	// Apply the master list gaps in sample order, so the peak found using
+	// the last sample wins, as if the samples were processed one by one
+	if (masterList) {
+	    for (PeakListRow filledRows[] : results) {
+		if (filledRows == null)
+		    continue;
+		for (int row = 0; row < numOfRows; row++) {
+		    if (filledRows[row] == null)
+			continue;
+		    Feature filledPeak = filledRows[row].getPeak(masterFile);
+		    if (filledPeak != null)
+			processedPeakList.getRow(row).addPeak(masterFile,
+				filledPeak);
 		}
+	    }
+	}
+    }
 
-		Vector<Gap> gaps = new Vector<Gap>();
-
-		// Fill each row of this raw data file column, create new empty
-		// gaps
-		// if necessary
-		for (int row = 0; row < peakList.getNumberOfRows(); row++) {
-		    PeakListRow sourceRow = peakList.getRow(row);
-		    PeakListRow newRow = processedPeakList.getRow(row);
-
-		    Feature sourcePeak = sourceRow.getPeak(datafile1);
-
-		    if (sourcePeak == null) {
-
-			// Create a new gap
-
-			double mz = sourceRow.getAverageMZ();
-			double rt2 = -1;
-			if (!masterList) {
-			    if (processedPeakList.getRow(row)
-				    .getPeak(datafile2) != null) {
-				rt2 = processedPeakList.getRow(row)
-					.getPeak(datafile2).getRT();
-			    }
-			} else {
-			    if (peakList.getRow(row).getPeak(datafile2) != null) {
-				rt2 = peakList.getRow(row).getPeak(datafile2)
-					.getRT();
-			    }
-			}
+    /**
+     * Fills the gaps of datafile1 using the retention times predicted from
+     * datafile2. If filledRows is not null, the gaps are filled into new rows
+     * stored in that array, instead of the rows of the new peak list.
+     */
+    private void fillColumn(RawDataFile datafile1, RawDataFile datafile2,
+	    boolean masterList, PeakListRow filledRows[]) {
+
+	RegressionInfo info = new RegressionInfo();
+
+	for (PeakListRow row : peakList.getRows()) {
+	    Feature peaki = row.getPeak(datafile1);
+	    Feature peake = row.getPeak(datafile2);
+	    if (peaki != null && peake != null) {
+		info.addData(peake.getRT(), peaki.getRT());
+	    }
+	}
+
+	info.setFunction();
 
-			if (rt2 > -1) {
+	// Canceled?
+	if (isCanceled()) {
+	    return;
+	}
 
-			    double rt = info.predict(rt2);
+	List<Gap> gaps = new ArrayList<Gap>();
 
-			    if (rt != -1) {
+	// Fill each row of this raw data file column, create new empty
+	// gaps
+	// if necessary
+	for (int row = 0; row < peakList.getNumberOfRows(); row++) {
+	    PeakListRow sourceRow = peakList.getRow(row);
+	    PeakListRow newRow = processedPeakList.getRow(row);
 
-				Range<Double> mzRange = mzTolerance
-					.getToleranceRange(mz);
-				Range<Double> rtRange = rtTolerance
-					.getToleranceRange(rt);
+	    Feature sourcePeak = sourceRow.getPeak(datafile1);
 
-				Gap newGap = new Gap(newRow, datafile1,
-					mzRange, rtRange, intTolerance);
+	    if (sourcePeak == null) {
 
-				gaps.add(newGap);
-			    }
-			}
+		// Create a new gap
 
-		    } else {
-			newRow.addPeak(datafile1, sourcePeak);
+		double mz = sourceRow.getAverageMZ();
+		double rt2 = -1;
+		if (!masterList) {
+		    if (processedPeakList.getRow(row).getPeak(datafile2) != null) {
+			rt2 = processedPeakList.getRow(row)
+				.getPeak(datafile2).getRT();
+		    }
+		} else {
+		    if (peakList.getRow(row).getPeak(datafile2) != null) {
+			rt2 = peakList.getRow(row).getPeak(datafile2).getRT();
 		    }
-
 		}
 
-		// Stop processing this file if there are no gaps
-		if (gaps.size() == 0) {
-		    processedScans += datafile1.getNumOfScans();
-		    continue;
-		}
+		if (rt2 > -1) {
 
-		// Get all scans of this data file
-		int scanNumbers[] = datafile1.getScanNumbers(1);
+		    double rt = info.predict(rt2);
 
-		// Process each scan
-		for (int scanNumber : scanNumbers) {
+		    if (rt != -1) {
 
-		    // Canceled?
-		    if (isCanceled()) {
-			return;
-		    }
+			Range<Double> mzRange = mzTolerance
+				.getToleranceRange(mz);
+			Range<Double> rtRange = rtTolerance
+				.getToleranceRange(rt);
 
-		    // Get the scan
-		    Scan scan = datafile1.getScan(scanNumber);
+			if (filledRows != null) {
+			    newRow = new SimplePeakListRow(sourceRow.getID());
+			    filledRows[row] = newRow;
+			}
+
+			Gap newGap = new Gap(newRow, datafile1, mzRange,
+				rtRange, intTolerance);
 
-		    // Feed this scan to all gaps
-		    for (Gap gap : gaps) {
-			gap.offerNextScan(scan);
+			gaps.add(newGap);
 		    }
-		    processedScans++;
 		}
 
-		// Finalize gaps
-		for (Gap gap : gaps) {
-		    gap.noMoreOffers();
+	    } else if (filledRows == null) {
+		newRow.addPeak(datafile1, sourcePeak);
+	    }
+
+	}
+
+	fillGaps(datafile1, gaps);
+
+    }
+
+    /**
+     * Feeds the MS1 scans of given raw data file to the gaps and finalizes
+     * them. The gaps are swept by retention time, so each scan is only read
+     * once and offered to the gaps whose RT range it may contribute to.
+     */
+    private void fillGaps(RawDataFile dataFile, List<Gap> gaps) {
+
+	// Get all scans of this data file
+	int scanNumbers[] = dataFile.getScanNumbers(1);
+
+	// Stop processing this file if there are no gaps
+	if (gaps.size() == 0) {
+	    processedScans.addAndGet(scanNumbers.length);
+	    return;
+	}
+
+	// Sort the gaps by the start of their RT range
+	Gap sortedGaps[] = gaps.toArray(new Gap[0]);
+	Arrays.sort(sortedGaps, new Comparator<Gap>() {
+	    @Override
+	    public int compare(Gap gap1, Gap gap2) {
+		return Double.compare(gap1.getRTRange().lowerEndpoint(), gap2
+			.getRTRange().lowerEndpoint());
+	    }
+	});
+
+	Gap activeGaps[] = new Gap[sortedGaps.length];
+	int numOfActiveGaps = 0, nextGap = 0;
+	DataPointsBuffer dataPoints = new DataPointsBuffer();
+
+	// Process each scan
+	for (int scanIndex = 0; scanIndex < scanNumbers.length; scanIndex++) {
+
+	    // Canceled?
+	    if (isCanceled()) {
+		return;
+	    }
+
+	    // Get the scan
+	    Scan scan = dataFile.getScan(scanNumbers[scanIndex]);
+	    double scanRT = scan.getRetentionTime();
+
+	    // Activate the gaps whose RT range was reached
+	    while ((nextGap < sortedGaps.length)
+		    && (sortedGaps[nextGap].getRTRange().lowerEndpoint() <= scanRT)) {
+		activeGaps[numOfActiveGaps++] = sortedGaps[nextGap++];
+	    }
+
+	    if (numOfActiveGaps == 0) {
+		// Skip the remaining scans if all gaps are finished
+		if (nextGap == sortedGaps.length) {
+		    processedScans.addAndGet(scanNumbers.length - scanIndex);
+		    break;
 		}
+		processedScans.incrementAndGet();
+		continue;
 	    }
+
+	    // Read the data points once and feed this scan to all active gaps,
+	    // dropping the gaps which cannot take any more scans
+	    scan.getDataPoints(dataPoints);
+	    int remainingGaps = 0;
+	    for (int i = 0; i < numOfActiveGaps; i++) {
+		Gap gap = activeGaps[i];
+		gap.offerNextScan(scan, dataPoints);
+		if (!gap.isFinished(scanRT))
+		    activeGaps[remainingGaps++] = gap;
+	    }
+	    Arrays.fill(activeGaps, remainingGaps, numOfActiveGaps, null);
+	    numOfActiveGaps = remainingGaps;
+
+	    processedScans.incrementAndGet();
+
 	}
+
+	// Finalize gaps
+	for (Gap gap : sortedGaps) {
+	    gap.noMoreOffers();
+	}
+
     }
 
     public double getFinishedPercentage() {
 	if (totalScans == 0) {
 	    return 0;
 	}
-	return (double) processedScans / (double) totalScans;
+	return Math.min(1.0, (double) processedScans.get() / (double) totalScans);
 
     }
 
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+/**
+ * Rows of a peak list sorted by their average m/z, used by the identification
+ * modules to find the rows at a given m/z (or m/z difference) without testing
+ * all rows. The average m/z, RT and height of each row are read once when the
+ * index is created, so the index must not be used after the rows changed.
+ * 
+ * Rows are addressed by their index in the m/z order. Each row also keeps its
+ * position in the array the index was created from, so the callers can
+ * restore the order in which the rows were originally tested. The index is
+ * immutable and can be shared by parallel sub-tasks.
+ */
+public class IdentificationRowIndex {
+
+    private final PeakListRow rows[];
+    private final int positions[];
+    private final double mzValues[], rtValues[], heights[];
+
+    public IdentificationRowIndex(final PeakListRow sourceRows[]) {
+
+	final double sourceMZValues[] = new double[sourceRows.length];
+	Integer order[] = new Integer[sourceRows.length];
+	for (int i = 0; i < sourceRows.length; i++) {
+	    sourceMZValues[i] = sourceRows[i].getAverageMZ();
+	    order[i] = i;
+	}
+
+	// Stable sort, so rows with the same m/z keep their source order
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(sourceMZValues[i1], sourceMZValues[i2]);
+	    }
+	});
+
+	rows = new PeakListRow[sourceRows.length];
+	positions = new int[sourceRows.length];
+	mzValues = new double[sourceRows.length];
+	rtValues = new double[sourceRows.length];
+	heights = new double[sourceRows.length];
+	for (int i = 0; i < order.length; i++) {
+	    PeakListRow row = sourceRows[order[i]];
+	    rows[i] = row;
+	    positions[i] = order[i];
+	    mzValues[i] = sourceMZValues[order[i]];
+	    rtValues[i] = row.getAverageRT();
+	    heights[i] = row.getAverageHeight();
+	}
+
+    }
+
+    public int getNumberOfRows() {
+	return rows.length;
+    }
+
+    public PeakListRow getRow(int index) {
+	return rows[index];
+    }
+
+    /**
+     * Returns the position of given row in the array this index was created
+     * from
+     */
+    public int getPosition(int index) {
+	return positions[index];
+    }
+
+    public double getMZ(int index) {
+	return mzValues[index];
+    }
+
+    public double getRT(int index) {
+	return rtValues[index];
+    }
+
+    public double getHeight(int index) {
+	return heights[index];
+    }
+
+    /**
+     * Returns the index of the first row whose m/z is not below given range.
+     * All rows from this index up to getEndIndex(mzRange) are inside the
+     * range.
+     */
+    public int getStartIndex(Range<Double> mzRange) {
+	if (!mzRange.hasLowerBound())
+	    return 0;
+	return findFirstAbove(mzRange.lowerEndpoint(),
+		mzRange.lowerBoundType() == BoundType.OPEN);
+    }
+
+    /**
+     * Returns the index after the last row whose m/z is not above given range
+     */
+    public int getEndIndex(Range<Double> mzRange) {
+	if (!mzRange.hasUpperBound())
+	    return rows.length;
+	return findFirstAbove(mzRange.upperEndpoint(),
+		mzRange.upperBoundType() == BoundType.CLOSED);
+    }
+
+    /**
+     * Returns the index of the first row inside given m/z and RT ranges, or -1
+     * if there is no such row. This answers whether a row exists at a given
+     * m/z (e.g. the m/z of another row plus a mass difference) within the
+     * tolerance and the RT window.
+     */
+    public int findRow(Range<Double> mzRange, Range<Double> rtRange) {
+	final int end = getEndIndex(mzRange);
+	for (int i = getStartIndex(mzRange); i < end; i++) {
+	    if (rtRange.contains(rtValues[i]))
+		return i;
+	}
+	return -1;
+    }
+
+    /**
+     * Binary search for the first row whose m/z is above given value, or
+     * equal to it if inclusive is false
+     */
+    private int findFirstAbove(double mz, boolean inclusive) {
+	int low = 0, high = rows.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if ((mzValues[middle] < mz)
+		    || (inclusive && (mzValues[middle] == mz)))
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+}
@@ -24,16 +24,23 @@ import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.MZ_TOLERANCE;
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.RT_TOLERANCE;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.identification.IdentificationRowIndex;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
@@ -43,13 +50,18 @@ import net.sf.mzmine.util.PeakListRowSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+import com.google.common.collect.Range;
+
 public class AdductSearchTask extends AbstractTask {
 
     // Logger.
     private static final Logger LOG = Logger.getLogger(AdductSearchTask.class
 	    .getName());
 
-    private int finishedRows;
+    // Number of chunks per available thread, to balance the search
+    private static final int SEARCH_CHUNKS_PER_THREAD = 4;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
     private int totalRows;
     private final PeakList peakList;
 
@@ -73,7 +85,6 @@ public class AdductSearchTask extends AbstractTask {
 	peakList = list;
 	parameters = parameterSet;
 
-	finishedRows = 0;
 	totalRows = 0;
 
 	rtTolerance = parameterSet.getParameter(RT_TOLERANCE).getValue();
@@ -86,7 +97,7 @@ public class AdductSearchTask extends AbstractTask {
     @Override
     public double getFinishedPercentage() {
 
-	return totalRows == 0 ? 0.0 : (double) finishedRows
+	return totalRows == 0 ? 0.0 : (double) finishedRows.get()
 		/ (double) totalRows;
     }
 
@@ -104,8 +115,16 @@ public class AdductSearchTask extends AbstractTask {
 
 	try {
 
-	    // Search the peak list for adducts.
-	    searchAdducts();
+	    // Search the peak list for adducts, delivering the notifications
+	    // of all new identities at once.
+	    MZmineProject project = MZmineCore.getProjectManager()
+		    .getCurrentProject();
+	    project.beginBulkUpdate();
+	    try {
+		searchAdducts();
+	    } finally {
+		project.endBulkUpdate();
+	    }
 
 	    if (!isCanceled()) {
 
@@ -122,6 +141,11 @@ public class AdductSearchTask extends AbstractTask {
 		setStatus(TaskStatus.FINISHED);
 		LOG.info("Finished adducts search in " + peakList);
 	    }
+	} catch (ExecutionException e) {
+
+	    LOG.log(Level.SEVERE, "Adduct search error", e.getCause());
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.getCause().getMessage());
 	} catch (Throwable t) {
 
 	    LOG.log(Level.SEVERE, "Adduct search error", t);
@@ -133,7 +157,7 @@ public class AdductSearchTask extends AbstractTask {
     /**
      * Search peak-list for adducts.
      */
-    private void searchAdducts() {
+    private void searchAdducts() throws ExecutionException {
 
 	// Get rows.
 	final PeakListRow[] rows = peakList.getRows();
@@ -143,42 +167,87 @@ public class AdductSearchTask extends AbstractTask {
 	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
 		SortingDirection.Descending));
 
-	// Compare each pair of rows against each other.
-	for (int i = 0; !isCanceled() && i < totalRows; i++) {
-	    for (int j = 0; !isCanceled() && j < totalRows; j++) {
+	// Index the rows by m/z, so the adducts of each row are found by a
+	// binary search instead of comparing each pair of rows.
+	final IdentificationRowIndex index = new IdentificationRowIndex(rows);
+
+	// Search chunks of main rows in parallel.
+	final int chunkSize = Math.max(1, (totalRows
+		+ SEARCH_CHUNKS_PER_THREAD * getParallelism() - 1)
+		/ (SEARCH_CHUNKS_PER_THREAD * getParallelism()));
+	final List<Callable<List<AdductMatch>>> searchTasks = new ArrayList<Callable<List<AdductMatch>>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    searchTasks.add(new Callable<List<AdductMatch>>() {
+		@Override
+		public List<AdductMatch> call() {
+		    return findAdducts(rows, index, chunkStart, chunkEnd);
+		}
+	    });
+	}
 
-		if (i == j)
-		    continue;
+	// Add the identities in the order of the main rows, so each row gets
+	// them in the same order as in a sequential search.
+	for (final List<AdductMatch> chunkMatches : runSubTasks(searchTasks)) {
 
-		findAdducts(rows[i], rows[j]);
-	    }
+	    if (isCanceled() || chunkMatches == null)
+		return;
 
-	    finishedRows++;
+	    for (final AdductMatch match : chunkMatches) {
+
+		// Add adduct identity and notify GUI.
+		match.adductRow.addPeakIdentity(match.identity, false);
+		MZmineCore.getProjectManager().getCurrentProject()
+			.notifyObjectChanged(match.adductRow, false);
+	    }
 	}
     }
 
     /**
-     * Check if candidate peak may be a possible adduct of a given main peak.
+     * Find the adducts of given main rows.
      *
-     * @param mainRow
-     *            main peak.
-     * @param possibleAdduct
-     *            candidate adduct peak.
+     * @param rows
+     *            all rows, sorted by height.
+     * @param index
+     *            m/z index of the rows.
+     * @param start
+     *            first main row.
+     * @param end
+     *            end of the main rows (exclusive).
+     * @return adducts found, in the order of the main rows.
      */
-    private void findAdducts(final PeakListRow mainRow,
-	    final PeakListRow possibleAdduct) {
-
-	for (final AdductType adduct : selectedAdducts) {
-
-	    if (checkAdduct(mainRow, possibleAdduct, adduct)) {
-
-		// Add adduct identity and notify GUI.
-		possibleAdduct.addPeakIdentity(new AdductIdentity(mainRow,
-			adduct), false);
-		MZmineCore.getProjectManager().getCurrentProject()
-			.notifyObjectChanged(possibleAdduct, false);
+    private List<AdductMatch> findAdducts(final PeakListRow[] rows,
+	    final IdentificationRowIndex index, final int start,
+	    final int end) {
+
+	final List<AdductMatch> matches = new ArrayList<AdductMatch>();
+	for (int i = start; !isCanceled() && i < end; i++) {
+
+	    final PeakListRow mainRow = rows[i];
+	    for (final AdductType adduct : selectedAdducts) {
+
+		// Only the rows inside the m/z tolerance are candidates.
+		final Range<Double> mzRange = mzTolerance
+			.getToleranceRange(mainRow.getAverageMZ()
+				+ adduct.getMassDifference());
+		final int candidatesStart = index.getStartIndex(mzRange);
+		final int candidatesEnd = index.getEndIndex(mzRange);
+		for (int k = candidatesStart; k < candidatesEnd; k++) {
+
+		    final PeakListRow possibleAdduct = index.getRow(k);
+		    if (index.getPosition(k) != i
+			    && checkAdduct(mainRow, possibleAdduct, adduct)) {
+			matches.add(new AdductMatch(possibleAdduct,
+				new AdductIdentity(mainRow, adduct)));
+		    }
+		}
 	    }
+
+	    finishedRows.incrementAndGet();
 	}
+
+	return matches;
     }
 
     /**
@@ -210,4 +279,19 @@ public class AdductSearchTask extends AbstractTask {
 		&& possibleAdduct.getAverageHeight() <= mainPeak
 			.getAverageHeight() * maxAdductHeight;
     }
+
+    /**
+     * Adduct identity found for a row.
+     */
+    private static final class AdductMatch {
+
+	private final PeakListRow adductRow;
+	private final AdductIdentity identity;
+
+	private AdductMatch(final PeakListRow adductRow,
+		final AdductIdentity identity) {
+	    this.adductRow = adductRow;
+	    this.identity = identity;
+	}
+    }
 }
@@ -19,10 +19,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.complexsearch;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.IonizationType;
+import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
@@ -30,14 +36,13 @@ import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.identification.IdentificationRowIndex;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.PeakListRowSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.ExceptionUtils;
 
 import com.google.common.collect.Range;
 
@@ -45,7 +50,16 @@ public class ComplexSearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    // Number of chunks per available thread, to balance the search
+    private static final int SEARCH_CHUNKS_PER_THREAD = 4;
+
+    // Margin added to the m/z range of the second row of a pair, so rounding
+    // errors do not exclude any pair. The mass condition is tested exactly
+    // by checkComplex().
+    private static final double PAIR_MZ_MARGIN = 1e-6;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
+    private int totalRows;
     private PeakList peakList;
 
     private RTTolerance rtTolerance;
@@ -80,7 +94,7 @@ public class ComplexSearchTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedRows) / totalRows;
+	return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -99,44 +113,53 @@ public class ComplexSearchTask extends AbstractTask {
 
 	logger.info("Starting complex search in " + peakList);
 
-	PeakListRow rows[] = peakList.getRows();
+	final PeakListRow rows[] = peakList.getRows();
 	totalRows = rows.length;
 
-	// Sort the array by m/z so we start with biggest peak (possible
-	// complex)
-	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.MZ,
-		SortingDirection.Descending));
-
-	// Compare each three rows against each other
-	for (int i = 0; i < totalRows; i++) {
-
-	    Range<Double> testRTRange = rtTolerance.getToleranceRange(rows[i]
-		    .getAverageRT());
-	    PeakListRow testRows[] = peakList
-		    .getRowsInsideScanRange(testRTRange);
-
-	    for (int j = 0; j < testRows.length; j++) {
-
-		for (int k = j; k < testRows.length; k++) {
-
-		    // Task canceled?
-		    if (isCanceled())
-			return;
-
-		    // To avoid finding a complex of the peak itself and another
-		    // very small m/z peak
-		    if ((rows[i] == testRows[j]) || (rows[i] == testRows[k]))
-			continue;
-
-		    if (checkComplex(rows[i], testRows[j], testRows[k]))
-			addComplexInfo(rows[i], testRows[j], testRows[k]);
-
+	// Index the rows by m/z, so the second row of each pair is found by a
+	// binary search instead of testing all rows
+	final IdentificationRowIndex index = new IdentificationRowIndex(rows);
+
+	// Search chunks of possible complexes in parallel
+	final int chunkSize = Math.max(1, (totalRows
+		+ SEARCH_CHUNKS_PER_THREAD * getParallelism() - 1)
+		/ (SEARCH_CHUNKS_PER_THREAD * getParallelism()));
+	List<Callable<List<ComplexMatch>>> searchTasks = new ArrayList<Callable<List<ComplexMatch>>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    searchTasks.add(new Callable<List<ComplexMatch>>() {
+		@Override
+		public List<ComplexMatch> call() {
+		    return findComplexes(rows, index, chunkStart, chunkEnd);
 		}
+	    });
+	}
 
-	    }
-
-	    finishedRows++;
+	List<List<ComplexMatch>> results;
+	try {
+	    results = runSubTasks(searchTasks);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
+	}
 
+	// Task canceled?
+	if (isCanceled())
+	    return;
+
+	// Deliver the notifications of all new identities at once
+	MZmineProject project = MZmineCore.getProjectManager()
+		.getCurrentProject();
+	project.beginBulkUpdate();
+	try {
+	    for (List<ComplexMatch> chunkMatches : results) {
+		for (ComplexMatch match : chunkMatches)
+		    addComplexInfo(match.complexRow, match.row1, match.row2);
+	    }
+	} finally {
+	    project.endBulkUpdate();
 	}
 
 	// Add task description to peakList
@@ -155,6 +178,80 @@ public class ComplexSearchTask extends AbstractTask {
 
     }
 
+    /**
+     * Find the pairs of rows forming the possible complexes between given
+     * indexes. The pairs of each complex are returned in the order of the
+     * peak list, the first row of a pair not being after the second one.
+     * 
+     * @param rows rows in the order of the peak list
+     * @param index m/z index of the rows
+     */
+    private List<ComplexMatch> findComplexes(PeakListRow rows[],
+	    IdentificationRowIndex index, int start, int end) {
+
+	final int numOfRows = index.getNumberOfRows();
+	final double addedMass = ionType.getAddedMass();
+	List<ComplexMatch> matches = new ArrayList<ComplexMatch>();
+
+	for (int i = start; i < end; i++) {
+
+	    // Task canceled?
+	    if (isCanceled())
+		return matches;
+
+	    PeakListRow complexRow = index.getRow(i);
+	    Range<Double> rtRange = rtTolerance.getToleranceRange(complexRow
+		    .getAverageRT());
+	    Range<Double> mzRange = mzTolerance.getToleranceRange(complexRow
+		    .getAverageMZ() - addedMass);
+
+	    // Pairs found, as peak list positions of both rows
+	    List<Long> pairs = new ArrayList<Long>();
+
+	    for (int j = 0; j < numOfRows; j++) {
+
+		// To avoid finding a complex of the peak itself and another
+		// very small m/z peak
+		if ((j == i) || (!rtRange.contains(index.getRT(j))))
+		    continue;
+
+		// The mass condition gives the m/z range of the second row
+		double mzOffset = 2 * addedMass - index.getMZ(j);
+		Range<Double> pairMZRange = Range.closed(
+			mzRange.lowerEndpoint() + mzOffset - PAIR_MZ_MARGIN,
+			mzRange.upperEndpoint() + mzOffset + PAIR_MZ_MARGIN);
+		int pairStart = index.getStartIndex(pairMZRange);
+		int pairEnd = index.getEndIndex(pairMZRange);
+
+		for (int k = pairStart; k < pairEnd; k++) {
+
+		    if ((k == i)
+			    || (index.getPosition(k) < index.getPosition(j)))
+			continue;
+
+		    if (checkComplex(complexRow, index.getRow(j),
+			    index.getRow(k)))
+			pairs.add((long) index.getPosition(j) * numOfRows
+				+ index.getPosition(k));
+		}
+
+	    }
+
+	    Collections.sort(pairs);
+	    for (long pair : pairs) {
+		matches.add(new ComplexMatch(complexRow,
+			rows[(int) (pair / numOfRows)],
+			rows[(int) (pair % numOfRows)]));
+	    }
+
+	    finishedRows.incrementAndGet();
+
+	}
+
+	return matches;
+
+    }
+
     /**
      * Check if candidate peak may be a possible complex of given two peaks
      * 
@@ -206,4 +303,20 @@ public class ComplexSearchTask extends AbstractTask {
 		.notifyObjectChanged(complexRow, false);
     }
 
+    /**
+     * Possible complex and its pair of rows
+     */
+    private static final class ComplexMatch {
+
+	private final PeakListRow complexRow, row1, row2;
+
+	private ComplexMatch(PeakListRow complexRow, PeakListRow row1,
+		PeakListRow row2) {
+	    this.complexRow = complexRow;
+	    this.row1 = row1;
+	    this.row2 = row2;
+	}
+
+    }
+
 }
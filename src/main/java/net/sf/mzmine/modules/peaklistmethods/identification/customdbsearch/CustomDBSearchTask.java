@@ -21,9 +21,17 @@ package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
 
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
@@ -36,18 +44,29 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 
 import com.Ostermiller.util.CSVParser;
 import com.google.common.collect.Range;
 
 class CustomDBSearchTask extends AbstractTask {
 
+    // Number of m/z partitions per available thread, to balance the search
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private static final Comparator<DatabaseEntry> mzComparator = new Comparator<DatabaseEntry>() {
+	@Override
+	public int compare(DatabaseEntry e1, DatabaseEntry e2) {
+	    return Double.compare(e1.mz, e2.mz);
+	}
+    };
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private PeakList peakList;
 
-    private String[][] databaseValues;
-    private int finishedLines = 0;
+    private int totalEntries = 0;
+    private final AtomicInteger finishedEntries = new AtomicInteger();
 
     private File dataBaseFile;
     private String fieldSeparator;
@@ -57,6 +76,16 @@ class CustomDBSearchTask extends AbstractTask {
     private RTTolerance rtTolerance;
     private ParameterSet parameters;
 
+    // Rows of the peak list sorted by the lower end of their m/z tolerance
+    // range, with their tolerance ranges and positions in the peak list
+    private PeakListRow sortedRows[];
+    private Range<Double> mzRanges[], rtRanges[];
+    private int rowPositions[];
+    private double mzLowerEnds[];
+
+    // Highest upper end of the m/z tolerance ranges of sortedRows[0..i]
+    private double maxMZUpperEnds[];
+
     CustomDBSearchTask(PeakList peakList, ParameterSet parameters) {
 
 	this.peakList = peakList;
@@ -83,9 +112,9 @@ class CustomDBSearchTask extends AbstractTask {
      * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
      */
     public double getFinishedPercentage() {
-	if (databaseValues == null)
+	if (totalEntries == 0)
 	    return 0;
-	return ((double) finishedLines) / databaseValues.length;
+	return ((double) finishedEntries.get()) / totalEntries;
     }
 
     /**
@@ -103,26 +132,9 @@ class CustomDBSearchTask extends AbstractTask {
 
 	setStatus(TaskStatus.PROCESSING);
 
+	List<DatabaseEntry> entries;
 	try {
-	    // read database contents in memory
-	    FileReader dbFileReader = new FileReader(dataBaseFile);
-	    databaseValues = CSVParser.parse(dbFileReader,
-		    fieldSeparator.charAt(0));
-	    if (ignoreFirstLine)
-		finishedLines++;
-	    for (; finishedLines < databaseValues.length; finishedLines++) {
-	        if (isCanceled()) {
-	            dbFileReader.close();
-	            return;
-	        }
-		try {
-		    processOneLine(databaseValues[finishedLines]);
-		} catch (Exception e) {
-		    // ingore incorrect lines
-		}
-	    }
-	    dbFileReader.close();
-
+	    entries = readDatabase();
 	} catch (Exception e) {
 	    logger.log(Level.WARNING, "Could not read file " + dataBaseFile, e);
 	    setStatus(TaskStatus.ERROR);
@@ -130,6 +142,103 @@ class CustomDBSearchTask extends AbstractTask {
 	    return;
 	}
 
+	if (isCanceled())
+	    return;
+
+	totalEntries = entries.size();
+	indexRows();
+
+	// Entries without m/z match all rows by m/z, the other entries are
+	// searched in m/z order, in parallel partitions
+	List<DatabaseEntry> mzEntries = new ArrayList<DatabaseEntry>();
+	final List<DatabaseEntry> otherEntries = new ArrayList<DatabaseEntry>();
+	for (DatabaseEntry entry : entries) {
+	    if (entry.mz == 0d)
+		otherEntries.add(entry);
+	    else
+		mzEntries.add(entry);
+	}
+	final DatabaseEntry sortedEntries[] = mzEntries
+		.toArray(new DatabaseEntry[0]);
+	Arrays.sort(sortedEntries, mzComparator);
+
+	List<Callable<long[]>> searchTasks = new ArrayList<Callable<long[]>>();
+	searchTasks.add(new Callable<long[]>() {
+	    @Override
+	    public long[] call() {
+		return searchAllRows(otherEntries);
+	    }
+	});
+	final int numOfPartitions = PARTITIONS_PER_THREAD * getParallelism();
+	final int partitionSize = Math.max(1,
+		(sortedEntries.length + numOfPartitions - 1) / numOfPartitions);
+	for (int start = 0; start < sortedEntries.length;
+		start += partitionSize) {
+	    final int partitionStart = start;
+	    final int partitionEnd = Math.min(start + partitionSize,
+		    sortedEntries.length);
+	    searchTasks.add(new Callable<long[]>() {
+		@Override
+		public long[] call() {
+		    return searchSortedRows(sortedEntries, partitionStart,
+			    partitionEnd);
+		}
+	    });
+	}
+
+	List<long[]> results;
+	try {
+	    results = runSubTasks(searchTasks);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
+	}
+
+	if (isCanceled())
+	    return;
+
+	// Matches are encoded as entry index * number of rows + row position,
+	// so sorting them restores the order of the database lines and, for
+	// each line, the order of the peak list
+	int numOfMatches = 0;
+	for (long partitionMatches[] : results)
+	    numOfMatches += partitionMatches.length;
+	long matches[] = new long[numOfMatches];
+	numOfMatches = 0;
+	for (long partitionMatches[] : results) {
+	    System.arraycopy(partitionMatches, 0, matches, numOfMatches,
+		    partitionMatches.length);
+	    numOfMatches += partitionMatches.length;
+	}
+	Arrays.sort(matches);
+
+	PeakListRow rows[] = new PeakListRow[sortedRows.length];
+	for (int i = 0; i < sortedRows.length; i++)
+	    rows[rowPositions[i]] = sortedRows[i];
+
+	// Deliver the notifications of all new identities at once
+	MZmineProject project = MZmineCore.getProjectManager()
+		.getCurrentProject();
+	project.beginBulkUpdate();
+	try {
+	    for (long match : matches) {
+		DatabaseEntry entry = entries.get((int) (match / rows.length));
+		PeakListRow peakRow = rows[(int) (match % rows.length)];
+
+		logger.finest("Found compound " + entry.identity.getName()
+			+ " (m/z " + entry.mz + ", RT " + entry.rt + ")");
+
+		// add new identity to the row
+		peakRow.addPeakIdentity(entry.identity, false);
+
+		// Notify the GUI about the change in the project
+		project.notifyObjectChanged(peakRow, false);
+	    }
+	} finally {
+	    project.endBulkUpdate();
+	}
+
 	// Add task description to peakList
 	peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
 		"Peak identification using database " + dataBaseFile,
@@ -144,7 +253,40 @@ class CustomDBSearchTask extends AbstractTask {
 
     }
 
-    private void processOneLine(String values[]) {
+    /**
+     * Reads the database line by line, keeping only the parsed entries in
+     * memory. Incorrect lines are ignored.
+     */
+    private List<DatabaseEntry> readDatabase() throws Exception {
+
+	List<DatabaseEntry> entries = new ArrayList<DatabaseEntry>();
+	FileReader dbFileReader = new FileReader(dataBaseFile);
+	try {
+	    CSVParser parser = new CSVParser(dbFileReader,
+		    fieldSeparator.charAt(0));
+	    if (ignoreFirstLine)
+		parser.getLine();
+	    String values[];
+	    while ((values = parser.getLine()) != null) {
+		if (isCanceled())
+		    break;
+		try {
+		    DatabaseEntry entry = parseLine(values, entries.size());
+		    // An entry whose m/z is not a number matches no row
+		    if (!Double.isNaN(entry.mz))
+			entries.add(entry);
+		} catch (Exception e) {
+		    // ingore incorrect lines
+		}
+	    }
+	} finally {
+	    dbFileReader.close();
+	}
+	return entries;
+
+    }
+
+    private DatabaseEntry parseLine(String values[], int index) {
 
 	int numOfColumns = Math.min(fieldOrder.length, values.length);
 
@@ -167,30 +309,179 @@ class CustomDBSearchTask extends AbstractTask {
 	SimplePeakIdentity newIdentity = new SimplePeakIdentity(lineName,
 		lineFormula, dataBaseFile.getName(), lineID, null);
 
-	for (PeakListRow peakRow : peakList.getRows()) {
+	return new DatabaseEntry(index, lineMZ, lineRT, newIdentity);
 
-	    Range<Double> mzRange = mzTolerance.getToleranceRange(peakRow
+    }
+
+    /**
+     * Calculates the tolerance ranges of all rows once and sorts the rows by
+     * the lower end of their m/z range
+     */
+    @SuppressWarnings("unchecked")
+    private void indexRows() {
+
+	final PeakListRow rows[] = peakList.getRows();
+	final Range<Double> rowMZRanges[] = new Range[rows.length];
+	Integer order[] = new Integer[rows.length];
+	for (int i = 0; i < rows.length; i++) {
+	    rowMZRanges[i] = mzTolerance.getToleranceRange(rows[i]
 		    .getAverageMZ());
-	    Range<Double> rtRange = rtTolerance.getToleranceRange(peakRow
+	    order[i] = i;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(rowMZRanges[i1].lowerEndpoint(),
+			rowMZRanges[i2].lowerEndpoint());
+	    }
+	});
+
+	sortedRows = new PeakListRow[rows.length];
+	mzRanges = new Range[rows.length];
+	rtRanges = new Range[rows.length];
+	rowPositions = new int[rows.length];
+	mzLowerEnds = new double[rows.length];
+	maxMZUpperEnds = new double[rows.length];
+	double maxUpperEnd = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < rows.length; i++) {
+	    int position = order[i];
+	    sortedRows[i] = rows[position];
+	    mzRanges[i] = rowMZRanges[position];
+	    rtRanges[i] = rtTolerance.getToleranceRange(rows[position]
 		    .getAverageRT());
+	    rowPositions[i] = position;
+	    mzLowerEnds[i] = mzRanges[i].lowerEndpoint();
+	    maxUpperEnd = Math.max(maxUpperEnd, mzRanges[i].upperEndpoint());
+	    maxMZUpperEnds[i] = maxUpperEnd;
+	}
 
-	    boolean mzMatches = (lineMZ == 0d) || mzRange.contains(lineMZ);
-	    boolean rtMatches = (lineRT == 0d) || rtRange.contains(lineRT);
+    }
 
-	    if (mzMatches && rtMatches) {
+    /**
+     * Matches entries sorted by m/z against the sorted rows, moving a window
+     * of candidate rows along with the entries. The window starts at the
+     * first row whose m/z range, or the range of any row before it, reaches
+     * the m/z of the entry, and ends after the last row whose m/z range
+     * starts at or below it.
+     */
+    private long[] searchSortedRows(DatabaseEntry sortedEntries[], int start,
+	    int end) {
+
+	MatchList matches = new MatchList();
+	if (start >= end)
+	    return matches.toArray();
+
+	int windowStart = findFirstAbove(maxMZUpperEnds,
+		sortedEntries[start].mz, false);
+	int windowEnd = findFirstAbove(mzLowerEnds, sortedEntries[start].mz,
+		true);
+
+	for (int i = start; i < end; i++) {
+
+	    if (isCanceled())
+		break;
+
+	    DatabaseEntry entry = sortedEntries[i];
+	    while ((windowStart < sortedRows.length)
+		    && (maxMZUpperEnds[windowStart] < entry.mz))
+		windowStart++;
+	    while ((windowEnd < sortedRows.length)
+		    && (mzLowerEnds[windowEnd] <= entry.mz))
+		windowEnd++;
+
+	    for (int j = windowStart; j < windowEnd; j++) {
+		boolean mzMatches = mzRanges[j].contains(entry.mz);
+		boolean rtMatches = (entry.rt == 0d)
+			|| rtRanges[j].contains(entry.rt);
+		if (mzMatches && rtMatches)
+		    matches.add(entry.index, rowPositions[j]);
+	    }
 
-		logger.finest("Found compound " + lineName + " (m/z " + lineMZ
-			+ ", RT " + lineRT + ")");
+	    finishedEntries.incrementAndGet();
+	}
 
-		// add new identity to the row
-		peakRow.addPeakIdentity(newIdentity, false);
+	return matches.toArray();
 
-		// Notify the GUI about the change in the project
-		MZmineCore.getProjectManager().getCurrentProject()
-			.notifyObjectChanged(peakRow, false);
+    }
+
+    /**
+     * Matches entries without m/z against all rows
+     */
+    private long[] searchAllRows(List<DatabaseEntry> entries) {
+
+	MatchList matches = new MatchList();
+	for (DatabaseEntry entry : entries) {
 
+	    if (isCanceled())
+		break;
+
+	    for (int j = 0; j < sortedRows.length; j++) {
+		if ((entry.rt == 0d) || rtRanges[j].contains(entry.rt))
+		    matches.add(entry.index, rowPositions[j]);
 	    }
+
+	    finishedEntries.incrementAndGet();
+	}
+	return matches.toArray();
+
+    }
+
+    /**
+     * Binary search for the first index whose value is above given value, or
+     * equal to it if inclusive is false
+     */
+    private static int findFirstAbove(double values[], double value,
+	    boolean inclusive) {
+	int low = 0, high = values.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if ((values[middle] < value)
+		    || (inclusive && (values[middle] == value)))
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Parsed database line
+     */
+    private static final class DatabaseEntry {
+
+	private final int index;
+	private final double mz, rt;
+	private final SimplePeakIdentity identity;
+
+	private DatabaseEntry(int index, double mz, double rt,
+		SimplePeakIdentity identity) {
+	    this.index = index;
+	    this.mz = mz;
+	    this.rt = rt;
+	    this.identity = identity;
+	}
+
+    }
+
+    /**
+     * Growing array of encoded matches
+     */
+    private final class MatchList {
+
+	private long matches[] = new long[16];
+	private int size = 0;
+
+	private void add(int entryIndex, int rowPosition) {
+	    if (size == matches.length)
+		matches = Arrays.copyOf(matches, size * 2);
+	    matches[size++] = (long) entryIndex * sortedRows.length
+		    + rowPosition;
+	}
+
+	private long[] toArray() {
+	    return Arrays.copyOf(matches, size);
 	}
 
     }
+
 }
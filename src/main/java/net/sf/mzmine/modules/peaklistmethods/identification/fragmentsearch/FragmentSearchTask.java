@@ -19,10 +19,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.fragmentsearch;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -32,11 +38,13 @@ import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.identification.IdentificationRowIndex;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakListRowSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
@@ -47,7 +55,11 @@ public class FragmentSearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    // Number of chunks per available thread, to balance the search
+    private static final int SEARCH_CHUNKS_PER_THREAD = 4;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
+    private int totalRows;
     private PeakList peakList;
 
     private RTTolerance rtTolerance;
@@ -82,7 +94,7 @@ public class FragmentSearchTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedRows) / totalRows;
+	return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -101,36 +113,59 @@ public class FragmentSearchTask extends AbstractTask {
 
 	logger.info("Starting fragments search in " + peakList);
 
-	PeakListRow rows[] = peakList.getRows();
+	final PeakListRow rows[] = peakList.getRows();
 	totalRows = rows.length;
 
 	// Start with the highest peaks
 	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
 		SortingDirection.Descending));
 
-	// Compare each two rows against each other
-	for (int i = 0; i < totalRows; i++) {
-
-	    for (int j = i + 1; j < rows.length; j++) {
-
-		// Task canceled?
-		if (isCanceled())
-		    return;
-
-		// Treat the higher m/z peak as main peak and check if the
-		// smaller one may be a fragment
-		if (rows[i].getAverageMZ() > rows[j].getAverageMZ()) {
-		    if (checkFragment(rows[i], rows[j]))
-			addFragmentInfo(rows[i], rows[j]);
-		} else {
-		    if (checkFragment(rows[j], rows[i]))
-			addFragmentInfo(rows[j], rows[i]);
+	// Index the rows by m/z, so only the rows below the m/z of a main row
+	// are tested as its fragments
+	final IdentificationRowIndex index = new IdentificationRowIndex(rows);
+
+	// Search the fragments of chunks of main rows in parallel
+	final int chunkSize = Math.max(1, (totalRows
+		+ SEARCH_CHUNKS_PER_THREAD * getParallelism() - 1)
+		/ (SEARCH_CHUNKS_PER_THREAD * getParallelism()));
+	List<Callable<List<FragmentMatch>>> searchTasks = new ArrayList<Callable<List<FragmentMatch>>>();
+	for (int start = 0; start < totalRows; start += chunkSize) {
+	    final int chunkStart = start;
+	    final int chunkEnd = Math.min(start + chunkSize, totalRows);
+	    searchTasks.add(new Callable<List<FragmentMatch>>() {
+		@Override
+		public List<FragmentMatch> call() {
+		    return findFragments(rows, index, chunkStart, chunkEnd);
 		}
+	    });
+	}
 
-	    }
-
-	    finishedRows++;
+	List<List<FragmentMatch>> results;
+	try {
+	    results = runSubTasks(searchTasks);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
+	}
 
+	// Task canceled?
+	if (isCanceled())
+	    return;
+
+	// Add the identities in the order of the main rows, so each fragment
+	// row gets them in the same order as when comparing each two rows.
+	// Deliver the notifications of all new identities at once.
+	MZmineProject project = MZmineCore.getProjectManager()
+		.getCurrentProject();
+	project.beginBulkUpdate();
+	try {
+	    for (List<FragmentMatch> chunkMatches : results) {
+		for (FragmentMatch match : chunkMatches)
+		    addFragmentInfo(match.mainRow, match.fragmentRow);
+	    }
+	} finally {
+	    project.endBulkUpdate();
 	}
 
 	// Add task description to peakList
@@ -149,14 +184,97 @@ public class FragmentSearchTask extends AbstractTask {
 
     }
 
+    /**
+     * Find the fragments of the main rows between given indexes. A pair of
+     * rows is tested once, treating the higher m/z row as the main row; when
+     * both have the same m/z, the lower row is the main row.
+     * 
+     * @param rows rows sorted by height
+     * @param index m/z index of the rows
+     */
+    private List<FragmentMatch> findFragments(PeakListRow rows[],
+	    IdentificationRowIndex index, int start, int end) {
+
+	List<FragmentMatch> matches = new ArrayList<FragmentMatch>();
+
+	for (int i = start; i < end; i++) {
+
+	    // Task canceled?
+	    if (isCanceled())
+		return matches;
+
+	    PeakListRow mainRow = rows[i];
+	    double ms2MZValues[] = getMS2MZValues(mainRow);
+	    if (ms2MZValues != null) {
+
+		double mainMZ = mainRow.getAverageMZ();
+
+		// Fragments are not above the m/z of the main row
+		int candidatesEnd = index.getEndIndex(Range.atMost(mainMZ));
+		for (int k = 0; k < candidatesEnd; k++) {
+
+		    int position = index.getPosition(k);
+		    if ((position == i)
+			    || ((index.getMZ(k) == mainMZ) && (position > i)))
+			continue;
+
+		    PeakListRow possibleFragment = index.getRow(k);
+		    if (checkFragment(mainRow, possibleFragment, ms2MZValues))
+			matches.add(new FragmentMatch(mainRow, possibleFragment));
+		}
+
+	    }
+
+	    finishedRows.incrementAndGet();
+
+	}
+
+	return matches;
+
+    }
+
+    /**
+     * Returns the sorted m/z values of the MS/MS data points of given row
+     * which are above the minimum height, or null if the row has no MS/MS
+     * scan
+     */
+    private double[] getMS2MZValues(PeakListRow mainRow) {
+
+	// Get MS/MS scan, if exists
+	int fragmentScanNumber = mainRow.getBestPeak()
+		.getMostIntenseFragmentScanNumber();
+	if (fragmentScanNumber <= 0)
+	    return null;
+
+	RawDataFile dataFile = mainRow.getBestPeak().getDataFile();
+	Scan fragmentScan = dataFile.getScan(fragmentScanNumber);
+	if (fragmentScan == null)
+	    return null;
+
+	DataPoint fragmentDataPoints[] = fragmentScan.getDataPoints();
+	double mzValues[] = new double[fragmentDataPoints.length];
+	int numOfValues = 0;
+	for (DataPoint dp : fragmentDataPoints) {
+	    if (dp.getIntensity() > minMS2peakHeight)
+		mzValues[numOfValues++] = dp.getMZ();
+	}
+	mzValues = Arrays.copyOf(mzValues, numOfValues);
+	Arrays.sort(mzValues);
+	return mzValues;
+
+    }
+
     /**
      * Check if candidate peak may be a possible fragment of a given main peak
      * 
      * @param mainPeak
      * @param possibleFragment
+     * @param ms2MZValues
+     *            m/z values of the MS/MS peaks of the main peak which are
+     *            above the minimum height, sorted
      */
     private boolean checkFragment(PeakListRow mainPeak,
-	    PeakListRow possibleFragment) {
+	    PeakListRow possibleFragment, double ms2MZValues[]) {
 
 	// Check retention time condition
 	boolean rtCheck = rtTolerance.checkWithinTolerance(
@@ -169,31 +287,16 @@ public class FragmentSearchTask extends AbstractTask {
 		* maxFragmentHeight)
 	    return false;
 
-	// Get MS/MS scan, if exists
-	int fragmentScanNumber = mainPeak.getBestPeak()
-		.getMostIntenseFragmentScanNumber();
-	if (fragmentScanNumber <= 0)
-	    return false;
-
-	RawDataFile dataFile = mainPeak.getBestPeak().getDataFile();
-	Scan fragmentScan = dataFile.getScan(fragmentScanNumber);
-	if (fragmentScan == null)
-	    return false;
-
-	// Get MS/MS data points in the tolerance range
+	// If there is a MS/MS peak of required height in the tolerance range,
+	// we have a hit
 	Range<Double> ms2mzRange = ms2mzTolerance
 		.getToleranceRange(possibleFragment.getAverageMZ());
-
-	DataPoint fragmentDataPoints[] = fragmentScan
-		.getDataPointsByMass(ms2mzRange);
-
-	// If there is a MS/MS peak of required height, we have a hit
-	for (DataPoint dp : fragmentDataPoints) {
-	    if (dp.getIntensity() > minMS2peakHeight)
-		return true;
-	}
-
-	return false;
+	int first = Arrays.binarySearch(ms2MZValues,
+		ms2mzRange.lowerEndpoint());
+	if (first < 0)
+	    first = -first - 1;
+	return (first < ms2MZValues.length)
+		&& ms2mzRange.contains(ms2MZValues[first]);
 
     }
 
@@ -213,4 +316,18 @@ public class FragmentSearchTask extends AbstractTask {
 
     }
 
+    /**
+     * Main row and its possible fragment
+     */
+    private static final class FragmentMatch {
+
+	private final PeakListRow mainRow, fragmentRow;
+
+	private FragmentMatch(PeakListRow mainRow, PeakListRow fragmentRow) {
+	    this.mainRow = mainRow;
+	    this.fragmentRow = fragmentRow;
+	}
+
+    }
+
 }
@@ -26,6 +26,7 @@ import java.util.Vector;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
@@ -89,6 +90,11 @@ public class PeptideScan implements Scan {
 	return dataPoints;
     }
 
+    @Override
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer) {
+	buffer.setDataPoints(dataPoints);
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
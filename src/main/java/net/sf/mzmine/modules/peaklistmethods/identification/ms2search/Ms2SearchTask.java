@@ -21,15 +21,16 @@ package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
-import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
-import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
@@ -37,14 +38,9 @@ import net.sf.mzmine.desktop.impl.HeadLessDesktop;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.PeakListRowSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
-
-import com.google.common.collect.Range;
+import net.sf.mzmine.util.ExceptionUtils;
 
 class Ms2SearchResult {
     private double score;
@@ -96,7 +92,11 @@ class Ms2SearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    // Number of chunks per available thread, to balance the comparison
+    private static final int COMPARISON_CHUNKS_PER_THREAD = 4;
+
+    private final AtomicInteger finishedRows = new AtomicInteger();
+    private int totalRows;
     private PeakList peakList1;
     private PeakList peakList2;
 
@@ -142,7 +142,7 @@ class Ms2SearchTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0;
-        return ((double) finishedRows) / totalRows;
+        return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -163,35 +163,79 @@ class Ms2SearchTask extends AbstractTask {
         logger.info("Starting MS2 similarity search between " + peakList1 + "and"
                 + peakList2 + "with mz tolerance: " + mzTolerance);
 
-        Ms2SearchResult searchResult;
-        PeakListRow rows1[] = peakList1.getRows();
-        PeakListRow rows2[] = peakList2.getRows();
-        
-        int rows1Length = rows1.length;
-        int rows2Length = rows2.length;
-        
-        totalRows = rows1Length;
-        
-        for (int i = 0; i < rows1Length; i++) {
-            for (int j = 0; j < rows2Length; j++) {
-                Feature featureA = rows1[i].getBestPeak();
-                Feature featureB = rows2[j].getBestPeak();
-                
-                searchResult = simpleMS2similarity(featureA,
-                        featureB, intensityThreshold, mzTolerance, massListName);
-                
-                //Report the final score to the peaklist identity
-                if (searchResult != null 
-                        && searchResult.getScore() > scoreThreshold 
-                        && searchResult.getNumIonsMatched() >= minimumIonsMatched)
-                    addFragmentClusterIdentity(rows1[i],featureA,featureB,searchResult);
-              
-                if (isCanceled())
-                    return;
+        final PeakListRow rows1[] = peakList1.getRows();
+        final PeakListRow rows2[] = peakList2.getRows();
+
+        totalRows = rows1.length;
+
+        // Read the MS2 spectra of all rows once
+        final Ms2SpectrumStore spectra1, spectra2;
+        try {
+            spectra1 = new Ms2SpectrumStore(rows1, massListName,
+                    intensityThreshold, mzTolerance);
+            spectra2 = (peakList2 == peakList1) ? spectra1
+                    : new Ms2SpectrumStore(rows2, massListName,
+                            intensityThreshold, mzTolerance);
+        } catch (IllegalStateException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.getMessage());
+            return;
+        }
+
+        // Only pairs sharing enough fragments can reach the reported minimum
+        // of matched ions. A pair without matched ions has a zero score, so
+        // it is only reported if the score threshold is negative.
+        final int minSharedFragments;
+        if (minimumIonsMatched > 0)
+            minSharedFragments = minimumIonsMatched;
+        else if (scoreThreshold >= 0)
+            minSharedFragments = 1;
+        else
+            minSharedFragments = 0;
+
+        // Compare chunks of rows of the first peak list in parallel
+        final int chunkSize = Math.max(1, (rows1.length
+                + COMPARISON_CHUNKS_PER_THREAD * getParallelism() - 1)
+                / (COMPARISON_CHUNKS_PER_THREAD * getParallelism()));
+        List<Callable<List<Ms2Match>>> comparisonTasks = new ArrayList<Callable<List<Ms2Match>>>();
+        for (int start = 0; start < rows1.length; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, rows1.length);
+            comparisonTasks.add(new Callable<List<Ms2Match>>() {
+                @Override
+                public List<Ms2Match> call() {
+                    return compareRows(spectra1, spectra2, chunkStart,
+                            chunkEnd, minSharedFragments);
+                }
+            });
+        }
+
+        List<List<Ms2Match>> results;
+        try {
+            results = runSubTasks(comparisonTasks);
+        } catch (ExecutionException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+            return;
+        }
+
+        if (isCanceled())
+            return;
+
+        // Report the final scores to the peaklist identities, in the order of
+        // both peak lists. Deliver the notifications all at once.
+        MZmineProject project = MZmineCore.getProjectManager()
+                .getCurrentProject();
+        project.beginBulkUpdate();
+        try {
+            for (List<Ms2Match> chunkMatches : results) {
+                for (Ms2Match match : chunkMatches)
+                    addFragmentClusterIdentity(rows1[match.row1],
+                            match.featureA, match.featureB,
+                            match.searchResult);
             }
-            
-        //Update progress bar
-        finishedRows++;
+        } finally {
+            project.endBulkUpdate();
         }
 
         // Add task description to peakList
@@ -211,87 +255,93 @@ class Ms2SearchTask extends AbstractTask {
 
     }
     
-    private Ms2SearchResult simpleMS2similarity(Feature featureA, Feature featureB,
-            double intensityThreshold, MZTolerance mzRange, String massList) {
+    /**
+     * Compares the spectra of given rows of the first peak list with the
+     * candidate spectra of the second peak list
+     */
+    private List<Ms2Match> compareRows(Ms2SpectrumStore spectra1,
+            Ms2SpectrumStore spectra2, int start, int end,
+            int minSharedFragments) {
+
+        List<Ms2Match> matches = new ArrayList<Ms2Match>();
+        int hitCounts[] = new int[spectra2.getNumberOfRows()];
+
+        for (int i = start; i < end; i++) {
+
+            if (isCanceled())
+                return matches;
+
+            Ms2SpectrumStore.Spectrum spectrumA = spectra1.getSpectrum(i);
+            if (spectrumA != null) {
+                for (int j : spectra2.findCandidates(spectrumA,
+                        minSharedFragments, hitCounts)) {
+                    Ms2SpectrumStore.Spectrum spectrumB = spectra2
+                            .getSpectrum(j);
+                    Ms2SearchResult searchResult = simpleMS2similarity(
+                            spectrumA, spectrumB);
+
+                    if (searchResult.getScore() > scoreThreshold
+                            && searchResult.getNumIonsMatched() >= minimumIonsMatched)
+                        matches.add(new Ms2Match(i, spectrumA.feature,
+                                spectrumB.feature, searchResult));
+                }
+            }
+
+            // Update progress bar
+            finishedRows.incrementAndGet();
+        }
+
+        return matches;
+    }
+
+    /**
+     * Matches the ions of both spectra, which are sorted by m/z. The window
+     * of candidate ions of spectrum B moves along with the ions of spectrum
+     * A.
+     */
+    private Ms2SearchResult simpleMS2similarity(
+            Ms2SpectrumStore.Spectrum spectrumA,
+            Ms2SpectrumStore.Spectrum spectrumB) {
 
         double runningScoreTotal = 0.0;
-        
+
         List<DataPoint> matchedIons = new ArrayList<DataPoint>();
 
-        // Fetch 1st feature MS2 scan.
-        int ms2ScanNumberA = featureA.getMostIntenseFragmentScanNumber();
-        Scan scanMS2A = featureA.getDataFile().getScan(ms2ScanNumberA);
-        //RawDataFile featureADataFile = featureA.getDataFile();
+        final double mzA[] = spectrumA.mzValues;
+        final double mzB[] = spectrumB.mzValues;
+        double ionsBMaxMZ = mzB[mzB.length - 1];
+        int windowStart = 0;
+        for (int i = 0; i < mzA.length; i++) {
 
-        // Fetch 2nd feature MS2 scan.
-        int ms2ScanNumberB = featureB.getMostIntenseFragmentScanNumber();
-        Scan scanMS2B = featureB.getDataFile().getScan(ms2ScanNumberB);
-        //RawDataFile peak2DataFile = featureB.getDataFile();
-        
-        if (scanMS2A == null || scanMS2B == null)
-        {
-            return null;
-        }
+            double iMZ = mzA[i];
+            double mzRangeAbsolute = spectrumA.halfWidths[i];
 
-        //Fetch centroided data
-        MassList massListA = scanMS2A.getMassList(massListName);
-        MassList massListB = scanMS2B.getMassList(massListName);
-        
-        if (massListA == null)
-        {
-            //Will this work properly? As this function isn't directly the task?
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Scan " + scanMS2A.getDataFile().getName() + " #" + scanMS2A.getScanNumber()
-                    + " does not have a mass list " + massListName);
-            return null;        
-        }
-        
-        if (massListB == null)
-        {
-            //Will this work properly? As this function isn't directly the task?
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Scan " + scanMS2B.getDataFile().getName() + " #" + scanMS2B.getScanNumber()
-                    + " does not have a mass list " + massListName);
-            return null;        
-        }
-     
-        DataPoint[] ionsA = null;
-        DataPoint[] ionsB = null;
-     
-        ionsA = massListA.getDataPoints();
-        ionsB = massListB.getDataPoints();
-        
-        if (ionsA == null || ionsB == null || ionsA.length == 0 || ionsB.length == 0)
-        {
-            //Fall back to profile data?
-             //Profile / raw data.
-            //ionsA = scanMS2A.getDataPointsOverIntensity(intensityThreshold);
-            //ionsB = scanMS2B.getDataPointsOverIntensity(intensityThreshold);
-         return null;   
-        }
-                
-        // Compare every ion peak in MS2 scan A, to every ion peak in MS2 scan B.
-        double ionsBMaxMZ = ionsB[ionsB.length - 1].getMZ();
-        for (int i = 0; i < ionsA.length; i++) {
-            
-            double iMZ = ionsA[i].getMZ();
-            Range<Double> range = mzTolerance.getToleranceRange(iMZ);
-            double mzRangeAbsolute = (range.upperEndpoint() - range.lowerEndpoint()) / 2;
-            
             if (iMZ - mzRangeAbsolute > ionsBMaxMZ)
-                break; //Potential speedup heuristic. If any i is greater than the max of j, no more matches are possible.
-            
-            for (int j = 0; j < ionsB.length; j++) {
-               
-                double jMZ = ionsB[j].getMZ();
-                
+                break; // If any i is greater than the max of j, no more
+                       // matches are possible.
+
+            // Ions of B below the window of this ion cannot match. The
+            // difference iMZ - jMZ decreases with j, so the window starts at
+            // the first ion for which it is below the tolerance.
+            while ((windowStart < mzB.length)
+                    && (iMZ - mzB[windowStart] >= mzRangeAbsolute))
+                windowStart++;
+            while ((windowStart > 0)
+                    && (iMZ - mzB[windowStart - 1] < mzRangeAbsolute))
+                windowStart--;
+
+            for (int j = windowStart; j < mzB.length; j++) {
+
+                double jMZ = mzB[j];
+
                 if (iMZ < jMZ - mzRangeAbsolute)
-                    break; //Potential speedup heuristic. iMZ smaller than jMZ.  Skip the rest of the j's as they can only increase.
-                    
+                    break; // iMZ smaller than jMZ. Skip the rest of the j's
+                           // as they can only increase.
+
                 if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
-                    runningScoreTotal += ionsA[i].getIntensity()
-                            * ionsB[j].getIntensity();
-                    matchedIons.add(ionsA[i]);
+                    runningScoreTotal += spectrumA.intensities[i]
+                            * spectrumB.intensities[j];
+                    matchedIons.add(spectrumA.ions[i]);
                 }
 
             }
@@ -315,5 +365,22 @@ class Ms2SearchTask extends AbstractTask {
         MZmineCore.getProjectManager().getCurrentProject()
                 .notifyObjectChanged(row1, false);
     }
+
+    /**
+     * Similar MS2 spectra found for a row of the first peak list
+     */
+    private static final class Ms2Match {
+
+        private final int row1;
+        private final Feature featureA, featureB;
+        private final Ms2SearchResult searchResult;
+
+        private Ms2Match(int row1, Feature featureA, Feature featureB,
+                Ms2SearchResult searchResult) {
+            this.row1 = row1;
+            this.featureA = featureA;
+            this.featureB = featureB;
+            this.searchResult = searchResult;
+        }
+    }
 }
-    
\ No newline at end of file
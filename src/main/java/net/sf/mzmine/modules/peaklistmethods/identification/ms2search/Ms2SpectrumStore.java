@@ -0,0 +1,267 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import com.google.common.collect.Range;
+
+/**
+ * MS2 spectra of the rows of a peak list, read once from the mass lists of
+ * the fragment scans of their best peaks. The ions of each spectrum are kept
+ * sorted by m/z in primitive arrays, together with the half width of their
+ * m/z tolerance range.
+ * 
+ * All fragment ions of the store are also indexed by m/z, so the spectra
+ * sharing fragments with a given spectrum can be found without comparing it
+ * to every spectrum of the store.
+ */
+class Ms2SpectrumStore {
+
+    // Margin added to the m/z window of a shared fragment, so rounding errors
+    // do not exclude any pair. The ions are matched exactly by the
+    // similarity function.
+    private static final double SHARED_FRAGMENT_MARGIN = 1e-6;
+
+    /**
+     * MS2 spectrum of a row
+     */
+    static final class Spectrum {
+
+        final Feature feature;
+        final DataPoint ions[];
+        final double mzValues[], intensities[], halfWidths[];
+
+        private Spectrum(Feature feature, DataPoint ions[],
+                MZTolerance mzTolerance) {
+            this.feature = feature;
+            this.ions = ions;
+            mzValues = new double[ions.length];
+            intensities = new double[ions.length];
+            halfWidths = new double[ions.length];
+            for (int i = 0; i < ions.length; i++) {
+                mzValues[i] = ions[i].getMZ();
+                intensities[i] = ions[i].getIntensity();
+                Range<Double> range = mzTolerance
+                        .getToleranceRange(mzValues[i]);
+                halfWidths[i] = (range.upperEndpoint() - range
+                        .lowerEndpoint()) / 2;
+            }
+        }
+
+    }
+
+    private final Spectrum spectra[];
+
+    // All fragment ions of the store, sorted by m/z, and their spectra
+    private final double fragmentMZValues[];
+    private final int fragmentSpectra[];
+
+    /**
+     * @param rows
+     *            rows of the peak list
+     * @param massListName
+     *            name of the mass lists of the fragment scans
+     * @param intensityThreshold
+     *            ions below this intensity are not stored
+     * @throws IllegalStateException
+     *             if a fragment scan does not have the mass list
+     */
+    Ms2SpectrumStore(PeakListRow rows[], String massListName,
+            double intensityThreshold, MZTolerance mzTolerance) {
+
+        spectra = new Spectrum[rows.length];
+        int numOfFragments = 0;
+        for (int i = 0; i < rows.length; i++) {
+            spectra[i] = readSpectrum(rows[i].getBestPeak(), massListName,
+                    intensityThreshold, mzTolerance);
+            if (spectra[i] != null)
+                numOfFragments += spectra[i].ions.length;
+        }
+
+        // Index the fragments of all spectra, sorting them by m/z
+        final double mzValues[] = new double[numOfFragments];
+        Integer order[] = new Integer[numOfFragments];
+        int spectrumIndexes[] = new int[numOfFragments];
+        int fragment = 0;
+        for (int i = 0; i < spectra.length; i++) {
+            if (spectra[i] == null)
+                continue;
+            for (double mz : spectra[i].mzValues) {
+                mzValues[fragment] = mz;
+                order[fragment] = fragment;
+                spectrumIndexes[fragment] = i;
+                fragment++;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(mzValues[i1], mzValues[i2]);
+            }
+        });
+        fragmentMZValues = new double[numOfFragments];
+        fragmentSpectra = new int[numOfFragments];
+        for (int i = 0; i < numOfFragments; i++) {
+            fragmentMZValues[i] = mzValues[order[i]];
+            fragmentSpectra[i] = spectrumIndexes[order[i]];
+        }
+
+    }
+
+    /**
+     * Returns the number of rows of the store
+     */
+    int getNumberOfRows() {
+        return spectra.length;
+    }
+
+    /**
+     * Returns the spectrum of given row, or null if the row has no MS2
+     * spectrum
+     */
+    Spectrum getSpectrum(int row) {
+        return spectra[row];
+    }
+
+    /**
+     * Finds the rows whose spectra may match given spectrum in at least given
+     * number of ions. Each ion of the spectrum counts the fragments of the
+     * store within its tolerance, so the count of a row is never lower than
+     * the number of ions matched by the similarity function.
+     * 
+     * @param hitCounts
+     *            working array with one zero element for each row of the
+     *            store, which is zero again when this method returns
+     * @return indexes of the rows in ascending order
+     */
+    int[] findCandidates(Spectrum spectrum, int minSharedFragments,
+            int hitCounts[]) {
+
+        // Without a required match, any spectrum is a candidate
+        if (minSharedFragments <= 0) {
+            int candidates[] = new int[spectra.length];
+            int numOfCandidates = 0;
+            for (int i = 0; i < spectra.length; i++) {
+                if (spectra[i] != null)
+                    candidates[numOfCandidates++] = i;
+            }
+            return Arrays.copyOf(candidates, numOfCandidates);
+        }
+
+        int hitRows[] = new int[16];
+        int numOfHitRows = 0;
+        for (int i = 0; i < spectrum.mzValues.length; i++) {
+            double mz = spectrum.mzValues[i];
+            double halfWidth = spectrum.halfWidths[i] + SHARED_FRAGMENT_MARGIN;
+            int end = findFirstAbove(mz + halfWidth, true);
+            for (int f = findFirstAbove(mz - halfWidth, false); f < end; f++) {
+                int row = fragmentSpectra[f];
+                if (hitCounts[row]++ == 0) {
+                    if (numOfHitRows == hitRows.length)
+                        hitRows = Arrays.copyOf(hitRows, numOfHitRows * 2);
+                    hitRows[numOfHitRows++] = row;
+                }
+            }
+        }
+
+        int candidates[] = new int[numOfHitRows];
+        int numOfCandidates = 0;
+        for (int i = 0; i < numOfHitRows; i++) {
+            int row = hitRows[i];
+            if (hitCounts[row] >= minSharedFragments)
+                candidates[numOfCandidates++] = row;
+            hitCounts[row] = 0;
+        }
+        candidates = Arrays.copyOf(candidates, numOfCandidates);
+        Arrays.sort(candidates);
+        return candidates;
+
+    }
+
+    /**
+     * Binary search for the first fragment whose m/z is above given value, or
+     * equal to it if inclusive is false
+     */
+    private int findFirstAbove(double mz, boolean inclusive) {
+        int low = 0, high = fragmentMZValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if ((fragmentMZValues[middle] < mz)
+                    || (inclusive && (fragmentMZValues[middle] == mz)))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private static Spectrum readSpectrum(Feature feature,
+            String massListName, double intensityThreshold,
+            MZTolerance mzTolerance) {
+
+        // Fetch the MS2 scan
+        int ms2ScanNumber = feature.getMostIntenseFragmentScanNumber();
+        Scan scanMS2 = feature.getDataFile().getScan(ms2ScanNumber);
+        if (scanMS2 == null)
+            return null;
+
+        // Fetch centroided data
+        MassList massList = scanMS2.getMassList(massListName);
+        if (massList == null) {
+            throw new IllegalStateException("Scan "
+                    + scanMS2.getDataFile().getName() + " #"
+                    + scanMS2.getScanNumber() + " does not have a mass list "
+                    + massListName);
+        }
+
+        DataPoint allIons[] = massList.getDataPoints();
+        if (allIons == null)
+            return null;
+        DataPoint ions[] = new DataPoint[allIons.length];
+        int numOfIons = 0;
+        for (DataPoint ion : allIons) {
+            if (ion.getIntensity() >= intensityThreshold)
+                ions[numOfIons++] = ion;
+        }
+        if (numOfIons == 0)
+            return null;
+        ions = Arrays.copyOf(ions, numOfIons);
+
+        // Mass lists are normally sorted by m/z already
+        Arrays.sort(ions, new DataPointSorter(SortingProperty.MZ,
+                SortingDirection.Ascending));
+
+        return new Spectrum(feature, ions, mzTolerance);
+
+    }
+
+}
@@ -19,8 +19,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -42,11 +50,14 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+import com.google.common.collect.Range;
+
 /**
  * 
  */
@@ -64,11 +75,20 @@ class IsotopeGrouperTask extends AbstractTask {
      */
     private static final double isotopeDistance = 1.0033;
 
+    // Margin for rounding errors when searching the m/z index. Candidates
+    // inside the margin are checked with the exact tolerance afterwards.
+    private static final double mzMargin = 0.000001;
+
+    // Number of partitions per thread, so that threads which get small
+    // partitions can help with the remaining ones
+    private static final int PARTITIONS_PER_THREAD = 4;
+
     private final MZmineProject project;
     private PeakList peakList, deisotopedPeakList;
 
     // peaks counter
-    private int processedPeaks, totalPeaks;
+    private final AtomicInteger processedPeaks = new AtomicInteger();
+    private int totalPeaks;
 
     // parameter values
     private String suffix;
@@ -78,6 +98,22 @@ class IsotopeGrouperTask extends AbstractTask {
     private int maximumCharge;
     private ParameterSet parameters;
 
+    // Peaks sorted by descending height, and their m/z and RT values
+    private Feature sortedPeaks[];
+    private double peakMZ[], peakRT[];
+
+    // Indexes of sortedPeaks sorted by m/z, and their m/z values
+    private int mzOrder[];
+    private double orderedMZ[];
+
+    // Peaks already assigned to an isotope pattern, and peaks of the pattern
+    // currently being fitted in their partition
+    private boolean removedPeaks[], fittedPeaks[];
+
+    // Best fitting pattern and its charge for each processed peak, null for
+    // peaks which were assigned to the pattern of a higher peak
+    private int bestFitPatterns[][], bestFitCharges[];
+
     /**
      * @param rawDataFile
      * @param parameters
@@ -119,7 +155,7 @@ class IsotopeGrouperTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalPeaks == 0)
 	    return 0.0f;
-	return (double) processedPeaks / (double) totalPeaks;
+	return (double) processedPeaks.get() / (double) totalPeaks;
     }
 
     /**
@@ -137,69 +173,76 @@ class IsotopeGrouperTask extends AbstractTask {
 	deisotopedPeakList = new SimplePeakList(peakList + " " + suffix,
 		peakList.getRawDataFiles());
 
-	// Collect all selected charge states
-	int charges[] = new int[maximumCharge];
-	for (int i = 0; i < maximumCharge; i++)
-	    charges[i] = i + 1;
-
 	// Sort peaks by descending height
-	Feature[] sortedPeaks = peakList.getPeaks(dataFile);
+	sortedPeaks = peakList.getPeaks(dataFile);
 	Arrays.sort(sortedPeaks, new PeakSorter(SortingProperty.Height,
 		SortingDirection.Descending));
-
-	// Loop through all peaks
 	totalPeaks = sortedPeaks.length;
 
-	for (int ind = 0; ind < totalPeaks; ind++) {
-
-	    if (isCanceled())
-		return;
-
-	    Feature aPeak = sortedPeaks[ind];
-
-	    // Check if peak was already deleted
-	    if (aPeak == null) {
-		processedPeaks++;
-		continue;
+	// Map each peak to its row, to avoid searching the peak list
+	Map<Feature, PeakListRow> peakRows = new IdentityHashMap<Feature, PeakListRow>();
+	for (PeakListRow row : peakList.getRows()) {
+	    for (Feature peak : row.getPeaks()) {
+		if (!peakRows.containsKey(peak))
+		    peakRows.put(peak, row);
 	    }
+	}
 
-	    // Check which charge state fits best around this peak
-	    int bestFitCharge = 0;
-	    int bestFitScore = -1;
-	    Vector<Feature> bestFitPeaks = null;
-	    for (int charge : charges) {
+	buildIndex();
+
+	removedPeaks = new boolean[totalPeaks];
+	fittedPeaks = new boolean[totalPeaks];
+	bestFitPatterns = new int[totalPeaks][];
+	bestFitCharges = new int[totalPeaks];
+
+	// Fit the patterns of each m/z partition in parallel
+	List<Callable<Void>> partitionTasks = new ArrayList<Callable<Void>>();
+	for (final int partition[] : createPartitions()) {
+	    partitionTasks.add(new Callable<Void>() {
+		@Override
+		public Void call() {
+		    processPartition(partition[0], partition[1]);
+		    return null;
+		}
+	    });
+	}
+	try {
+	    runSubTasks(partitionTasks);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
+	}
 
-		Vector<Feature> fittedPeaks = new Vector<Feature>();
-		fittedPeaks.add(aPeak);
-		fitPattern(fittedPeaks, aPeak, charge, sortedPeaks);
+	if (isCanceled())
+	    return;
 
-		int score = fittedPeaks.size();
-		if ((score > bestFitScore)
-			|| ((score == bestFitScore) && (bestFitCharge > charge))) {
-		    bestFitScore = score;
-		    bestFitCharge = charge;
-		    bestFitPeaks = fittedPeaks;
-		}
+	// Create the rows in order of decreasing height of the peaks
+	for (int ind = 0; ind < totalPeaks; ind++) {
 
-	    }
+	    int bestFitPeaks[] = bestFitPatterns[ind];
 
-	    PeakListRow oldRow = peakList.getPeakRow(aPeak);
+	    // Check if peak was assigned to another pattern
+	    if (bestFitPeaks == null)
+		continue;
 
-	    assert bestFitPeaks != null;
+	    Feature aPeak = sortedPeaks[ind];
+	    PeakListRow oldRow = peakRows.get(aPeak);
 
 	    // Verify the number of detected isotopes. If there is only one
 	    // isotope, we skip this left the original peak in the peak list.
-	    if (bestFitPeaks.size() == 1) {
+	    if (bestFitPeaks.length == 1) {
 		deisotopedPeakList.addRow(oldRow);
-		processedPeaks++;
 		continue;
 	    }
 
 	    // Convert the peak pattern to array
-	    Feature originalPeaks[] = bestFitPeaks.toArray(new Feature[0]);
+	    Feature originalPeaks[] = new Feature[bestFitPeaks.length];
+	    for (int i = 0; i < originalPeaks.length; i++)
+		originalPeaks[i] = sortedPeaks[bestFitPeaks[i]];
 
 	    // Create a new SimpleIsotopePattern
-	    DataPoint isotopes[] = new DataPoint[bestFitPeaks.size()];
+	    DataPoint isotopes[] = new DataPoint[originalPeaks.length];
 	    for (int i = 0; i < isotopes.length; i++) {
 		Feature p = originalPeaks[i];
 		isotopes[i] = new SimpleDataPoint(p.getMZ(), p.getHeight());
@@ -220,7 +263,7 @@ class IsotopeGrouperTask extends AbstractTask {
 
 	    Feature newPeak = new SimpleFeature(originalPeaks[0]);
 	    newPeak.setIsotopePattern(newPattern);
-	    newPeak.setCharge(bestFitCharge);
+	    newPeak.setCharge(bestFitCharges[ind]);
 
 	    // Keep old ID
 	    int oldID = oldRow.getID();
@@ -229,15 +272,6 @@ class IsotopeGrouperTask extends AbstractTask {
 	    newRow.addPeak(dataFile, newPeak);
 	    deisotopedPeakList.addRow(newRow);
 
-	    // Remove all peaks already assigned to isotope pattern
-	    for (int i = 0; i < sortedPeaks.length; i++) {
-		if (bestFitPeaks.contains(sortedPeaks[i]))
-		    sortedPeaks[i] = null;
-	    }
-
-	    // Update completion rate
-	    processedPeaks++;
-
 	}
 
 	// Add new peakList to the project
@@ -262,50 +296,198 @@ class IsotopeGrouperTask extends AbstractTask {
 
     }
 
+    /**
+     * Stores the m/z and RT values of the sorted peaks and sorts their indexes
+     * by m/z
+     */
+    private void buildIndex() {
+
+	peakMZ = new double[totalPeaks];
+	peakRT = new double[totalPeaks];
+	Integer order[] = new Integer[totalPeaks];
+	for (int ind = 0; ind < totalPeaks; ind++) {
+	    peakMZ[ind] = sortedPeaks[ind].getMZ();
+	    peakRT[ind] = sortedPeaks[ind].getRT();
+	    order[ind] = ind;
+	}
+
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(peakMZ[i1], peakMZ[i2]);
+	    }
+	});
+
+	mzOrder = new int[totalPeaks];
+	orderedMZ = new double[totalPeaks];
+	for (int pos = 0; pos < totalPeaks; pos++) {
+	    mzOrder[pos] = order[pos];
+	    orderedMZ[pos] = peakMZ[order[pos]];
+	}
+
+    }
+
+    /**
+     * Returns the range of m/z values whose tolerance range contains given m/z
+     * value. The tolerance is checked at the m/z value of the candidate, so it
+     * is evaluated at both ends of the tolerance range of given m/z value,
+     * which covers tolerances that grow with the m/z value (e.g. ppm).
+     */
+    private Range<Double> getSearchRange(double mz) {
+	return mzTolerance.getToleranceRange(mzTolerance.getToleranceRange(mz));
+    }
+
+    /**
+     * Splits the m/z index into partitions, which are separated by gaps wider
+     * than the distance of two neighboring isotopes plus the widest search
+     * range. A pattern can never reach across such gap, so the partitions can
+     * be processed independently with the same result.
+     * 
+     * @return start (inclusive) and end (exclusive) positions in the m/z index
+     */
+    private List<int[]> createPartitions() {
+
+	List<int[]> partitions = new ArrayList<int[]>();
+	if (totalPeaks == 0)
+	    return partitions;
+
+	double maxSearchWidth = 0;
+	for (int ind = 0; ind < totalPeaks; ind++) {
+	    Range<Double> searchRange = getSearchRange(peakMZ[ind]);
+	    maxSearchWidth = Math.max(maxSearchWidth,
+		    searchRange.upperEndpoint() - searchRange.lowerEndpoint());
+	}
+	final double minGap = isotopeDistance + maxSearchWidth + mzMargin;
+
+	// Small partitions are merged with their neighbors
+	final int minPartitionSize = Math.max(1, totalPeaks
+		/ (PARTITIONS_PER_THREAD * getParallelism()));
+
+	int start = 0;
+	for (int pos = 1; pos < totalPeaks; pos++) {
+	    if ((pos - start >= minPartitionSize)
+		    && (orderedMZ[pos] - orderedMZ[pos - 1] > minGap)) {
+		partitions.add(new int[] { start, pos });
+		start = pos;
+	    }
+	}
+	partitions.add(new int[] { start, totalPeaks });
+
+	return partitions;
+
+    }
+
+    /**
+     * Fits the isotope patterns of the peaks in given part of the m/z index,
+     * in order of decreasing height
+     */
+    private void processPartition(int start, int end) {
+
+	int partitionPeaks[] = Arrays.copyOfRange(mzOrder, start, end);
+	Arrays.sort(partitionPeaks);
+
+	for (int ind : partitionPeaks) {
+
+	    if (isCanceled())
+		return;
+
+	    // Check if peak was already deleted
+	    if (removedPeaks[ind]) {
+		processedPeaks.incrementAndGet();
+		continue;
+	    }
+
+	    // Check which charge state fits best around this peak
+	    int bestFitCharge = 0;
+	    int bestFitScore = -1;
+	    int bestFitPeaks[] = null;
+	    for (int charge = 1; charge <= maximumCharge; charge++) {
+
+		int fittedPattern[] = fitPattern(ind, charge, start, end);
+
+		int score = fittedPattern.length;
+		if ((score > bestFitScore)
+			|| ((score == bestFitScore) && (bestFitCharge > charge))) {
+		    bestFitScore = score;
+		    bestFitCharge = charge;
+		    bestFitPeaks = fittedPattern;
+		}
+
+	    }
+
+	    assert bestFitPeaks != null;
+
+	    bestFitPatterns[ind] = bestFitPeaks;
+	    bestFitCharges[ind] = bestFitCharge;
+
+	    // Remove all peaks assigned to isotope pattern. A single peak
+	    // remains available for the patterns of the following peaks.
+	    if (bestFitPeaks.length > 1) {
+		for (int fittedPeak : bestFitPeaks)
+		    removedPeaks[fittedPeak] = true;
+	    }
+
+	    // Update completion rate
+	    processedPeaks.incrementAndGet();
+
+	}
+
+    }
+
     /**
      * Fits isotope pattern around one peak.
      * 
-     * @param p
+     * @param peakIndex
      *            Pattern is fitted around this peak
      * @param charge
      *            Charge state of the fitted pattern
+     * @return indexes of the fitted peaks, starting with peakIndex
      */
-    private void fitPattern(Vector<Feature> fittedPeaks, Feature p, int charge,
-	    Feature[] sortedPeaks) {
+    private int[] fitPattern(int peakIndex, int charge, int start, int end) {
 
-	if (charge == 0) {
-	    return;
-	}
+	List<Integer> pattern = new ArrayList<Integer>();
+	pattern.add(peakIndex);
+	fittedPeaks[peakIndex] = true;
 
 	// Search for peaks before the start peak
 	if (!monotonicShape) {
-	    fitHalfPattern(p, charge, -1, fittedPeaks, sortedPeaks);
+	    fitHalfPattern(peakIndex, charge, -1, pattern, start, end);
 	}
 
 	// Search for peaks after the start peak
-	fitHalfPattern(p, charge, 1, fittedPeaks, sortedPeaks);
+	fitHalfPattern(peakIndex, charge, 1, pattern, start, end);
+
+	int fittedPattern[] = new int[pattern.size()];
+	for (int i = 0; i < fittedPattern.length; i++) {
+	    fittedPattern[i] = pattern.get(i);
+	    fittedPeaks[fittedPattern[i]] = false;
+	}
+	return fittedPattern;
 
     }
 
     /**
      * Helper method for fitPattern. Fits only one half of the pattern.
      * 
-     * @param p
+     * @param peakIndex
      *            Pattern is fitted around this peak
      * @param charge
      *            Charge state of the fitted pattern
      * @param direction
      *            Defines which half to fit: -1=fit to peaks before start M/Z,
      *            +1=fit to peaks after start M/Z
-     * @param fittedPeaks
-     *            All matching peaks will be added to this set
+     * @param pattern
+     *            All matching peaks will be added to this list
      */
-    private void fitHalfPattern(Feature p, int charge, int direction,
-	    Vector<Feature> fittedPeaks, Feature[] sortedPeaks) {
+    private void fitHalfPattern(int peakIndex, int charge, int direction,
+	    List<Integer> pattern, int start, int end) {
+
+	// Use M/Z and RT of the strongest peak of the pattern
+	double mainMZ = peakMZ[peakIndex];
+	double mainRT = peakRT[peakIndex];
+	Range<Double> mainSearchRange = getSearchRange(mainMZ);
 
-	// Use M/Z and RT of the strongest peak of the pattern (peak 'p')
-	double mainMZ = p.getMZ();
-	double mainRT = p.getRT();
+	List<Integer> goodCandidates = new ArrayList<Integer>();
 
 	// Variable n is the number of peak we are currently searching. 1=first
 	// peak before/after start peak, 2=peak before/after previous, 3=...
@@ -317,42 +499,48 @@ class IsotopeGrouperTask extends AbstractTask {
 	    // will end the loop)
 	    followingPeakFound = false;
 
-	    // Loop through all peaks, and collect candidates for the n:th peak
-	    // in the pattern
-	    Vector<Feature> goodCandidates = new Vector<Feature>();
-	    for (int ind = 0; ind < sortedPeaks.length; ind++) {
-
-		Feature candidatePeak = sortedPeaks[ind];
-
-		if (candidatePeak == null)
-		    continue;
-
-		// Get properties of the candidate peak
-		double candidatePeakMZ = candidatePeak.getMZ();
-		double candidatePeakRT = candidatePeak.getRT();
+	    // Collect candidates for the n:th peak in the pattern from the m/z
+	    // window of its expected location. The window may be wider than
+	    // necessary, the candidates are checked with the exact tolerance.
+	    goodCandidates.clear();
+	    final double shift = isotopeDistance * direction * n
+		    / (double) charge;
+	    final double windowStart = mainSearchRange.lowerEndpoint() + shift
+		    - mzMargin;
+	    final double windowEnd = mainSearchRange.upperEndpoint() + shift
+		    + mzMargin;
+	    for (int pos = findFirstMZ(windowStart, start, end); (pos < end)
+		    && (orderedMZ[pos] <= windowEnd); pos++) {
+
+		int candidate = mzOrder[pos];
 
 		// Does this peak fill all requirements of a candidate?
 		// - within tolerances from the expected location (M/Z and RT)
 		// - not already a fitted peak (only necessary to avoid
 		// conflicts when parameters are set too wide)
-		double isotopeMZ = candidatePeakMZ - isotopeDistance
-			* direction * n / (double) charge;
+		if (removedPeaks[candidate] || fittedPeaks[candidate])
+		    continue;
 
-		if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
-			&& rtTolerance.checkWithinTolerance(candidatePeakRT,
-				mainRT)
-			&& (!fittedPeaks.contains(candidatePeak))) {
-		    goodCandidates.add(candidatePeak);
+		double isotopeMZ = peakMZ[candidate] - shift;
 
+		if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
+			&& rtTolerance.checkWithinTolerance(peakRT[candidate],
+				mainRT)) {
+		    goodCandidates.add(candidate);
 		}
 
 	    }
 
 	    // Add all good candidates to the isotope pattern (note: in MZmine
-	    // 2.3 and older, only the highest candidate was added)
+	    // 2.3 and older, only the highest candidate was added), in order
+	    // of decreasing height
 	    if (!goodCandidates.isEmpty()) {
 
-		fittedPeaks.addAll(goodCandidates);
+		Collections.sort(goodCandidates);
+		for (int candidate : goodCandidates) {
+		    pattern.add(candidate);
+		    fittedPeaks[candidate] = true;
+		}
 
 		// n:th peak was found, so let's move on to n+1
 		n++;
@@ -363,4 +551,20 @@ class IsotopeGrouperTask extends AbstractTask {
 
     }
 
+    /**
+     * Returns the first position between start and end in the m/z index with
+     * m/z value greater or equal to given value, or end
+     */
+    private int findFirstMZ(double mz, int start, int end) {
+	int low = start, high = end;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (orderedMZ[middle] < mz)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
 }
@@ -19,7 +19,15 @@
 
 package net.sf.mzmine.modules.peaklistmethods.normalization.rtnormalizer;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -38,19 +46,24 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakUtils;
 
 import com.google.common.collect.Range;
 
 class RTNormalizerTask extends AbstractTask {
 
+    // Number of standard candidates checked by one sub-task
+    private static final int CANDIDATES_PER_SUBTASK = 256;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private final MZmineProject project;
     private PeakList originalPeakLists[], normalizedPeakLists[];
 
     // Processed rows counter
-    private int processedRows, totalRows;
+    private final AtomicInteger processedRows = new AtomicInteger();
+    private int totalRows;
 
     private String suffix;
     private MZTolerance mzTolerance;
@@ -83,7 +96,7 @@ class RTNormalizerTask extends AbstractTask {
     public double getFinishedPercentage() {
         if (totalRows == 0)
             return 0f;
-        return (double) processedRows / (double) totalRows;
+        return (double) processedRows.get() / (double) totalRows;
     }
 
     public String getTaskDescription() {
@@ -110,66 +123,12 @@ class RTNormalizerTask extends AbstractTask {
 
         }
 
-        // goodStandards Vector contains identified standard rows, represented
+        // goodStandards list contains identified standard rows, represented
         // by arrays. Each array has same length as originalPeakLists array.
         // Array items represent particular standard peak in each PeakList
-        Vector<PeakListRow[]> goodStandards = new Vector<PeakListRow[]>();
-
-        // Iterate the first peaklist
-        standardIteration: for (PeakListRow candidate : originalPeakLists[0]
-                .getRows()) {
-
-            // Cancel?
-            if (isCanceled()) {
-                return;
-            }
-
-            processedRows++;
-
-            // Check that all peaks of this row have proper height
-            for (Feature p : candidate.getPeaks()) {
-                if (p.getHeight() < minHeight)
-                    continue standardIteration;
-            }
-
-            PeakListRow goodStandardCandidate[] = new PeakListRow[originalPeakLists.length];
-            goodStandardCandidate[0] = candidate;
-
-            double candidateMZ = candidate.getAverageMZ();
-            double candidateRT = candidate.getAverageRT();
-
-            // Find matching rows in remaining peaklists
-            for (int i = 1; i < originalPeakLists.length; i++) {
-                Range<Double> rtRange = rtTolerance
-                        .getToleranceRange(candidateRT);
-                Range<Double> mzRange = mzTolerance
-                        .getToleranceRange(candidateMZ);
-                PeakListRow matchingRows[] = originalPeakLists[i]
-                        .getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-                // If we have not found exactly 1 matching peak, move to next
-                // standard candidate
-                if (matchingRows.length != 1)
-                    continue standardIteration;
-
-                // Check that all peaks of this row have proper height
-                for (Feature p : matchingRows[0].getPeaks()) {
-                    if (p.getHeight() < minHeight)
-                        continue standardIteration;
-                }
-
-                // Save reference to matching peak in this peak list
-                goodStandardCandidate[i] = matchingRows[0];
-
-            }
-
-            // If we found a match of same peak in all peaklists, mark it as a
-            // good standard
-            goodStandards.add(goodStandardCandidate);
-            logger.finest("Found a good standard for RT normalization: "
-                    + candidate);
-
-        }
+        List<PeakListRow[]> goodStandards = findStandards();
+        if (goodStandards == null)
+            return;
 
         // Check if we have any standards
         if (goodStandards.size() == 0) {
@@ -179,7 +138,7 @@ class RTNormalizerTask extends AbstractTask {
         }
 
         // Calculate average retention times of all standards
-        double averagedRTs[] = new double[goodStandards.size()];
+        final double averagedRTs[] = new double[goodStandards.size()];
         for (int i = 0; i < goodStandards.size(); i++) {
             double rtAverage = 0;
             for (PeakListRow row : goodStandards.get(i))
@@ -188,20 +147,37 @@ class RTNormalizerTask extends AbstractTask {
             averagedRTs[i] = rtAverage;
         }
 
-        // Normalize each peak list
+        // Normalize each peak list, in parallel
+        List<Callable<Void>> normalizeTasks = new ArrayList<Callable<Void>>();
         for (int peakListIndex = 0; peakListIndex < originalPeakLists.length; peakListIndex++) {
 
             // Get standard rows for this peak list only
-            PeakListRow standards[] = new PeakListRow[goodStandards.size()];
+            final PeakListRow standards[] = new PeakListRow[goodStandards
+                    .size()];
             for (int i = 0; i < goodStandards.size(); i++) {
                 standards[i] = goodStandards.get(i)[peakListIndex];
             }
 
-            normalizePeakList(originalPeakLists[peakListIndex],
-                    normalizedPeakLists[peakListIndex], standards, averagedRTs);
+            final int index = peakListIndex;
+            normalizeTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    normalizePeakList(originalPeakLists[index],
+                            normalizedPeakLists[index], standards, averagedRTs);
+                    return null;
+                }
+            });
 
         }
 
+        try {
+            runSubTasks(normalizeTasks);
+        } catch (ExecutionException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+            return;
+        }
+
         // Cancel?
         if (isCanceled()) {
             return;
@@ -235,9 +211,182 @@ class RTNormalizerTask extends AbstractTask {
 
     }
 
+    /**
+     * Finds the standards by iterating through the first peak list. A row is a
+     * standard if exactly one row of each other peak list matches its m/z and
+     * RT, and all peaks of these rows have proper height. The rows of the
+     * other peak lists are searched in a single m/z sorted index, and the
+     * candidates are checked in parallel.
+     * 
+     * @return standards in the order of the first peak list, or null if the
+     *         task was canceled or failed
+     */
+    private List<PeakListRow[]> findStandards() {
+
+        // Index the rows of all peak lists except the first one
+        List<PeakListRow> indexedRowList = new ArrayList<PeakListRow>();
+        List<Integer> indexedListList = new ArrayList<Integer>();
+        for (int i = 1; i < originalPeakLists.length; i++) {
+            for (PeakListRow row : originalPeakLists[i].getRows()) {
+                indexedRowList.add(row);
+                indexedListList.add(i);
+            }
+        }
+        final int numOfIndexedRows = indexedRowList.size();
+        final double rowMZs[] = new double[numOfIndexedRows];
+        Integer order[] = new Integer[numOfIndexedRows];
+        for (int i = 0; i < numOfIndexedRows; i++) {
+            rowMZs[i] = indexedRowList.get(i).getAverageMZ();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(rowMZs[i1], rowMZs[i2]);
+            }
+        });
+        final PeakListRow indexedRows[] = new PeakListRow[numOfIndexedRows];
+        final int indexedLists[] = new int[numOfIndexedRows];
+        final double indexedMZs[] = new double[numOfIndexedRows];
+        final double indexedRTs[] = new double[numOfIndexedRows];
+        for (int i = 0; i < numOfIndexedRows; i++) {
+            indexedRows[i] = indexedRowList.get(order[i]);
+            indexedLists[i] = indexedListList.get(order[i]);
+            indexedMZs[i] = rowMZs[order[i]];
+            indexedRTs[i] = indexedRows[i].getAverageRT();
+        }
+
+        // Check the candidates in chunks
+        final PeakListRow candidates[] = originalPeakLists[0].getRows();
+        final PeakListRow standardCandidates[][] = new PeakListRow[candidates.length][];
+        List<Callable<Void>> searchTasks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < candidates.length; start += CANDIDATES_PER_SUBTASK) {
+            final int first = start;
+            final int last = Math.min(start + CANDIDATES_PER_SUBTASK,
+                    candidates.length);
+            searchTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int matchCounts[] = new int[originalPeakLists.length];
+                    for (int i = first; i < last; i++) {
+                        if (isCanceled())
+                            return null;
+                        standardCandidates[i] = matchStandard(candidates[i],
+                                indexedRows, indexedLists, indexedMZs,
+                                indexedRTs, matchCounts);
+                        processedRows.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            runSubTasks(searchTasks);
+        } catch (ExecutionException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+            return null;
+        }
+
+        // Cancel?
+        if (isCanceled()) {
+            return null;
+        }
+
+        List<PeakListRow[]> goodStandards = new ArrayList<PeakListRow[]>();
+        for (int i = 0; i < candidates.length; i++) {
+            if (standardCandidates[i] != null) {
+                goodStandards.add(standardCandidates[i]);
+                logger.finest("Found a good standard for RT normalization: "
+                        + candidates[i]);
+            }
+        }
+        return goodStandards;
+
+    }
+
+    /**
+     * Returns the rows matching given candidate in all peak lists, or null if
+     * the candidate is not a good standard
+     * 
+     * @param matchCounts
+     *            number of matching rows per peak list, must contain zeros and
+     *            is cleared again before returning
+     */
+    private PeakListRow[] matchStandard(PeakListRow candidate,
+            PeakListRow indexedRows[], int indexedLists[],
+            double indexedMZs[], double indexedRTs[], int matchCounts[]) {
+
+        // Check that all peaks of this row have proper height
+        if (!hasProperHeight(candidate))
+            return null;
+
+        PeakListRow goodStandardCandidate[] = new PeakListRow[originalPeakLists.length];
+        goodStandardCandidate[0] = candidate;
+
+        double candidateMZ = candidate.getAverageMZ();
+        double candidateRT = candidate.getAverageRT();
+        Range<Double> rtRange = rtTolerance.getToleranceRange(candidateRT);
+        Range<Double> mzRange = mzTolerance.getToleranceRange(candidateMZ);
+
+        // Find matching rows in remaining peaklists
+        int low = 0, high = indexedMZs.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (indexedMZs[middle] < mzRange.lowerEndpoint())
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        final int firstMatch = low;
+        int endMatch = low;
+        for (; (endMatch < indexedMZs.length)
+                && (indexedMZs[endMatch] <= mzRange.upperEndpoint()); endMatch++) {
+            if (rtRange.contains(indexedRTs[endMatch])
+                    && mzRange.contains(indexedMZs[endMatch])) {
+                matchCounts[indexedLists[endMatch]]++;
+                goodStandardCandidate[indexedLists[endMatch]] = indexedRows[endMatch];
+            }
+        }
+
+        // We need exactly 1 matching row in each peak list, with proper
+        // height
+        boolean goodStandard = true;
+        for (int i = 1; i < originalPeakLists.length; i++) {
+            if ((matchCounts[i] != 1)
+                    || (!hasProperHeight(goodStandardCandidate[i]))) {
+                goodStandard = false;
+                break;
+            }
+        }
+
+        for (int i = firstMatch; i < endMatch; i++)
+            matchCounts[indexedLists[i]] = 0;
+
+        if (!goodStandard)
+            return null;
+
+        return goodStandardCandidate;
+
+    }
+
+    /**
+     * Check that all peaks of given row have proper height
+     */
+    private boolean hasProperHeight(PeakListRow row) {
+        for (Feature p : row.getPeaks()) {
+            if (p.getHeight() < minHeight)
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Normalize retention time of all rows in given peak list and save
-     * normalized rows into new peak list.
+     * normalized rows into new peak list. The standards are converted into a
+     * piecewise linear correction table, sorted by the retention time of the
+     * standards in this peak list.
      * 
      * @param originalPeakList
      *            Peak list to be normalized
@@ -252,19 +401,68 @@ class RTNormalizerTask extends AbstractTask {
             PeakList normalizedPeakList, PeakListRow standards[],
             double normalizedStdRTs[]) {
 
+        // Standard rows map to the normalized RT of their first occurrence
+        Map<PeakListRow, Double> standardRTs = new IdentityHashMap<PeakListRow, Double>();
+        for (int i = 0; i < standards.length; i++) {
+            if (!standardRTs.containsKey(standards[i]))
+                standardRTs.put(standards[i], normalizedStdRTs[i]);
+        }
+
+        // Correction table, with one entry per distinct retention time. Of
+        // standards with equal retention time, the first one is used.
+        Integer order[] = new Integer[standards.length];
+        final double stdRTs[] = new double[standards.length];
+        for (int i = 0; i < standards.length; i++) {
+            order[i] = i;
+            stdRTs[i] = standards[i].getAverageRT();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                int result = Double.compare(stdRTs[i1], stdRTs[i2]);
+                if (result == 0)
+                    result = Integer.compare(i1, i2);
+                return result;
+            }
+        });
+        double tableRTs[] = new double[standards.length];
+        double tableNormalizedRTs[] = new double[standards.length];
+        int tableSize = 0;
+        for (int i = 0; i < standards.length; i++) {
+            double rt = stdRTs[order[i]];
+            if ((tableSize > 0) && (tableRTs[tableSize - 1] == rt))
+                continue;
+            tableRTs[tableSize] = rt;
+            tableNormalizedRTs[tableSize] = normalizedStdRTs[order[i]];
+            tableSize++;
+        }
+
         PeakListRow originalRows[] = originalPeakList.getRows();
 
+        // Calculate normalized retention times of all rows
+        double normalizedRTs[] = new double[originalRows.length];
+        for (int i = 0; i < originalRows.length; i++) {
+            Double standardRT = standardRTs.get(originalRows[i]);
+            if (standardRT != null)
+                normalizedRTs[i] = standardRT;
+            else
+                normalizedRTs[i] = normalizeRT(originalRows[i].getAverageRT(),
+                        tableRTs, tableNormalizedRTs, tableSize);
+        }
+
         // Iterate peak list rows
-        for (PeakListRow originalRow : originalRows) {
+        for (int i = 0; i < originalRows.length; i++) {
 
             // Cancel?
             if (isCanceled()) {
                 return;
             }
 
+            PeakListRow originalRow = originalRows[i];
+
             // Normalize one row
-            PeakListRow normalizedRow = normalizeRow(originalRow, standards,
-                    normalizedStdRTs);
+            PeakListRow normalizedRow = normalizeRow(originalRow,
+                    normalizedRTs[i]);
 
             // Copy comment and identification
             normalizedRow.setComment(originalRow.getComment());
@@ -276,75 +474,66 @@ class RTNormalizerTask extends AbstractTask {
             // Add the new row to normalized peak list
             normalizedPeakList.addRow(normalizedRow);
 
-            processedRows++;
+            processedRows.incrementAndGet();
 
         }
 
     }
 
     /**
-     * Normalize retention time of given row using selected standards
+     * Interpolates the normalized retention time between the closest
+     * standards before and after given retention time
      * 
-     * @param originalRow
-     *            Peak list row to be normalized
-     * @param standards
-     *            Standard rows in same peak list
-     * @param normalizedStdRTs
-     *            Normalized retention times of standard rows
-     * @return New peak list row with normalized retention time
+     * @param rt
+     *            Retention time of a row which is not a standard
+     * @param tableRTs
+     *            Distinct retention times of the standards, in ascending order
+     * @param tableNormalizedRTs
+     *            Normalized retention times of the standards
      */
-    private PeakListRow normalizeRow(PeakListRow originalRow,
-            PeakListRow standards[], double normalizedStdRTs[]) {
-
-        PeakListRow normalizedRow = new SimplePeakListRow(originalRow.getID());
-
-        // Standard rows preceding and following this row
-        int prevStdIndex = -1, nextStdIndex = -1;
+    private double normalizeRT(double rt, double tableRTs[],
+            double tableNormalizedRTs[], int tableSize) {
+
+        // Find the first standard with retention time >= rt
+        int low = 0, high = tableSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tableRTs[middle] < rt)
+                low = middle + 1;
+            else
+                high = middle;
+        }
 
-        for (int stdIndex = 0; stdIndex < standards.length; stdIndex++) {
+        // Standards preceding and following this retention time. Standards
+        // with equal retention time are ignored.
+        int prevStdIndex = low - 1;
+        int nextStdIndex = low;
+        if ((nextStdIndex < tableSize) && (tableRTs[nextStdIndex] == rt))
+            nextStdIndex++;
 
-            // If this standard peak is actually originalRow
-            if (standards[stdIndex] == originalRow) {
-                prevStdIndex = stdIndex;
-                nextStdIndex = stdIndex;
-                break;
-            }
+        if ((prevStdIndex < 0) || (nextStdIndex >= tableSize))
+            return rt;
 
-            // If this standard peak is before our originalRow
-            if (standards[stdIndex].getAverageRT() < originalRow.getAverageRT()) {
-                if ((prevStdIndex == -1)
-                        || (standards[stdIndex].getAverageRT() > standards[prevStdIndex]
-                                .getAverageRT()))
-                    prevStdIndex = stdIndex;
-            }
+        double weight = (rt - tableRTs[prevStdIndex])
+                / (tableRTs[nextStdIndex] - tableRTs[prevStdIndex]);
+        return tableNormalizedRTs[prevStdIndex]
+                + (weight * (tableNormalizedRTs[nextStdIndex] - tableNormalizedRTs[prevStdIndex]));
 
-            // If this standard peak is after our originalRow
-            if (standards[stdIndex].getAverageRT() > originalRow.getAverageRT()) {
-                if ((nextStdIndex == -1)
-                        || (standards[stdIndex].getAverageRT() < standards[nextStdIndex]
-                                .getAverageRT()))
-                    nextStdIndex = stdIndex;
-            }
+    }
 
-        }
+    /**
+     * Creates a copy of given row with given normalized retention time
+     * 
+     * @param originalRow
+     *            Peak list row to be normalized
+     * @param normalizedRT
+     *            Normalized retention time of this row
+     * @return New peak list row with normalized retention time
+     */
+    private PeakListRow normalizeRow(PeakListRow originalRow,
+            double normalizedRT) {
 
-        // Calculate normalized retention time of this row
-        double normalizedRT = -1;
-
-        if ((prevStdIndex == -1) || (nextStdIndex == -1)) {
-            normalizedRT = originalRow.getAverageRT();
-        } else
-
-        if (prevStdIndex == nextStdIndex) {
-            normalizedRT = normalizedStdRTs[prevStdIndex];
-        } else {
-            double weight = (originalRow.getAverageRT() - standards[prevStdIndex]
-                    .getAverageRT())
-                    / (standards[nextStdIndex].getAverageRT() - standards[prevStdIndex]
-                            .getAverageRT());
-            normalizedRT = normalizedStdRTs[prevStdIndex]
-                    + (weight * (normalizedStdRTs[nextStdIndex] - normalizedStdRTs[prevStdIndex]));
-        }
+        PeakListRow normalizedRow = new SimplePeakListRow(originalRow.getID());
 
         // Set normalized retention time to all peaks in this row
         for (RawDataFile file : originalRow.getRawDataFiles()) {
@@ -45,10 +45,12 @@ import net.sf.mzmine.modules.projectmethods.projectload.version_2_0.RawDataFileO
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_3.PeakListOpenHandler_2_3;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_3.RawDataFileOpenHandler_2_3;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_3.UserParameterOpenHandler_2_3;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_24.PeakListOpenHandler_2_24;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.PeakListOpenHandler_2_5;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.RawDataFileOpenHandler_2_5;
 import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.UserParameterOpenHandler_2_5;
 import net.sf.mzmine.modules.projectmethods.projectsave.ProjectSavingTask;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListBinarySaveHandler;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.ProjectManager;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
@@ -83,6 +85,9 @@ public class ProjectOpeningTask extends AbstractTask {
     private final Hashtable<String, RawDataFile> dataFilesIDMap = new Hashtable<>();
     private final Hashtable<String, File> scanFilesIDMap = new Hashtable<>();
 
+    // Only set for projects which store binary peak lists
+    private PeakListOpenHandler binaryPeakListOpenHandler;
+
     public ProjectOpeningTask(ParameterSet parameters) {
         this.openFile = parameters.getParameter(
                 ProjectLoaderParameters.projectFile).getValue();
@@ -167,6 +172,8 @@ public class ProjectOpeningTask extends AbstractTask {
                     .compile("Raw data file #([\\d]+) (.*)\\.scans$");
             final Pattern peakListPattern = Pattern
                     .compile("Peak list #([\\d]+) (.*)\\.xml$");
+            final Pattern binaryPeakListPattern = Pattern
+                    .compile("Peak list #([\\d]+) (.*)\\.peaks$");
 
             boolean versionInformationLoaded = false;
 
@@ -189,6 +196,12 @@ public class ProjectOpeningTask extends AbstractTask {
                     versionInformationLoaded = true;
                 }
 
+                // Load the binary peak list format version
+                if (entryName
+                        .equals(ProjectSavingTask.PEAK_LIST_FORMAT_FILENAME)) {
+                    loadPeakListFormat(cis);
+                }
+
                 // Load configuration
                 if (entryName.equals(ProjectSavingTask.CONFIG_FILENAME))
                     loadConfiguration(cis);
@@ -221,7 +234,20 @@ public class ProjectOpeningTask extends AbstractTask {
                         .matcher(entryName);
                 if (peakListMatcher.matches()) {
                     final String peakListName = peakListMatcher.group(2);
-                    loadPeakList(cis, peakListName);
+                    loadPeakList(cis, peakListName, peakListOpenHandler);
+                }
+
+                // Load a binary peak list
+                final Matcher binaryPeakListMatcher = binaryPeakListPattern
+                        .matcher(entryName);
+                if (binaryPeakListMatcher.matches()) {
+                    final String peakListName = binaryPeakListMatcher.group(2);
+                    if (binaryPeakListOpenHandler == null) {
+                        throw new IOException("Binary peak list "
+                                + peakListName
+                                + " found in a project without peak list format information");
+                    }
+                    loadPeakList(cis, peakListName, binaryPeakListOpenHandler);
                 }
 
                 // Close the ZIP entry
@@ -281,6 +307,9 @@ public class ProjectOpeningTask extends AbstractTask {
         if (peakListOpenHandler != null)
             peakListOpenHandler.cancel();
 
+        if (binaryPeakListOpenHandler != null)
+            binaryPeakListOpenHandler.cancel();
+
         if (userParameterOpenHandler != null)
             userParameterOpenHandler.cancel();
 
@@ -366,6 +395,35 @@ public class ProjectOpeningTask extends AbstractTask {
 
     }
 
+    /**
+     * Load the version of the binary peak list format from the ZIP file and
+     * checks whether such peak lists can be opened with this MZmine
+     */
+    private void loadPeakListFormat(InputStream is) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        String formatString = reader.readLine();
+
+        int formatVersion;
+        try {
+            formatVersion = Integer.parseInt(String.valueOf(formatString)
+                    .trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid peak list format version "
+                    + formatString);
+        }
+
+        if (formatVersion > PeakListBinarySaveHandler.FORMAT_VERSION) {
+            throw new IOException("This project contains peak lists of format "
+                    + formatVersion + ", which cannot be opened in MZmine "
+                    + MZmineCore.getMZmineVersion());
+        }
+
+        binaryPeakListOpenHandler = new PeakListOpenHandler_2_24(
+                dataFilesIDMap);
+
+    }
+
     /**
      * Load the configuration file from the project zip file
      */
@@ -429,15 +487,16 @@ public class ProjectOpeningTask extends AbstractTask {
 
     }
 
-    private void loadPeakList(InputStream is, String peakListName)
-            throws IOException, ParserConfigurationException, SAXException,
+    private void loadPeakList(InputStream is, String peakListName,
+            PeakListOpenHandler openHandler) throws IOException,
+            ParserConfigurationException, SAXException,
             InstantiationException, IllegalAccessException {
 
         logger.info("Loading peak list " + peakListName);
 
         currentLoadedObjectName = peakListName;
 
-        PeakList newPeakList = peakListOpenHandler.readPeakList(is);
+        PeakList newPeakList = openHandler.readPeakList(is);
 
         newProject.addPeakList(newPeakList);
 
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload.version_2_24;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator.PeakInvestigatorDataPoint;
+import net.sf.mzmine.util.PeakUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * Feature loaded from a binary peak list. The summary values are available
+ * immediately, while the scan numbers and data points are kept in their
+ * encoded form until they are first requested.
+ */
+class LazyFeature implements Feature {
+
+    private final RawDataFile dataFile;
+    private final FeatureStatus peakStatus;
+
+    private double mz, rt, height, area;
+    private Double fwhm, tf, af;
+
+    private final Range<Double> rtRange, mzRange, intensityRange;
+    private final int representativeScan, fragmentScanNumber;
+
+    private IsotopePattern isotopePattern;
+    private int charge;
+
+    // Encoded scan numbers and data points, released after decoding
+    private byte encodedDataPoints[];
+
+    private volatile int scanNumbers[];
+    private DataPoint dataPointsPerScan[];
+
+    LazyFeature(RawDataFile dataFile, double mz, double rt, double height,
+	    double area, FeatureStatus peakStatus, int representativeScan,
+	    int fragmentScanNumber, Range<Double> rtRange,
+	    Range<Double> mzRange, Range<Double> intensityRange,
+	    byte encodedDataPoints[]) {
+	this.dataFile = dataFile;
+	this.mz = mz;
+	this.rt = rt;
+	this.height = height;
+	this.area = area;
+	this.peakStatus = peakStatus;
+	this.representativeScan = representativeScan;
+	this.fragmentScanNumber = fragmentScanNumber;
+	this.rtRange = rtRange;
+	this.mzRange = mzRange;
+	this.intensityRange = intensityRange;
+	this.encodedDataPoints = encodedDataPoints;
+    }
+
+    public @Nonnull FeatureStatus getFeatureStatus() {
+	return peakStatus;
+    }
+
+    public double getMZ() {
+	return mz;
+    }
+
+    public double getRT() {
+	return rt;
+    }
+
+    public double getHeight() {
+	return height;
+    }
+
+    public double getArea() {
+	return area;
+    }
+
+    public @Nonnull RawDataFile getDataFile() {
+	return dataFile;
+    }
+
+    public @Nonnull int[] getScanNumbers() {
+	decodeDataPoints();
+	return scanNumbers;
+    }
+
+    public int getRepresentativeScanNumber() {
+	return representativeScan;
+    }
+
+    public DataPoint getDataPoint(int scanNumber) {
+	decodeDataPoints();
+	int index = Arrays.binarySearch(scanNumbers, scanNumber);
+	if (index < 0)
+	    return null;
+	return dataPointsPerScan[index];
+    }
+
+    public @Nonnull Range<Double> getRawDataPointsRTRange() {
+	return rtRange;
+    }
+
+    public @Nonnull Range<Double> getRawDataPointsMZRange() {
+	return mzRange;
+    }
+
+    public @Nonnull Range<Double> getRawDataPointsIntensityRange() {
+	return intensityRange;
+    }
+
+    public int getMostIntenseFragmentScanNumber() {
+	return fragmentScanNumber;
+    }
+
+    public IsotopePattern getIsotopePattern() {
+	return isotopePattern;
+    }
+
+    public void setIsotopePattern(@Nonnull IsotopePattern isotopePattern) {
+	this.isotopePattern = isotopePattern;
+    }
+
+    public int getCharge() {
+	return charge;
+    }
+
+    public void setCharge(int charge) {
+	this.charge = charge;
+    }
+
+    public Double getFWHM() {
+	return fwhm;
+    }
+
+    public void setFWHM(Double fwhm) {
+	this.fwhm = fwhm;
+    }
+
+    public Double getTailingFactor() {
+	return tf;
+    }
+
+    public void setTailingFactor(Double tf) {
+	this.tf = tf;
+    }
+
+    public Double getAsymmetryFactor() {
+	return af;
+    }
+
+    public void setAsymmetryFactor(Double af) {
+	this.af = af;
+    }
+
+    @Override
+    public String toString() {
+	return PeakUtils.peakToString(this);
+    }
+
+    /**
+     * Decodes the block written by PeakListBinarySaveHandler.writeDataPoints().
+     * The scanNumbers field is written last, so other threads only see the
+     * decoded values after they are complete.
+     */
+    private void decodeDataPoints() {
+	if (scanNumbers != null)
+	    return;
+	synchronized (this) {
+	    if (scanNumbers != null)
+		return;
+
+	    ByteBuffer buffer = ByteBuffer.wrap(encodedDataPoints);
+	    final int numOfScans = readVarInt(buffer);
+	    int decodedScanNumbers[] = new int[numOfScans];
+	    int previousScan = 0;
+	    for (int i = 0; i < numOfScans; i++) {
+		int delta = readVarInt(buffer);
+		previousScan += (delta >>> 1) ^ -(delta & 1);
+		decodedScanNumbers[i] = previousScan;
+	    }
+
+	    float masses[] = new float[numOfScans];
+	    float intensities[] = new float[numOfScans];
+	    buffer.asFloatBuffer().get(masses);
+	    buffer.position(buffer.position() + numOfScans * 4);
+	    buffer.asFloatBuffer().get(intensities);
+	    buffer.position(buffer.position() + numOfScans * 4);
+
+	    float massErrors[] = null, intensityErrors[] = null, minimumErrors[] = null;
+	    if (buffer.get() != 0) {
+		massErrors = new float[numOfScans];
+		intensityErrors = new float[numOfScans];
+		minimumErrors = new float[numOfScans];
+		buffer.asFloatBuffer().get(massErrors);
+		buffer.position(buffer.position() + numOfScans * 4);
+		buffer.asFloatBuffer().get(intensityErrors);
+		buffer.position(buffer.position() + numOfScans * 4);
+		buffer.asFloatBuffer().get(minimumErrors);
+	    }
+
+	    DataPoint decodedDataPoints[] = new DataPoint[numOfScans];
+	    for (int i = 0; i < numOfScans; i++) {
+		if (masses[i] <= 0)
+		    continue;
+		if (massErrors != null) {
+		    decodedDataPoints[i] = new PeakInvestigatorDataPoint(
+			    masses[i], intensities[i], massErrors[i],
+			    intensityErrors[i], minimumErrors[i]);
+		} else {
+		    decodedDataPoints[i] = new SimpleDataPoint(masses[i],
+			    intensities[i]);
+		}
+	    }
+
+	    dataPointsPerScan = decodedDataPoints;
+	    encodedDataPoints = null;
+	    scanNumbers = decodedScanNumbers;
+	}
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+	int value = 0, shift = 0;
+	byte b;
+	do {
+	    b = buffer.get();
+	    value |= (b & 0x7F) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+	return value;
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload.version_2_24;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectload.PeakListOpenHandler;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListBinarySaveHandler;
+
+import com.google.common.collect.Range;
+
+/**
+ * Loads a peak list saved in the binary format of MZmine 2.24 and newer (see
+ * PeakListBinarySaveHandler). The data points of the features are not
+ * decoded here, but only when they are first used.
+ */
+public class PeakListOpenHandler_2_24 implements PeakListOpenHandler {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private Hashtable<String, RawDataFile> dataFilesIDMap;
+
+    private int parsedRows, totalRows;
+
+    private boolean canceled = false;
+
+    public PeakListOpenHandler_2_24(
+	    Hashtable<String, RawDataFile> dataFilesIDMap) {
+	this.dataFilesIDMap = dataFilesIDMap;
+    }
+
+    /**
+     * Load the peak list from the zip file reading the binary peak list file
+     */
+    public PeakList readPeakList(InputStream peakListStream)
+	    throws IOException {
+
+	totalRows = 0;
+	parsedRows = 0;
+
+	DataInputStream in = new DataInputStream(new BufferedInputStream(
+		peakListStream, 1 << 16));
+
+	if (in.readInt() != PeakListBinarySaveHandler.MAGIC_NUMBER)
+	    throw new IOException("Invalid peak list file");
+	int formatVersion = in.readInt();
+	if (formatVersion > PeakListBinarySaveHandler.FORMAT_VERSION) {
+	    throw new IOException("Unsupported peak list format version "
+		    + formatVersion);
+	}
+
+	// Peak list header
+	String peakListName = readString(in);
+	logger.info("Loading peak list: " + peakListName);
+	String dateCreated = readString(in);
+
+	int numOfMethods = in.readInt();
+	String methodNames[] = new String[numOfMethods];
+	String methodParameters[] = new String[numOfMethods];
+	for (int i = 0; i < numOfMethods; i++) {
+	    methodNames[i] = readString(in);
+	    methodParameters[i] = readString(in);
+	}
+
+	int numOfDataFiles = in.readInt();
+	RawDataFile dataFiles[] = new RawDataFile[numOfDataFiles];
+	for (int i = 0; i < numOfDataFiles; i++) {
+	    String rawDataFileID = readString(in);
+	    dataFiles[i] = dataFilesIDMap.get(rawDataFileID);
+	    if (dataFiles[i] == null) {
+		throw new IOException(
+			"Cannot open peak list, because raw data file "
+				+ rawDataFileID + " is missing.");
+	    }
+	}
+
+	int numOfStatuses = in.readInt();
+	FeatureStatus statuses[] = new FeatureStatus[numOfStatuses];
+	for (int i = 0; i < numOfStatuses; i++)
+	    statuses[i] = FeatureStatus.valueOf(readString(in));
+
+	SimplePeakList peakList = new SimplePeakList(peakListName, dataFiles);
+	for (int i = 0; i < numOfMethods; i++) {
+	    peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+		    methodNames[i], methodParameters[i]));
+	}
+	peakList.setDateCreated(dateCreated);
+
+	// Row columns
+	totalRows = in.readInt();
+	SimplePeakListRow rows[] = new SimplePeakListRow[totalRows];
+	for (int i = 0; i < totalRows; i++)
+	    rows[i] = new SimplePeakListRow(in.readInt());
+	for (int i = 0; i < totalRows; i++)
+	    rows[i].setComment(readString(in));
+	int numOfPeaks[] = new int[totalRows];
+	for (int i = 0; i < totalRows; i++)
+	    numOfPeaks[i] = in.readInt();
+	for (int i = 0; i < totalRows; i++) {
+	    checkCanceled();
+	    readIdentities(in, rows[i]);
+	}
+
+	// Feature columns
+	final int numOfFeatures = in.readInt();
+	int fileIndexes[] = readInts(in, numOfFeatures);
+	double masses[] = readDoubles(in, numOfFeatures);
+	double retentionTimes[] = readDoubles(in, numOfFeatures);
+	double heights[] = readDoubles(in, numOfFeatures);
+	double areas[] = readDoubles(in, numOfFeatures);
+	byte statusIndexes[] = new byte[numOfFeatures];
+	in.readFully(statusIndexes);
+	int charges[] = readInts(in, numOfFeatures);
+	int representativeScans[] = readInts(in, numOfFeatures);
+	int fragmentScans[] = readInts(in, numOfFeatures);
+	double rtRanges[] = readDoubles(in, 2 * numOfFeatures);
+	double mzRanges[] = readDoubles(in, 2 * numOfFeatures);
+	double intensityRanges[] = readDoubles(in, 2 * numOfFeatures);
+	SimpleIsotopePattern isotopePatterns[] = new SimpleIsotopePattern[numOfFeatures];
+	for (int i = 0; i < numOfFeatures; i++)
+	    isotopePatterns[i] = readIsotopePattern(in);
+
+	// Data point blocks, one per feature in row order
+	int featureIndex = 0;
+	for (int rowIndex = 0; rowIndex < totalRows; rowIndex++) {
+
+	    checkCanceled();
+
+	    for (int i = 0; i < numOfPeaks[rowIndex]; i++) {
+		byte encodedDataPoints[] = new byte[in.readInt()];
+		in.readFully(encodedDataPoints);
+
+		RawDataFile dataFile = dataFiles[fileIndexes[featureIndex]];
+		LazyFeature peak = new LazyFeature(dataFile,
+			masses[featureIndex], retentionTimes[featureIndex],
+			heights[featureIndex], areas[featureIndex],
+			statuses[statusIndexes[featureIndex]],
+			representativeScans[featureIndex],
+			fragmentScans[featureIndex],
+			getRange(rtRanges, featureIndex),
+			getRange(mzRanges, featureIndex),
+			getRange(intensityRanges, featureIndex),
+			encodedDataPoints);
+		peak.setCharge(charges[featureIndex]);
+		if (isotopePatterns[featureIndex] != null)
+		    peak.setIsotopePattern(isotopePatterns[featureIndex]);
+
+		rows[rowIndex].addPeak(dataFile, peak);
+		featureIndex++;
+	    }
+
+	    peakList.addRow(rows[rowIndex]);
+	    parsedRows++;
+	}
+
+	return peakList;
+
+    }
+
+    /**
+     * @return the progress of these functions loading the peak list from the
+     *         zip file.
+     */
+    public double getProgress() {
+	if (totalRows == 0)
+	    return 0;
+	return (double) parsedRows / totalRows;
+    }
+
+    public void cancel() {
+	canceled = true;
+    }
+
+    private void checkCanceled() throws IOException {
+	if (canceled)
+	    throw new IOException("Loading canceled");
+    }
+
+    private void readIdentities(DataInputStream in, SimplePeakListRow row)
+	    throws IOException {
+	int numOfIdentities = in.readInt();
+	int preferredIndex = in.readInt();
+	for (int i = 0; i < numOfIdentities; i++) {
+	    int numOfProperties = in.readInt();
+	    Hashtable<String, String> identityProperties = new Hashtable<String, String>();
+	    for (int j = 0; j < numOfProperties; j++) {
+		String name = readString(in);
+		String value = readString(in);
+		identityProperties.put(name, value);
+	    }
+	    row.addPeakIdentity(new SimplePeakIdentity(identityProperties),
+		    i == preferredIndex);
+	}
+    }
+
+    private SimpleIsotopePattern readIsotopePattern(DataInputStream in)
+	    throws IOException {
+	if (!in.readBoolean())
+	    return null;
+	IsotopePatternStatus status = IsotopePatternStatus
+		.valueOf(readString(in));
+	String description = readString(in);
+	DataPoint isotopes[] = new DataPoint[in.readInt()];
+	for (int i = 0; i < isotopes.length; i++) {
+	    double mz = in.readDouble();
+	    double intensity = in.readDouble();
+	    isotopes[i] = new SimpleDataPoint(mz, intensity);
+	}
+	if (isotopes.length == 0)
+	    return null;
+	return new SimpleIsotopePattern(isotopes, status, description);
+    }
+
+    private static Range<Double> getRange(double values[], int index) {
+	double lower = values[2 * index], upper = values[2 * index + 1];
+	if (Double.isNaN(lower) || Double.isNaN(upper))
+	    return null;
+	return Range.closed(lower, upper);
+    }
+
+    private static int[] readInts(DataInputStream in, int length)
+	    throws IOException {
+	int values[] = new int[length];
+	for (int i = 0; i < length; i++)
+	    values[i] = in.readInt();
+	return values;
+    }
+
+    private static double[] readDoubles(DataInputStream in, int length)
+	    throws IOException {
+	double values[] = new double[length];
+	for (int i = 0; i < length; i++)
+	    values[i] = in.readDouble();
+	return values;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+	int length = in.readInt();
+	if (length < 0)
+	    return null;
+	byte bytes[] = new byte[length];
+	in.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator.PeakInvestigatorDataPoint;
+
+import com.google.common.collect.Range;
+
+/**
+ * Saves a peak list into the project zip file in a binary, column oriented
+ * format. All values of one kind (for example the m/z values of all features)
+ * are stored together as an array of primitives. The data points of each
+ * feature are stored at the end of the file as separate blocks, with delta
+ * encoded scan numbers and float values, so they can be decoded lazily after
+ * loading. See PeakListOpenHandler_2_24 for the loading part.
+ */
+public class PeakListBinarySaveHandler {
+
+    // "MZPL"
+    public static final int MAGIC_NUMBER = 0x4D5A504C;
+    public static final int FORMAT_VERSION = 1;
+
+    private Hashtable<RawDataFile, String> dataFilesIDMap;
+
+    private int numberOfRows, finishedRows;
+    private boolean canceled = false;
+
+    private OutputStream finalStream;
+
+    public PeakListBinarySaveHandler(OutputStream finalStream,
+	    Hashtable<RawDataFile, String> dataFilesIDMap) {
+	this.finalStream = finalStream;
+	this.dataFilesIDMap = dataFilesIDMap;
+    }
+
+    /**
+     * Writes the peak list into the project zip file. The stream is flushed,
+     * but not closed.
+     */
+    public void savePeakList(PeakList peakList) throws IOException {
+
+	numberOfRows = peakList.getNumberOfRows();
+	finishedRows = 0;
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		finalStream, 1 << 16));
+
+	out.writeInt(MAGIC_NUMBER);
+	out.writeInt(FORMAT_VERSION);
+
+	// Peak list header
+	writeString(out, peakList.getName());
+	String dateText = ((SimplePeakList) peakList).getDateCreated();
+	if (dateText == null)
+	    dateText = PeakListSaveHandler.dateFormat.format(new Date());
+	writeString(out, dateText);
+
+	PeakListAppliedMethod[] processes = peakList.getAppliedMethods();
+	out.writeInt(processes.length);
+	for (PeakListAppliedMethod proc : processes) {
+	    writeString(out, proc.getDescription());
+	    writeString(out, proc.getParameters());
+	}
+
+	RawDataFile[] dataFiles = peakList.getRawDataFiles();
+	Map<RawDataFile, Integer> dataFileIndexes = new Hashtable<RawDataFile, Integer>();
+	out.writeInt(dataFiles.length);
+	for (int i = 0; i < dataFiles.length; i++) {
+	    writeString(out, dataFilesIDMap.get(dataFiles[i]));
+	    dataFileIndexes.put(dataFiles[i], i);
+	}
+
+	FeatureStatus statusValues[] = FeatureStatus.values();
+	out.writeInt(statusValues.length);
+	for (FeatureStatus status : statusValues)
+	    writeString(out, status.name());
+
+	// Row columns
+	PeakListRow rows[] = peakList.getRows();
+	out.writeInt(rows.length);
+	for (PeakListRow row : rows)
+	    out.writeInt(row.getID());
+	for (PeakListRow row : rows)
+	    writeString(out, row.getComment());
+
+	List<Feature> features = new ArrayList<Feature>();
+	int numOfPeaks[] = new int[rows.length];
+	for (int i = 0; i < rows.length; i++) {
+	    Feature rowPeaks[] = rows[i].getPeaks();
+	    numOfPeaks[i] = rowPeaks.length;
+	    out.writeInt(rowPeaks.length);
+	    for (Feature peak : rowPeaks)
+		features.add(peak);
+	}
+
+	for (PeakListRow row : rows) {
+	    if (canceled)
+		return;
+	    writeIdentities(out, row);
+	}
+
+	// Feature columns
+	final int numOfFeatures = features.size();
+	out.writeInt(numOfFeatures);
+	for (Feature peak : features) {
+	    Integer fileIndex = dataFileIndexes.get(peak.getDataFile());
+	    if (fileIndex == null) {
+		throw new IOException("Data file " + peak.getDataFile()
+			+ " of peak " + peak + " is not part of peak list "
+			+ peakList);
+	    }
+	    out.writeInt(fileIndex);
+	}
+	for (Feature peak : features)
+	    out.writeDouble(peak.getMZ());
+	for (Feature peak : features)
+	    out.writeDouble(peak.getRT());
+	for (Feature peak : features)
+	    out.writeDouble(peak.getHeight());
+	for (Feature peak : features)
+	    out.writeDouble(peak.getArea());
+	for (Feature peak : features)
+	    out.writeByte(peak.getFeatureStatus().ordinal());
+	for (Feature peak : features)
+	    out.writeInt(peak.getCharge());
+	for (Feature peak : features)
+	    out.writeInt(peak.getRepresentativeScanNumber());
+	for (Feature peak : features)
+	    out.writeInt(peak.getMostIntenseFragmentScanNumber());
+	for (Feature peak : features)
+	    writeRange(out, peak.getRawDataPointsRTRange());
+	for (Feature peak : features)
+	    writeRange(out, peak.getRawDataPointsMZRange());
+	for (Feature peak : features)
+	    writeRange(out, peak.getRawDataPointsIntensityRange());
+	for (Feature peak : features)
+	    writeIsotopePattern(out, peak.getIsotopePattern());
+
+	if (canceled)
+	    return;
+
+	// Data points of each feature, each block preceded by its length, so
+	// the loader can keep the blocks without decoding them
+	ByteArrayOutputStream block = new ByteArrayOutputStream();
+	DataOutputStream blockStream = new DataOutputStream(block);
+	int featureIndex = 0;
+	for (int rowIndex = 0; rowIndex < rows.length; rowIndex++) {
+	    if (canceled)
+		return;
+	    for (int i = 0; i < numOfPeaks[rowIndex]; i++) {
+		block.reset();
+		writeDataPoints(blockStream, features.get(featureIndex));
+		out.writeInt(block.size());
+		block.writeTo(out);
+		featureIndex++;
+	    }
+	    // The blocks take most of the time, so report progress here
+	    finishedRows++;
+	}
+
+	out.flush();
+    }
+
+    private void writeIdentities(DataOutputStream out, PeakListRow row)
+	    throws IOException {
+	PeakIdentity identities[] = row.getPeakIdentities();
+	PeakIdentity preferredIdentity = row.getPreferredPeakIdentity();
+	int preferredIndex = -1;
+	for (int i = 0; i < identities.length; i++) {
+	    if (identities[i] == preferredIdentity)
+		preferredIndex = i;
+	}
+	out.writeInt(identities.length);
+	out.writeInt(preferredIndex);
+	for (PeakIdentity identity : identities) {
+	    Map<String, String> idProperties = identity.getAllProperties();
+	    out.writeInt(idProperties.size());
+	    for (Entry<String, String> property : idProperties.entrySet()) {
+		writeString(out, property.getKey());
+		writeString(out, property.getValue());
+	    }
+	}
+    }
+
+    private void writeIsotopePattern(DataOutputStream out,
+	    IsotopePattern isotopePattern) throws IOException {
+	if (isotopePattern == null) {
+	    out.writeBoolean(false);
+	    return;
+	}
+	out.writeBoolean(true);
+	writeString(out, isotopePattern.getStatus().name());
+	writeString(out, isotopePattern.getDescription());
+	DataPoint isotopes[] = isotopePattern.getDataPoints();
+	out.writeInt(isotopes.length);
+	for (DataPoint isotope : isotopes) {
+	    out.writeDouble(isotope.getMZ());
+	    out.writeDouble(isotope.getIntensity());
+	}
+    }
+
+    /**
+     * Writes the scan numbers and data points of a feature. Scan numbers are
+     * stored as variable length differences to the previous scan number. Scans
+     * without a data point have m/z and intensity of 0.
+     */
+    private void writeDataPoints(DataOutputStream out, Feature peak)
+	    throws IOException {
+
+	int scanNumbers[] = peak.getScanNumbers();
+	DataPoint dataPoints[] = new DataPoint[scanNumbers.length];
+	boolean hasErrors = false, allErrors = true;
+	for (int i = 0; i < scanNumbers.length; i++) {
+	    dataPoints[i] = peak.getDataPoint(scanNumbers[i]);
+	    if (dataPoints[i] == null)
+		continue;
+	    if (dataPoints[i] instanceof PeakInvestigatorDataPoint)
+		hasErrors = true;
+	    else
+		allErrors = false;
+	}
+	// Same as in the XML format, errors are only kept if all data points
+	// of the feature have them
+	hasErrors &= allErrors;
+
+	writeVarInt(out, scanNumbers.length);
+	int previousScan = 0;
+	for (int scan : scanNumbers) {
+	    writeVarInt(out, zigZag(scan - previousScan));
+	    previousScan = scan;
+	}
+
+	for (DataPoint dp : dataPoints)
+	    out.writeFloat(dp != null ? (float) dp.getMZ() : 0f);
+	for (DataPoint dp : dataPoints)
+	    out.writeFloat(dp != null ? (float) dp.getIntensity() : 0f);
+
+	out.writeBoolean(hasErrors);
+	if (hasErrors) {
+	    for (DataPoint dp : dataPoints)
+		out.writeFloat(dp != null ? (float) ((PeakInvestigatorDataPoint) dp)
+			.getMzError() : 0f);
+	    for (DataPoint dp : dataPoints)
+		out.writeFloat(dp != null ? (float) ((PeakInvestigatorDataPoint) dp)
+			.getIntensityError() : 0f);
+	    for (DataPoint dp : dataPoints)
+		out.writeFloat(dp != null ? (float) ((PeakInvestigatorDataPoint) dp)
+			.getMzMinimumError() : 0f);
+	}
+    }
+
+    /**
+     * Missing ranges are saved as NaN
+     */
+    private static void writeRange(DataOutputStream out, Range<Double> range)
+	    throws IOException {
+	if (range == null) {
+	    out.writeDouble(Double.NaN);
+	    out.writeDouble(Double.NaN);
+	} else {
+	    out.writeDouble(range.lowerEndpoint());
+	    out.writeDouble(range.upperEndpoint());
+	}
+    }
+
+    /**
+     * Strings are saved as the number of UTF-8 bytes followed by the bytes. A
+     * null string is saved as length -1.
+     */
+    private static void writeString(DataOutputStream out, String value)
+	    throws IOException {
+	if (value == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static int zigZag(int value) {
+	return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value)
+	    throws IOException {
+	while ((value & ~0x7F) != 0) {
+	    out.writeByte((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out.writeByte(value);
+    }
+
+    /**
+     * @return the progress of these functions saving the peak list to the zip
+     *         file.
+     */
+    public double getProgress() {
+	if (numberOfRows == 0)
+	    return 0;
+	return (double) finishedRows / numberOfRows;
+    }
+
+    public void cancel() {
+	canceled = true;
+    }
+
+}
@@ -52,13 +52,20 @@ public class ProjectSavingTask extends AbstractTask {
     public static final String CONFIG_FILENAME = "configuration.xml";
     public static final String PARAMETERS_FILENAME = "User parameters.xml";
 
+    /**
+     * Contains the version of the binary peak list format (see
+     * PeakListBinarySaveHandler). Projects without this entry store their
+     * peak lists as XML.
+     */
+    public static final String PEAK_LIST_FORMAT_FILENAME = "PEAK_LIST_FORMAT";
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private File saveFile;
     private MZmineProjectImpl savedProject;
 
     private RawDataFileSaveHandler rawDataFileSaveHandler;
-    private PeakListSaveHandler peakListSaveHandler;
+    private PeakListBinarySaveHandler peakListSaveHandler;
     private UserParameterSaveHandler userParameterSaveHandler;
 
     private final int totalSaveItems;
@@ -260,6 +267,12 @@ public class ProjectSavingTask extends AbstractTask {
 
         zipStream.write(MZmineVersion.getBytes());
 
+        // The peak list format is versioned separately, because development
+        // builds may report any version
+        zipStream.putNextEntry(new ZipEntry(PEAK_LIST_FORMAT_FILENAME));
+        zipStream.write(String.valueOf(
+                PeakListBinarySaveHandler.FORMAT_VERSION).getBytes());
+
     }
 
     /**
@@ -321,12 +334,8 @@ public class ProjectSavingTask extends AbstractTask {
 
     /**
      * Save the peak lists
-     * 
-     * @throws SAXException
-     * @throws TransformerConfigurationException
      */
-    private void savePeakLists(ZipOutputStream zipStream) throws IOException,
-            TransformerConfigurationException, SAXException {
+    private void savePeakLists(ZipOutputStream zipStream) throws IOException {
 
         PeakList peakLists[] = savedProject.getPeakLists();
 
@@ -340,9 +349,9 @@ public class ProjectSavingTask extends AbstractTask {
             String peakListSavedName = "Peak list #" + (i + 1) + " "
                     + peakLists[i].getName();
 
-            zipStream.putNextEntry(new ZipEntry(peakListSavedName + ".xml"));
+            zipStream.putNextEntry(new ZipEntry(peakListSavedName + ".peaks"));
 
-            peakListSaveHandler = new PeakListSaveHandler(zipStream,
+            peakListSaveHandler = new PeakListBinarySaveHandler(zipStream,
                     dataFilesIDMap);
 
             currentSavedObjectName = peakLists[i].getName();
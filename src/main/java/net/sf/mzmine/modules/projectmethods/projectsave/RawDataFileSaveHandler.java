@@ -21,9 +21,9 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -40,6 +40,7 @@ import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.RemoteJob;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.project.impl.ScanDataStorage;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
 
@@ -54,7 +55,7 @@ class RawDataFileSaveHandler {
     private int numOfScans, completedScans;
     private ZipOutputStream zipOutputStream;
     private boolean canceled = false;
-    private TreeMap<Integer, Long> dataPointsOffsets;
+    private NavigableMap<Integer, Long> dataPointsOffsets;
     private Map<Integer, Long> consolidatedDataPointsOffsets;
     private Map<Integer, Integer> dataPointsLengths;
     private double progress = 0;
@@ -99,19 +100,18 @@ class RawDataFileSaveHandler {
 	// in the data points file, we don't want to copy those.
 	long newOffset = 0;
 	byte buffer[] = new byte[1 << 20];
-	RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
+	ScanDataStorage dataPointsStorage = rawDataFile.getDataPointsStorage();
 	for (Integer storageID : dataPointsOffsets.keySet()) {
 
 	    if (canceled)
 		return;
 
 	    final long offset = dataPointsOffsets.get(storageID);
-	    dataPointsFile.seek(offset);
 
 	    final int bytes;
 	    Integer key = dataPointsOffsets.higherKey(storageID);
 	    if (key == null) {
-	    	bytes = (int) (dataPointsFile.length() - offset);
+	    	bytes = (int) (dataPointsStorage.length() - offset);
 	    } else {
 	    	bytes = (int) (dataPointsOffsets.get(key) - offset);
 	    }
@@ -119,10 +119,10 @@ class RawDataFileSaveHandler {
 	    if (buffer.length < bytes) {
 		buffer = new byte[bytes * 2];
 	    }
-	    dataPointsFile.read(buffer, 0, bytes);
+	    dataPointsStorage.read(offset, bytes).get(buffer, 0, bytes);
 	    zipOutputStream.write(buffer, 0, bytes);
 	    newOffset += bytes;
-	    progress = 0.9 * ((double) offset / dataPointsFile.length());
+	    progress = 0.9 * ((double) offset / dataPointsStorage.length());
 	}
 
 	if (canceled)
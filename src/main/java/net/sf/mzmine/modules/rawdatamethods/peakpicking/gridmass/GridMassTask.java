@@ -22,7 +22,11 @@ package net.sf.mzmine.modules.rawdatamethods.peakpicking.gridmass;
 import java.text.Format;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -40,10 +44,16 @@ import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.ExceptionUtils;
 
 public class GridMassTask extends AbstractTask {
 
-    private HashMap<Integer, DataPoint[]> dpCache = null;
+    // Number of consecutive scans smoothed by one sub-task. Only the data
+    // points of the tiles being processed are kept in memory, besides the
+    // intensities above the minimum height. The probes of each tile are also
+    // moved and grouped into spots by one sub-task.
+    static final int SCANS_PER_TILE = 64;
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
     private final MZmineProject project;
@@ -51,7 +61,8 @@ public class GridMassTask extends AbstractTask {
 
     // scan counter
     private int totalScans;
-    private float procedure = 0;
+    private volatile float procedure = 0;
+    private final AtomicInteger processedItems = new AtomicInteger();
     private int newPeakID = 0;
     private ScanSelection scanSelection;
     private Scan[] scans;
@@ -61,19 +72,19 @@ public class GridMassTask extends AbstractTask {
 
     // User parameters
     private String suffix;
-    private double mzTol;
-    private double intensitySimilarity;
-    private double minimumTimeSpan, maximumTimeSpan;
+    double mzTol;
+    double intensitySimilarity;
+    double minimumTimeSpan, maximumTimeSpan;
     private double smoothTimeSpan, smoothTimeMZ, smoothMZ;
     private double additionTimeMaxPeaksPerScan;
-    private double minimumHeight;
-    private double rtPerScan;
-    private int tolScans;
-    private int maxTolScans;
+    double minimumHeight;
+    double rtPerScan;
+    int tolScans;
+    int maxTolScans;
     private int debug = 0;
 
-    private double minMasa = 0;
-    private double maxMasa = 0;
+    double minMasa = 0;
+    double maxMasa = 0;
 
     private SimplePeakList newPeakList;
 
@@ -211,37 +222,65 @@ public class GridMassTask extends AbstractTask {
 	logger.info("Getting data points on " + dataFile);
 
 	roi = new Datum[totalScans][];
-	ArrayList<Datum> roiAL = new ArrayList<Datum>();
 	long passed = 0, nopassed = 0;
 	minMasa = Double.MAX_VALUE;
 	maxMasa = 0;
-	int maxJ = 0;
-	boolean[] scanOk = new boolean[totalScans];
+	final boolean[] scanOk = new boolean[totalScans];
 	Arrays.fill(scanOk, true);
 
+	String[] it = ignoreTimes.trim().split(", ?");
+	for (j = 0; j < it.length; j++) {
+	    String itj[] = it[j].split("-");
+	    if (itj.length == 2) {
+		Double a = Double.parseDouble(itj[0].trim());
+		Double b = Double.parseDouble(itj[1].trim());
+		for (i = Math.abs(Arrays.binarySearch(retentiontime, a)); i < totalScans
+			&& retentiontime[i] <= b; i++) {
+		    if (retentiontime[i] >= a) {
+			scanOk[i] = false;
+		    }
+		}
+	    }
+	}
+
+	// Smooth the scans and keep their intensities >= minimumHeight. The
+	// scans are processed in parallel, in tiles of consecutive scans.
 	logger.info("Smoothing data points on " + dataFile + " (Time min="
 		+ smoothTimeSpan + "; Time m/z=" + smoothTimeMZ + ")");
-	IndexedDataPoint[][] data = smoothDataPoints(dataFile, smoothTimeSpan,
-		smoothTimeMZ, 0, smoothMZ, 0, minimumHeight);
+	final ScanSummary summaries[] = new ScanSummary[totalScans];
+	processedItems.set(0);
+	List<Callable<Void>> tileTasks = new ArrayList<Callable<Void>>();
+	for (int tileStart = 0; tileStart < totalScans; tileStart += SCANS_PER_TILE) {
+	    final int firstScan = tileStart;
+	    final int lastScan = Math.min(tileStart + SCANS_PER_TILE,
+		    totalScans) - 1;
+	    tileTasks.add(new Callable<Void>() {
+		@Override
+		public Void call() {
+		    processScanTile(firstScan, lastScan, scanOk, summaries);
+		    return null;
+		}
+	    });
+	}
+	try {
+	    runSubTasks(tileTasks);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
+	}
+	if (isCanceled())
+	    return;
 
 	logger.info("Determining intensities (mass sum) per scan on "
 		+ dataFile);
 	for (i = 0; i < totalScans; i++) {
-	    if (isCanceled())
-		return;
-	    scan = scans[i];
-	    IndexedDataPoint mzv[] = data[i]; // scan.getDataPoints();
-	    double prev = (mzv.length > 0 ? mzv[0].datapoint.getMZ() : 0);
-	    double massSum = 0;
-	    for (j = 0; j < mzv.length; j++) {
-		if (mzv[j].datapoint.getIntensity() >= minimumHeight)
-		    massSum += mzv[j].datapoint.getMZ() - prev;
-		prev = mzv[j].datapoint.getMZ();
-		if (mzv[j].datapoint.getMZ() < minMasa)
-		    minMasa = mzv[j].datapoint.getMZ();
-		if (mzv[j].datapoint.getMZ() > maxMasa)
-		    maxMasa = mzv[j].datapoint.getMZ();
-	    }
+	    ScanSummary summary = summaries[i];
+	    double massSum = summary.massSum;
+	    if (summary.minMZ < minMasa)
+		minMasa = summary.minMZ;
+	    if (summary.maxMZ > maxMasa)
+		maxMasa = summary.maxMZ;
 	    double dm = 100.0 / (maxMasa - minMasa);
 	    if (i % 30 == 0 && debug > 0) {
 		System.out.println("");
@@ -268,53 +307,16 @@ public class GridMassTask extends AbstractTask {
 		    System.out.print(((int) (massSum * dm))
 			    + (scanOk[i] ? " " : "* "));
 	    }
+	    if (scanOk[i]) {
+		passed += summary.passed;
+		nopassed += summary.notPassed;
+	    }
 	    setProcedure(i, totalScans, 1);
 	}
 
 	if (debug > 0)
 	    System.out.println("");
 
-	String[] it = ignoreTimes.trim().split(", ?");
-	for (j = 0; j < it.length; j++) {
-	    String itj[] = it[j].split("-");
-	    if (itj.length == 2) {
-		Double a = Double.parseDouble(itj[0].trim());
-		Double b = Double.parseDouble(itj[1].trim());
-		for (i = Math.abs(Arrays.binarySearch(retentiontime, a)); i < totalScans
-			&& retentiontime[i] <= b; i++) {
-		    if (retentiontime[i] >= a) {
-			scanOk[i] = false;
-		    }
-		}
-	    }
-	}
-
-	passed = 0;
-	nopassed = 0;
-	for (i = 0; i < totalScans; i++) {
-	    if (i % 100 == 0 && isCanceled())
-		return;
-	    if (scanOk[i]) {
-		scan = scans[i];
-		IndexedDataPoint mzv[] = data[i];
-		DataPoint mzvOriginal[] = scan.getDataPoints();
-		ArrayList<Datum> dal = new ArrayList<Datum>();
-		for (j = 0; j < mzv.length; j++) {
-		    if (mzv[j].datapoint.getIntensity() >= minimumHeight) {
-			dal.add(new Datum(mzv[j].datapoint, i,
-				mzvOriginal[mzv[j].index]));
-			passed++;
-		    } else {
-			nopassed++;
-		    }
-		}
-		if (j > maxJ)
-		    maxJ = j;
-		roi[i] = dal.toArray(new Datum[0]);
-		roiAL.addAll(dal);
-	    }
-	    setProcedure(i, totalScans, 2);
-	}
 	logger.info(passed + " intensities >= " + minimumHeight + " of "
 		+ (passed + nopassed) + " ("
 		+ Math.round(passed * 10000.0 / (double) (passed + nopassed))
@@ -325,85 +327,24 @@ public class GridMassTask extends AbstractTask {
 	// (2) Move each probe to their closest maximum until it cannot find a
 	// new maximum
 	// (3) assign spot id to each "center" using all points within region
-
-	// (1) Generate probes all over
 	double byMZ = Math.max(mzTol * 2, 1e-6);
 	int byScan = Math.max(1, tolScans / 4);
+	final double mzR = byMZ / 2;
+	final int scanR = Math.max(byScan - 1, 2);
 	logger.info("Creating Grid of probes on " + dataFile + " every "
-		+ mzFormat.format(byMZ) + " m/z and " + byScan + " scans");
-	double m;
-	int ndata = (int) Math
-		.round((((double) totalScans / (double) byScan) + 1)
-			* ((maxMasa - minMasa + byMZ) / byMZ));
-	Probe probes[] = new Probe[ndata];
-	int idata = 0;
-	for (i = 0; i < totalScans; i += byScan) {
-	    if (i % 100 == 0 && isCanceled())
-		return;
-	    for (m = minMasa - (i % 2) * byMZ / 2; m <= maxMasa; m += byMZ) {
-		probes[idata++] = new Probe(m, i);
-	    }
-	    setProcedure(i, totalScans, 3);
-	}
-
-	// (2) Move each probe to their closest center
-	double mzR = byMZ / 2;
-	int scanR = Math.max(byScan - 1, 2);
-	logger.info("Finding local maxima for each probe on " + dataFile
-		+ " radius: scans=" + scanR + ", m/z=" + mzR);
-	int okProbes = 0;
-	for (i = 0; i < idata; i++) {
-	    if (i % 100 == 0 && isCanceled())
-		return;
-	    moveProbeToCenter(probes[i], scanR, mzR);
-	    if (probes[i].intensityCenter < minimumHeight) {
-		probes[i] = null;
-	    } else {
-		okProbes++;
-	    }
-	    setProcedure(i, idata, 4);
-	}
-	if (okProbes > 0) {
-	    Probe[] pArr = new Probe[okProbes];
-	    for (okProbes = i = 0; i < idata; i++) {
-		if (probes[i] != null) {
-		    pArr[okProbes++] = probes[i];
-		}
-	    }
-	    probes = pArr;
-	    pArr = null;
-	}
-	// (3) Assign spot id to each "center"
-	logger.info("Sorting probes " + dataFile);
-	Arrays.sort(probes);
-	logger.info("Assigning spot id to local maxima on " + dataFile);
-	SpotByProbes sbp = new SpotByProbes();
-	ArrayList<SpotByProbes> spots = new ArrayList<SpotByProbes>();
-	double mzA = -1;
-	int scanA = -1;
-	for (i = 0; i < probes.length; i++) {
-	    if (probes[i] != null && probes[i].intensityCenter >= minimumHeight) {
-		if (probes[i].mzCenter != mzA || probes[i].scanCenter != scanA) {
-		    if (i % 10 == 0 && isCanceled())
-			return;
-		    if (sbp.size() > 0) {
-			spots.add(sbp);
-			sbp.assignSpotId();
-			// System.out.println(sbp.toString());
-		    }
-		    sbp = new SpotByProbes();
-		    mzA = probes[i].mzCenter;
-		    scanA = probes[i].scanCenter;
-		}
-		sbp.addProbe(probes[i]);
-	    }
-	    setProcedure(i, probes.length, 5);
-	}
-	if (sbp.size() > 0) {
-	    spots.add(sbp);
-	    sbp.assignSpotId();
-	    // System.out.println(sbp.toString());
+		+ mzFormat.format(byMZ) + " m/z and " + byScan
+		+ " scans, finding local maxima for each probe, radius: scans="
+		+ scanR + ", m/z=" + mzR);
+	List<SpotByProbes> spots;
+	try {
+	    spots = findSpots(byMZ, byScan, scanR, mzR);
+	} catch (ExecutionException e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e.getCause()));
+	    return;
 	}
+	if (isCanceled())
+	    return;
 	logger.info("Spots:" + spots.size());
 
 	// Assign specific datums to spots to avoid using datums to several
@@ -421,142 +362,16 @@ public class GridMassTask extends AbstractTask {
 
 	// (4) Join Tolerable Centers
 	logger.info("Joining tolerable maxima on " + dataFile);
-	int criticScans = Math.max(1, tolScans / 2);
-	int joins = 0;
-	for (i = 0; i < spots.size() - 1; i++) {
-	    SpotByProbes s1 = spots.get(i);
-	    if (s1.center != null && s1.size() > 0) {
-		if (i % 100 == 0 && isCanceled())
-		    return;
-		for (j = i; j > 0
-			&& j < spots.size()
-			&& spots.get(j - 1).center != null
-			&& spots.get(j - 1).center.mzCenter + mzTol > s1.center.mzCenter; j--)
-		    ;
-		for (; j < spots.size(); j++) {
-		    SpotByProbes s2 = spots.get(j);
-		    if (i != j && s2.center != null) {
-			if (s2.center.mzCenter - s1.center.mzCenter > mzTol)
-			    break;
-			int l = Math.min(Math.abs(s1.minScan - s2.minScan),
-				Math.abs(s1.minScan - s2.maxScan));
-			int r = Math.min(Math.abs(s1.maxScan - s2.minScan),
-				Math.abs(s1.maxScan - s2.maxScan));
-			int d = Math.min(l, r);
-			boolean overlap = !(s2.maxScan < s1.minScan || s2.minScan > s1.maxScan);
-			if ((d <= criticScans || overlap)
-				&& (intensityRatio(s1.center.intensityCenter,
-					s2.center.intensityCenter) > intensitySimilarity)) {
-			    if (debug > 2)
-				System.out
-					.println("Joining s1 id "
-						+ s1.spotId
-						+ "="
-						+ mzFormat
-							.format(s1.center.mzCenter)
-						+ " mz ["
-						+ mzFormat.format(s1.minMZ)
-						+ " ~ "
-						+ mzFormat.format(s1.maxMZ)
-						+ "] time="
-						+ timeFormat
-							.format(retentiontime[s1.center.scanCenter])
-						+ " int="
-						+ s1.center.intensityCenter
-						+ " with s2 id "
-						+ s2.spotId
-						+ "="
-						+ mzFormat
-							.format(s2.center.mzCenter)
-						+ " mz ["
-						+ mzFormat.format(s2.minMZ)
-						+ " ~ "
-						+ mzFormat.format(s2.maxMZ)
-						+ "] time="
-						+ timeFormat
-							.format(retentiontime[s2.center.scanCenter])
-						+ " int="
-						+ s2.center.intensityCenter);
-			    assignSpotIdToDatumsFromSpotId(s1, s2, scanR, mzR);
-			    s1.addProbesFromSpot(s2, true);
-			    j = i; // restart
-			    joins++;
-			}
-			// }
-		    }
-		}
-	    }
-	    setProcedure(i, spots.size(), 7);
-	}
+	int joins = joinSpots(spots, scanR, mzR);
+	if (isCanceled())
+	    return;
 	logger.info("Joins:" + joins);
 
 	// (5) Remove "Large" spanned masses
 	logger.info("Removing long and comparable 'masses' on " + dataFile);
-	for (i = 0; i < spots.size() - 1; i++) {
-	    SpotByProbes s1 = spots.get(i);
-	    if (s1.center != null && s1.size() > 0) {
-		if (i % 100 == 0 && isCanceled())
-		    return;
-		int totalScans = s1.maxScan - s1.minScan + 1;
-		int lScan = s1.minScan;
-		int rScan = s1.maxScan;
-		ArrayList<Integer> toRemove = new ArrayList<Integer>();
-		toRemove.add(i);
-		for (j = i; j > 0
-			&& j < spots.size()
-			&& spots.get(j - 1).center != null
-			&& spots.get(j - 1).center.mzCenter + mzTol > s1.center.mzCenter; j--)
-		    ;
-		for (; j < spots.size(); j++) {
-		    SpotByProbes s2 = spots.get(j);
-		    if (i != j && s2.center != null) {
-			if (s2.center.mzCenter - s1.center.mzCenter > mzTol)
-			    break;
-			if (intensityRatio(s1.center.intensityCenter,
-				s2.center.intensityCenter) > intensitySimilarity) {
-			    int dl = Math.min(Math.abs(lScan - s2.minScan),
-				    Math.abs(lScan - s2.maxScan));
-			    int dr = Math.min(Math.abs(rScan - s2.minScan),
-				    Math.abs(rScan - s2.maxScan));
-			    int md = Math.min(dl, dr);
-			    if (md <= maxTolScans
-				    || !(s2.maxScan < lScan || s2.minScan > rScan)) {
-				// distancia tolerable o intersectan
-				totalScans += s2.maxScan - s2.minScan + 1;
-				toRemove.add(j);
-				lScan = Math.min(lScan, s2.minScan);
-				rScan = Math.max(rScan, s2.maxScan);
-			    }
-			}
-		    }
-		}
-		if (totalScans * rtPerScan > maximumTimeSpan) {
-		    if (debug > 2)
-			System.out
-				.println("Removing "
-					+ toRemove.size()
-					+ " masses around "
-					+ mzFormat.format(s1.center.mzCenter)
-					+ " m/z ("
-					+ s1.spotId
-					+ "), time "
-					+ timeFormat
-						.format(retentiontime[s1.center.scanCenter])
-					+ ", intensity "
-					+ s1.center.intensityCenter
-					+ ", Total Scans="
-					+ totalScans
-					+ " ("
-					+ Math.round(totalScans * rtPerScan
-						* 1000.0) / 1000.0 + " min).");
-		    for (Integer J : toRemove) {
-			// System.out.println("Removing: "+spots.get(J).spotId);
-			spots.get(J).clear();
-		    }
-		}
-	    }
-	    setProcedure(i, spots.size(), 8);
-	}
+	removeLongSpots(spots);
+	if (isCanceled())
+	    return;
 
 	// Build peaks from assigned datums
 	logger.info("Building peak rows on " + dataFile + " (tolereance scans="
@@ -698,26 +513,332 @@ public class GridMassTask extends AbstractTask {
 	procedure = (process + (float) i / (float) max) / procedureLen;
     }
 
+    /**
+     * Smooths a tile of consecutive scans and stores their intensities >=
+     * minimumHeight in roi. The smoothed data points are released when the
+     * tile is finished, only the summary of each scan is kept.
+     */
+    void processScanTile(int firstScan, int lastScan, boolean scanOk[],
+	    ScanSummary summaries[]) {
+
+	IndexedDataPoint[][] data = smoothDataPoints(dataFile, smoothTimeSpan,
+		smoothTimeMZ, 0, smoothMZ, 0, minimumHeight, firstScan,
+		lastScan);
+	if (data == null)
+	    return;
+
+	int i, j;
+	for (i = firstScan; i <= lastScan; i++) {
+	    IndexedDataPoint mzv[] = data[i - firstScan];
+	    ScanSummary summary = new ScanSummary();
+	    double prev = (mzv.length > 0 ? mzv[0].datapoint.getMZ() : 0);
+	    for (j = 0; j < mzv.length; j++) {
+		if (mzv[j].datapoint.getIntensity() >= minimumHeight)
+		    summary.massSum += mzv[j].datapoint.getMZ() - prev;
+		prev = mzv[j].datapoint.getMZ();
+		if (mzv[j].datapoint.getMZ() < summary.minMZ)
+		    summary.minMZ = mzv[j].datapoint.getMZ();
+		if (mzv[j].datapoint.getMZ() > summary.maxMZ)
+		    summary.maxMZ = mzv[j].datapoint.getMZ();
+	    }
+	    if (scanOk[i]) {
+		DataPoint mzvOriginal[] = scans[i].getDataPoints();
+		ArrayList<Datum> dal = new ArrayList<Datum>();
+		for (j = 0; j < mzv.length; j++) {
+		    if (mzv[j].datapoint.getIntensity() >= minimumHeight) {
+			dal.add(new Datum(mzv[j].datapoint, i,
+				mzvOriginal[mzv[j].index]));
+			summary.passed++;
+		    } else {
+			summary.notPassed++;
+		    }
+		}
+		roi[i] = dal.toArray(new Datum[0]);
+	    }
+	    summaries[i] = summary;
+	    data[i - firstScan] = null;
+	    setProcedure(processedItems.incrementAndGet(), totalScans, 0);
+	}
+    }
+
+    /**
+     * Generates the probes, moves them to their local maxima and groups them
+     * by maximum into spots. Each tile of consecutive scans is processed by
+     * one sub-task. A probe may climb to a maximum in another tile, so the
+     * spots of all tiles are sorted by center and the spots of different
+     * tiles which have the same center are stitched together. The probes of
+     * a stitched spot stay in the order in which they were generated.
+     * 
+     * @return spots sorted by center, with their spot ids assigned, or null
+     *         if the task was canceled
+     */
+    List<SpotByProbes> findSpots(final double byMZ, final int byScan,
+	    final int scanR, final double mzR) throws ExecutionException {
+
+	final int numOfRows = (totalScans + byScan - 1) / byScan;
+	processedItems.set(0);
+	List<Callable<List<SpotByProbes>>> tileTasks = new ArrayList<Callable<List<SpotByProbes>>>();
+	for (int tileStart = 0; tileStart < totalScans; tileStart += SCANS_PER_TILE) {
+	    final int firstScan = tileStart;
+	    final int lastScan = Math.min(tileStart + SCANS_PER_TILE,
+		    totalScans) - 1;
+	    tileTasks.add(new Callable<List<SpotByProbes>>() {
+		@Override
+		public List<SpotByProbes> call() {
+		    return findTileSpots(firstScan, lastScan, byMZ, byScan,
+			    scanR, mzR, numOfRows);
+		}
+	    });
+	}
+	List<List<SpotByProbes>> tileSpots = runSubTasks(tileTasks);
+	if (isCanceled())
+	    return null;
+
+	logger.info("Stitching spots of " + tileSpots.size() + " tiles on "
+		+ dataFile);
+	ArrayList<SpotByProbes> sorted = new ArrayList<SpotByProbes>();
+	for (List<SpotByProbes> s : tileSpots)
+	    sorted.addAll(s);
+	// The sort is stable, so spots with the same center stay in the
+	// order of their tiles
+	Collections.sort(sorted);
+	ArrayList<SpotByProbes> spots = new ArrayList<SpotByProbes>();
+	SpotByProbes sbp = null;
+	for (SpotByProbes s : sorted) {
+	    if (sbp != null && s.center.mzCenter == sbp.center.mzCenter
+		    && s.center.scanCenter == sbp.center.scanCenter) {
+		sbp.addProbesFromSpot(s, false);
+	    } else {
+		sbp = s;
+		spots.add(sbp);
+		sbp.assignSpotId();
+	    }
+	}
+	return spots;
+    }
+
+    /**
+     * Moves the probes of the grid rows in the scans firstScan to lastScan
+     * (inclusive) to their local maxima, and groups the probes which reached
+     * a maximum >= minimumHeight by maximum
+     * 
+     * @return spots sorted by center, or null if the task was canceled
+     */
+    List<SpotByProbes> findTileSpots(int firstScan, int lastScan,
+	    double byMZ, int byScan, int scanR, double mzR, int numOfRows) {
+
+	ArrayList<Probe> probes = new ArrayList<Probe>();
+	double m;
+	for (int i = (firstScan + byScan - 1) / byScan * byScan; i <= lastScan; i += byScan) {
+	    if (isCanceled())
+		return null;
+	    for (m = minMasa - (i % 2) * byMZ / 2; m <= maxMasa; m += byMZ) {
+		Probe p = new Probe(m, i);
+		moveProbeToCenter(p, scanR, mzR);
+		if (p.intensityCenter >= minimumHeight)
+		    probes.add(p);
+	    }
+	    setProcedure(processedItems.incrementAndGet(), numOfRows, 3);
+	}
+
+	// The sort is stable, so the probes of each spot stay in the order in
+	// which they were generated
+	Collections.sort(probes);
+	ArrayList<SpotByProbes> spots = new ArrayList<SpotByProbes>();
+	SpotByProbes sbp = null;
+	for (Probe p : probes) {
+	    if (sbp == null || p.mzCenter != sbp.center.mzCenter
+		    || p.scanCenter != sbp.center.scanCenter) {
+		sbp = new SpotByProbes();
+		spots.add(sbp);
+	    }
+	    sbp.addProbe(p);
+	}
+	return spots;
+    }
+
+    /**
+     * Joins the spots whose centers are within mzTol and whose scans are
+     * close or overlap, if their intensities are similar. The neighbours of
+     * each spot are found using a SpotIndex, in the same order as by checking
+     * every spot within mzTol.
+     * 
+     * @return number of joins
+     */
+    int joinSpots(List<SpotByProbes> spots, int scanR, double mzR) {
+
+	Format mzFormat = MZmineCore.getConfiguration().getMZFormat();
+	Format timeFormat = MZmineCore.getConfiguration().getRTFormat();
+	int criticScans = Math.max(1, tolScans / 2);
+	int joins = 0;
+	SpotIndex index = new SpotIndex(spots);
+	for (int i = 0; i < spots.size() - 1; i++) {
+	    SpotByProbes s1 = spots.get(i);
+	    if (s1.center != null && s1.size() > 0) {
+		if (i % 100 == 0 && isCanceled())
+		    return joins;
+		int j = index.lastOutside(i, s1.center.mzCenter, mzTol) + 1;
+		while (true) {
+		    // Spots whose scans are not within criticScans of s1 can
+		    // not be joined, the search ends at the first spot whose
+		    // center is above the m/z range of s1
+		    int end = index.firstAbove(j, i, s1.center.mzCenter, mzTol);
+		    j = index.firstInScans(j, end, i,
+			    s1.minScan - criticScans, s1.maxScan + criticScans);
+		    if (j < 0)
+			break;
+		    SpotByProbes s2 = spots.get(j);
+		    int l = Math.min(Math.abs(s1.minScan - s2.minScan),
+			    Math.abs(s1.minScan - s2.maxScan));
+		    int r = Math.min(Math.abs(s1.maxScan - s2.minScan),
+			    Math.abs(s1.maxScan - s2.maxScan));
+		    int d = Math.min(l, r);
+		    boolean overlap = !(s2.maxScan < s1.minScan || s2.minScan > s1.maxScan);
+		    if ((d <= criticScans || overlap)
+			    && (intensityRatio(s1.center.intensityCenter,
+				    s2.center.intensityCenter) > intensitySimilarity)) {
+			if (debug > 2)
+			    System.out
+				    .println("Joining s1 id "
+					    + s1.spotId
+					    + "="
+					    + mzFormat
+						    .format(s1.center.mzCenter)
+					    + " mz ["
+					    + mzFormat.format(s1.minMZ)
+					    + " ~ "
+					    + mzFormat.format(s1.maxMZ)
+					    + "] time="
+					    + timeFormat
+						    .format(retentiontime[s1.center.scanCenter])
+					    + " int="
+					    + s1.center.intensityCenter
+					    + " with s2 id "
+					    + s2.spotId
+					    + "="
+					    + mzFormat
+						    .format(s2.center.mzCenter)
+					    + " mz ["
+					    + mzFormat.format(s2.minMZ)
+					    + " ~ "
+					    + mzFormat.format(s2.maxMZ)
+					    + "] time="
+					    + timeFormat
+						    .format(retentiontime[s2.center.scanCenter])
+					    + " int="
+					    + s2.center.intensityCenter);
+			assignSpotIdToDatumsFromSpotId(s1, s2, scanR, mzR);
+			s1.addProbesFromSpot(s2, true);
+			index.update(i);
+			index.update(j);
+			j = i + 1; // restart
+			joins++;
+		    } else {
+			j++;
+		    }
+		}
+	    }
+	    setProcedure(i, spots.size(), 7);
+	}
+	return joins;
+    }
+
+    /**
+     * Removes the spots which have similar intensities and centers within
+     * mzTol, if together they span more than maximumTimeSpan. The neighbours
+     * of each spot are found using a SpotIndex.
+     */
+    void removeLongSpots(List<SpotByProbes> spots) {
+
+	Format mzFormat = MZmineCore.getConfiguration().getMZFormat();
+	Format timeFormat = MZmineCore.getConfiguration().getRTFormat();
+	SpotIndex index = new SpotIndex(spots);
+	for (int i = 0; i < spots.size() - 1; i++) {
+	    SpotByProbes s1 = spots.get(i);
+	    if (s1.center != null && s1.size() > 0) {
+		if (i % 100 == 0 && isCanceled())
+		    return;
+		int totalScans = s1.maxScan - s1.minScan + 1;
+		int lScan = s1.minScan;
+		int rScan = s1.maxScan;
+		ArrayList<Integer> toRemove = new ArrayList<Integer>();
+		toRemove.add(i);
+		int j = index.lastOutside(i, s1.center.mzCenter, mzTol) + 1;
+		int end = index.firstAbove(j, i, s1.center.mzCenter, mzTol);
+		// Spots whose scans are not within maxTolScans of the
+		// comparable spots found so far are skipped
+		for (; (j = index.firstInScans(j, end, i, lScan - maxTolScans,
+			rScan + maxTolScans)) >= 0; j++) {
+		    SpotByProbes s2 = spots.get(j);
+		    if (intensityRatio(s1.center.intensityCenter,
+			    s2.center.intensityCenter) > intensitySimilarity) {
+			int dl = Math.min(Math.abs(lScan - s2.minScan),
+				Math.abs(lScan - s2.maxScan));
+			int dr = Math.min(Math.abs(rScan - s2.minScan),
+				Math.abs(rScan - s2.maxScan));
+			int md = Math.min(dl, dr);
+			if (md <= maxTolScans
+				|| !(s2.maxScan < lScan || s2.minScan > rScan)) {
+			    // distancia tolerable o intersectan
+			    totalScans += s2.maxScan - s2.minScan + 1;
+			    toRemove.add(j);
+			    lScan = Math.min(lScan, s2.minScan);
+			    rScan = Math.max(rScan, s2.maxScan);
+			}
+		    }
+		}
+		if (totalScans * rtPerScan > maximumTimeSpan) {
+		    if (debug > 2)
+			System.out
+				.println("Removing "
+					+ toRemove.size()
+					+ " masses around "
+					+ mzFormat.format(s1.center.mzCenter)
+					+ " m/z ("
+					+ s1.spotId
+					+ "), time "
+					+ timeFormat
+						.format(retentiontime[s1.center.scanCenter])
+					+ ", intensity "
+					+ s1.center.intensityCenter
+					+ ", Total Scans="
+					+ totalScans
+					+ " ("
+					+ Math.round(totalScans * rtPerScan
+						* 1000.0) / 1000.0 + " min).");
+		    for (Integer J : toRemove) {
+			spots.get(J).clear();
+			index.update(J);
+		    }
+		}
+	    }
+	    setProcedure(i, spots.size(), 8);
+	}
+    }
+
+    /**
+     * Smooths the scans firstScan to lastScan (indexes of the selected scans,
+     * inclusive). Neighboring scans outside of this range are read as needed.
+     * 
+     * @return smoothed data points of each scan in the range, or null if the
+     *         task was canceled
+     */
     public IndexedDataPoint[][] smoothDataPoints(RawDataFile dataFile,
 	    double timeSpan, double timeMZSpan, int scanSpan, double mzTol,
-	    int mzPoints, double minimumHeight) {
-	int[] scanNumbers = dataFile.getScanNumbers(1);
-	int totalScans = scanNumbers.length;
+	    int mzPoints, double minimumHeight, int firstScan, int lastScan) {
 	DataPoint mzValues[][] = null; // [relative scan][j value]
 	DataPoint mzValuesJ[] = null;
 	int mzValuesScan[] = null;
 	int mzValuesMZidx[] = null;
 	IndexedDataPoint newMZValues[][] = null;
 	IndexedDataPoint tmpDP[] = new IndexedDataPoint[0];
-	newMZValues = new IndexedDataPoint[totalScans][];
+	newMZValues = new IndexedDataPoint[lastScan - firstScan + 1][];
 	int i, j, si, sj, ii, k, ssi, ssj, m;
 	double timeSmoothingMZtol = Math.max(timeMZSpan, 1e-6);
 
-	int modts = Math.max(1, totalScans / 10);
-
-	for (i = 0; i < totalScans; i++) {
+	for (i = firstScan; i <= lastScan; i++) {
 
-	    if (i % 100 == 0 && isCanceled())
+	    if (isCanceled())
 		return null;
 
 	    // Smoothing in TIME space
@@ -845,14 +966,7 @@ public class GridMassTask extends AbstractTask {
 	    for (k = 0; k < t; k++) {
 		iDP[k] = tmpDP[k];
 	    }
-	    newMZValues[i] = iDP;
-
-	    setProcedure(i, totalScans, 0);
-
-	    if (i % modts == 0) {
-		logger.info("Smoothing/Caching " + dataFile + "..."
-			+ (i / modts) * 10 + "%");
-	    }
+	    newMZValues[i - firstScan] = iDP;
 
 	}
 
@@ -1011,41 +1125,6 @@ public class GridMassTask extends AbstractTask {
 	return h;
     }
 
-    double[] massCenter(int l, int r, double min, double max) {
-	double x = 0;
-	double y = 0;
-	double sum = 0;
-	double maxValue = 0;
-	for (int i = l; i <= r; i++) {
-	    DataPoint mzs[] = getCachedDataPoints(scans[i].getScanNumber());
-	    if (mzs != null) {
-		for (int j = findFirstMass(min, mzs); j < mzs.length; j++) {
-		    double mass = mzs[j].getMZ();
-		    if (mass >= min) {
-			if (mass <= max) {
-			    double intensity = mzs[j].getIntensity();
-			    if (intensity >= minimumHeight) {
-				x += i * intensity;
-				y += mass * intensity;
-				sum += intensity;
-				if (intensity > maxValue) {
-				    maxValue = intensity;
-				}
-			    }
-			} else {
-			    break;
-			}
-		    }
-		}
-	    }
-	}
-	if (sum > 0.0) {
-	    x /= sum;
-	    y /= sum;
-	}
-	return new double[] { x, y, maxValue };
-    }
-
     static int findFirstMass(double mass, DataPoint mzValues[]) {
 	int l = 0;
 	int r = mzValues.length - 1;
@@ -1135,19 +1214,15 @@ public class GridMassTask extends AbstractTask {
 	return s;
     }
 
-    DataPoint[] getCachedDataPoints(int scan) {
-	if (dpCache == null)
-	    dpCache = new HashMap<Integer, DataPoint[]>();
-	DataPoint[] dp = dpCache.get(scan);
-	if (dp != null) {
-	    return dp;
-	}
-	Scan s = dataFile.getScan(scan);
-	if (s == null)
-	    return null;
-	dp = s.getDataPoints();
-	dpCache.put(scan, dp);
-	return dp;
+    /**
+     * Values of a smoothed scan which are used after its smoothed data points
+     * were released
+     */
+    static class ScanSummary {
+	double massSum = 0;
+	double minMZ = Double.MAX_VALUE;
+	double maxMZ = 0;
+	int passed = 0, notPassed = 0;
     }
 
 }
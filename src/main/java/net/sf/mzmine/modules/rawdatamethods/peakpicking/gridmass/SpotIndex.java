@@ -0,0 +1,184 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.gridmass;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the neighbours of a spot in a list of spots sorted by center, without
+ * checking every spot in between. The list is indexed by a binary tree whose
+ * nodes keep the range of center m/z values and the range of scans of the
+ * spots below them. The spots are found in the order of the list, so the
+ * result is the same as when checking the spots one by one. Cleared spots
+ * have no center and no scans. The index must be updated whenever the center
+ * or the scans of a spot change.
+ */
+class SpotIndex {
+
+    private final List<SpotByProbes> spots;
+    private final int leaves;
+    private final double minCenterMZ[], maxCenterMZ[];
+    private final int minScan[], maxScan[];
+
+    SpotIndex(List<SpotByProbes> spots) {
+	this.spots = spots;
+	int n = 1;
+	while (n < spots.size())
+	    n *= 2;
+	leaves = n;
+	minCenterMZ = new double[2 * n];
+	maxCenterMZ = new double[2 * n];
+	minScan = new int[2 * n];
+	maxScan = new int[2 * n];
+	// Leaves without spot behave like cleared spots
+	Arrays.fill(minCenterMZ, Double.NEGATIVE_INFINITY);
+	Arrays.fill(maxCenterMZ, Double.NEGATIVE_INFINITY);
+	Arrays.fill(minScan, Integer.MAX_VALUE);
+	Arrays.fill(maxScan, Integer.MIN_VALUE);
+	for (int i = 0; i < spots.size(); i++)
+	    setLeaf(i);
+	for (int node = n - 1; node > 0; node--)
+	    updateNode(node);
+    }
+
+    /**
+     * Updates the index after the center or the scans of the spot at given
+     * position changed
+     */
+    void update(int index) {
+	setLeaf(index);
+	for (int node = (leaves + index) / 2; node > 0; node /= 2)
+	    updateNode(node);
+    }
+
+    /**
+     * Returns the last position before given position whose spot is cleared,
+     * or whose center m/z + mzTol is not above given m/z. The spots between
+     * that position and given position are the closest spots below given
+     * m/z.
+     * 
+     * @return position, or -1 if there is no such spot
+     */
+    int lastOutside(int before, double mz, double mzTol) {
+	return lastOutside(1, 0, leaves, before, mz, mzTol);
+    }
+
+    /**
+     * Returns the first position from given position on, except given
+     * position to skip, whose spot has a center m/z more than mzTol above
+     * given m/z. Cleared spots are ignored.
+     * 
+     * @return position, or the number of spots if there is no such spot
+     */
+    int firstAbove(int from, int skip, double mz, double mzTol) {
+	int result = firstAbove(1, 0, leaves, from, Math.min(skip, spots.size()),
+		mz, mzTol);
+	if (result < 0)
+	    result = firstAbove(1, 0, leaves, Math.max(from, skip + 1),
+		    spots.size(), mz, mzTol);
+	return result < 0 ? spots.size() : result;
+    }
+
+    /**
+     * Returns the first position in the range from (inclusive) to to
+     * (exclusive), except given position to skip, whose spot has any scans
+     * in the range firstScan to lastScan (inclusive). Cleared spots are
+     * ignored.
+     * 
+     * @return position, or -1 if there is no such spot
+     */
+    int firstInScans(int from, int to, int skip, int firstScan, int lastScan) {
+	int result = firstInScans(1, 0, leaves, from, Math.min(skip, to),
+		firstScan, lastScan);
+	if (result < 0)
+	    result = firstInScans(1, 0, leaves, Math.max(from, skip + 1), to,
+		    firstScan, lastScan);
+	return result;
+    }
+
+    private int lastOutside(int node, int lo, int hi, int before, double mz,
+	    double mzTol) {
+	// The center m/z + mzTol of every spot below this node is above mz
+	if (lo >= before || minCenterMZ[node] + mzTol > mz)
+	    return -1;
+	if (hi - lo == 1)
+	    return lo;
+	int mid = (lo + hi) / 2;
+	int result = lastOutside(2 * node + 1, mid, hi, before, mz, mzTol);
+	if (result < 0)
+	    result = lastOutside(2 * node, lo, mid, before, mz, mzTol);
+	return result;
+    }
+
+    private int firstAbove(int node, int lo, int hi, int from, int to,
+	    double mz, double mzTol) {
+	if (hi <= from || lo >= to || !(maxCenterMZ[node] - mz > mzTol))
+	    return -1;
+	if (hi - lo == 1)
+	    return lo;
+	int mid = (lo + hi) / 2;
+	int result = firstAbove(2 * node, lo, mid, from, to, mz, mzTol);
+	if (result < 0)
+	    result = firstAbove(2 * node + 1, mid, hi, from, to, mz, mzTol);
+	return result;
+    }
+
+    private int firstInScans(int node, int lo, int hi, int from, int to,
+	    int firstScan, int lastScan) {
+	if (hi <= from || lo >= to || maxScan[node] < firstScan
+		|| minScan[node] > lastScan)
+	    return -1;
+	if (hi - lo == 1)
+	    return lo;
+	int mid = (lo + hi) / 2;
+	int result = firstInScans(2 * node, lo, mid, from, to, firstScan,
+		lastScan);
+	if (result < 0)
+	    result = firstInScans(2 * node + 1, mid, hi, from, to, firstScan,
+		    lastScan);
+	return result;
+    }
+
+    private void setLeaf(int index) {
+	int node = leaves + index;
+	SpotByProbes s = spots.get(index);
+	if (s.center != null) {
+	    minCenterMZ[node] = maxCenterMZ[node] = s.center.mzCenter;
+	    minScan[node] = s.minScan;
+	    maxScan[node] = s.maxScan;
+	} else {
+	    // A cleared spot ends the search for spots below a given m/z
+	    minCenterMZ[node] = maxCenterMZ[node] = Double.NEGATIVE_INFINITY;
+	    minScan[node] = Integer.MAX_VALUE;
+	    maxScan[node] = Integer.MIN_VALUE;
+	}
+    }
+
+    private void updateNode(int node) {
+	minCenterMZ[node] = Math.min(minCenterMZ[2 * node],
+		minCenterMZ[2 * node + 1]);
+	maxCenterMZ[node] = Math.max(maxCenterMZ[2 * node],
+		maxCenterMZ[2 * node + 1]);
+	minScan[node] = Math.min(minScan[2 * node], minScan[2 * node + 1]);
+	maxScan[node] = Math.max(maxScan[2 * node], maxScan[2 * node + 1]);
+    }
+
+}
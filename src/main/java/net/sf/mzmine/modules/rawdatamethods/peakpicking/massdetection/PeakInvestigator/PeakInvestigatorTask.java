@@ -19,8 +19,6 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -31,7 +29,6 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -51,7 +48,6 @@ import net.sf.mzmine.util.dialogs.interfaces.BasicDialog;
 
 import org.xeustechnologies.jtar.TarEntry;
 import org.xeustechnologies.jtar.TarInputStream;
-import org.xeustechnologies.jtar.TarOutputStream;
 
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.SftpException;
@@ -104,7 +100,7 @@ public class PeakInvestigatorTask
 	// temporary storage
 	private File workingDirectory;
 	private File workingFile;
-	private TarOutputStream tarfile = null;
+	private ScanBundleWriter scansBundle = null;
 
 	private final boolean debug;
 
@@ -340,15 +336,14 @@ public class PeakInvestigatorTask
 		desc = "starting launch";
 		logger.info("Preparing to launch new job, " + jobID);
 
-		FileOutputStream stream = new FileOutputStream(workingFile);
-		tarfile = new TarOutputStream(new BufferedOutputStream(
-				new GZIPOutputStream(stream)));
+		scansBundle = new ScanBundleWriter(new FileOutputStream(workingFile));
 
 		desc = "launch started";
 	}
 
 	/**
-	 * Add scan to compressed tar file
+	 * Add scan to compressed tar file. The scan is serialized in the
+	 * background, see ScanBundleWriter.
 	 * 
 	 * @param scan_num
 	 * @param scan
@@ -360,21 +355,8 @@ public class PeakInvestigatorTask
 		// ########################################################################
 		// Export all scans to remote processor
 		try {
-			// export the scan to a file
 			String filename = "scan_" + String.format("%04d", scan_num) + ".txt";
-			scan.exportToFile("", workingDirectory.toString(), filename);
-
-			// put the exported scan into the tar file
-			File f = new File(getFilenameWithPath(filename));
-			tarfile.putNextEntry(new TarEntry(f, filename));
-			BufferedInputStream origin = new BufferedInputStream(new FileInputStream(f));
-			int count;
-			byte data[] = new byte[2048];
-			while ((count = origin.read(data)) != -1)
-				tarfile.write(data, 0, count);
-			origin.close();
-			f.delete();			// remove the local copy of the scan file
-			tarfile.flush();
+			scansBundle.addScan(filename, scan);
 		} catch (IOException e) {
 			logger.finest(e.getMessage());
 			MZmineCore.getDesktop().displayErrorMessage(MZmineCore.getDesktop().getMainWindow(), "Error", "Cannot write to scans bundle file", logger);
@@ -459,7 +441,7 @@ public class PeakInvestigatorTask
 		desc = "finishing launch";
 
 		try {
-			tarfile.close();
+			scansBundle.close();
 		} catch (IOException e) {
 			logger.finest(e.getMessage());
 			error("Cannot close scans bundle file.");
@@ -489,31 +471,16 @@ public class PeakInvestigatorTask
 		File calibrationFile = calibrationPath.toFile();
 		calibrationFile.deleteOnExit();
 
-		FileOutputStream stream = new FileOutputStream(calibrationFile);
-		tarfile = new TarOutputStream(new BufferedOutputStream(
-				new GZIPOutputStream(stream)));
-
-		for (int scan_num : calibDataFile.getScanNumbers()) {
-			Scan scan = calibDataFile.getScan(scan_num);
-			String filename = "calib_" + String.format("%04d", scan_num)
-					+ ".txt";
-			scan.exportToFile("", workingDirectory.toString(), filename);
-
-			// put the exported scan into the tar file
-			File f = new File(getFilenameWithPath(filename));
-			tarfile.putNextEntry(new TarEntry(f, filename));
-			BufferedInputStream origin = new BufferedInputStream(
-					new FileInputStream(f));
-			int count;
-			byte data[] = new byte[2048];
-			while ((count = origin.read(data)) != -1)
-				tarfile.write(data, 0, count);
-			origin.close();
-			f.delete(); // remove the local copy of the scan file
-			tarfile.flush();
-		}
-
-		tarfile.close();
+		try (ScanBundleWriter calibrationBundle = new ScanBundleWriter(
+				new FileOutputStream(calibrationFile))) {
+			for (int scan_num : calibDataFile.getScanNumbers()) {
+				Scan scan = calibDataFile.getScan(scan_num);
+				String filename = "calib_" + String.format("%04d", scan_num)
+						+ ".txt";
+				calibrationBundle.addScan(filename, scan);
+			}
+		}
+
 		return calibrationFile;
 	}
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2016 Veritomyx, Inc.
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.mzmine.datamodel.DataPointsBuffer;
+import net.sf.mzmine.datamodel.Scan;
+
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarOutputStream;
+
+import com.google.common.collect.Range;
+
+/**
+ * Writes scans into a compressed tar bundle for PeakInvestigator™. Each scan is
+ * serialized in memory, in the same format as Scan.exportToFile() writes with
+ * ChecksumFileWriter, and its checksum is computed while the lines are
+ * written, so no file is touched until the bundle itself is written. The scans
+ * are serialized in parallel, but the tar entries are always written in the
+ * order in which the scans were added.
+ *
+ * This class is not thread-safe, scans have to be added by a single thread.
+ */
+class ScanBundleWriter implements Closeable {
+
+	// Trailer written by ChecksumFileWriter: the CRC32 of all preceding bytes
+	static final String CHECKSUM_PREFIX = "# Checksum: ";
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private final TarOutputStream tarfile;
+	private final ForkJoinPool pool;
+	private final int maxPendingScans;
+
+	// Scans being serialized, in the order of their tar entries
+	private final ArrayDeque<PendingEntry> pendingEntries = new ArrayDeque<PendingEntry>();
+
+	private final long modificationTime = System.currentTimeMillis();
+
+	private static final class PendingEntry {
+		final String filename;
+		final ForkJoinTask<byte[]> content;
+
+		PendingEntry(String filename, ForkJoinTask<byte[]> content) {
+			this.filename = filename;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * Creates a bundle writing to given stream, which is closed together with
+	 * the bundle
+	 */
+	ScanBundleWriter(OutputStream stream) throws IOException {
+		tarfile = new TarOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(stream, 1 << 16), 1 << 16));
+
+		// Use the pool of the current task, if there is one
+		ForkJoinPool currentPool = ForkJoinTask.getPool();
+		pool = currentPool != null ? currentPool : ForkJoinPool.commonPool();
+		maxPendingScans = 4 * Math.max(1, pool.getParallelism());
+	}
+
+	/**
+	 * Starts serializing given scan. The entry is written once all scans added
+	 * before it are written.
+	 */
+	void addScan(String filename, final Scan scan) throws IOException {
+		ForkJoinTask<byte[]> content = pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return serializeScan(scan);
+			}
+		});
+		pendingEntries.add(new PendingEntry(filename, content));
+
+		// Keep the number of serialized scans held in memory bounded
+		while ((pendingEntries.size() > maxPendingScans)
+				|| ((!pendingEntries.isEmpty()) && pendingEntries.peek().content
+						.isDone())) {
+			writeEntry(pendingEntries.poll());
+		}
+	}
+
+	/**
+	 * Writes all remaining scans and closes the bundle
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			while (!pendingEntries.isEmpty())
+				writeEntry(pendingEntries.poll());
+		} finally {
+			for (PendingEntry entry : pendingEntries)
+				entry.content.cancel(false);
+			pendingEntries.clear();
+			tarfile.close();
+		}
+	}
+
+	private void writeEntry(PendingEntry entry) throws IOException {
+		byte content[];
+		try {
+			content = entry.content.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Writing of scans bundle was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Cannot export " + entry.filename,
+					e.getCause());
+		}
+
+		// jtar 1.1 only builds headers from files; the file does not need to
+		// exist, its size and modification time are replaced below
+		TarEntry tarEntry = new TarEntry(new File(entry.filename),
+				entry.filename);
+		tarEntry.setSize(content.length);
+		tarEntry.setModTime(modificationTime);
+		tarfile.putNextEntry(tarEntry);
+		tarfile.write(content);
+	}
+
+	/**
+	 * Serializes the data points of given scan followed by the checksum line.
+	 * The data points are read directly from the raw data file storage.
+	 */
+	static byte[] serializeScan(Scan scan) throws IOException {
+		DataPointsBuffer buffer = new DataPointsBuffer();
+		scan.getDataPoints(buffer);
+		final int num = buffer.size();
+		Range<Double> mzRange = scan.getDataPointMZRange();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				32 * (num + 8));
+		CheckedOutputStream checkedStream = new CheckedOutputStream(bytes,
+				new CRC32());
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				checkedStream, StandardCharsets.UTF_8));
+
+		writeLine(writer, "# Scan Number: " + scan.getScanNumber());
+		writeLine(writer, "# Scan MS Level: " + scan.getMSLevel());
+		writeLine(writer, "# Scan Data Points: " + num);
+		writeLine(writer, "# Scan Mass Range: "
+				+ (mzRange.upperEndpoint() - mzRange.lowerEndpoint()));
+		writeLine(writer, "# Scan Min Mass: " + mzRange.lowerEndpoint());
+		writeLine(writer, "# Scan Max Mass: " + mzRange.upperEndpoint());
+		writer.write(LINE_SEPARATOR);
+		for (int p = 0; p < num; p++)
+			writeLine(writer, buffer.getMZ(p) + "\t" + buffer.getIntensity(p));
+
+		writer.flush();
+		writeLine(writer, CHECKSUM_PREFIX
+				+ checkedStream.getChecksum().getValue());
+		writer.close();
+
+		return bytes.toByteArray();
+	}
+
+	private static void writeLine(Writer writer, String line)
+			throws IOException {
+		writer.write(line);
+		writer.write(LINE_SEPARATOR);
+	}
+
+}
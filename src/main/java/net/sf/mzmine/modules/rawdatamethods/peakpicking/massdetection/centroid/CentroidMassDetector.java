@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
@@ -41,14 +42,16 @@ public class CentroidMassDetector implements MassDetector {
 	
 		ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 	
-		DataPoint dataPoints[] = scan.getDataPoints();
+		DataPointsBuffer dataPoints = new DataPointsBuffer(scan.getNumberOfDataPoints());
+		scan.getDataPoints(dataPoints);
+		final double intensityValues[] = dataPoints.getIntensityValues();
 	
 		// Find possible mzPeaks
-		for (int j = 0; j < dataPoints.length; j++) {
+		for (int j = 0; j < dataPoints.size(); j++) {
 		    // Is intensity above the noise level?
-		    if (dataPoints[j].getIntensity() >= noiseLevel) {
+		    if (intensityValues[j] >= noiseLevel) {
 				// Yes, then mark this index as mzPeak
-				mzPeaks.add(dataPoints[j]);
+				mzPeaks.add(dataPoints.getDataPoint(j));
 		    }
 		}
 		return mzPeaks.toArray(new DataPoint[0]);
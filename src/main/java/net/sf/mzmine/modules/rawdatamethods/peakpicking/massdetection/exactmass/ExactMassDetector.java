@@ -25,6 +25,7 @@ import java.util.TreeSet;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
@@ -97,33 +98,37 @@ public class ExactMassDetector implements MassDetector {
     private void getLocalMaxima(Scan scan,
 	    TreeSet<ExactMzDataPoint> candidatePeaks, double noiseLevel) {
 
-	DataPoint[] scanDataPoints = scan.getDataPoints();
-	if (scanDataPoints.length == 0)
+	DataPointsBuffer scanDataPoints = new DataPointsBuffer(
+		scan.getNumberOfDataPoints());
+	scan.getDataPoints(scanDataPoints);
+	if (scanDataPoints.size() == 0)
 	    return;
-	DataPoint localMaximum = scanDataPoints[0];
+	final double intensityValues[] = scanDataPoints.getIntensityValues();
+	int localMaximum = 0;
+
+	// The current m/z peak consists of the non-zero data points between
+	// rangeStart and the current index. DataPoint instances are only
+	// created for peaks above the noise level.
+	int rangeStart = 0;
 	ArrayList<DataPoint> rangeDataPoints = new ArrayList<DataPoint>();
 
 	boolean ascending = true;
 
 	// Iterate through all data points
-	for (int i = 0; i < scanDataPoints.length - 1; i++) {
+	for (int i = 0; i < scanDataPoints.size() - 1; i++) {
 
-	    boolean nextIsBigger = scanDataPoints[i + 1].getIntensity() > scanDataPoints[i]
-		    .getIntensity();
-	    boolean nextIsZero = scanDataPoints[i + 1].getIntensity() == 0;
-	    boolean currentIsZero = scanDataPoints[i].getIntensity() == 0;
+	    boolean nextIsBigger = intensityValues[i + 1] > intensityValues[i];
+	    boolean nextIsZero = intensityValues[i + 1] == 0;
+	    boolean currentIsZero = intensityValues[i] == 0;
 
 	    // Ignore zero intensity regions
 	    if (currentIsZero) {
 		continue;
 	    }
 
-	    // Add current (non-zero) data point to the current m/z peak
-	    rangeDataPoints.add(scanDataPoints[i]);
-
 	    // Check for local maximum
 	    if (ascending && (!nextIsBigger)) {
-		localMaximum = scanDataPoints[i];
+		localMaximum = i;
 		ascending = false;
 		continue;
 	    }
@@ -132,17 +137,23 @@ public class ExactMassDetector implements MassDetector {
 	    if ((!ascending) && (nextIsBigger || nextIsZero)) {
 
 		// Add the m/z peak if it is above the noise level
-		if (localMaximum.getIntensity() > noiseLevel) {
+		if (intensityValues[localMaximum] > noiseLevel) {
 
+		    for (int j = rangeStart; j <= i; j++) {
+			if (intensityValues[j] != 0)
+			    rangeDataPoints.add(scanDataPoints.getDataPoint(j));
+		    }
 		    DataPoint[] rawDataPoints = rangeDataPoints
 			    .toArray(new DataPoint[0]);
-		    candidatePeaks.add(new ExactMzDataPoint(localMaximum,
+		    candidatePeaks.add(new ExactMzDataPoint(scanDataPoints
+			    .getMZ(localMaximum), intensityValues[localMaximum],
 			    rawDataPoints));
+		    rangeDataPoints.clear();
 		}
 
 		// Reset and start with new peak
 		ascending = true;
-		rangeDataPoints.clear();
+		rangeStart = i + 1;
 	    }
 
 	}
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
@@ -47,23 +48,24 @@ public class LocalMaxMassDetector implements MassDetector {
 		// List of found mz peaks
 		ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 	
-		DataPoint dataPoints[] = scan.getDataPoints();
+		DataPointsBuffer dataPoints = new DataPointsBuffer(scan.getNumberOfDataPoints());
+		scan.getDataPoints(dataPoints);
+		final double intensityValues[] = dataPoints.getIntensityValues();
 	
 		// All data points of current m/z peak
 	
-		// Top data point of current m/z peak
-		DataPoint currentMzPeakTop = null;
+		// Index of the top data point of current m/z peak
+		int currentMzPeakTop = -1;
 	
 		// True if we haven't reached the current local maximum yet
 		boolean ascending = true;
 	
 		// Iterate through all data points
-		for (int i = 0; i < dataPoints.length - 1; i++) {
+		for (int i = 0; i < dataPoints.size() - 1; i++) {
 	
-		    boolean nextIsBigger = dataPoints[i + 1].getIntensity() > dataPoints[i]
-			    .getIntensity();
-		    boolean nextIsZero = dataPoints[i + 1].getIntensity() == 0;
-		    boolean currentIsZero = dataPoints[i].getIntensity() == 0;
+		    boolean nextIsBigger = intensityValues[i + 1] > intensityValues[i];
+		    boolean nextIsZero = intensityValues[i + 1] == 0;
+		    boolean currentIsZero = intensityValues[i] == 0;
 	
 		    // Ignore zero intensity regions
 		    if (currentIsZero)
@@ -71,19 +73,19 @@ public class LocalMaxMassDetector implements MassDetector {
 	
 		    // Check for local maximum
 		    if (ascending && (!nextIsBigger)) {
-			currentMzPeakTop = dataPoints[i];
+			currentMzPeakTop = i;
 			ascending = false;
 			continue;
 		    }
 	
-		    assert currentMzPeakTop != null;
+		    assert currentMzPeakTop >= 0;
 	
 		    // Check for the end of the peak
 		    if ((!ascending) && (nextIsBigger || nextIsZero)) {
 	
 			// Add the m/z peak if it is above the noise level
-			if (currentMzPeakTop.getIntensity() > noiseLevel) {
-			    mzPeaks.add(currentMzPeakTop);
+			if (intensityValues[currentMzPeakTop] > noiseLevel) {
+			    mzPeaks.add(dataPoints.getDataPoint(currentMzPeakTop));
 			}
 	
 			// Reset and start with new peak
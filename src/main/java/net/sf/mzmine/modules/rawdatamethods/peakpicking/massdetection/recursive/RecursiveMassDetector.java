@@ -20,11 +20,11 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive;
 
 import java.util.TreeSet;
-import java.util.Vector;
 
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
@@ -49,13 +49,14 @@ public class RecursiveMassDetector implements MassDetector {
 		double maximumMZPeakWidth = parameters.getParameter(
 				RecursiveMassDetectorParameters.maximumMZPeakWidth).getValue();
 
-		DataPoint dataPoints[] = scan.getDataPoints();
+		DataPointsBuffer dataPoints = new DataPointsBuffer(scan.getNumberOfDataPoints());
+		scan.getDataPoints(dataPoints);
 		TreeSet<DataPoint> mzPeaks = new TreeSet<DataPoint>(
 				new DataPointSorter(SortingProperty.MZ,
 						SortingDirection.Ascending));
 
 		// Find MzPeaks
-		recursiveThreshold(mzPeaks, dataPoints, 1, dataPoints.length - 1,
+		recursiveThreshold(mzPeaks, dataPoints, 1, dataPoints.size() - 1,
 				noiseLevel, minimumMZPeakWidth, maximumMZPeakWidth, 0);
 		return mzPeaks.toArray(new DataPoint[0]);
 	}
@@ -64,19 +65,20 @@ public class RecursiveMassDetector implements MassDetector {
      * This function searches for maxima from given part of a spectrum
      */
     private int recursiveThreshold(TreeSet<DataPoint> mzPeaks,
-	    DataPoint dataPoints[], int startInd, int stopInd,
+	    DataPointsBuffer dataPoints, int startInd, int stopInd,
 	    double curentNoiseLevel, double minimumMZPeakWidth,
 	    double maximumMZPeakWidth, int recuLevel) {
 
 	// logger.finest(" Level of recursion " + recuLevel);
 
-	Vector<DataPoint> RawDataPointsInds = new Vector<DataPoint>();
+	final double mzValues[] = dataPoints.getMZValues();
+	final double intensityValues[] = dataPoints.getIntensityValues();
 	int peakStartInd, peakStopInd, peakMaxInd;
 	double peakWidthMZ;
 
 	for (int ind = startInd; ind < stopInd; ind++) {
 
-	    boolean currentIsBiggerNoise = dataPoints[ind].getIntensity() > curentNoiseLevel;
+	    boolean currentIsBiggerNoise = intensityValues[ind] > curentNoiseLevel;
 	    double localMinimum = Double.MAX_VALUE;
 
 	    // Ignore intensities below curentNoiseLevel
@@ -90,33 +92,26 @@ public class RecursiveMassDetector implements MassDetector {
 
 	    // While peak is on
 	    while ((ind < stopInd)
-		    && (dataPoints[ind].getIntensity() > curentNoiseLevel)) {
+		    && (intensityValues[ind] > curentNoiseLevel)) {
 
-		boolean isLocalMinimum = (dataPoints[ind - 1].getIntensity() > dataPoints[ind]
-			.getIntensity())
-			&& (dataPoints[ind].getIntensity() < dataPoints[ind + 1]
-				.getIntensity());
+		boolean isLocalMinimum = (intensityValues[ind - 1] > intensityValues[ind])
+			&& (intensityValues[ind] < intensityValues[ind + 1]);
 
 		// Check if this is the minimum point of the peak
-		if (isLocalMinimum
-			&& (dataPoints[ind].getIntensity() < localMinimum))
-		    localMinimum = dataPoints[ind].getIntensity();
+		if (isLocalMinimum && (intensityValues[ind] < localMinimum))
+		    localMinimum = intensityValues[ind];
 
 		// Check if this is the maximum point of the peak
-		if (dataPoints[ind].getIntensity() > dataPoints[peakMaxInd]
-			.getIntensity())
+		if (intensityValues[ind] > intensityValues[peakMaxInd])
 		    peakMaxInd = ind;
 
-		// Forming the DataPoint array that defines this peak
-		RawDataPointsInds.add(dataPoints[ind]);
 		ind++;
 	    }
 
 	    // Add ending point of the peak
 	    peakStopInd = ind;
 
-	    peakWidthMZ = dataPoints[peakStopInd].getMZ()
-		    - dataPoints[peakStartInd].getMZ();
+	    peakWidthMZ = mzValues[peakStopInd] - mzValues[peakStartInd];
 
 	    // Verify width of the peak
 	    if ((peakWidthMZ >= minimumMZPeakWidth)
@@ -124,14 +119,13 @@ public class RecursiveMassDetector implements MassDetector {
 
 		// Declare a new MzPeak with intensity equal to max intensity
 		// data point
-		mzPeaks.add(dataPoints[peakMaxInd]);
+		mzPeaks.add(dataPoints.getDataPoint(peakMaxInd));
 
 		if (recuLevel > 0) {
 		    // return stop index and beginning of the next peak
 		    return ind;
 		}
 	    }
-	    RawDataPointsInds.clear();
 
 	    // If the peak is still too big applies the same method until find a
 	    // peak of the right size
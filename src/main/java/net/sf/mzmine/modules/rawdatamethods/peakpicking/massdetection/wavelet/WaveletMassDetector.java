@@ -20,11 +20,11 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
 
 import java.util.TreeSet;
-import java.util.Vector;
 
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
@@ -63,26 +63,31 @@ public class WaveletMassDetector implements MassDetector {
 	double waveletWindow = parameters.getParameter(
 		WaveletMassDetectorParameters.waveletWindow).getValue();
 
-	DataPoint originalDataPoints[] = scan.getDataPoints();
+	DataPointsBuffer originalDataPoints = new DataPointsBuffer(
+		scan.getNumberOfDataPoints());
+	scan.getDataPoints(originalDataPoints);
 
-	DataPoint waveletDataPoints[] = performCWT(originalDataPoints,
+	double waveletIntensities[] = performCWT(originalDataPoints,
 		waveletWindow, scaleLevel);
 
 	DataPoint mzPeaks[] = getMzPeaks(noiseLevel, originalDataPoints,
-		waveletDataPoints);
+		waveletIntensities);
 
 	return mzPeaks;
     }
 
     /**
-     * Perform the CWT over raw data points in the selected scale level
+     * Perform the CWT over raw data points in the selected scale level. The
+     * wavelet data points share the m/z values of the raw data points, so only
+     * their intensities are returned.
      * 
      * @param dataPoints
      */
-    private SimpleDataPoint[] performCWT(DataPoint[] dataPoints,
+    private double[] performCWT(DataPointsBuffer dataPoints,
 	    double waveletWindow, int scaleLevel) {
-	int length = dataPoints.length;
-	SimpleDataPoint[] cwtDataPoints = new SimpleDataPoint[length];
+	int length = dataPoints.size();
+	final double intensityValues[] = dataPoints.getIntensityValues();
+	double[] cwtIntensities = new double[length];
 	double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
 	double[] W = new double[(int) NPOINTS];
 
@@ -119,17 +124,16 @@ public class WaveletMassDetector implements MassDetector {
 		    ind = 0;
 		if (ind >= NPOINTS)
 		    ind = (int) NPOINTS - 1;
-		intensity += dataPoints[i].getIntensity() * W[ind];
+		intensity += intensityValues[i] * W[ind];
 	    }
 	    intensity /= sqrtScaleLevel;
 	    // Eliminate the negative part of the wavelet map
 	    if (intensity < 0)
 		intensity = 0;
-	    cwtDataPoints[dx] = new SimpleDataPoint(dataPoints[dx].getMZ(),
-		    (double) intensity);
+	    cwtIntensities[dx] = intensity;
 	}
 
-	return cwtDataPoints;
+	return cwtIntensities;
     }
 
     /**
@@ -156,20 +160,24 @@ public class WaveletMassDetector implements MassDetector {
      * This function searches for maximums from wavelet data points
      */
     private DataPoint[] getMzPeaks(double noiseLevel,
-	    DataPoint[] originalDataPoints, DataPoint[] waveletDataPoints) {
+	    DataPointsBuffer originalDataPoints, double[] waveletIntensities) {
 
 	TreeSet<DataPoint> mzPeaks = new TreeSet<DataPoint>(
 		new DataPointSorter(SortingProperty.MZ,
 			SortingDirection.Ascending));
 
-	Vector<DataPoint> rawDataPoints = new Vector<DataPoint>();
+	final double originalIntensities[] = originalDataPoints
+		.getIntensityValues();
+
+	// Highest raw intensity within the current peak, see
+	// calcAproxIntensity()
+	double aproxIntensity = 0;
 	int peakMaxInd = 0;
-	int stopInd = waveletDataPoints.length - 1;
+	int stopInd = waveletIntensities.length - 1;
 
 	for (int ind = 0; ind <= stopInd; ind++) {
 
-	    while ((ind <= stopInd)
-		    && (waveletDataPoints[ind].getIntensity() == 0)) {
+	    while ((ind <= stopInd) && (waveletIntensities[ind] == 0)) {
 		ind++;
 	    }
 	    peakMaxInd = ind;
@@ -178,14 +186,13 @@ public class WaveletMassDetector implements MassDetector {
 	    }
 
 	    // While peak is on
-	    while ((ind <= stopInd)
-		    && (waveletDataPoints[ind].getIntensity() > 0)) {
+	    while ((ind <= stopInd) && (waveletIntensities[ind] > 0)) {
 		// Check if this is the maximum point of the peak
-		if (waveletDataPoints[ind].getIntensity() > waveletDataPoints[peakMaxInd]
-			.getIntensity()) {
+		if (waveletIntensities[ind] > waveletIntensities[peakMaxInd]) {
 		    peakMaxInd = ind;
 		}
-		rawDataPoints.add(originalDataPoints[ind]);
+		aproxIntensity = calcAproxIntensity(aproxIntensity,
+			originalIntensities[ind]);
 		ind++;
 	    }
 
@@ -193,31 +200,31 @@ public class WaveletMassDetector implements MassDetector {
 		break;
 	    }
 
-	    rawDataPoints.add(originalDataPoints[ind]);
+	    aproxIntensity = calcAproxIntensity(aproxIntensity,
+		    originalIntensities[ind]);
 
-	    if (originalDataPoints[peakMaxInd].getIntensity() > noiseLevel) {
+	    if (originalIntensities[peakMaxInd] > noiseLevel) {
 		SimpleDataPoint peakDataPoint = new SimpleDataPoint(
-			originalDataPoints[peakMaxInd].getMZ(),
-			calcAproxIntensity(rawDataPoints));
+			originalDataPoints.getMZ(peakMaxInd), aproxIntensity);
 
 		mzPeaks.add(peakDataPoint);
 
 	    }
-	    rawDataPoints.clear();
+	    aproxIntensity = 0;
 	}
 
 	return mzPeaks.toArray(new DataPoint[0]);
 
     }
 
-    private double calcAproxIntensity(Vector<DataPoint> rawDataPoints) {
-
-	double aproxIntensity = 0;
-
-	for (DataPoint d : rawDataPoints) {
-	    if (d.getIntensity() > aproxIntensity)
-		aproxIntensity = d.getIntensity();
-	}
+    /**
+     * The approximate intensity of a peak is the highest intensity of its raw
+     * data points
+     */
+    private double calcAproxIntensity(double aproxIntensity,
+	    double rawIntensity) {
+	if (rawIntensity > aproxIntensity)
+	    return rawIntensity;
 	return aproxIntensity;
     }
 
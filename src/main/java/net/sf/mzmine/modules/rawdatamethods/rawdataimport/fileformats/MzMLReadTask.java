@@ -20,43 +20,37 @@
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import net.sf.mzmine.datamodel.DataPoint;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassSpectrumType;
-import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
-import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrumReader.Header;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrumReader.ParsedSpectrum;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
-import net.sf.mzmine.util.ScanUtils;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArrayList;
-import uk.ac.ebi.jmzml.model.mzml.CVParam;
-import uk.ac.ebi.jmzml.model.mzml.ParamGroup;
-import uk.ac.ebi.jmzml.model.mzml.Precursor;
-import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
-import uk.ac.ebi.jmzml.model.mzml.Scan;
-import uk.ac.ebi.jmzml.model.mzml.ScanList;
-import uk.ac.ebi.jmzml.model.mzml.SelectedIonList;
-import uk.ac.ebi.jmzml.model.mzml.Spectrum;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
 /**
  * This class reads mzML 1.0 and 1.1.0 files
- * (http://www.psidev.info/index.php?q=node/257) using the jmzml library
- * (http://code.google.com/p/jmzml/).
+ * (http://www.psidev.info/index.php?q=node/257) using a StAX parser. If the
+ * file is an indexedmzML, the spectra are parsed in parallel, in batches
+ * starting at the offsets of the index. Otherwise the file is parsed
+ * sequentially.
  */
 public class MzMLReadTask extends AbstractTask {
 
@@ -83,6 +77,9 @@ public class MzMLReadTask extends AbstractTask {
     private static final int PARENT_STACK_SIZE = 20;
     private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
 
+    // Number of spectra parsed by one sub-task of an indexed file
+    private static final int SPECTRA_PER_BATCH = 32;
+
     public MzMLReadTask(MZmineProject project, File fileToOpen,
             RawDataFileWriter newMZmineFile) {
         this.project = project;
@@ -105,72 +102,37 @@ public class MzMLReadTask extends AbstractTask {
         setStatus(TaskStatus.PROCESSING);
         logger.info("Started parsing file " + file);
 
-        MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
-
-        totalScans = unmarshaller
-                .getObjectCountForXpath("/run/spectrumList/spectrum");
-
-        MzMLObjectIterator<Spectrum> spectrumIterator = unmarshaller
-                .unmarshalCollectionFromXpath("/run/spectrumList/spectrum",
-                        Spectrum.class);
         try {
 
-            while (spectrumIterator.hasNext()) {
-
-                if (isCanceled())
-                    return;
-
-                Spectrum spectrum = spectrumIterator.next();
-
-                // Ignore scans that are not MS, e.g. UV
-                if (!isMsSpectrum(spectrum)) {
-                    parsedScans++;
-                    continue;
-                }
-
-                String scanId = spectrum.getId();
-                int scanNumber = convertScanIdToScanNumber(scanId);
-
-                // Extract scan data
-                int msLevel = extractMSLevel(spectrum);
-                double retentionTime = extractRetentionTime(spectrum);
-                PolarityType polarity = extractPolarity(spectrum);
-                int parentScan = extractParentScanNumber(spectrum);
-                double precursorMz = extractPrecursorMz(spectrum);
-                int precursorCharge = extractPrecursorCharge(spectrum);
-                String scanDefinition = extractScanDefinition(spectrum);
-                DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-                // Auto-detect whether this scan is centroided
-                MassSpectrumType spectrumType = ScanUtils
-                        .detectSpectrumType(dataPoints);
-
-                SimpleScan scan = new SimpleScan(null, scanNumber, msLevel,
-                        retentionTime, precursorMz, precursorCharge, null,
-                        dataPoints, spectrumType, polarity, scanDefinition,
-                        null);
-
-                for (SimpleScan s : parentStack) {
-                    if (s.getScanNumber() == parentScan) {
-                        s.addFragmentScan(scanNumber);
-                    }
+            XMLInputFactory factory = MzMLSpectrumReader.createInputFactory();
+
+            InputStream stream = new FileInputStream(file);
+            try {
+                XMLStreamReader reader = factory.createXMLStreamReader(stream);
+                Header header = MzMLSpectrumReader.readHeader(reader);
+                totalScans = header.spectrumCount;
+
+                long offsets[] = MzMLSpectrumReader.readSpectrumOffsets(file,
+                        factory);
+                if ((offsets != null) && (offsets.length > 0)
+                        && MzMLSpectrumReader.checkSpectrumOffsets(file,
+                                offsets, getBatchStarts(offsets.length))) {
+                    reader.close();
+                    totalScans = offsets.length;
+                    readIndexedSpectra(factory, header, offsets);
+                } else {
+                    logger.info("No valid spectrum index found in " + file
+                            + ", parsing the spectra sequentially");
+                    readSequentialSpectra(reader, header);
+                    reader.close();
                 }
-
-                /*
-                 * Verify the size of parentStack. The actual size of the window
-                 * to cover possible candidates is defined by limitSize.
-                 */
-                if (parentStack.size() > PARENT_STACK_SIZE) {
-                    SimpleScan firstScan = parentStack.removeLast();
-                    newMZmineFile.addScan(firstScan);
-                }
-
-                parentStack.addFirst(scan);
-
-                parsedScans++;
-
+            } finally {
+                stream.close();
             }
 
+            if (isCanceled())
+                return;
+
             while (!parentStack.isEmpty()) {
                 SimpleScan scan = parentStack.removeLast();
                 newMZmineFile.addScan(scan);
@@ -181,10 +143,13 @@ public class MzMLReadTask extends AbstractTask {
             project.addFile(finalRawDataFile);
 
         } catch (Throwable e) {
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Error parsing mzML: "
-                    + ExceptionUtils.exceptionToString(e));
             e.printStackTrace();
+            /* we may already have set the status to CANCELED */
+            if (getStatus() == TaskStatus.PROCESSING) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("Error parsing mzML: "
+                        + ExceptionUtils.exceptionToString(e));
+            }
             return;
         }
 
@@ -200,303 +165,156 @@ public class MzMLReadTask extends AbstractTask {
 
     }
 
-    private int convertScanIdToScanNumber(String scanId) {
-
-        if (scanIdTable.containsKey(scanId))
-            return scanIdTable.get(scanId);
+    /**
+     * Returns the indexes of the spectra which start a batch
+     */
+    private static int[] getBatchStarts(int numOfSpectra) {
+        int batchStarts[] = new int[(numOfSpectra + SPECTRA_PER_BATCH - 1)
+                / SPECTRA_PER_BATCH];
+        for (int i = 0; i < batchStarts.length; i++)
+            batchStarts[i] = i * SPECTRA_PER_BATCH;
+        return batchStarts;
+    }
 
-        final Pattern pattern = Pattern.compile("scan=([0-9]+)");
-        final Matcher matcher = pattern.matcher(scanId);
-        boolean scanNumberFound = matcher.find();
+    /**
+     * Parses the spectra of an indexed file in sub-tasks. The results are
+     * added in the original order, and only a few batches per thread are
+     * kept in the pipeline to bound the memory use.
+     */
+    private void readIndexedSpectra(final XMLInputFactory factory,
+            final Header header, final long offsets[]) throws Exception {
 
-        // Some vendors include scan=XX in the ID, some don't, such as
-        // mzML converted from WIFF files. See the definition of nativeID in
-        // http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
-        if (scanNumberFound) {
-            int scanNumber = Integer.parseInt(matcher.group(1));
-            scanIdTable.put(scanId, scanNumber);
-            return scanNumber;
-        }
+        final int batchStarts[] = getBatchStarts(offsets.length);
+        final int maxPendingBatches = 2 * getParallelism();
+        LinkedList<Future<List<ParsedSpectrum>>> pendingBatches = new LinkedList<Future<List<ParsedSpectrum>>>();
+        int nextBatch = 0;
 
-        int scanNumber = lastScanNumber + 1;
-        lastScanNumber++;
-        scanIdTable.put(scanId, scanNumber);
-        return scanNumber;
-    }
+        try {
+            while ((nextBatch < batchStarts.length)
+                    || (!pendingBatches.isEmpty())) {
+
+                while ((nextBatch < batchStarts.length)
+                        && (pendingBatches.size() < maxPendingBatches)) {
+                    final int first = batchStarts[nextBatch];
+                    final int last = Math.min(first + SPECTRA_PER_BATCH,
+                            offsets.length);
+                    // The last batch reaches to the index, so it is limited
+                    // by the number of spectra only
+                    final long endOffset = (last < offsets.length) ? offsets[last]
+                            : -1;
+                    pendingBatches.add(submitSubTask(new Callable<List<ParsedSpectrum>>() {
+                        @Override
+                        public List<ParsedSpectrum> call() throws Exception {
+                            MzMLSpectrumReader reader = new MzMLSpectrumReader(
+                                    header);
+                            return reader.readSpectra(file, factory,
+                                    header.encoding, offsets[first],
+                                    endOffset, last - first);
+                        }
+                    }));
+                    nextBatch++;
+                }
 
-    private int extractMSLevel(Spectrum spectrum) {
-        // Browse the spectrum parameters
-        List<CVParam> cvParams = spectrum.getCvParam();
-        if (cvParams == null)
-            return 1;
-        for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            String value = param.getValue();
-            if ((accession == null) || (value == null))
-                continue;
-
-            // MS level MS:1000511
-            if (accession.equals("MS:1000511")) {
-                int msLevel = Integer.parseInt(value);
-                return msLevel;
-            }
-        }
-        return 1;
-    }
+                List<ParsedSpectrum> spectra = pendingBatches.removeFirst()
+                        .get();
 
-    private double extractRetentionTime(Spectrum spectrum) {
-
-        ScanList scanListElement = spectrum.getScanList();
-        if (scanListElement == null)
-            return 0;
-        List<Scan> scanElements = scanListElement.getScan();
-        if (scanElements == null)
-            return 0;
-
-        for (Scan scan : scanElements) {
-            List<CVParam> cvParams = scan.getCvParam();
-            if (cvParams == null)
-                continue;
-
-            for (CVParam param : cvParams) {
-                String accession = param.getAccession();
-                String unitAccession = param.getUnitAccession();
-                String value = param.getValue();
-                if ((accession == null) || (value == null))
-                    continue;
-
-                // Retention time (actually "Scan start time") MS:1000016
-                if (accession.equals("MS:1000016")) {
-                    // MS:1000038 is used in mzML 1.0, while UO:0000031
-                    // is used in mzML 1.1.0 :-/
-                    double retentionTime;
-                    if ((unitAccession == null)
-                            || (unitAccession.equals("MS:1000038"))
-                            || unitAccession.equals("UO:0000031")) {
-                        retentionTime = Double.parseDouble(value);
-                    } else {
-                        retentionTime = Double.parseDouble(value) / 60d;
-                    }
-                    return retentionTime;
+                // Parsing is skipped when the task is canceled
+                if ((spectra == null) || isCanceled())
+                    return;
 
-                }
+                for (ParsedSpectrum spectrum : spectra)
+                    addSpectrum(spectrum);
             }
+        } finally {
+            for (Future<List<ParsedSpectrum>> pendingBatch : pendingBatches)
+                pendingBatch.cancel(false);
         }
 
-        return 0;
     }
 
-    private DataPoint[] extractDataPoints(Spectrum spectrum) {
-        BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
-
-        if ((dataList == null) || (dataList.getCount().equals(0)))
-            return new DataPoint[0];
-
-        BinaryDataArray mzArray = dataList.getBinaryDataArray().get(0);
-        BinaryDataArray intensityArray = dataList.getBinaryDataArray().get(1);
-        Number mzValues[] = mzArray.getBinaryDataAsNumberArray();
-        Number intensityValues[] = intensityArray.getBinaryDataAsNumberArray();
-        DataPoint dataPoints[] = new DataPoint[mzValues.length];
-        for (int i = 0; i < dataPoints.length; i++) {
-            double mz = mzValues[i].doubleValue();
-            double intensity = intensityValues[i].doubleValue();
-            dataPoints[i] = new SimpleDataPoint(mz, intensity);
-        }
-        return dataPoints;
-
-    }
+    private void readSequentialSpectra(XMLStreamReader reader, Header header)
+            throws Exception {
 
-    private int extractParentScanNumber(Spectrum spectrum) {
-        PrecursorList precursorListElement = spectrum.getPrecursorList();
-        if ((precursorListElement == null)
-                || (precursorListElement.getCount().equals(0)))
-            return -1;
-
-        List<Precursor> precursorList = precursorListElement.getPrecursor();
-        for (Precursor parent : precursorList) {
-            // Get the precursor scan number
-            String precursorScanId = parent.getSpectrumRef();
-            if (precursorScanId == null) {
-                return -1;
-            }
-            int parentScan = convertScanIdToScanNumber(precursorScanId);
-            return parentScan;
+        MzMLSpectrumReader spectrumReader = new MzMLSpectrumReader(header);
+        ParsedSpectrum spectrum;
+        while ((spectrum = spectrumReader.readNextSpectrum(reader)) != null) {
+            if (isCanceled())
+                return;
+            addSpectrum(spectrum);
         }
-        return -1;
+
     }
 
-    private double extractPrecursorMz(Spectrum spectrum) {
-
-        PrecursorList precursorListElement = spectrum.getPrecursorList();
-        if ((precursorListElement == null)
-                || (precursorListElement.getCount().equals(0)))
-            return 0;
-
-        List<Precursor> precursorList = precursorListElement.getPrecursor();
-        for (Precursor parent : precursorList) {
-
-            SelectedIonList selectedIonListElement = parent
-                    .getSelectedIonList();
-            if ((selectedIonListElement == null)
-                    || (selectedIonListElement.getCount().equals(0)))
-                return 0;
-            List<ParamGroup> selectedIonParams = selectedIonListElement
-                    .getSelectedIon();
-            if (selectedIonParams == null)
-                continue;
-
-            for (ParamGroup pg : selectedIonParams) {
-                List<CVParam> pgCvParams = pg.getCvParam();
-                for (CVParam param : pgCvParams) {
-                    String accession = param.getAccession();
-                    String value = param.getValue();
-                    if ((accession == null) || (value == null))
-                        continue;
-                    // MS:1000040 is used in mzML 1.0,
-                    // MS:1000744 is used in mzML 1.1.0
-                    if (accession.equals("MS:1000040")
-                            || accession.equals("MS:1000744")) {
-                        double precursorMz = Double.parseDouble(value);
-                        return precursorMz;
-                    }
-                }
+    /**
+     * Converts the spectrum to a scan. The scan IDs are converted to numbers
+     * here, because the numbers of the IDs without a scan number depend on
+     * the order of the spectra.
+     */
+    private void addSpectrum(ParsedSpectrum spectrum) throws Exception {
 
-            }
+        // Ignore scans that are not MS, e.g. UV
+        if (!spectrum.msSpectrum) {
+            parsedScans++;
+            return;
         }
-        return 0;
-    }
 
-    private int extractPrecursorCharge(Spectrum spectrum) {
-        PrecursorList precursorListElement = spectrum.getPrecursorList();
-        if ((precursorListElement == null)
-                || (precursorListElement.getCount().equals(0)))
-            return 0;
-
-        List<Precursor> precursorList = precursorListElement.getPrecursor();
-        for (Precursor parent : precursorList) {
-
-            SelectedIonList selectedIonListElement = parent
-                    .getSelectedIonList();
-            if ((selectedIonListElement == null)
-                    || (selectedIonListElement.getCount().equals(0)))
-                return 0;
-            List<ParamGroup> selectedIonParams = selectedIonListElement
-                    .getSelectedIon();
-            if (selectedIonParams == null)
-                continue;
-
-            for (ParamGroup pg : selectedIonParams) {
-                List<CVParam> pgCvParams = pg.getCvParam();
-                for (CVParam param : pgCvParams) {
-                    String accession = param.getAccession();
-                    String value = param.getValue();
-                    if ((accession == null) || (value == null))
-                        continue;
-                    if (accession.equals("MS:1000041")) {
-                        int precursorCharge = Integer.parseInt(value);
-                        return precursorCharge;
-                    }
+        int scanNumber = convertScanIdToScanNumber(spectrum.id);
+        int parentScan = (spectrum.precursorId == null) ? -1
+                : convertScanIdToScanNumber(spectrum.precursorId);
 
-                }
+        SimpleScan scan = new SimpleScan(null, scanNumber, spectrum.msLevel,
+                spectrum.retentionTime, spectrum.precursorMz,
+                spectrum.precursorCharge, null, spectrum.dataPoints,
+                spectrum.spectrumType, spectrum.polarity,
+                spectrum.scanDefinition, null);
 
+        for (SimpleScan s : parentStack) {
+            if (s.getScanNumber() == parentScan) {
+                s.addFragmentScan(scanNumber);
             }
         }
-        return 0;
-    }
 
-    private PolarityType extractPolarity(Spectrum spectrum) {
-        List<CVParam> cvParams = spectrum.getCvParam();
-        if (cvParams != null) {
-            for (CVParam param : cvParams) {
-                String accession = param.getAccession();
-
-                if (accession == null)
-                    continue;
-                if (accession.equals("MS:1000130"))
-                    return PolarityType.POSITIVE;
-                if (accession.equals("MS:1000129"))
-                    return PolarityType.NEGATIVE;
-            }
+        /*
+         * Verify the size of parentStack. The actual size of the window to
+         * cover possible candidates is defined by limitSize.
+         */
+        if (parentStack.size() > PARENT_STACK_SIZE) {
+            SimpleScan firstScan = parentStack.removeLast();
+            newMZmineFile.addScan(firstScan);
         }
-        ScanList scanListElement = spectrum.getScanList();
-        if (scanListElement != null) {
-            List<Scan> scanElements = scanListElement.getScan();
-            if (scanElements != null) {
-                for (Scan scan : scanElements) {
-                    cvParams = scan.getCvParam();
-                    if (cvParams == null)
-                        continue;
-                    for (CVParam param : cvParams) {
-                        String accession = param.getAccession();
-                        if (accession == null)
-                            continue;
-                        if (accession.equals("MS:1000130"))
-                            return PolarityType.POSITIVE;
-                        if (accession.equals("MS:1000129"))
-                            return PolarityType.NEGATIVE;
-                    }
 
-                }
-            }
-        }
-        return PolarityType.UNKNOWN;
+        parentStack.addFirst(scan);
+
+        parsedScans++;
 
     }
 
-    private String extractScanDefinition(Spectrum spectrum) {
-        List<CVParam> cvParams = spectrum.getCvParam();
-        if (cvParams != null) {
-            for (CVParam param : cvParams) {
-                String accession = param.getAccession();
+    private int convertScanIdToScanNumber(String scanId) {
 
-                if (accession == null)
-                    continue;
-                if (accession.equals("MS:1000512"))
-                    return param.getValue();
-            }
-        }
-        ScanList scanListElement = spectrum.getScanList();
-        if (scanListElement != null) {
-            List<Scan> scanElements = scanListElement.getScan();
-            if (scanElements != null) {
-                for (Scan scan : scanElements) {
-                    cvParams = scan.getCvParam();
-                    if (cvParams == null)
-                        continue;
-                    for (CVParam param : cvParams) {
-                        String accession = param.getAccession();
-                        if (accession == null)
-                            continue;
-                        if (accession.equals("MS:1000512"))
-                            return param.getValue();
-                    }
+        if (scanIdTable.containsKey(scanId))
+            return scanIdTable.get(scanId);
 
-                }
-            }
+        final Pattern pattern = Pattern.compile("scan=([0-9]+)");
+        final Matcher matcher = pattern.matcher(scanId);
+        boolean scanNumberFound = matcher.find();
+
+        // Some vendors include scan=XX in the ID, some don't, such as
+        // mzML converted from WIFF files. See the definition of nativeID in
+        // http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
+        if (scanNumberFound) {
+            int scanNumber = Integer.parseInt(matcher.group(1));
+            scanIdTable.put(scanId, scanNumber);
+            return scanNumber;
         }
-        return spectrum.getId();
+
+        int scanNumber = lastScanNumber + 1;
+        lastScanNumber++;
+        scanIdTable.put(scanId, scanNumber);
+        return scanNumber;
     }
 
     public String getTaskDescription() {
         return "Opening file " + file;
     }
 
-    boolean isMsSpectrum(Spectrum spectrum) {
-
-        List<CVParam> cvParams = spectrum.getCvParam();
-        if (cvParams != null) {
-            for (CVParam param : cvParams) {
-                String accession = param.getAccession();
-                if (accession == null)
-                    continue;
-
-                if (accession.equals("MS:1000804"))
-                    return false;
-            }
-        }
-
-        // By default, let's assume unidentified spectra are MS spectra
-        return true;
-    }
-
-}
\ No newline at end of file
+}
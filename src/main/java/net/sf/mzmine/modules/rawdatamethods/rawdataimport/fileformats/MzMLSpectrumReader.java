@@ -0,0 +1,742 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.util.ScanUtils;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Streaming reader of the spectra of mzML 1.0 and 1.1.0 files, based on the
+ * StAX API. Only the metadata used by MZmine is extracted from the spectra,
+ * and the binary data arrays are decoded directly into primitive arrays.
+ * 
+ * When the file is an indexedmzML, the spectra can be read in batches
+ * starting at the byte offsets of the index, in parallel. Each reader
+ * instance keeps its own buffers, so it must only be used by one thread.
+ */
+class MzMLSpectrumReader {
+
+    // Elements of a spectrum which own the parameters we need
+    private static final String SPECTRUM = "spectrum", SCAN = "scan",
+            PRECURSOR = "precursor", SELECTED_ION = "selectedIon",
+            BINARY_DATA_ARRAY = "binaryDataArray", BINARY = "binary";
+
+    private static final Pattern INDEX_LIST_OFFSET_PATTERN = Pattern
+            .compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+    // Size of the end of the file searched for the index offset
+    private static final int INDEX_LIST_OFFSET_SEARCH_SIZE = 4096;
+
+    private static final byte SPECTRUM_START[] = "<spectrum"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Controlled vocabulary parameter
+     */
+    private static final class CVParam {
+        final String accession, value, unitAccession;
+
+        CVParam(String accession, String value, String unitAccession) {
+            this.accession = accession;
+            this.value = value;
+            this.unitAccession = unitAccession;
+        }
+    }
+
+    /**
+     * Metadata and data points of a spectrum. The IDs of the spectrum and of
+     * its precursor spectrum are converted to scan numbers by the caller,
+     * because the conversion depends on the order of the spectra.
+     */
+    static final class ParsedSpectrum {
+        String id;
+        boolean msSpectrum = true;
+        int msLevel = 1;
+        double retentionTime = 0;
+        PolarityType polarity = PolarityType.UNKNOWN;
+        String scanDefinition;
+        String precursorId;
+        double precursorMz = 0;
+        int precursorCharge = 0;
+        DataPoint dataPoints[];
+        MassSpectrumType spectrumType;
+    }
+
+    /**
+     * Content of the file before the first spectrum
+     */
+    static final class Header {
+        final Map<String, List<CVParam>> paramGroups = new HashMap<String, List<CVParam>>();
+        int spectrumCount = 0;
+        String encoding;
+    }
+
+    private final Map<String, List<CVParam>> paramGroups;
+    private final DataPointsBuffer dataPointsBuffer = new DataPointsBuffer();
+
+    // State of the spectrum being read
+    private ParsedSpectrum spectrum;
+    private final List<String> openElements = new ArrayList<String>();
+    private int msLevelFound, retentionTimeFound;
+    private PolarityType scanPolarity;
+    private String scanScanDefinition;
+    private boolean precursorFound, precursorSearchFinished,
+            selectedIonFound;
+    private boolean precursorMzFound, precursorChargeFound;
+    private int defaultArrayLength;
+
+    // State of the binary data array being read
+    private boolean doublePrecision, integerValues, zlibCompression;
+    private int arrayType, arrayLength, arrayIndex;
+    private byte encodedBytes[] = new byte[1 << 16];
+    private int encodedLength;
+    private double mzValues[] = new double[0], intensityValues[] = new double[0];
+    private int numOfMZValues, numOfIntensityValues;
+
+    private static final int UNKNOWN_ARRAY = 0, MZ_ARRAY = 1,
+            INTENSITY_ARRAY = 2;
+
+    MzMLSpectrumReader(Header header) {
+        this.paramGroups = header.paramGroups;
+    }
+
+    static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // The spectra may be read from the middle of the file, so the
+        // namespace declarations of the root element are not available
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+    }
+
+    /**
+     * Reads the referenceable parameter groups and the number of spectra,
+     * leaving the reader at the start of the spectrum list. If the file has
+     * no spectrum list, the reader is left at the end of the document.
+     */
+    static Header readHeader(XMLStreamReader reader)
+            throws XMLStreamException {
+
+        Header header = new Header();
+        header.encoding = reader.getEncoding();
+        List<CVParam> currentGroup = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = getLocalName(reader);
+                if (name.equals("referenceableParamGroup")) {
+                    currentGroup = new ArrayList<CVParam>();
+                    header.paramGroups.put(
+                            reader.getAttributeValue(null, "id"),
+                            currentGroup);
+                } else if (name.equals("cvParam") && (currentGroup != null)) {
+                    currentGroup.add(readCVParam(reader));
+                } else if (name.equals("spectrumList")) {
+                    String count = reader.getAttributeValue(null, "count");
+                    if (count != null)
+                        header.spectrumCount = Integer.parseInt(count);
+                    return header;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (getLocalName(reader).equals("referenceableParamGroup"))
+                    currentGroup = null;
+            }
+        }
+        return header;
+
+    }
+
+    /**
+     * Reads the byte offsets of the spectra from the index of an
+     * indexedmzML file
+     * 
+     * @return offsets in the order of the index, or null if the file has no
+     *         index
+     */
+    static long[] readSpectrumOffsets(File file, XMLInputFactory factory)
+            throws IOException, XMLStreamException {
+
+        long indexListOffset;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long searchStart = Math.max(0, randomAccessFile.length()
+                    - INDEX_LIST_OFFSET_SEARCH_SIZE);
+            byte fileEnd[] = new byte[(int) (randomAccessFile.length() - searchStart)];
+            randomAccessFile.seek(searchStart);
+            randomAccessFile.readFully(fileEnd);
+            Matcher matcher = INDEX_LIST_OFFSET_PATTERN.matcher(new String(
+                    fileEnd, StandardCharsets.US_ASCII));
+            if (!matcher.find())
+                return null;
+            indexListOffset = Long.parseLong(matcher.group(1));
+            if (indexListOffset >= randomAccessFile.length())
+                return null;
+        } finally {
+            randomAccessFile.close();
+        }
+
+        long offsets[] = new long[1024];
+        int numOfOffsets = 0;
+        boolean inSpectrumIndex = false;
+        InputStream stream = openFileRange(file, indexListOffset, -1);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = getLocalName(reader);
+                    if (name.equals("index")) {
+                        inSpectrumIndex = "spectrum".equals(reader
+                                .getAttributeValue(null, "name"));
+                    } else if (name.equals("offset") && inSpectrumIndex) {
+                        if (numOfOffsets == offsets.length)
+                            offsets = Arrays.copyOf(offsets, numOfOffsets * 2);
+                        offsets[numOfOffsets++] = Long.parseLong(reader
+                                .getElementText().trim());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = getLocalName(reader);
+                    if (name.equals("index"))
+                        inSpectrumIndex = false;
+                    if (name.equals("indexList"))
+                        break;
+                }
+            }
+            reader.close();
+        } finally {
+            stream.close();
+        }
+
+        return Arrays.copyOf(offsets, numOfOffsets);
+
+    }
+
+    /**
+     * Checks that the offsets are increasing and that a spectrum starts at
+     * each of given offsets, as some converters write broken indexes
+     */
+    static boolean checkSpectrumOffsets(File file, long offsets[],
+            int checkedOffsets[]) throws IOException {
+
+        for (int i = 1; i < offsets.length; i++) {
+            if (offsets[i] <= offsets[i - 1])
+                return false;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte start[] = new byte[SPECTRUM_START.length];
+            for (int i : checkedOffsets) {
+                if (offsets[i] + start.length > randomAccessFile.length())
+                    return false;
+                randomAccessFile.seek(offsets[i]);
+                randomAccessFile.readFully(start);
+                if (!Arrays.equals(start, SPECTRUM_START))
+                    return false;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        return true;
+
+    }
+
+    /**
+     * Reads the spectra starting at given byte offset. The reading stops at
+     * the end offset, if it is not negative, or after given number of
+     * spectra.
+     */
+    List<ParsedSpectrum> readSpectra(File file, XMLInputFactory factory,
+            String encoding, long startOffset, long endOffset,
+            int maxSpectra) throws IOException, XMLStreamException,
+            DataFormatException {
+
+        List<ParsedSpectrum> spectra = new ArrayList<ParsedSpectrum>();
+        InputStream stream = openFileRange(file, startOffset, endOffset);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream,
+                    encoding == null ? "UTF-8" : encoding);
+            while ((spectra.size() < maxSpectra) && reader.hasNext()) {
+                int event = reader.next();
+                if ((event == XMLStreamConstants.START_ELEMENT)
+                        && getLocalName(reader).equals(SPECTRUM))
+                    spectra.add(readSpectrum(reader));
+            }
+            reader.close();
+        } finally {
+            stream.close();
+        }
+        return spectra;
+
+    }
+
+    /**
+     * Reads the next spectrum of the spectrum list
+     * 
+     * @return the spectrum, or null at the end of the spectrum list
+     */
+    ParsedSpectrum readNextSpectrum(XMLStreamReader reader)
+            throws XMLStreamException, DataFormatException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (getLocalName(reader).equals(SPECTRUM))
+                    return readSpectrum(reader);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (getLocalName(reader).equals("spectrumList"))
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the spectrum whose start element is the current event of the
+     * reader, up to its end element
+     */
+    private ParsedSpectrum readSpectrum(XMLStreamReader reader)
+            throws XMLStreamException, DataFormatException {
+
+        spectrum = new ParsedSpectrum();
+        spectrum.id = reader.getAttributeValue(null, "id");
+        String defaultArrayLengthValue = reader.getAttributeValue(null,
+                "defaultArrayLength");
+        defaultArrayLength = (defaultArrayLengthValue == null) ? 0 : Integer
+                .parseInt(defaultArrayLengthValue);
+
+        openElements.clear();
+        openElements.add(SPECTRUM);
+        msLevelFound = retentionTimeFound = 0;
+        scanPolarity = null;
+        scanScanDefinition = null;
+        precursorFound = precursorSearchFinished = false;
+        precursorMzFound = precursorChargeFound = false;
+        arrayIndex = 0;
+        numOfMZValues = numOfIntensityValues = -1;
+        boolean spectrumPolarityFound = false;
+
+        while (!openElements.isEmpty()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = getLocalName(reader);
+                String parent = openElements.get(openElements.size() - 1);
+                openElements.add(name);
+
+                if (name.equals("cvParam")) {
+                    CVParam param = readCVParam(reader);
+                    spectrumPolarityFound |= processParam(parent, param,
+                            spectrumPolarityFound);
+                } else if (name.equals("referenceableParamGroupRef")) {
+                    List<CVParam> group = paramGroups.get(reader
+                            .getAttributeValue(null, "ref"));
+                    if (group == null)
+                        group = Collections.emptyList();
+                    for (CVParam param : group)
+                        spectrumPolarityFound |= processParam(parent, param,
+                                spectrumPolarityFound);
+                } else if (name.equals(PRECURSOR)) {
+                    selectedIonFound = false;
+                    if (!precursorFound) {
+                        precursorFound = true;
+                        spectrum.precursorId = reader.getAttributeValue(null,
+                                "spectrumRef");
+                    }
+                } else if (name.equals(SELECTED_ION)) {
+                    selectedIonFound = true;
+                } else if (name.equals(BINARY_DATA_ARRAY)) {
+                    startBinaryDataArray(reader);
+                } else if (name.equals(BINARY)) {
+                    readBinary(reader);
+                    openElements.remove(openElements.size() - 1);
+                }
+
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = openElements.remove(openElements.size() - 1);
+                if (name.equals(PRECURSOR)) {
+                    // The precursor m/z and charge are only searched until
+                    // the first precursor without selected ions
+                    if (!selectedIonFound)
+                        precursorSearchFinished = true;
+                } else if (name.equals(BINARY_DATA_ARRAY)) {
+                    endBinaryDataArray();
+                }
+            }
+        }
+
+        // Spectrum parameters take precedence over the scan parameters
+        if ((!spectrumPolarityFound) && (scanPolarity != null))
+            spectrum.polarity = scanPolarity;
+        if (spectrum.scanDefinition == null)
+            spectrum.scanDefinition = scanScanDefinition;
+        if (spectrum.scanDefinition == null)
+            spectrum.scanDefinition = spectrum.id;
+
+        createDataPoints();
+
+        ParsedSpectrum result = spectrum;
+        spectrum = null;
+        return result;
+
+    }
+
+    /**
+     * Processes a parameter of given element of the spectrum
+     * 
+     * @return true if the parameter is the polarity of the spectrum
+     */
+    private boolean processParam(String element, CVParam param,
+            boolean spectrumPolarityFound) {
+
+        final String accession = param.accession;
+        if (accession == null)
+            return false;
+
+        if (element.equals(SPECTRUM)) {
+            // MS level MS:1000511
+            if (accession.equals("MS:1000511") && (param.value != null)
+                    && (msLevelFound++ == 0))
+                spectrum.msLevel = Integer.parseInt(param.value);
+            // Electromagnetic radiation spectrum MS:1000804, e.g. UV
+            if (accession.equals("MS:1000804"))
+                spectrum.msSpectrum = false;
+            // Filter string MS:1000512
+            if (accession.equals("MS:1000512")
+                    && (spectrum.scanDefinition == null))
+                spectrum.scanDefinition = param.value;
+            if (!spectrumPolarityFound) {
+                if (accession.equals("MS:1000130")) {
+                    spectrum.polarity = PolarityType.POSITIVE;
+                    return true;
+                }
+                if (accession.equals("MS:1000129")) {
+                    spectrum.polarity = PolarityType.NEGATIVE;
+                    return true;
+                }
+            }
+        }
+
+        else if (element.equals(SCAN)) {
+            // Retention time (actually "Scan start time") MS:1000016
+            if (accession.equals("MS:1000016") && (param.value != null)
+                    && (retentionTimeFound++ == 0)) {
+                // MS:1000038 is used in mzML 1.0, while UO:0000031
+                // is used in mzML 1.1.0 :-/
+                String unitAccession = param.unitAccession;
+                if ((unitAccession == null)
+                        || (unitAccession.equals("MS:1000038"))
+                        || unitAccession.equals("UO:0000031")) {
+                    spectrum.retentionTime = Double.parseDouble(param.value);
+                } else {
+                    spectrum.retentionTime = Double.parseDouble(param.value) / 60d;
+                }
+            }
+            if (accession.equals("MS:1000512") && (scanScanDefinition == null))
+                scanScanDefinition = param.value;
+            if (scanPolarity == null) {
+                if (accession.equals("MS:1000130"))
+                    scanPolarity = PolarityType.POSITIVE;
+                if (accession.equals("MS:1000129"))
+                    scanPolarity = PolarityType.NEGATIVE;
+            }
+        }
+
+        else if (element.equals(SELECTED_ION)) {
+            if (precursorSearchFinished || (param.value == null))
+                return false;
+            // MS:1000040 is used in mzML 1.0,
+            // MS:1000744 is used in mzML 1.1.0
+            if ((accession.equals("MS:1000040") || accession
+                    .equals("MS:1000744")) && !precursorMzFound) {
+                spectrum.precursorMz = Double.parseDouble(param.value);
+                precursorMzFound = true;
+            }
+            if (accession.equals("MS:1000041") && !precursorChargeFound) {
+                spectrum.precursorCharge = Integer.parseInt(param.value);
+                precursorChargeFound = true;
+            }
+        }
+
+        else if (element.equals(BINARY_DATA_ARRAY)) {
+            processBinaryDataArrayParam(accession);
+        }
+
+        return false;
+
+    }
+
+    private void startBinaryDataArray(XMLStreamReader reader) {
+        String arrayLengthValue = reader.getAttributeValue(null,
+                "arrayLength");
+        arrayLength = (arrayLengthValue == null) ? defaultArrayLength
+                : Integer.parseInt(arrayLengthValue);
+        doublePrecision = integerValues = zlibCompression = false;
+        arrayType = UNKNOWN_ARRAY;
+        encodedLength = 0;
+    }
+
+    private void processBinaryDataArrayParam(String accession) {
+        switch (accession) {
+        case "MS:1000521": // 32-bit float
+            doublePrecision = false;
+            integerValues = false;
+            break;
+        case "MS:1000523": // 64-bit float
+            doublePrecision = true;
+            integerValues = false;
+            break;
+        case "MS:1000519": // 32-bit integer
+            doublePrecision = false;
+            integerValues = true;
+            break;
+        case "MS:1000522": // 64-bit integer
+            doublePrecision = true;
+            integerValues = true;
+            break;
+        case "MS:1000574": // zlib compression
+            zlibCompression = true;
+            break;
+        case "MS:1000576": // no compression
+            zlibCompression = false;
+            break;
+        case "MS:1002312": // MS-Numpress linear prediction compression
+        case "MS:1002313": // MS-Numpress positive integer compression
+        case "MS:1002314": // MS-Numpress short logged float compression
+            throw new IllegalStateException(
+                    "MS-Numpress compression is not supported");
+        case "MS:1000514": // m/z array
+            arrayType = MZ_ARRAY;
+            break;
+        case "MS:1000515": // intensity array
+            arrayType = INTENSITY_ARRAY;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Collects the base64 characters of the binary element, up to its end
+     * element
+     */
+    private void readBinary(XMLStreamReader reader) throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT)
+                return;
+            if ((event != XMLStreamConstants.CHARACTERS)
+                    && (event != XMLStreamConstants.CDATA)
+                    && (event != XMLStreamConstants.SPACE))
+                continue;
+            char text[] = reader.getTextCharacters();
+            int start = reader.getTextStart();
+            int end = start + reader.getTextLength();
+            if (encodedBytes.length < encodedLength + (end - start))
+                encodedBytes = Arrays.copyOf(encodedBytes,
+                        Math.max(encodedBytes.length * 2, encodedLength + end
+                                - start));
+            for (int i = start; i < end; i++) {
+                char c = text[i];
+                if (!Character.isWhitespace(c))
+                    encodedBytes[encodedLength++] = (byte) c;
+            }
+        }
+    }
+
+    /**
+     * Decodes the binary data array which was just read into the m/z or
+     * intensity values. Arrays without a known type are taken in the order
+     * m/z, intensity.
+     */
+    private void endBinaryDataArray() throws DataFormatException {
+
+        int type = arrayType;
+        if (type == UNKNOWN_ARRAY) {
+            if (arrayIndex == 0)
+                type = MZ_ARRAY;
+            else if (arrayIndex == 1)
+                type = INTENSITY_ARRAY;
+        }
+        arrayIndex++;
+        if ((type == UNKNOWN_ARRAY)
+                || ((type == MZ_ARRAY) && (numOfMZValues >= 0))
+                || ((type == INTENSITY_ARRAY) && (numOfIntensityValues >= 0))
+                || (!spectrum.msSpectrum))
+            return;
+
+        ByteBuffer decoded = Base64.getDecoder().decode(
+                ByteBuffer.wrap(encodedBytes, 0, encodedLength));
+        byte bytes[] = decoded.array();
+        int numOfBytes = decoded.remaining();
+        final int valueSize = doublePrecision ? 8 : 4;
+        if (zlibCompression) {
+            // The array length tells the size of the inflated data, so
+            // usually no copying is needed
+            Inflater inflater = new Inflater();
+            inflater.setInput(bytes, 0, numOfBytes);
+            byte inflated[] = new byte[Math.max(arrayLength * valueSize,
+                    numOfBytes * 2)];
+            numOfBytes = 0;
+            while (!inflater.finished()) {
+                if (numOfBytes == inflated.length)
+                    inflated = Arrays.copyOf(inflated, inflated.length * 2);
+                int length = inflater.inflate(inflated, numOfBytes,
+                        inflated.length - numOfBytes);
+                if ((length == 0)
+                        && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                numOfBytes += length;
+            }
+            inflater.end();
+            bytes = inflated;
+        }
+
+        final int numOfValues = numOfBytes / valueSize;
+        double values[] = (type == MZ_ARRAY) ? mzValues : intensityValues;
+        if (values.length < numOfValues)
+            values = new double[numOfValues];
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, numOfBytes).order(
+                ByteOrder.LITTLE_ENDIAN);
+        if (integerValues && doublePrecision) {
+            for (int i = 0; i < numOfValues; i++)
+                values[i] = buffer.getLong();
+        } else if (integerValues) {
+            for (int i = 0; i < numOfValues; i++)
+                values[i] = buffer.getInt();
+        } else if (doublePrecision) {
+            buffer.asDoubleBuffer().get(values, 0, numOfValues);
+        } else {
+            for (int i = 0; i < numOfValues; i++)
+                values[i] = buffer.getFloat();
+        }
+
+        if (type == MZ_ARRAY) {
+            mzValues = values;
+            numOfMZValues = numOfValues;
+        } else {
+            intensityValues = values;
+            numOfIntensityValues = numOfValues;
+        }
+
+    }
+
+    /**
+     * Creates the data points of the spectrum from the decoded arrays and
+     * detects the spectrum type
+     */
+    private void createDataPoints() {
+
+        int numOfDataPoints = Math.min(numOfMZValues, numOfIntensityValues);
+        if (numOfDataPoints < 0)
+            numOfDataPoints = 0;
+
+        dataPointsBuffer.clear();
+        dataPointsBuffer.ensureCapacity(numOfDataPoints);
+        System.arraycopy(mzValues, 0, dataPointsBuffer.getMZValues(), 0,
+                numOfDataPoints);
+        System.arraycopy(intensityValues, 0,
+                dataPointsBuffer.getIntensityValues(), 0, numOfDataPoints);
+        dataPointsBuffer.setSize(numOfDataPoints);
+
+        // Auto-detect whether this scan is centroided
+        spectrum.spectrumType = ScanUtils.detectSpectrumType(dataPointsBuffer);
+        spectrum.dataPoints = dataPointsBuffer.toDataPoints();
+
+    }
+
+    private static CVParam readCVParam(XMLStreamReader reader) {
+        return new CVParam(reader.getAttributeValue(null, "accession"),
+                reader.getAttributeValue(null, "value"),
+                reader.getAttributeValue(null, "unitAccession"));
+    }
+
+    /**
+     * Returns the local name of the current element. The reader is not
+     * namespace aware, so any prefix is removed.
+     */
+    private static String getLocalName(XMLStreamReader reader) {
+        String name = reader.getLocalName();
+        int colon = name.indexOf(':');
+        return (colon < 0) ? name : name.substring(colon + 1);
+    }
+
+    /**
+     * Opens the bytes of the file from given offset up to the end offset, or
+     * up to the end of the file if the end offset is negative. The bytes are
+     * enclosed in a root element, so a sequence of spectra is a well-formed
+     * document.
+     */
+    private static InputStream openFileRange(File file, long startOffset,
+            long endOffset) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            fileStream.getChannel().position(startOffset);
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+        InputStream range = fileStream;
+        if (endOffset >= 0)
+            range = ByteStreams.limit(fileStream, endOffset - startOffset);
+        List<InputStream> streams = Arrays.asList(
+                new ByteArrayInputStream("<mzMLRange>"
+                        .getBytes(StandardCharsets.US_ASCII)), range,
+                new ByteArrayInputStream("</mzMLRange>"
+                        .getBytes(StandardCharsets.US_ASCII)));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+}
@@ -24,7 +24,12 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 
@@ -96,11 +101,45 @@ public class MzXMLReadTask extends AbstractTask {
      */
     private SimpleScan buildingScan;
 
+    /*
+     * The peaks of each scan are decoded by sub-tasks, while the SAX parser
+     * continues reading the file. This map holds the decoding results of the
+     * scans which are not complete yet.
+     */
+    private Map<SimpleScan, Future<DecodedPeaks>> decodingPeaks;
+
+    /*
+     * Completed scans wait in this queue until their peaks are decoded, so
+     * that they are added to the RawDataFile in the original order. The number
+     * of scans in the queue is limited to maxPendingScans, to bound the memory
+     * used by the encoded peaks.
+     */
+    private LinkedList<PendingScan> pendingScans;
+    private int maxPendingScans;
+
+    private static class PendingScan {
+        final SimpleScan scan;
+        final Future<DecodedPeaks> decodedPeaks;
+
+        PendingScan(SimpleScan scan, Future<DecodedPeaks> decodedPeaks) {
+            this.scan = scan;
+            this.decodedPeaks = decodedPeaks;
+        }
+    }
+
+    private static class DecodedPeaks {
+        DataPoint dataPoints[];
+        MassSpectrumType spectrumType;
+        String errorMessage;
+    }
+
     public MzXMLReadTask(MZmineProject project, File fileToOpen,
             RawDataFileWriter newMZmineFile) {
         // 256 kilo-chars buffer
         charBuffer = new StringBuilder(1 << 18);
         parentStack = new LinkedList<SimpleScan>();
+        decodingPeaks = new IdentityHashMap<SimpleScan, Future<DecodedPeaks>>();
+        pendingScans = new LinkedList<PendingScan>();
         this.project = project;
         this.file = fileToOpen;
         this.newMZmineFile = newMZmineFile;
@@ -128,9 +167,15 @@ public class MzXMLReadTask extends AbstractTask {
 
             dataTypeFactory = DatatypeFactory.newInstance();
 
+            // Keep a few scans per decoding thread in the pipeline
+            maxPendingScans = 4 * getParallelism();
+
             SAXParser saxParser = factory.newSAXParser();
             saxParser.parse(file, handler);
 
+            // Add the scans which are still being decoded
+            writePendingScans(0);
+
             // Close file
             finalRawDataFile = newMZmineFile.finishWriting();
             project.addFile(finalRawDataFile);
@@ -301,15 +346,10 @@ public class MzXMLReadTask extends AbstractTask {
                     buildingScan = null;
                     while (!parentStack.isEmpty()) {
                         SimpleScan currentScan = parentStack.removeLast();
-                        try {
-                            newMZmineFile.addScan(currentScan);
-                        } catch (IOException e) {
-                            setStatus(TaskStatus.ERROR);
-                            setErrorMessage("IO error: " + e);
-                            throw new SAXException("Parsing cancelled");
-                        }
-                        parsedScans++;
+                        pendingScans.add(new PendingScan(currentScan,
+                                decodingPeaks.remove(currentScan)));
                     }
+                    writePendingScans(maxPendingScans);
 
                     /*
                      * The scan with all his fragments is in the RawDataFile,
@@ -335,73 +375,148 @@ public class MzXMLReadTask extends AbstractTask {
             // <peaks>
             if (qName.equalsIgnoreCase("peaks")) {
 
-                byte[] peakBytes = Base64.decode(charBuffer.toString());
-
-                if (compressFlag) {
-                    try {
-                        peakBytes = CompressionUtils.decompress(peakBytes);
-                    } catch (DataFormatException e) {
-                        setStatus(TaskStatus.ERROR);
-                        setErrorMessage("Corrupt compressed peak: "
-                                + e.toString());
-                        throw new SAXException("Parsing Cancelled");
+                // Decode the peaks in a sub-task, the SAX parser can continue
+                final String encodedPeaks = charBuffer.toString();
+                final boolean compressed = compressFlag;
+                final String peaksPrecision = precision;
+                final int numOfPeaks = peaksCount;
+                Future<DecodedPeaks> decodedPeaks = submitSubTask(new Callable<DecodedPeaks>() {
+                    @Override
+                    public DecodedPeaks call() {
+                        return decodePeaks(encodedPeaks, compressed,
+                                peaksPrecision, numOfPeaks);
                     }
-                }
+                });
+                decodingPeaks.put(buildingScan, decodedPeaks);
 
-                // make a data input stream
-                DataInputStream peakStream = new DataInputStream(
-                        new ByteArrayInputStream(peakBytes));
+                return;
+            }
+        }
+
+        /**
+         * characters()
+         * 
+         * @see org.xml.sax.ContentHandler#characters(char[], int, int)
+         */
+        public void characters(char buf[], int offset, int len)
+                throws SAXException {
+            charBuffer.append(buf, offset, len);
+        }
+    }
 
-                DataPoint dataPoints[] = new DataPoint[peaksCount];
+    /**
+     * Adds the completed scans to the RawDataFile in their original order,
+     * until at most maxPending scans remain in the queue. Scans whose peaks
+     * are already decoded are added even if the queue is not full.
+     */
+    private void writePendingScans(int maxPending) throws SAXException {
 
-                try {
-                    for (int i = 0; i < dataPoints.length; i++) {
-
-                        // Always respect this order pairOrder="m/z-int"
-                        double massOverCharge;
-                        double intensity;
-                        if ("64".equals(precision)) {
-                            massOverCharge = peakStream.readDouble();
-                            intensity = peakStream.readDouble();
-                        } else {
-                            massOverCharge = (double) peakStream.readFloat();
-                            intensity = (double) peakStream.readFloat();
-                        }
+        while (!pendingScans.isEmpty()) {
 
-                        // Copy m/z and intensity data
-                        dataPoints[i] = new SimpleDataPoint(massOverCharge,
-                                intensity);
+            PendingScan pendingScan = pendingScans.getFirst();
+            if ((pendingScans.size() <= maxPending)
+                    && (pendingScan.decodedPeaks != null)
+                    && (!pendingScan.decodedPeaks.isDone()))
+                break;
+            pendingScans.removeFirst();
 
-                    }
-                } catch (IOException eof) {
+            SimpleScan currentScan = pendingScan.scan;
+            if (pendingScan.decodedPeaks != null) {
+                DecodedPeaks decodedPeaks;
+                try {
+                    decodedPeaks = pendingScan.decodedPeaks.get();
+                } catch (InterruptedException | ExecutionException e) {
                     setStatus(TaskStatus.ERROR);
-                    setErrorMessage("Corrupt mzXML file");
+                    setErrorMessage("Error decoding peaks: " + e);
                     throw new SAXException("Parsing Cancelled");
                 }
 
-                // Auto-detect whether this scan is centroided
-                MassSpectrumType spectrumType = ScanUtils
-                        .detectSpectrumType(dataPoints);
+                // Decoding is skipped when the task is canceled
+                if (decodedPeaks == null)
+                    throw new SAXException("Parsing Cancelled");
+
+                if (decodedPeaks.errorMessage != null) {
+                    setStatus(TaskStatus.ERROR);
+                    setErrorMessage(decodedPeaks.errorMessage);
+                    throw new SAXException("Parsing Cancelled");
+                }
 
                 // Set the centroided tag
-                buildingScan.setSpectrumType(spectrumType);
+                currentScan.setSpectrumType(decodedPeaks.spectrumType);
 
                 // Set the final data points to the scan
-                buildingScan.setDataPoints(dataPoints);
+                currentScan.setDataPoints(decodedPeaks.dataPoints);
+            }
 
-                return;
+            try {
+                newMZmineFile.addScan(currentScan);
+            } catch (IOException e) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage("IO error: " + e);
+                throw new SAXException("Parsing cancelled");
             }
+            parsedScans++;
+
         }
 
-        /**
-         * characters()
-         * 
-         * @see org.xml.sax.ContentHandler#characters(char[], int, int)
-         */
-        public void characters(char buf[], int offset, int len)
-                throws SAXException {
-            charBuffer.append(buf, offset, len);
+    }
+
+    /**
+     * Decodes the base64 encoded, optionally compressed content of a peaks
+     * element. This method is called by the decoding sub-tasks, so it must
+     * not touch the state of the parser.
+     */
+    private static DecodedPeaks decodePeaks(String encodedPeaks,
+            boolean compressed, String precision, int peaksCount) {
+
+        DecodedPeaks result = new DecodedPeaks();
+
+        byte[] peakBytes = Base64.decode(encodedPeaks);
+
+        if (compressed) {
+            try {
+                peakBytes = CompressionUtils.decompress(peakBytes);
+            } catch (DataFormatException e) {
+                result.errorMessage = "Corrupt compressed peak: "
+                        + e.toString();
+                return result;
+            }
+        }
+
+        // make a data input stream
+        DataInputStream peakStream = new DataInputStream(
+                new ByteArrayInputStream(peakBytes));
+
+        DataPoint dataPoints[] = new DataPoint[peaksCount];
+
+        try {
+            for (int i = 0; i < dataPoints.length; i++) {
+
+                // Always respect this order pairOrder="m/z-int"
+                double massOverCharge;
+                double intensity;
+                if ("64".equals(precision)) {
+                    massOverCharge = peakStream.readDouble();
+                    intensity = peakStream.readDouble();
+                } else {
+                    massOverCharge = (double) peakStream.readFloat();
+                    intensity = (double) peakStream.readFloat();
+                }
+
+                // Copy m/z and intensity data
+                dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
+
+            }
+        } catch (IOException eof) {
+            result.errorMessage = "Corrupt mzXML file";
+            return result;
         }
+
+        // Auto-detect whether this scan is centroided
+        result.spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+        result.dataPoints = dataPoints;
+
+        return result;
     }
 
 }
@@ -28,6 +28,7 @@ import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.IntensityPyramid;
 import net.sf.mzmine.util.ScanUtils;
 import net.sf.mzmine.util.ScanUtils.BinningType;
 import visad.Linear2DSet;
@@ -120,8 +121,28 @@ class ThreeDSamplingTask extends AbstractTask {
                     * rtResolution];
             boolean rtDataSet[] = new boolean[rtResolution];
 
+            // If the 2D visualizer already binned the same scans finely
+            // enough in both m/z and retention time, sample the binned intensities instead of the scans.
+            // Profile scans are binned with interpolation of the empty bins,
+            // which the pyramid cannot do, so they are always read.
+            IntensityPyramid pyramid = IntensityPyramid.getCachedPyramid(
+                    dataFile, scans, mzRange);
+            final double mzStep = (mzRange.upperEndpoint() - mzRange
+                    .lowerEndpoint()) / mzResolution;
+            if ((pyramid != null)
+                    && ((pyramid.getBinWidth() > mzStep) || (pyramid
+                            .getScansPerRow() > Math.max(1, scans.length
+                            / rtResolution))))
+                pyramid = null;
+            for (int scanIndex = 0; (pyramid != null)
+                    && (scanIndex < scans.length); scanIndex++) {
+                if (scans[scanIndex].getSpectrumType() != MassSpectrumType.CENTROIDED)
+                    pyramid = null;
+            }
+
             // load scans
-            for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+            for (int scanIndex = 0; (pyramid == null)
+                    && (scanIndex < scans.length); scanIndex++) {
 
                 if (isCanceled())
                     return;
@@ -167,6 +188,13 @@ class ThreeDSamplingTask extends AbstractTask {
 
             }
 
+            if (pyramid != null) {
+                samplePyramid(pyramid, rtStep, mzStep, intensityValues[0],
+                        rtDataSet);
+                if (isCanceled())
+                    return;
+            }
+
             // Interpolate missing values on the RT-axis
             for (int rtIndex = 1; rtIndex < rtResolution - 1; rtIndex++) {
 
@@ -226,4 +254,55 @@ class ThreeDSamplingTask extends AbstractTask {
 
     }
 
+    /**
+     * Fills the intensity values from the binned intensities of the scans in
+     * each retention time bin
+     */
+    private void samplePyramid(IntensityPyramid pyramid, double rtStep,
+            double mzStep, float intensityValues[], boolean rtDataSet[]) {
+
+        int firstBins[] = new int[mzResolution + 1];
+        for (int mzIndex = 0; mzIndex <= mzResolution; mzIndex++)
+            firstBins[mzIndex] = pyramid.getFirstBinIndex(mzRange
+                    .lowerEndpoint() + mzIndex * mzStep);
+
+        int firstScan = 0;
+        while (firstScan < scans.length) {
+
+            if (isCanceled())
+                return;
+
+            // Scans are sorted by retention time, so the scans of one bin
+            // are consecutive
+            int scanBinIndex = getScanBinIndex(firstScan, rtStep);
+            int lastScan = firstScan;
+            while ((lastScan + 1 < scans.length)
+                    && (getScanBinIndex(lastScan + 1, rtStep) == scanBinIndex))
+                lastScan++;
+
+            for (int mzIndex = 0; mzIndex < mzResolution; mzIndex++) {
+                double intensity = pyramid.getMaxIntensity(firstScan,
+                        lastScan, firstBins[mzIndex],
+                        firstBins[mzIndex + 1] - 1);
+                intensityValues[(rtResolution * mzIndex) + scanBinIndex] = (float) intensity;
+                if (intensity > maxBinnedIntensity)
+                    maxBinnedIntensity = intensity;
+            }
+
+            rtDataSet[scanBinIndex] = true;
+            retrievedScans += lastScan - firstScan + 1;
+            firstScan = lastScan + 1;
+        }
+    }
+
+    private int getScanBinIndex(int scanIndex, double rtStep) {
+        double rt = scans[scanIndex].getRetentionTime();
+        int scanBinIndex = (int) ((rt - rtRange.lowerEndpoint()) / rtStep);
+
+        // last scan falls into last bin
+        if (scanBinIndex == rtResolution)
+            scanBinIndex--;
+        return scanBinIndex;
+    }
+
 }
@@ -23,6 +23,7 @@ import java.lang.ref.SoftReference;
 import java.util.Arrays;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
@@ -31,6 +32,7 @@ import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.IntensityPyramid;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
@@ -48,6 +50,9 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     private double basePeaks[];
     private SoftReference<DataPoint[]> dataPointMatrix[];
 
+    // Binned maximum intensities, available once all scans are processed
+    private volatile IntensityPyramid pyramid;
+
     private final Range<Double> totalRTRange, totalMZRange;
     private int totalScans, processedScans;
     private final Scan scans[];
@@ -80,6 +85,14 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
         status = TaskStatus.PROCESSING;
 
+        // Another visualizer of the same scans may have built the pyramid
+        IntensityPyramid newPyramid = IntensityPyramid.getCachedPyramid(
+                rawDataFile, scans, totalMZRange);
+        boolean buildPyramid = (newPyramid == null);
+        if (buildPyramid)
+            newPyramid = new IntensityPyramid(scans, totalMZRange);
+        DataPointsBuffer buffer = new DataPointsBuffer();
+
         for (int index = 0; index < totalScans; index++) {
 
             // Cancel?
@@ -91,12 +104,19 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
             retentionTimes[index] = scan.getRetentionTime();
             basePeaks[index] = (scanBasePeak == null ? 0 : scanBasePeak
                     .getIntensity());
-            DataPoint scanDataPoints[] = scan.getDataPoints();
-            dataPointMatrix[index] = new SoftReference<DataPoint[]>(
-                    scanDataPoints);
+            if (buildPyramid) {
+                scan.getDataPoints(buffer);
+                newPyramid.addScan(index, buffer);
+            }
             processedScans++;
         }
 
+        if (buildPyramid) {
+            newPyramid.finish();
+            IntensityPyramid.cachePyramid(rawDataFile, newPyramid);
+        }
+        pyramid = newPyramid;
+
         fireDatasetChanged();
 
         status = TaskStatus.FINISHED;
@@ -147,6 +167,20 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     double upperEndpointIntensity(Range<Double> rtRange, Range<Double> mzRange,
             PlotMode plotMode) {
 
+        // If the ranges cover at least one pyramid bin and row, use the
+        // binned intensities instead of the data points. Empty bins stay
+        // empty, also in the continuous mode.
+        final IntensityPyramid pyramid = this.pyramid;
+        if (isPyramidUsable(pyramid, mzRange)) {
+            int firstScan = pyramid.getFirstScanIndex(rtRange.lowerEndpoint());
+            int lastScan = pyramid.getLastScanIndex(rtRange.upperEndpoint());
+            if (lastScan - firstScan + 1 >= pyramid.getScansPerRow()) {
+                return pyramid.getMaxIntensity(firstScan, lastScan,
+                        pyramid.getFirstBinIndex(mzRange.lowerEndpoint()),
+                        pyramid.getFirstBinIndex(mzRange.upperEndpoint()) - 1);
+            }
+        }
+
         double maxIntensity = 0;
 
         double searchRetentionTimes[] = retentionTimes;
@@ -208,7 +242,19 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     private double upperEndpointIntensity(int dataPointMatrixIndex,
             Range<Double> mzRange, PlotMode plotMode) {
-        DataPoint dataPoints[] = dataPointMatrix[dataPointMatrixIndex].get();
+        final IntensityPyramid pyramid = this.pyramid;
+        if (isPyramidUsable(pyramid, mzRange)
+                && (pyramid.getScansPerRow() == 1)) {
+            return pyramid.getMaxIntensity(dataPointMatrixIndex,
+                    dataPointMatrixIndex,
+                    pyramid.getFirstBinIndex(mzRange.lowerEndpoint()),
+                    pyramid.getFirstBinIndex(mzRange.upperEndpoint()) - 1);
+        }
+
+        // Data points are only loaded when zoomed in below the finest
+        // resolution of the pyramid
+        SoftReference<DataPoint[]> reference = dataPointMatrix[dataPointMatrixIndex];
+        DataPoint dataPoints[] = (reference == null ? null : reference.get());
         if (dataPoints == null) {
             Scan scan = scans[dataPointMatrixIndex];
             dataPoints = scan.getDataPoints();
@@ -266,6 +312,13 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     }
 
+    private static boolean isPyramidUsable(IntensityPyramid pyramid,
+            Range<Double> mzRange) {
+        return (pyramid != null)
+                && (mzRange.upperEndpoint() - mzRange.lowerEndpoint() >= pyramid
+                        .getBinWidth());
+    }
+
     @Override
     public void cancel() {
         status = TaskStatus.CANCELED;
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the data point values stored by RawDataFileImpl, shared by all raw
+ * data files. Only one project is open at a time, and raw data files remove
+ * their entries when they are closed, so this is effectively a per-project
+ * cache. Entries are keyed by a number identifying the raw data file, not by
+ * the file itself, so a file which was dropped without being closed is not
+ * kept reachable by the cache. Its entries are evicted like any other.
+ *
+ * Recently used values are kept in LRU maps, up to the maximum size in bytes
+ * set in the preferences. Values evicted from the LRU maps are still
+ * reachable through soft references, until the garbage collector needs the
+ * memory.
+ *
+ * Scans are read from many threads at once, so the cache is split into
+ * segments by key hash, each with its own lock, LRU order and share of the
+ * maximum size. The LRU order is therefore only approximate. When the cache
+ * is disabled, get() and put() return without taking any lock.
+ */
+public class DataPointsCache {
+
+    private static final DataPointsCache instance = new DataPointsCache();
+
+    // Default size is 256 MB, see MZminePreferences.dataPointsCacheSize
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    // Approximate memory used by a map entry, its key and the array header
+    private static final int ENTRY_OVERHEAD = 96;
+
+    // Number of independently locked segments, must be a power of two
+    private static final int SEGMENTS = 16;
+
+    private static final AtomicLong nextDataFileKey = new AtomicLong();
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private static final class Key {
+	final long dataFileKey;
+	final int ID;
+
+	Key(RawDataFileImpl dataFile, int ID) {
+	    this.dataFileKey = dataFile.getCacheKey();
+	    this.ID = ID;
+	}
+
+	@Override
+	public int hashCode() {
+	    return 31 * Long.hashCode(dataFileKey) + ID;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof Key))
+		return false;
+	    Key key = (Key) obj;
+	    return (dataFileKey == key.dataFileKey) && (ID == key.ID);
+	}
+    }
+
+    private static final class SoftEntry extends SoftReference<float[]> {
+	final Key key;
+
+	SoftEntry(Key key, float values[], ReferenceQueue<float[]> queue) {
+	    super(values, queue);
+	    this.key = key;
+	}
+    }
+
+    /**
+     * Part of the cache, guarded by its own monitor
+     */
+    private final class Segment {
+
+	// Iteration order of this map is the access order, so the first entry
+	// is the least recently used one
+	private final LinkedHashMap<Key, float[]> entries = new LinkedHashMap<Key, float[]>(
+		64, 0.75f, true);
+	private final Map<Key, SoftEntry> softEntries = new HashMap<Key, SoftEntry>();
+	private final ReferenceQueue<float[]> softQueue = new ReferenceQueue<float[]>();
+	private long maxSize, size = 0;
+
+	synchronized float[] get(Key key) {
+	    float values[] = entries.get(key);
+	    if (values == null) {
+		expungeSoftEntries();
+		SoftEntry softEntry = softEntries.remove(key);
+		if (softEntry != null) {
+		    values = softEntry.get();
+		    if (values != null)
+			addEntry(key, values);
+		}
+	    }
+	    return values;
+	}
+
+	synchronized void put(Key key, float values[]) {
+	    if (maxSize <= 0)
+		return;
+	    expungeSoftEntries();
+	    remove(key);
+	    addEntry(key, values);
+	}
+
+	synchronized void remove(Key key) {
+	    softEntries.remove(key);
+	    float oldValues[] = entries.remove(key);
+	    if (oldValues != null)
+		size -= getEntrySize(oldValues);
+	}
+
+	synchronized void removeAll(long dataFileKey) {
+	    Iterator<Map.Entry<Key, float[]>> iterator = entries.entrySet()
+		    .iterator();
+	    while (iterator.hasNext()) {
+		Map.Entry<Key, float[]> entry = iterator.next();
+		if (entry.getKey().dataFileKey == dataFileKey) {
+		    size -= getEntrySize(entry.getValue());
+		    iterator.remove();
+		}
+	    }
+	    Iterator<Key> softIterator = softEntries.keySet().iterator();
+	    while (softIterator.hasNext()) {
+		if (softIterator.next().dataFileKey == dataFileKey)
+		    softIterator.remove();
+	    }
+	}
+
+	synchronized void setMaxSize(long maxSize) {
+	    this.maxSize = maxSize;
+	    if (maxSize <= 0) {
+		entries.clear();
+		softEntries.clear();
+		size = 0;
+	    }
+	    evictEntries();
+	}
+
+	synchronized long getSize() {
+	    return size;
+	}
+
+	synchronized int getNumberOfEntries() {
+	    return entries.size();
+	}
+
+	private void addEntry(Key key, float values[]) {
+	    entries.put(key, values);
+	    size += getEntrySize(values);
+	    evictEntries();
+	}
+
+	/**
+	 * Moves the least recently used entries to the soft references, until
+	 * the segment fits into its maxSize
+	 */
+	private void evictEntries() {
+	    Iterator<Map.Entry<Key, float[]>> iterator = entries.entrySet()
+		    .iterator();
+	    while ((size > maxSize) && iterator.hasNext()) {
+		Map.Entry<Key, float[]> entry = iterator.next();
+		iterator.remove();
+		size -= getEntrySize(entry.getValue());
+		// Do not use toString() here, it locks the other segments
+		long evictions = evictionCount.incrementAndGet();
+		if (evictions % 10000 == 0)
+		    logger.finest("Data points cache: " + hitCount.get()
+			    + " hits, " + missCount.get() + " misses, "
+			    + evictions + " evictions");
+		if (maxSize > 0) {
+		    Key key = entry.getKey();
+		    softEntries.put(key, new SoftEntry(key, entry.getValue(),
+			    softQueue));
+		}
+	    }
+	}
+
+	/**
+	 * Removes the soft entries whose values were collected
+	 */
+	private void expungeSoftEntries() {
+	    SoftEntry softEntry;
+	    while ((softEntry = (SoftEntry) softQueue.poll()) != null) {
+		if (softEntries.get(softEntry.key) == softEntry)
+		    softEntries.remove(softEntry.key);
+	    }
+	}
+
+    }
+
+    private final Segment segments[] = new Segment[SEGMENTS];
+
+    private volatile long maxSize;
+    private final AtomicLong hitCount = new AtomicLong(),
+	    missCount = new AtomicLong(), evictionCount = new AtomicLong();
+
+    private DataPointsCache() {
+	for (int i = 0; i < SEGMENTS; i++)
+	    segments[i] = new Segment();
+	setMaxSize(DEFAULT_MAX_SIZE);
+    }
+
+    public static DataPointsCache getInstance() {
+	return instance;
+    }
+
+    /**
+     * Returns a new number identifying the entries of a raw data file
+     */
+    static long newDataFileKey() {
+	return nextDataFileKey.getAndIncrement();
+    }
+
+    /**
+     * Returns true if values should be looked up and stored in the cache
+     */
+    boolean isEnabled() {
+	return maxSize > 0;
+    }
+
+    /**
+     * Returns the cached values of given storage ID, or null
+     */
+    float[] get(RawDataFileImpl dataFile, int ID) {
+	if (maxSize <= 0)
+	    return null;
+	Key key = new Key(dataFile, ID);
+	float values[] = getSegment(key).get(key);
+	if (values != null)
+	    hitCount.incrementAndGet();
+	else
+	    missCount.incrementAndGet();
+	return values;
+    }
+
+    /**
+     * Stores the values of given storage ID. The array must not be modified
+     * afterwards.
+     */
+    void put(RawDataFileImpl dataFile, int ID, float values[]) {
+	if (maxSize <= 0)
+	    return;
+	Key key = new Key(dataFile, ID);
+	getSegment(key).put(key, values);
+    }
+
+    /**
+     * Removes the cached values of given storage ID, when the stored data
+     * points are removed or the ID is reused
+     */
+    void remove(RawDataFileImpl dataFile, int ID) {
+	Key key = new Key(dataFile, ID);
+	getSegment(key).remove(key);
+    }
+
+    /**
+     * Removes all cached values of given raw data file
+     */
+    void removeAll(RawDataFileImpl dataFile) {
+	final long dataFileKey = dataFile.getCacheKey();
+	for (Segment segment : segments)
+	    segment.removeAll(dataFileKey);
+    }
+
+    /**
+     * Sets the maximum size of the LRU part of the cache, in bytes. Zero
+     * disables the cache.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+	this.maxSize = maxSize;
+	for (Segment segment : segments)
+	    segment.setMaxSize(maxSize <= 0 ? 0 : Math.max(1, maxSize
+		    / SEGMENTS));
+    }
+
+    public long getMaxSize() {
+	return maxSize;
+    }
+
+    /**
+     * Returns the size of the LRU part of the cache, in bytes
+     */
+    public long getSize() {
+	long size = 0;
+	for (Segment segment : segments)
+	    size += segment.getSize();
+	return size;
+    }
+
+    public long getHitCount() {
+	return hitCount.get();
+    }
+
+    public long getMissCount() {
+	return missCount.get();
+    }
+
+    public long getEvictionCount() {
+	return evictionCount.get();
+    }
+
+    public void resetStatistics() {
+	hitCount.set(0);
+	missCount.set(0);
+	evictionCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+	int numOfEntries = 0;
+	for (Segment segment : segments)
+	    numOfEntries += segment.getNumberOfEntries();
+	long hits = hitCount.get(), misses = missCount.get();
+	long requests = hits + misses;
+	double hitRate = requests == 0 ? 0 : 100.0 * hits / requests;
+	return String.format(
+		"Data points cache: %d entries, %d/%d MB, %d hits, %d misses "
+			+ "(%.1f%% hit rate), %d evictions",
+		numOfEntries, getSize() >> 20, maxSize >> 20, hits, misses,
+		hitRate, evictionCount.get());
+    }
+
+    private Segment getSegment(Key key) {
+	int hash = key.hashCode();
+	hash ^= (hash >>> 16);
+	return segments[hash & (SEGMENTS - 1)];
+    }
+
+    private static long getEntrySize(float values[]) {
+	return ENTRY_OVERHEAD + 4L * values.length;
+    }
+
+}
@@ -39,6 +39,7 @@ import net.sf.mzmine.desktop.impl.projecttree.ProjectTree;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.UserParameter;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 
 /**
  * This class represents a MZmine project. That includes raw data files, peak
@@ -56,10 +57,14 @@ public class MZmineProjectImpl implements MZmineProject {
     private Collection<MZmineProjectListener> listeners = Collections
             .synchronizedCollection(new LinkedList<MZmineProjectListener>());
 
+    private final ProjectChangeNotifier changeNotifier;
+
     public MZmineProjectImpl() {
 
         this.peakListTreeModel = new PeakListTreeModel(this);
         this.rawDataTreeModel = new RawDataTreeModel(this);
+        this.changeNotifier = new ProjectChangeNotifier(peakListTreeModel,
+                rawDataTreeModel);
 
         projectParametersAndValues = new Hashtable<UserParameter<?, ?>, Hashtable<RawDataFile, Object>>();
 
@@ -235,6 +240,9 @@ public class MZmineProjectImpl implements MZmineProject {
 
         assert peakList != null;
 
+        // Count the new rows for the task that created this peak list
+        TaskMetrics.rowsCreated(peakList.getNumberOfRows());
+
         Runnable swingCode = new Runnable() {
             public void run() {
                 peakListTreeModel.addObject(peakList);
@@ -309,10 +317,23 @@ public class MZmineProjectImpl implements MZmineProject {
         return projectName;
     }
 
+    /**
+     * The tree models are updated asynchronously in the Swing thread, see
+     * ProjectChangeNotifier
+     */
     @Override
     public void notifyObjectChanged(Object object, boolean structureChanged) {
-        peakListTreeModel.notifyObjectChanged(object, structureChanged);
-        rawDataTreeModel.notifyObjectChanged(object, structureChanged);
+        changeNotifier.objectChanged(object, structureChanged);
+    }
+
+    @Override
+    public void beginBulkUpdate() {
+        changeNotifier.beginBulkUpdate();
+    }
+
+    @Override
+    public void endBulkUpdate() {
+        changeNotifier.endBulkUpdate();
     }
 
     public PeakListTreeModel getPeakListTreeModel() {
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * ScanDataStorage which memory-maps the data points file in fixed-size
+ * segments. A segment is mapped once the file has grown past its end, so all
+ * mapped regions are immutable and can be shared by any number of reading
+ * threads without locking. Data in the last, incomplete segment (and the rare
+ * record spanning two segments) are read using positional reads of the file
+ * channel, which do not need any locking either. Appends are serialized by a
+ * separate writer lock and never block the readers.
+ * 
+ * The mappings are released explicitly in close(), otherwise they would stay
+ * live until garbage collected and the file could not be deleted on Windows.
+ * Because of that, read() always copies the data out of the mapped segments,
+ * and the segments are only unmapped once the last read in progress has
+ * finished. If the running JVM offers no way to unmap a buffer, no segments
+ * are mapped at all and every read uses the positional reads of the file
+ * channel.
+ */
+public class MappedScanDataStorage implements ScanDataStorage {
+
+    // 32 MB, small enough to map most of an average file, large enough to
+    // keep the number of mappings low for huge files
+    private static final long SEGMENT_SIZE = 1L << 25;
+
+    private static final Logger logger = Logger
+	    .getLogger(MappedScanDataStorage.class.getName());
+
+    private static final Unmapper unmapper = createUnmapper();
+
+    private final FileChannel channel;
+    private final Object writeLock = new Object();
+    private final Object mappingLock = new Object();
+
+    private volatile boolean closed;
+
+    // Reads in progress, the segments are unmapped when the last one ends
+    private final AtomicInteger activeReaders = new AtomicInteger();
+    private final AtomicBoolean unmapped = new AtomicBoolean();
+    private volatile long length;
+    private volatile MappedByteBuffer segments[] = new MappedByteBuffer[0];
+
+    /**
+     * Creates a storage on top of an opened file channel. The channel must be
+     * readable and writable. Any data already present in the file are
+     * considered stored.
+     */
+    public MappedScanDataStorage(@Nonnull FileChannel channel)
+	    throws IOException {
+	this.channel = channel;
+	this.length = channel.size();
+    }
+
+    @Override
+    public long append(@Nonnull ByteBuffer data) throws IOException {
+	synchronized (writeLock) {
+	    final long offset = length;
+	    long position = offset;
+	    while (data.hasRemaining()) {
+		position += channel.write(data, position);
+	    }
+	    length = position;
+	    return offset;
+	}
+    }
+
+    @Override
+    public @Nonnull ByteBuffer read(long offset, int numOfBytes)
+	    throws IOException {
+
+	final long end = offset + numOfBytes;
+	if ((offset < 0) || (end > length)) {
+	    throw new EOFException("Cannot read " + numOfBytes
+		    + " bytes at offset " + offset + ", storage length is "
+		    + length);
+	}
+
+	// Either this read sees the storage closed, or close() sees this read
+	// in progress and leaves the unmapping to it
+	activeReaders.incrementAndGet();
+	try {
+	    if (closed)
+		throw new ClosedChannelException();
+	    return readData(offset, numOfBytes);
+	} finally {
+	    if ((activeReaders.decrementAndGet() == 0) && closed)
+		unmapSegments();
+	}
+
+    }
+
+    private ByteBuffer readData(long offset, int numOfBytes)
+	    throws IOException {
+
+	final long end = offset + numOfBytes;
+	final int segmentIndex = (int) (offset / SEGMENT_SIZE);
+	final long segmentStart = segmentIndex * SEGMENT_SIZE;
+	final long segmentEnd = segmentStart + SEGMENT_SIZE;
+
+	if ((unmapper != null) && (end <= segmentEnd)
+		&& (segmentEnd <= length)) {
+	    ByteBuffer view = getSegment(segmentIndex).duplicate();
+	    view.limit((int) (end - segmentStart));
+	    view.position((int) (offset - segmentStart));
+	    byte data[] = new byte[numOfBytes];
+	    view.get(data);
+	    return ByteBuffer.wrap(data);
+	}
+
+	ByteBuffer result = ByteBuffer.allocate(numOfBytes);
+	long position = offset;
+	while (result.hasRemaining()) {
+	    int read = channel.read(result, position);
+	    if (read < 0) {
+		throw new EOFException("Unexpected end of data points file at "
+			+ position);
+	    }
+	    position += read;
+	}
+	result.flip();
+	return result;
+
+    }
+
+    @Override
+    public long length() {
+	return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+	synchronized (mappingLock) {
+	    closed = true;
+	}
+	if (activeReaders.get() == 0)
+	    unmapSegments();
+	channel.close();
+    }
+
+    /**
+     * Releases all mapped segments, exactly once after the storage was closed
+     * and no read is in progress
+     */
+    private void unmapSegments() {
+	if (!unmapped.compareAndSet(false, true))
+	    return;
+	MappedByteBuffer mappedSegments[];
+	synchronized (mappingLock) {
+	    mappedSegments = segments;
+	    segments = new MappedByteBuffer[0];
+	}
+	for (MappedByteBuffer segment : mappedSegments) {
+	    if (segment == null)
+		continue;
+	    try {
+		unmapper.unmap(segment);
+	    } catch (IOException e) {
+		logger.log(Level.WARNING, "Could not unmap data points file",
+			e);
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Returns the mapping of a complete segment, mapping it first if
+     * necessary. The segments array is replaced (never modified) when a new
+     * segment is mapped, so readers only need the volatile read.
+     */
+    private MappedByteBuffer getSegment(int index) throws IOException {
+
+	MappedByteBuffer currentSegments[] = segments;
+	if ((index < currentSegments.length)
+		&& (currentSegments[index] != null))
+	    return currentSegments[index];
+
+	synchronized (mappingLock) {
+	    if (closed)
+		throw new ClosedChannelException();
+	    currentSegments = segments;
+	    if ((index < currentSegments.length)
+		    && (currentSegments[index] != null))
+		return currentSegments[index];
+
+	    MappedByteBuffer newSegments[] = Arrays.copyOf(currentSegments,
+		    Math.max(currentSegments.length, index + 1));
+	    newSegments[index] = channel.map(MapMode.READ_ONLY, index
+		    * SEGMENT_SIZE, SEGMENT_SIZE);
+	    segments = newSegments;
+	    return newSegments[index];
+	}
+
+    }
+
+    /**
+     * Releases the memory mapping of a buffer immediately, instead of waiting
+     * for the buffer to be garbage collected.
+     */
+    private interface Unmapper {
+	void unmap(MappedByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Looks up the JVM internal way of releasing a mapping: Unsafe.invokeCleaner()
+     * on Java 9 and newer, the buffer's cleaner on Java 8. Returns null if
+     * neither is accessible.
+     */
+    private static Unmapper createUnmapper() {
+
+	try {
+	    final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+	    final Method invokeCleaner = unsafeClass.getMethod(
+		    "invokeCleaner", ByteBuffer.class);
+	    final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+	    theUnsafe.setAccessible(true);
+	    final Object unsafe = theUnsafe.get(null);
+	    return new Unmapper() {
+		public void unmap(MappedByteBuffer buffer) throws IOException {
+		    try {
+			invokeCleaner.invoke(unsafe, buffer);
+		    } catch (Exception e) {
+			throw new IOException("Could not unmap data points file",
+				e);
+		    }
+		}
+	    };
+	} catch (Exception e) {
+	    // Not Java 9+, try the Java 8 way below
+	}
+
+	try {
+	    final Method cleanerMethod = Class.forName(
+		    "sun.nio.ch.DirectBuffer").getMethod("cleaner");
+	    final Method cleanMethod = Class.forName("sun.misc.Cleaner")
+		    .getMethod("clean");
+	    return new Unmapper() {
+		public void unmap(MappedByteBuffer buffer) throws IOException {
+		    try {
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+			    cleanMethod.invoke(cleaner);
+		    } catch (Exception e) {
+			throw new IOException("Could not unmap data points file",
+				e);
+		    }
+		}
+	    };
+	} catch (Exception e) {
+	    logger.log(Level.INFO, "Memory mapped buffers cannot be released "
+		    + "explicitly, data points files will be read using "
+		    + "positional reads", e);
+	    return null;
+	}
+
+    }
+
+}
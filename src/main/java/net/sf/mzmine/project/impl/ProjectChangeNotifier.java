@@ -0,0 +1,117 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.swing.Timer;
+
+import net.sf.mzmine.desktop.impl.projecttree.PeakListTreeModel;
+import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
+
+/**
+ * Collects the change notifications of project objects and delivers them to
+ * the project tree models in batches, in the Swing thread. Notifications of
+ * the same object are coalesced, and at most one batch is delivered per frame,
+ * so a task annotating thousands of peak list rows does not flood the Swing
+ * thread. While a bulk update is open, notifications are only collected and
+ * they are delivered when the last bulk update ends.
+ */
+final class ProjectChangeNotifier implements ActionListener {
+
+    // Minimum time between two batches, in ms
+    private static final int FRAME_DELAY = 40;
+
+    private final PeakListTreeModel peakListTreeModel;
+    private final RawDataTreeModel rawDataTreeModel;
+    private final Timer flushTimer;
+
+    // Changed objects and whether their structure changed. Guarded by this,
+    // like the other fields below.
+    private Map<Object, Boolean> pendingChanges = new IdentityHashMap<Object, Boolean>();
+    private int openBulkUpdates = 0;
+    private boolean flushScheduled = false;
+
+    ProjectChangeNotifier(PeakListTreeModel peakListTreeModel,
+            RawDataTreeModel rawDataTreeModel) {
+        this.peakListTreeModel = peakListTreeModel;
+        this.rawDataTreeModel = rawDataTreeModel;
+        flushTimer = new Timer(FRAME_DELAY, this);
+        flushTimer.setRepeats(false);
+    }
+
+    /**
+     * Queues a change notification of given object. Can be called from any
+     * thread.
+     */
+    synchronized void objectChanged(Object object, boolean structureChanged) {
+        Boolean pendingStructureChange = pendingChanges.get(object);
+        if ((pendingStructureChange == null)
+                || (structureChanged && !pendingStructureChange))
+            pendingChanges.put(object, structureChanged);
+        scheduleFlush();
+    }
+
+    synchronized void beginBulkUpdate() {
+        openBulkUpdates++;
+    }
+
+    synchronized void endBulkUpdate() {
+        if (openBulkUpdates == 0) {
+            throw new IllegalStateException(
+                    "endBulkUpdate() called without beginBulkUpdate()");
+        }
+        openBulkUpdates--;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if ((openBulkUpdates > 0) || flushScheduled || pendingChanges.isEmpty())
+            return;
+        flushScheduled = true;
+        flushTimer.restart();
+    }
+
+    /**
+     * Delivers the pending notifications, called by the timer in the Swing
+     * thread
+     */
+    @Override
+    public void actionPerformed(ActionEvent event) {
+        Map<Object, Boolean> changes;
+        synchronized (this) {
+            flushScheduled = false;
+            if (openBulkUpdates > 0)
+                return;
+            changes = pendingChanges;
+            pendingChanges = new IdentityHashMap<Object, Boolean>();
+        }
+        for (Map.Entry<Object, Boolean> change : changes.entrySet()) {
+            peakListTreeModel.notifyObjectChanged(change.getKey(),
+                    change.getValue());
+            rawDataTreeModel.notifyObjectChanged(change.getKey(),
+                    change.getValue());
+        }
+    }
+
+}
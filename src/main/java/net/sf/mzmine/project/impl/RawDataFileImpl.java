@@ -27,17 +27,17 @@ import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
@@ -45,6 +45,7 @@ import net.sf.mzmine.datamodel.impl.RemoteJob;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator.PeakInvestigatorDataPoint;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 
 import com.google.common.collect.Range;
 import com.google.common.primitives.Ints;
@@ -54,13 +55,17 @@ import com.sun.xml.xsom.impl.scd.Iterators.Map;
  * RawDataFile implementation. It provides storage of data points for scans and
  * mass lists using the storeDataPoints() and readDataPoints() methods. The data
  * points are stored in a temporary file (dataPointsFile) and the structure of
- * the file is stored in two TreeMaps. The dataPointsOffsets maps storage ID to
+ * the file is stored in two sorted maps. The dataPointsOffsets maps storage ID to
  * the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
  * the number of data points stored under this ID. When stored data points are
  * deleted using removeStoredDataPoints(), the dataPointsFile is not modified,
- * the storage ID is just deleted from the two TreeMaps. When the project is
+ * the storage ID is just deleted from the two maps. When the project is
  * saved, the contents of the dataPointsFile are consolidated - only data points
- * referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * referenced by the maps are saved (see the RawDataFileSaveHandler class).
+ * 
+ * The dataPointsFile is accessed through a ScanDataStorage. Reading does not
+ * take any lock, so any number of tasks may read the data points of the same
+ * file in parallel. Writing is serialized by a separate lock.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -70,13 +75,24 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     private String dataFileName;
 
     private final Hashtable<Integer, Range<Double>> dataMZRange, dataRTRange;
-    private final Hashtable<Integer, Double> dataMaxBasePeakIntensity,
-	    dataMaxTIC;
+    // Cached scan numbers of each MS level, 0 for all scans. Entries are only
+    // added while holding the lock of this file, the same lock addScan()
+    // holds while clearing them, so a stale array is never cached.
     private final Hashtable<Integer, int[]> scanNumbersCache;
 
+    // Index of scan metadata, created on first use and discarded whenever a
+    // new scan is added
+    private volatile ScanIndex scanIndex;
+
+    // Write buffer, guarded by writeLock
     private ByteBuffer buffer = ByteBuffer.allocate(20000);
-    private final TreeMap<Integer, Long> dataPointsOffsets;
-    private final TreeMap<Integer, Integer> dataPointsLengths;
+    private final Object writeLock = new Object();
+    private final ConcurrentSkipListMap<Integer, Long> dataPointsOffsets;
+    private final ConcurrentSkipListMap<Integer, Integer> dataPointsLengths;
+
+    // End of the last data points registered in dataPointsOffsets. Bytes
+    // behind this offset may belong to a record which is still being stored.
+    private volatile long dataPointsEnd;
 
  // Remote job information
     private ArrayList<RemoteJob> jobs_info = null;
@@ -84,6 +100,10 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     // Temporary file for scan data storage
     private File dataPointsFileName;
     private RandomAccessFile dataPointsFile;
+    private volatile ScanDataStorage dataPointsStorage;
+
+    // Identifies the entries of this file in the DataPointsCache
+    private final long cacheKey = DataPointsCache.newDataFileKey();
 
     /**
      * Scans
@@ -98,11 +118,9 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	scanNumbersCache = new Hashtable<Integer, int[]>();
 	dataMZRange = new Hashtable<Integer, Range<Double>>();
 	dataRTRange = new Hashtable<Integer, Range<Double>>();
-	dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
-	dataMaxTIC = new Hashtable<Integer, Double>();
 	scans = new Hashtable<Integer, StorableScan>();
-	dataPointsOffsets = new TreeMap<Integer, Long>();
-	dataPointsLengths = new TreeMap<Integer, Integer>();
+	dataPointsOffsets = new ConcurrentSkipListMap<Integer, Long>();
+	dataPointsLengths = new ConcurrentSkipListMap<Integer, Integer>();
 	jobs_info         = new ArrayList<RemoteJob>();
     }
 
@@ -121,12 +139,32 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return dataPointsFile;
     }
 
+    long getCacheKey() {
+	return cacheKey;
+    }
+
+    /**
+     * Returns the storage backend of the data points file. May return null in
+     * case no scans have been added yet to this RawDataFileImpl instance
+     */
+    public ScanDataStorage getDataPointsStorage() {
+	return dataPointsStorage;
+    }
+
     /**
      * Opens the given file as a data points file for this RawDataFileImpl
-     * instance. If the file is not empty, the TreeMaps supplied as parameters
-     * have to describe the mapping of storage IDs to data points in the file.
+     * instance. If the file is not empty, the maps returned by
+     * getDataPointsOffsets() and getDataPointsLengths() have to describe the
+     * mapping of storage IDs to data points in the file.
      */
-    public synchronized void openDataPointsFile(File dataPointsFileName)
+    public void openDataPointsFile(File dataPointsFileName)
+	    throws IOException {
+	synchronized (writeLock) {
+	    openDataPointsFileInternal(dataPointsFileName);
+	}
+    }
+
+    private void openDataPointsFileInternal(File dataPointsFileName)
 	    throws IOException {
 
 	if (this.dataPointsFile != null) {
@@ -143,6 +181,9 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	FileChannel fileChannel = dataPointsFile.getChannel();
 	fileChannel.lock();
 
+	dataPointsStorage = new MappedScanDataStorage(fileChannel);
+	dataPointsEnd = dataPointsStorage.length();
+
 	// Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
 	// bug #4171239. We will try to remove the temporary files in a
 	// shutdown hook registered in the main.ShutDownHook class
@@ -168,12 +209,18 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
      * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers(int)
      */
     public @Nonnull int[] getScanNumbers(int msLevel) {
-	if (scanNumbersCache.containsKey(msLevel))
-	    return scanNumbersCache.get(msLevel);
-	Range<Double> all = Range.all();
-	int scanNumbers[] = getScanNumbers(msLevel, all);
-	scanNumbersCache.put(msLevel, scanNumbers);
-	return scanNumbers;
+	int scanNumbers[] = scanNumbersCache.get(msLevel);
+	if (scanNumbers != null)
+	    return scanNumbers;
+	synchronized (this) {
+	    scanNumbers = scanNumbersCache.get(msLevel);
+	    if (scanNumbers == null) {
+		Range<Double> all = Range.all();
+		scanNumbers = getScanNumbers(msLevel, all);
+		scanNumbersCache.put(msLevel, scanNumbers);
+	    }
+	    return scanNumbers;
+	}
     }
 
     /**
@@ -185,21 +232,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
 	assert rtRange != null;
 
-	ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
-
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-
-	    if ((scan.getMSLevel() == msLevel)
-		    && (rtRange.contains(scan.getRetentionTime())))
-		eligibleScanNumbers.add(scan.getScanNumber());
-	}
-
-	int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-	Arrays.sort(numbersArray);
-
-	return numbersArray;
+	return getScanIndex().getScanNumbers(msLevel, rtRange);
     }
 
     /**
@@ -207,16 +240,20 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
      */
     public @Nonnull int[] getScanNumbers() {
 
-	if (scanNumbersCache.containsKey(0))
-	    return scanNumbersCache.get(0);
-
-	Set<Integer> allScanNumbers = scans.keySet();
-	int[] numbersArray = Ints.toArray(allScanNumbers);
-	Arrays.sort(numbersArray);
-
-	scanNumbersCache.put(0, numbersArray);
-
-	return numbersArray;
+	int[] numbersArray = scanNumbersCache.get(0);
+	if (numbersArray != null)
+	    return numbersArray;
+
+	synchronized (this) {
+	    numbersArray = scanNumbersCache.get(0);
+	    if (numbersArray == null) {
+		Set<Integer> allScanNumbers = scans.keySet();
+		numbersArray = Ints.toArray(allScanNumbers);
+		Arrays.sort(numbersArray);
+		scanNumbersCache.put(0, numbersArray);
+	    }
+	    return numbersArray;
+	}
 
     }
 
@@ -224,169 +261,101 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
      * @see net.sf.mzmine.datamodel.RawDataFile#getMSLevels()
      */
     public @Nonnull int[] getMSLevels() {
-
-	Set<Integer> msLevelsSet = new HashSet<Integer>();
-
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-	    msLevelsSet.add(scan.getMSLevel());
-	}
-
-	int[] msLevels = Ints.toArray(msLevelsSet);
-	Arrays.sort(msLevels);
-	return msLevels;
-
+	return getScanIndex().getMSLevels();
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxBasePeakIntensity()
      */
     public double getDataMaxBasePeakIntensity(int msLevel) {
-
-	// check if we have this value already cached
-	Double maxBasePeak = dataMaxBasePeakIntensity.get(msLevel);
-	if (maxBasePeak != null)
-	    return maxBasePeak;
-
-	// find the value
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-
-	    // ignore scans of other ms levels
-	    if (scan.getMSLevel() != msLevel)
-		continue;
-
-	    DataPoint scanBasePeak = scan.getHighestDataPoint();
-	    if (scanBasePeak == null)
-		continue;
-
-	    if ((maxBasePeak == null)
-		    || (scanBasePeak.getIntensity() > maxBasePeak))
-		maxBasePeak = scanBasePeak.getIntensity();
-
-	}
-
-	// return -1 if no scan at this MS level
-	if (maxBasePeak == null)
-	    maxBasePeak = -1d;
-
-	// cache the value
-	dataMaxBasePeakIntensity.put(msLevel, maxBasePeak);
-
-	return maxBasePeak;
-
+	return getScanIndex().getMaxBasePeakIntensity(msLevel);
     }
 
     /**
      * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
      */
     public double getDataMaxTotalIonCurrent(int msLevel) {
+	return getScanIndex().getMaxTotalIonCurrent(msLevel);
+    }
 
-	// check if we have this value already cached
-	Double maxTIC = dataMaxTIC.get(msLevel);
-	if (maxTIC != null)
-	    return maxTIC.doubleValue();
-
-	// find the value
-	Enumeration<StorableScan> scansEnum = scans.elements();
-	while (scansEnum.hasMoreElements()) {
-	    Scan scan = scansEnum.nextElement();
-
-	    // ignore scans of other ms levels
-	    if (scan.getMSLevel() != msLevel)
-		continue;
-
-	    if ((maxTIC == null) || (scan.getTIC() > maxTIC))
-		maxTIC = scan.getTIC();
-
+    /**
+     * Returns the scan metadata index, creating it if necessary
+     */
+    private ScanIndex getScanIndex() {
+	ScanIndex index = scanIndex;
+	if (index != null)
+	    return index;
+	synchronized (this) {
+	    if (scanIndex == null)
+		scanIndex = new ScanIndex(scans.values());
+	    return scanIndex;
 	}
+    }
 
-	// return -1 if no scan at this MS level
-	if (maxTIC == null)
-	    maxTIC = -1d;
-
-	// cache the value
-	dataMaxTIC.put(msLevel, maxTIC);
-
-	return maxTIC;
+    public int storeDataPoints(DataPoint dataPoints[]) throws IOException {
 
-    }
+	synchronized (writeLock) {
 
-    public synchronized int storeDataPoints(DataPoint dataPoints[])
-	    throws IOException {
+	    if (dataPointsStorage == null) {
+		File newFile = RawDataFileImpl.createNewDataPointsFile();
+		openDataPointsFileInternal(newFile);
+	    }
 
-	if (dataPointsFile == null) {
-	    File newFile = RawDataFileImpl.createNewDataPointsFile();
-	    openDataPointsFile(newFile);
-	}
+	    final int currentID;
+	    if (!dataPointsOffsets.isEmpty())
+		currentID = dataPointsOffsets.lastKey() + 1;
+	    else
+		currentID = 1;
 
-	final long currentOffset = dataPointsFile.length();
+	    // Removed IDs may be reused, so drop any values cached for this ID
+	    DataPointsCache.getInstance().remove(this, currentID);
 
-	final int currentID;
-	if (!dataPointsOffsets.isEmpty())
-	    currentID = dataPointsOffsets.lastKey() + 1;
-	else
-	    currentID = 1;
+	    final int numOfDataPoints = dataPoints.length;
 
-	final int numOfDataPoints = dataPoints.length;
+	    // Convert the dataPoints into a byte array. Each float takes 4
+	    // bytes.
+	    final int numOfBytes = numOfDataPoints == 0 ? 0 : numOfDataPoints
+		    * dataPoints[0].getNumberOfValues() * 4;
 
-	// Convert the dataPoints into a byte array. Each float takes 4 bytes,
-	// so we get the current float offset by dividing the size of the file
-	// by 4
-	final int numOfBytes = numOfDataPoints * dataPoints[0].getNumberOfValues() * 4;
+	    if (buffer.capacity() < numOfBytes) {
+		buffer = ByteBuffer.allocate(numOfBytes * 2);
+	    } else {
+		buffer.clear();
+	    }
 
-	if (buffer.capacity() < numOfBytes) {
-	    buffer = ByteBuffer.allocate(numOfBytes * 2);
-	} else {
-	    buffer.clear();
-	}
+	    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	    for (DataPoint dp : dataPoints) {
+		dp.addToBuffer(floatBuffer);
+	    }
+	    buffer.limit(numOfBytes);
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
-	for (DataPoint dp : dataPoints) {
-	    dp.addToBuffer(floatBuffer);
-	}
+	    final long currentOffset = dataPointsStorage.append(buffer);
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.write(buffer.array(), 0, numOfBytes);
+	    // The order matters: readers first read dataPointsEnd and then
+	    // look for the following record, see readDataPoints()
+	    dataPointsLengths.put(currentID, numOfDataPoints);
+	    dataPointsOffsets.put(currentID, currentOffset);
+	    dataPointsEnd = currentOffset + numOfBytes;
 
-	dataPointsOffsets.put(currentID, currentOffset);
-	dataPointsLengths.put(currentID, numOfDataPoints);
+	    return currentID;
 
-	return currentID;
+	}
 
     }
 
-    public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
-
-	final Long currentOffset = dataPointsOffsets.get(ID);
-	Entry<Integer, Long> next = dataPointsOffsets.higherEntry(ID);
-	final int numOfBytes;
-	if (next != null) {
-		numOfBytes = (int) (next.getValue() - currentOffset);
-	} else {
-		numOfBytes = (int) (dataPointsFile.length() - currentOffset);
-	}
+    public DataPoint[] readDataPoints(int ID) throws IOException {
 
 	final Integer numOfDataPoints = dataPointsLengths.get(ID);
-
-	if ((currentOffset == null) || (numOfDataPoints == null)) {
+	if (numOfDataPoints == null) {
 	    throw new IllegalArgumentException("Unknown storage ID " + ID);
 	}
 
-	if (buffer.capacity() < numOfBytes) {
-	    buffer = ByteBuffer.allocate(numOfBytes * 2);
-	} else {
-	    buffer.clear();
-	}
-
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.read(buffer.array(), 0, numOfBytes);
+	if (numOfDataPoints == 0)
+	    return new DataPoint[0];
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	FloatBuffer floatBuffer = readStoredValues(ID);
 
-	final int numberOfColumns = (int) (numOfBytes / (numOfDataPoints * 4));
+	final int numberOfColumns = floatBuffer.remaining() / numOfDataPoints;
 	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
 
 	for (int i = 0; i < numOfDataPoints; i++) {
@@ -410,13 +379,112 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     }
 
-    public synchronized void removeStoredDataPoints(int ID) throws IOException {
-	dataPointsOffsets.remove(ID);
-	dataPointsLengths.remove(ID);
+    /**
+     * Reads the m/z and intensity values stored under given ID directly into
+     * the given buffer, without creating any DataPoint instances. Additional
+     * stored values (such as the errors of PeakInvestigator data points) are
+     * skipped.
+     */
+    public void readDataPoints(int ID, DataPointsBuffer buffer)
+	    throws IOException {
+
+	final Integer numOfDataPoints = dataPointsLengths.get(ID);
+	if (numOfDataPoints == null) {
+	    throw new IllegalArgumentException("Unknown storage ID " + ID);
+	}
+
+	buffer.clear();
+	if (numOfDataPoints == 0)
+	    return;
+
+	FloatBuffer floatBuffer = readStoredValues(ID);
+
+	final int numberOfColumns = floatBuffer.remaining() / numOfDataPoints;
+	if ((numberOfColumns != 2) && (numberOfColumns != 5)) {
+	    throw new IllegalStateException("Cannot handle number of columns: "
+		    + numberOfColumns);
+	}
+
+	buffer.ensureCapacity(numOfDataPoints);
+	final double mzValues[] = buffer.getMZValues();
+	final double intensityValues[] = buffer.getIntensityValues();
+	int index = 0;
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    mzValues[i] = floatBuffer.get(index);
+	    intensityValues[i] = floatBuffer.get(index + 1);
+	    index += numberOfColumns;
+	}
+	buffer.setSize(numOfDataPoints);
+
+    }
+
+    /**
+     * Returns the floats stored under given ID. The number of values per data
+     * point is the number of remaining floats divided by the number of stored
+     * data points. Every read is counted in the metrics of the current task.
+     */
+    private FloatBuffer readStoredValues(int ID) throws IOException {
+
+	final DataPointsCache cache = DataPointsCache.getInstance();
+	final boolean useCache = cache.isEnabled();
+	if (useCache) {
+	    float cachedValues[] = cache.get(this, ID);
+	    if (cachedValues != null) {
+		TaskMetrics.scanRead(0);
+		return FloatBuffer.wrap(cachedValues);
+	    }
+	}
+
+	// Must be read before looking up the following record. If a new record
+	// is stored in the meantime, its entry in dataPointsOffsets is already
+	// visible whenever dataPointsEnd covers it.
+	final long committedEnd = dataPointsEnd;
+
+	final Long currentOffset = dataPointsOffsets.get(ID);
+	if (currentOffset == null) {
+	    throw new IllegalArgumentException("Unknown storage ID " + ID);
+	}
+
+	Entry<Integer, Long> next = dataPointsOffsets.higherEntry(ID);
+	final int numOfBytes;
+	if (next != null) {
+		numOfBytes = (int) (next.getValue() - currentOffset);
+	} else {
+		numOfBytes = (int) (committedEnd - currentOffset);
+	}
+
+	ByteBuffer data = dataPointsStorage.read(currentOffset, numOfBytes);
+	TaskMetrics.scanRead(numOfBytes);
+
+	// Without the cache, the stored values are used directly
+	if (!useCache)
+	    return data.asFloatBuffer();
+
+	float values[] = new float[numOfBytes / 4];
+	data.asFloatBuffer().get(values);
+
+	// Do not cache the values if the ID was removed or reused while reading
+	if (currentOffset.equals(dataPointsOffsets.get(ID)))
+	    cache.put(this, ID, values);
+
+	return FloatBuffer.wrap(values);
+
+    }
+
+    public void removeStoredDataPoints(int ID) throws IOException {
+	synchronized (writeLock) {
+	    dataPointsOffsets.remove(ID);
+	    dataPointsLengths.remove(ID);
+	    DataPointsCache.getInstance().remove(this, ID);
+	}
     }
 
     public synchronized void addScan(Scan newScan) throws IOException {
 
+	// The scan index and cached scan numbers are no longer valid
+	scanIndex = null;
+	scanNumbersCache.clear();
+
 	// When we are loading the project, scan data file is already prepare
 	// and we just need store the reference
 	if (newScan instanceof StorableScan) {
@@ -480,6 +548,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	for (StorableScan scan : scans.values()) {
 	    scan.updateValues();
 	}
+	scanIndex = null;
 	logger.finest("Writing of scans to file " + dataPointsFileName
 		+ " finished");
 	return this;
@@ -568,19 +637,24 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return getScanNumbers(msLevel).length;
     }
 
-    public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
+    public NavigableMap<Integer, Long> getDataPointsOffsets() {
 	return dataPointsOffsets;
     }
 
-    public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
+    public NavigableMap<Integer, Integer> getDataPointsLengths() {
 	return dataPointsLengths;
     }
 
     public synchronized void close() {
+	DataPointsCache.getInstance().removeAll(this);
 	try {
 	    if(dataPointsFileName != null) {
+    	    	dataPointsStorage.close();
     	    	dataPointsFile.close();
-    	    	dataPointsFileName.delete();
+    	    	if (!dataPointsFileName.delete()) {
+    	    	    logger.warning("Could not delete file "
+    	    		    + dataPointsFileName);
+    	    	}
 	    }
 	} catch (IOException e) {
 	    logger.warning("Could not close file " + dataPointsFileName + ": "
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Backend for the temporary data points file of a RawDataFileImpl. The
+ * storage is append-only: data are only ever added at the end, and a region
+ * that has been written is never modified. Implementations must allow
+ * read() to be called concurrently from many threads, also while another
+ * thread is appending.
+ */
+public interface ScanDataStorage {
+
+    /**
+     * Appends the remaining bytes of the given buffer to the end of the
+     * storage.
+     * 
+     * @return Offset at which the data were stored
+     */
+    public long append(@Nonnull ByteBuffer data) throws IOException;
+
+    /**
+     * Returns a buffer containing numOfBytes bytes starting at given offset.
+     * The returned buffer belongs to the caller and its position and limit
+     * may be freely modified, but its content must not be written to.
+     */
+    public @Nonnull ByteBuffer read(long offset, int numOfBytes)
+	    throws IOException;
+
+    /**
+     * @return Number of bytes written to the storage so far
+     */
+    public long length();
+
+    /**
+     * Releases the resources held by this storage. The underlying file is
+     * not deleted.
+     */
+    public void close() throws IOException;
+
+}
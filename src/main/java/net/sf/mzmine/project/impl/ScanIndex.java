@@ -0,0 +1,255 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import com.google.common.primitives.Ints;
+
+/**
+ * Columnar index of the scan metadata of one raw data file. The scans are
+ * sorted by retention time and their scan number, MS level and retention
+ * time are kept in parallel primitive arrays. For each MS level, the index
+ * keeps the positions of its scans in the same order, so that retention time
+ * range queries are answered by binary search.
+ * 
+ * The index is immutable once created, except for the maximum TIC and base
+ * peak intensity of each MS level, which are computed on first use because
+ * they may require reading the data points of all scans. RawDataFileImpl
+ * creates a new index whenever a scan is added.
+ */
+class ScanIndex {
+
+    private static final int NO_ROWS[] = new int[0];
+
+    private final Scan scans[];
+    private final int scanNumbers[], msLevels[];
+    private final double retentionTimes[];
+
+    // Filled by ensureIntensityMaxima()
+    private HashMap<Integer, Double> levelMaxTIC, levelMaxBasePeak;
+
+    // MS level -> positions of its scans in the columns, sorted by RT
+    private final HashMap<Integer, int[]> levelRows;
+
+    // MS level -> true if scan numbers of that level increase with RT
+    private final HashMap<Integer, Boolean> levelScanNumbersOrdered;
+
+    private final int distinctMSLevels[];
+
+    ScanIndex(@Nonnull Collection<? extends Scan> allScans) {
+
+	scans = allScans.toArray(new Scan[0]);
+	Arrays.sort(scans, new Comparator<Scan>() {
+	    @Override
+	    public int compare(Scan s1, Scan s2) {
+		int result = Double.compare(s1.getRetentionTime(),
+			s2.getRetentionTime());
+		if (result == 0)
+		    result = Integer.compare(s1.getScanNumber(),
+			    s2.getScanNumber());
+		return result;
+	    }
+	});
+
+	final int numOfScans = scans.length;
+	scanNumbers = new int[numOfScans];
+	msLevels = new int[numOfScans];
+	retentionTimes = new double[numOfScans];
+
+	HashMap<Integer, Integer> levelCounts = new HashMap<Integer, Integer>();
+	for (int i = 0; i < numOfScans; i++) {
+	    scanNumbers[i] = scans[i].getScanNumber();
+	    msLevels[i] = scans[i].getMSLevel();
+	    retentionTimes[i] = scans[i].getRetentionTime();
+	    Integer count = levelCounts.get(msLevels[i]);
+	    levelCounts.put(msLevels[i], count == null ? 1 : count + 1);
+	}
+
+	distinctMSLevels = Ints.toArray(levelCounts.keySet());
+	Arrays.sort(distinctMSLevels);
+
+	levelRows = new HashMap<Integer, int[]>();
+	for (int msLevel : distinctMSLevels) {
+	    levelRows.put(msLevel, new int[levelCounts.get(msLevel)]);
+	}
+	HashMap<Integer, Integer> filled = new HashMap<Integer, Integer>();
+	for (int i = 0; i < numOfScans; i++) {
+	    Integer position = filled.get(msLevels[i]);
+	    if (position == null)
+		position = 0;
+	    levelRows.get(msLevels[i])[position] = i;
+	    filled.put(msLevels[i], position + 1);
+	}
+
+	levelScanNumbersOrdered = new HashMap<Integer, Boolean>();
+	for (int msLevel : distinctMSLevels) {
+	    int rows[] = levelRows.get(msLevel);
+	    boolean ordered = true;
+	    for (int i = 1; i < rows.length; i++) {
+		if (scanNumbers[rows[i]] < scanNumbers[rows[i - 1]]) {
+		    ordered = false;
+		    break;
+		}
+	    }
+	    levelScanNumbersOrdered.put(msLevel, ordered);
+	}
+
+    }
+
+    /**
+     * @return Sorted array of all MS levels present in the file
+     */
+    @Nonnull
+    int[] getMSLevels() {
+	return distinctMSLevels.clone();
+    }
+
+    /**
+     * Returns the numbers of the scans of given MS level with retention time
+     * within the given range, sorted by scan number.
+     */
+    @Nonnull
+    int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange) {
+
+	final int rows[] = getRows(msLevel);
+
+	// First position inside the range
+	int from = 0;
+	if (rtRange.hasLowerBound()) {
+	    final double low = rtRange.lowerEndpoint();
+	    final boolean inclusive = (rtRange
+		    .lowerBoundType() == BoundType.CLOSED);
+	    from = findPosition(rows, low, inclusive);
+	}
+
+	// First position behind the range
+	int to = rows.length;
+	if (rtRange.hasUpperBound()) {
+	    final double high = rtRange.upperEndpoint();
+	    final boolean inclusive = (rtRange
+		    .upperBoundType() == BoundType.CLOSED);
+	    to = findPosition(rows, high, !inclusive);
+	}
+
+	if (to <= from)
+	    return NO_ROWS;
+
+	int result[] = new int[to - from];
+	for (int i = from; i < to; i++) {
+	    result[i - from] = scanNumbers[rows[i]];
+	}
+
+	if (!levelScanNumbersOrdered.get(msLevel))
+	    Arrays.sort(result);
+
+	return result;
+
+    }
+
+    /**
+     * @return Highest TIC of the scans of given MS level, or -1 if there is no
+     *         such scan
+     */
+    synchronized double getMaxTotalIonCurrent(int msLevel) {
+	ensureIntensityMaxima();
+	Double max = levelMaxTIC.get(msLevel);
+	return max == null ? -1 : max;
+    }
+
+    /**
+     * @return Highest base peak intensity of the scans of given MS level, or
+     *         -1 if there is no such scan with at least one data point
+     */
+    synchronized double getMaxBasePeakIntensity(int msLevel) {
+	ensureIntensityMaxima();
+	Double max = levelMaxBasePeak.get(msLevel);
+	return max == null ? -1 : max;
+    }
+
+    private int[] getRows(int msLevel) {
+	int rows[] = levelRows.get(msLevel);
+	if (rows == null)
+	    return NO_ROWS;
+	return rows;
+    }
+
+    /**
+     * Returns the first position in rows whose retention time is bigger than
+     * (or equal to, if inclusive is true) the given value
+     */
+    private int findPosition(int rows[], double rt, boolean inclusive) {
+	int low = 0, high = rows.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    double value = retentionTimes[rows[middle]];
+	    if ((value < rt) || ((!inclusive) && (value == rt)))
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Finds the maximum TIC and base peak intensity for each MS level. Scans
+     * without data points have no base peak.
+     */
+    private void ensureIntensityMaxima() {
+
+	if (levelMaxTIC != null)
+	    return;
+
+	HashMap<Integer, Double> levelMaxTIC = new HashMap<Integer, Double>();
+	HashMap<Integer, Double> levelMaxBasePeak = new HashMap<Integer, Double>();
+
+	for (int i = 0; i < scans.length; i++) {
+
+	    final double totalIonCurrent = scans[i].getTIC();
+	    Double maxTIC = levelMaxTIC.get(msLevels[i]);
+	    if ((maxTIC == null) || (totalIonCurrent > maxTIC))
+		levelMaxTIC.put(msLevels[i], totalIonCurrent);
+
+	    DataPoint basePeak = scans[i].getHighestDataPoint();
+	    if (basePeak == null)
+		continue;
+	    final double basePeakIntensity = basePeak.getIntensity();
+	    Double maxBasePeak = levelMaxBasePeak.get(msLevels[i]);
+	    if ((maxBasePeak == null) || (basePeakIntensity > maxBasePeak))
+		levelMaxBasePeak.put(msLevels[i], basePeakIntensity);
+
+	}
+
+	this.levelMaxBasePeak = levelMaxBasePeak;
+	this.levelMaxTIC = levelMaxTIC;
+
+    }
+
+}
@@ -25,6 +25,7 @@ import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
 
@@ -76,6 +77,17 @@ public class StorableMassList implements MassList {
 	}
     }
 
+    @Override
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer) {
+	try {
+	    rawDataFile.readDataPoints(storageID, buffer);
+	} catch (IOException e) {
+	    logger.severe("Could not read data from temporary file "
+		    + e.toString());
+	    buffer.clear();
+	}
+    }
+
     public void removeStoredData() {
 	try {
 	    rawDataFile.removeStoredDataPoints(storageID);
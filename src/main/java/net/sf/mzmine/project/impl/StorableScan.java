@@ -36,6 +36,7 @@ import javax.annotation.Nonnull;
 import javax.swing.SwingUtilities;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
@@ -146,32 +147,44 @@ public class StorableScan implements Scan {
 
     }
 
+    /**
+     * Reads the scan data points from temporary file into the given buffer
+     */
+    public void getDataPoints(@Nonnull DataPointsBuffer buffer) {
+
+	try {
+	    rawDataFile.readDataPoints(storageID, buffer);
+	} catch (IOException e) {
+	    logger.severe("Could not read data from temporary file "
+		    + e.toString());
+	    buffer.clear();
+	}
+
+    }
+
     /**
      * @return Returns scan datapoints within a given range
      */
     public @Nonnull DataPoint[] getDataPointsByMass(
 	    @Nonnull Range<Double> mzRange) {
 
-	DataPoint dataPoints[] = getDataPoints();
+	// Only the data points within the range are converted to DataPoint
+	// instances
+	DataPointsBuffer buffer = new DataPointsBuffer(numberOfDataPoints);
+	getDataPoints(buffer);
 
-	int startIndex, endIndex;
-	for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
-	    if (dataPoints[startIndex].getMZ() >= mzRange.lowerEndpoint()) {
-		break;
-	    }
-	}
-
-	for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
-	    if (dataPoints[endIndex].getMZ() > mzRange.upperEndpoint()) {
+	final int startIndex = buffer.findFirstMZ(mzRange.lowerEndpoint());
+	int endIndex;
+	for (endIndex = startIndex; endIndex < buffer.size(); endIndex++) {
+	    if (buffer.getMZ(endIndex) > mzRange.upperEndpoint()) {
 		break;
 	    }
 	}
 
 	DataPoint pointsWithinRange[] = new DataPoint[endIndex - startIndex];
-
-	// Copy the relevant points
-	System.arraycopy(dataPoints, startIndex, pointsWithinRange, 0, endIndex
-		- startIndex);
+	for (int i = startIndex; i < endIndex; i++) {
+	    pointsWithinRange[i - startIndex] = buffer.getDataPoint(i);
+	}
 
 	return pointsWithinRange;
     }
@@ -182,11 +195,12 @@ public class StorableScan implements Scan {
     public @Nonnull DataPoint[] getDataPointsOverIntensity(double intensity) {
 	int index;
 	Vector<DataPoint> points = new Vector<DataPoint>();
-	DataPoint dataPoints[] = getDataPoints();
+	DataPointsBuffer buffer = new DataPointsBuffer(numberOfDataPoints);
+	getDataPoints(buffer);
 
-	for (index = 0; index < dataPoints.length; index++) {
-	    if (dataPoints[index].getIntensity() >= intensity) {
-		points.add(dataPoints[index]);
+	for (index = 0; index < buffer.size(); index++) {
+	    if (buffer.getIntensity(index) >= intensity) {
+		points.add(buffer.getDataPoint(index));
 	    }
 	}
 
@@ -246,26 +260,29 @@ public class StorableScan implements Scan {
     }
 
     void updateValues() {
-	DataPoint dataPoints[] = getDataPoints();
+	DataPointsBuffer buffer = new DataPointsBuffer(numberOfDataPoints);
+	getDataPoints(buffer);
 
 	// find m/z range and base peak
-	if (dataPoints.length > 0) {
+	if (buffer.size() > 0) {
 
-	    basePeak = dataPoints[0];
-	    mzRange = Range.singleton(dataPoints[0].getMZ());
+	    double minMZ = buffer.getMZ(0), maxMZ = minMZ;
 	    double tic = 0;
 
-	    for (DataPoint dp : dataPoints) {
-
-		if (dp.getIntensity() > basePeak.getIntensity())
-		    basePeak = dp;
+	    for (int i = 0; i < buffer.size(); i++) {
 
-		mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+		final double mz = buffer.getMZ(i);
+		if (mz < minMZ)
+		    minMZ = mz;
+		if (mz > maxMZ)
+		    maxMZ = mz;
 
-		tic += dp.getIntensity();
+		tic += buffer.getIntensity(i);
 
 	    }
 
+	    basePeak = buffer.getDataPoint(buffer.getHighestDataPointIndex());
+	    mzRange = Range.closed(minMZ, maxMZ);
 	    totalIonCurrent = new Double(tic);
 
 	} else {
@@ -321,7 +338,9 @@ public class StorableScan implements Scan {
      */
     public MassSpectrumType getSpectrumType() {
 	if (spectrumType == null) {
-	    spectrumType = ScanUtils.detectSpectrumType(getDataPoints());
+	    DataPointsBuffer buffer = new DataPointsBuffer(numberOfDataPoints);
+	    getDataPoints(buffer);
+	    spectrumType = ScanUtils.detectSpectrumType(buffer);
 	}
 	return spectrumType;
     }
@@ -19,14 +19,26 @@
 
 package net.sf.mzmine.taskcontrol;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * An abstract implementation of task which defines common methods to make Task
  * implementation easier
  */
 public abstract class AbstractTask implements Task {
 
-    private TaskStatus status = TaskStatus.WAITING;
-    private String errorMessage = null;
+    private volatile TaskStatus status = TaskStatus.WAITING;
+    private volatile String errorMessage = null;
 
     /**
      * @see net.sf.mzmine.taskcontrol.Task#setStatus()
@@ -83,4 +95,157 @@ public abstract class AbstractTask implements Task {
 	return this.status;
     }
 
+    /**
+     * Returns the number of sub-tasks that can run in parallel, which is a
+     * reasonable number of chunks to split the work of this task into
+     */
+    protected final int getParallelism() {
+	ForkJoinPool pool = ForkJoinTask.getPool();
+	if (pool == null)
+	    pool = ForkJoinPool.commonPool();
+	return Math.max(1, pool.getParallelism());
+    }
+
+    /**
+     * Runs given sub-tasks in parallel and waits until all of them are
+     * finished. When this task is executed by the task controller, the
+     * sub-tasks are submitted to the same work-stealing pool, so idle workers
+     * can help with them; otherwise the common pool is used. The calling
+     * thread processes the sub-tasks as well while waiting.
+     * 
+     * Sub-tasks which have not started before this task was canceled are
+     * skipped and their result is null. Sub-tasks should check isCanceled()
+     * themselves if they run for a long time. Progress counters updated by
+     * the sub-tasks must be thread-safe.
+     * 
+     * @return results of the sub-tasks, in the same order as the sub-tasks
+     * @throws ExecutionException
+     *             if any of the sub-tasks threw an exception
+     */
+    protected final <T> List<T> runSubTasks(
+	    List<? extends Callable<T>> subTasks) throws ExecutionException {
+
+	if (subTasks.isEmpty())
+	    return Collections.emptyList();
+
+	List<SubTask<T>> forkedTasks = new ArrayList<SubTask<T>>(
+		subTasks.size());
+	for (Callable<T> subTask : subTasks)
+	    forkedTasks.add(new SubTask<T>(subTask));
+
+	for (SubTask<T> forkedTask : forkedTasks)
+	    fork(forkedTask);
+
+	// Join in reverse order of forking, so the calling thread first
+	// processes the sub-tasks which were not stolen by other workers
+	for (int i = forkedTasks.size() - 1; i >= 0; i--)
+	    forkedTasks.get(i).join();
+
+	List<T> results = new ArrayList<T>(forkedTasks.size());
+	for (SubTask<T> forkedTask : forkedTasks)
+	    results.add(forkedTask.getResult());
+	return results;
+
+    }
+
+    /**
+     * Starts given sub-task asynchronously in the same pool as runSubTasks()
+     * and returns immediately. This is useful for pipelines, in which the
+     * task produces work while the sub-tasks process it. Waiting for the
+     * result helps processing the pending sub-tasks.
+     * 
+     * If this task is canceled before the sub-task starts, the sub-task is
+     * skipped and its result is null.
+     * 
+     * @return Future whose get() method throws ExecutionException if the
+     *         sub-task threw an exception
+     */
+    protected final <T> Future<T> submitSubTask(Callable<T> subTask) {
+	final SubTask<T> forkedTask = new SubTask<T>(subTask);
+	fork(forkedTask);
+	return new Future<T>() {
+	    @Override
+	    public boolean cancel(boolean mayInterruptIfRunning) {
+		return forkedTask.cancel(mayInterruptIfRunning);
+	    }
+
+	    @Override
+	    public boolean isCancelled() {
+		return forkedTask.isCancelled();
+	    }
+
+	    @Override
+	    public boolean isDone() {
+		return forkedTask.isDone();
+	    }
+
+	    @Override
+	    public T get() throws ExecutionException {
+		return forkedTask.getResult();
+	    }
+
+	    @Override
+	    public T get(long timeout, TimeUnit unit)
+		    throws InterruptedException, ExecutionException,
+		    TimeoutException {
+		forkedTask.get(timeout, unit);
+		return forkedTask.getResult();
+	    }
+	};
+    }
+
+    private static void fork(ForkJoinTask<?> forkedTask) {
+	if (ForkJoinTask.inForkJoinPool())
+	    forkedTask.fork();
+	else
+	    ForkJoinPool.commonPool().execute(forkedTask);
+    }
+
+    /**
+     * Wraps a sub-task for the fork/join pool. Exceptions are kept aside
+     * instead of being thrown, so that the remaining sub-tasks are still
+     * joined and the original exception is reported to the caller. The
+     * resources used by the sub-task are counted in the metrics of the thread
+     * which created it.
+     */
+    private final class SubTask<T> extends RecursiveTask<T> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Callable<T> callable;
+	private final TaskMetrics metrics;
+	private Exception exception;
+
+	SubTask(Callable<T> callable) {
+	    this.callable = callable;
+	    this.metrics = TaskMetrics.getCurrent();
+	}
+
+	/**
+	 * Waits for the sub-task and returns its result
+	 */
+	T getResult() throws ExecutionException {
+	    join();
+	    if (exception != null)
+		throw new ExecutionException(exception);
+	    return getRawResult();
+	}
+
+	@Override
+	protected T compute() {
+	    if (isCanceled())
+		return null;
+	    final TaskMetrics previousMetrics = TaskMetrics.enter(metrics);
+	    try {
+		return callable.call();
+	    } catch (Exception e) {
+		exception = e;
+		return null;
+	    } finally {
+		TaskMetrics.exit(previousMetrics);
+	    }
+	}
+
+    }
+
 }
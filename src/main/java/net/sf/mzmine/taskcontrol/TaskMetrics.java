@@ -0,0 +1,339 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.taskcontrol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Resource usage of a task, or of a group of tasks such as a batch step. The
+ * metrics form a tree: every value counted by a task is also counted by all of
+ * its parents.
+ *
+ * The metrics of the task executed by the current thread are available through
+ * getCurrent(). They are installed by the task controller for every task, and
+ * by AbstractTask for its sub-tasks, so the raw data storage and the project
+ * can count the data read and created by any task without the task knowing
+ * about it.
+ */
+public class TaskMetrics {
+
+    private static final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>() {
+	@Override
+	protected ThreadState initialValue() {
+	    return new ThreadState();
+	}
+    };
+
+    private static final Set<TaskMetrics> runningMetrics = Collections
+	    .newSetFromMap(new ConcurrentHashMap<TaskMetrics, Boolean>());
+
+    private static final ThreadMXBean threadBean = ManagementFactory
+	    .getThreadMXBean();
+
+    private final String name;
+    private final TaskMetrics parent;
+    private final List<TaskMetrics> children = new ArrayList<TaskMetrics>();
+
+    private volatile Task task;
+    private volatile TaskStatus status = TaskStatus.WAITING;
+
+    // Wall clock times in ms, 0 if not started/finished yet
+    private volatile long startTime, endTime;
+
+    private final AtomicLong cpuTime = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong scansRead = new AtomicLong();
+    private final AtomicLong rowsCreated = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    /**
+     * Creates metrics with given name, which are added to the children of
+     * given parent
+     */
+    public TaskMetrics(@Nonnull String name, @Nullable TaskMetrics parent) {
+	this.name = name;
+	this.parent = parent;
+	if (parent != null) {
+	    synchronized (parent.children) {
+		parent.children.add(this);
+	    }
+	}
+    }
+
+    /**
+     * Metrics of the task executed by a thread, the CPU time of the thread
+     * when it started working for that task and the scans it has read for
+     * that task so far. The scans are only added to the metrics when the
+     * thread stops working for the task, so parallel sub-tasks do not contend
+     * on the counters of their parents for every scan.
+     */
+    private static final class ThreadState {
+	TaskMetrics metrics;
+	long cpuTimeStart;
+	long scansRead, bytesRead;
+    }
+
+    /**
+     * Returns the metrics of the task executed by the current thread, or null
+     */
+    public static @Nullable TaskMetrics getCurrent() {
+	return threadStates.get().metrics;
+    }
+
+    /**
+     * Makes given metrics the metrics of the task executed by the current
+     * thread, until exit() is called. The CPU time of the thread is charged to
+     * the innermost metrics only, so a thread helping with a sub-task while
+     * waiting for it does not count the same time twice.
+     *
+     * @return previous metrics of the current thread, to be passed to exit()
+     */
+    public static @Nullable TaskMetrics enter(@Nullable TaskMetrics metrics) {
+	ThreadState state = threadStates.get();
+	TaskMetrics previous = state.metrics;
+	switchMetrics(state, metrics);
+	return previous;
+    }
+
+    /**
+     * Restores the metrics which were current before the matching enter()
+     */
+    public static void exit(@Nullable TaskMetrics previous) {
+	ThreadState state = threadStates.get();
+	switchMetrics(state, previous);
+	if (previous == null)
+	    threadStates.remove();
+    }
+
+    private static void switchMetrics(ThreadState state, TaskMetrics metrics) {
+	long cpuTime = getCurrentThreadCpuTime();
+	if (state.metrics != null) {
+	    state.metrics.addCpuTime(cpuTime - state.cpuTimeStart);
+	    state.metrics.addScansRead(state.scansRead, state.bytesRead);
+	}
+	state.scansRead = 0;
+	state.bytesRead = 0;
+	state.metrics = metrics;
+	state.cpuTimeStart = cpuTime;
+    }
+
+    /**
+     * Returns the CPU time of the current thread in ns, or 0 if the JVM does
+     * not measure it
+     */
+    private static long getCurrentThreadCpuTime() {
+	if (!threadBean.isCurrentThreadCpuTimeSupported())
+	    return 0;
+	return threadBean.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * Marks these metrics as started. Only the first call sets the start time,
+     * so metrics shared by several tasks start with the first of them.
+     */
+    public void started(@Nullable Task task) {
+	synchronized (this) {
+	    if (startTime == 0)
+		startTime = System.currentTimeMillis();
+	    endTime = 0;
+	    if (task != null)
+		this.task = task;
+	    status = TaskStatus.PROCESSING;
+	}
+	runningMetrics.add(this);
+	updatePeakHeap(getUsedHeap());
+    }
+
+    /**
+     * Marks these metrics as finished. Every call moves the end time, so
+     * metrics shared by several tasks end with the last of them.
+     */
+    public void finished(@Nullable TaskStatus finalStatus) {
+	updatePeakHeap(getUsedHeap());
+	runningMetrics.remove(this);
+	synchronized (this) {
+	    endTime = System.currentTimeMillis();
+	    if (startTime == 0)
+		startTime = endTime;
+	    if (finalStatus != null)
+		status = finalStatus;
+	    task = null;
+	}
+    }
+
+    private void addCpuTime(long nanos) {
+	for (TaskMetrics m = this; m != null; m = m.parent)
+	    m.cpuTime.addAndGet(nanos);
+    }
+
+    private void addScansRead(long scans, long bytes) {
+	if (scans == 0)
+	    return;
+	for (TaskMetrics m = this; m != null; m = m.parent) {
+	    m.scansRead.addAndGet(scans);
+	    m.bytesRead.addAndGet(bytes);
+	}
+    }
+
+    /**
+     * Counts a scan read by the task of the current thread. Bytes are only
+     * counted if the data points were read from the storage file. The counts
+     * are added to the metrics when the thread stops working for the task.
+     */
+    public static void scanRead(long bytesFromStorage) {
+	ThreadState state = threadStates.get();
+	if (state.metrics == null)
+	    return;
+	state.scansRead++;
+	state.bytesRead += bytesFromStorage;
+    }
+
+    /**
+     * Counts peak list rows created by the task of the current thread
+     */
+    public static void rowsCreated(long rows) {
+	for (TaskMetrics m = getCurrent(); m != null; m = m.parent)
+	    m.rowsCreated.addAndGet(rows);
+    }
+
+    /**
+     * Updates the peak heap usage of all running tasks with the current heap
+     * usage. Called periodically by whoever monitors the tasks.
+     */
+    public static void sampleHeap() {
+	long usedHeap = getUsedHeap();
+	for (TaskMetrics metrics : runningMetrics)
+	    metrics.updatePeakHeap(usedHeap);
+    }
+
+    private void updatePeakHeap(long usedHeap) {
+	for (TaskMetrics m = this; m != null; m = m.parent) {
+	    long peak = m.peakHeap.get();
+	    while ((usedHeap > peak) && !m.peakHeap.compareAndSet(peak, usedHeap))
+		peak = m.peakHeap.get();
+	}
+    }
+
+    private static long getUsedHeap() {
+	Runtime runtime = Runtime.getRuntime();
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public @Nonnull String getName() {
+	return name;
+    }
+
+    public @Nullable TaskMetrics getParent() {
+	return parent;
+    }
+
+    public @Nonnull List<TaskMetrics> getChildren() {
+	synchronized (children) {
+	    return new ArrayList<TaskMetrics>(children);
+	}
+    }
+
+    public @Nonnull TaskStatus getStatus() {
+	return status;
+    }
+
+    /**
+     * Returns the task while it is running, or null
+     */
+    public @Nullable Task getTask() {
+	return task;
+    }
+
+    /**
+     * Returns the metrics of all tasks which are currently running
+     */
+    public static @Nonnull List<TaskMetrics> getRunningMetrics() {
+	return new ArrayList<TaskMetrics>(runningMetrics);
+    }
+
+    public long getStartTime() {
+	return startTime;
+    }
+
+    public long getEndTime() {
+	return endTime;
+    }
+
+    /**
+     * Returns the wall clock time in ms from the start until the end, or until
+     * now if not finished yet
+     */
+    public long getWallTime() {
+	long start = startTime, end = endTime;
+	if (start == 0)
+	    return 0;
+	if (end < start)
+	    end = System.currentTimeMillis();
+	return end - start;
+    }
+
+    /**
+     * Returns the CPU time in ns of all threads working for this task, as far
+     * as they have finished working for it
+     */
+    public long getCpuTime() {
+	return cpuTime.get();
+    }
+
+    /**
+     * Returns the bytes read from the raw data storage by all threads working
+     * for this task, as far as they have finished working for it
+     */
+    public long getBytesRead() {
+	return bytesRead.get();
+    }
+
+    /**
+     * Returns the scans read by all threads working for this task, as far as
+     * they have finished working for it
+     */
+    public long getScansRead() {
+	return scansRead.get();
+    }
+
+    public long getRowsCreated() {
+	return rowsCreated.get();
+    }
+
+    public long getPeakHeap() {
+	return peakHeap.get();
+    }
+
+    @Override
+    public String toString() {
+	return name;
+    }
+
+}
@@ -20,11 +20,12 @@
 package net.sf.mzmine.taskcontrol.impl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
@@ -56,11 +57,24 @@ public class TaskControllerImpl implements TaskController, Runnable {
     private TaskQueue taskQueue;
 
     /**
-     * This vector contains references to all running threads of NORMAL
-     * priority. Maximum number of concurrent threads is specified in the
-     * preferences dialog.
+     * Tasks of NORMAL priority are executed by this pool. Its parallelism is
+     * the maximum number of concurrent tasks, as specified in the preferences
+     * dialog. Tasks may also submit their own sub-tasks to this pool (see
+     * AbstractTask.runSubTasks()), so idle workers help the running tasks.
      */
-    private Vector<WorkerThread> runningThreads;
+    private ForkJoinPool workerPool;
+
+    /**
+     * This set contains references to all running workers of NORMAL priority
+     */
+    private final Set<WorkerTask> runningWorkers = Collections
+	    .newSetFromMap(new ConcurrentHashMap<WorkerTask, Boolean>());
+
+    /**
+     * Set when the queue needs to be checked for new tasks to start, either
+     * because a task was added or because a worker finished. Guarded by this.
+     */
+    private boolean rescheduleRequested = false;
 
     /**
      * Initialize the task controller
@@ -69,10 +83,8 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
 	taskQueue = new TaskQueue();
 
-	runningThreads = new Vector<WorkerThread>();
-
 	// Create a low-priority thread that will manage the queue and start
-	// worker threads for tasks
+	// worker tasks
 	taskControllerThread = new Thread(this, "Task controller thread");
 	taskControllerThread.setPriority(Thread.MIN_PRIORITY);
 	taskControllerThread.start();
@@ -122,10 +134,37 @@ public class TaskControllerImpl implements TaskController, Runnable {
 	}
 
 	// Wake up the task controller thread
-	synchronized (this) {
-	    this.notifyAll();
-	}
+	requestReschedule();
+
+    }
+
+    /**
+     * Called by a worker when its task is finished, so that the next waiting
+     * task can be started immediately
+     */
+    void workerFinished(WorkerTask worker) {
+	runningWorkers.remove(worker);
+	requestReschedule();
+    }
+
+    private synchronized void requestReschedule() {
+	rescheduleRequested = true;
+	this.notifyAll();
+    }
 
+    /**
+     * Returns the worker pool with given parallelism. If the number of threads
+     * was changed in the preferences, a new pool is created and the old one
+     * is shut down after its running tasks finish.
+     */
+    private ForkJoinPool getWorkerPool(int parallelism) {
+	if ((workerPool == null)
+		|| (workerPool.getParallelism() != parallelism)) {
+	    if (workerPool != null)
+		workerPool.shutdown();
+	    workerPool = new ForkJoinPool(parallelism);
+	}
+	return workerPool;
     }
 
     /**
@@ -164,14 +203,6 @@ public class TaskControllerImpl implements TaskController, Runnable {
 		continue;
 	    }
 
-	    // Remove already finished threads from runningThreads
-	    Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-	    while (threadIterator.hasNext()) {
-		WorkerThread thread = threadIterator.next();
-		if (thread.isFinished())
-		    threadIterator.remove();
-	    }
-
 	    // Get a snapshot of the queue
 	    WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
 
@@ -193,28 +224,33 @@ public class TaskControllerImpl implements TaskController, Runnable {
 			|| (task.getActualTask().getStatus() == TaskStatus.CANCELED))
 		    continue;
 
-		// Create a new thread if the task is high-priority or if we
-		// have less then maximum # of threads running
-		if ((task.getPriority() == TaskPriority.HIGH)
-			|| (runningThreads.size() < maxRunningThreads)) {
-		    WorkerThread newThread = new WorkerThread(task);
-
-		    if (task.getPriority() == TaskPriority.NORMAL) {
-			runningThreads.add(newThread);
-		    }
-
-		    newThread.start();
+		// High-priority tasks get their own thread, so they never wait
+		// for a free worker. Others are started if we have less then
+		// maximum # of workers running.
+		if (task.getPriority() == TaskPriority.HIGH) {
+		    WorkerTask newWorker = new WorkerTask(task, this);
+		    new Thread(newWorker).start();
+		} else if (runningWorkers.size() < maxRunningThreads) {
+		    WorkerTask newWorker = new WorkerTask(task, this);
+		    runningWorkers.add(newWorker);
+		    getWorkerPool(maxRunningThreads).execute(newWorker);
 		}
 	    }
 
 	    // Tell the queue to refresh the Task progress window
 	    taskQueue.refresh();
 
-	    // Sleep for a while until next update
-	    try {
-		Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-	    } catch (InterruptedException e) {
-		// Ignore
+	    // Wait until a task is added or finished. The timeout only serves
+	    // to update the Task progress window periodically.
+	    synchronized (this) {
+		if (!rescheduleRequested) {
+		    try {
+			this.wait(TASKCONTROLLER_THREAD_SLEEP);
+		    } catch (InterruptedException e) {
+			// Ignore
+		    }
+		}
+		rescheduleRequested = false;
 	    }
 
 	}
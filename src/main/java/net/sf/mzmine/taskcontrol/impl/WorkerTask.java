@@ -24,23 +24,28 @@ import java.util.logging.Logger;
 
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
+import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then
- * finish
+ * Task controller worker, which processes one task on the worker pool (or on a
+ * dedicated thread, for high priority tasks) and then notifies the task
+ * controller
  */
-class WorkerThread extends Thread {
+class WorkerTask implements Runnable {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private WrappedTask wrappedTask;
-    private boolean finished = false;
+    private final WrappedTask wrappedTask;
+    private final TaskControllerImpl taskController;
+    private volatile Thread executingThread;
+    private volatile boolean finished = false;
 
-    WorkerThread(WrappedTask wrappedTask) {
-	super("Thread executing task " + wrappedTask);
+    WorkerTask(WrappedTask wrappedTask, TaskControllerImpl taskController) {
 	this.wrappedTask = wrappedTask;
+	this.taskController = taskController;
 	wrappedTask.assignTo(this);
     }
 
@@ -51,6 +56,22 @@ class WorkerThread extends Thread {
 
 	Task actualTask = wrappedTask.getActualTask();
 
+	// Pool threads are shared by all tasks, so we must restore their
+	// original name and priority when the task is finished
+	final Thread currentThread = Thread.currentThread();
+	final String originalName = currentThread.getName();
+	final int originalPriority = currentThread.getPriority();
+	currentThread.setName("Thread executing task " + wrappedTask);
+	executingThread = currentThread;
+	if (wrappedTask.getPriority() == TaskPriority.HIGH)
+	    currentThread.setPriority(Thread.MAX_PRIORITY);
+
+	// Count the resources used by the task, including its sub-tasks
+	final TaskMetrics metrics = wrappedTask.getMetrics();
+	final TaskMetrics previousMetrics = TaskMetrics.enter(metrics);
+	metrics.started(actualTask);
+	TaskStatus finalStatus = null;
+
 	try {
 
 	    // Log the start (INFO level events go to the Status bar, too)
@@ -59,6 +80,7 @@ class WorkerThread extends Thread {
 
 	    // Process the actual task
 	    actualTask.run();
+	    finalStatus = actualTask.getStatus();
 
 	    // Check if task finished with an error
 	    if (actualTask.getStatus() == TaskStatus.ERROR) {
@@ -97,6 +119,8 @@ class WorkerThread extends Thread {
 	     * OutOfMemoryError
 	     */
 
+	    finalStatus = TaskStatus.ERROR;
+
 	    logger.log(Level.SEVERE,
 		    "Unhandled exception " + e + " while processing task "
 			    + actualTask.getTaskDescription(), e);
@@ -109,12 +133,23 @@ class WorkerThread extends Thread {
 			    + actualTask.getTaskDescription() + ": "
 			    + ExceptionUtils.exceptionToString(e));
 
-	}
+	} finally {
+	    // The worker thread is pooled, so it must not stay in the metrics
+	    // of this task
+	    TaskMetrics.exit(previousMetrics);
+	    metrics.finished(finalStatus);
 
-	/*
-	 * Mark this thread as finished
-	 */
-	finished = true;
+	    executingThread = null;
+	    currentThread.setName(originalName);
+	    currentThread.setPriority(originalPriority);
+
+	    /*
+	     * Mark this task as finished and let the task controller start
+	     * the next one, even if handling an error failed
+	     */
+	    finished = true;
+	    taskController.workerFinished(this);
+	}
 
     }
 
@@ -122,4 +157,13 @@ class WorkerThread extends Thread {
 	return finished;
     }
 
+    /**
+     * Sets the priority of the thread currently executing the task, if any
+     */
+    void setThreadPriority(int priority) {
+	Thread thread = executingThread;
+	if (thread != null)
+	    thread.setPriority(priority);
+    }
+
 }
@@ -20,6 +20,7 @@
 package net.sf.mzmine.taskcontrol.impl;
 
 import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskMetrics;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 
 /**
@@ -29,11 +30,25 @@ public class WrappedTask {
 
     private Task task;
     private TaskPriority priority;
-    private WorkerThread assignedTo;
+    private WorkerTask assignedTo;
+    private final TaskMetrics metrics;
 
+    /**
+     * Wraps given task. Tasks added while another task is running (e.g. the
+     * tasks of a batch step) are counted in the metrics of that task, too.
+     */
     WrappedTask(Task task, TaskPriority priority) {
 	this.task = task;
 	this.priority = priority;
+	this.metrics = new TaskMetrics(task.getTaskDescription(),
+		TaskMetrics.getCurrent());
+    }
+
+    /**
+     * @return Returns the resource usage of the task.
+     */
+    public TaskMetrics getMetrics() {
+	return metrics;
     }
 
     /**
@@ -52,10 +67,10 @@ public class WrappedTask {
 	if (assignedTo != null) {
 	    switch (priority) {
 	    case HIGH:
-		assignedTo.setPriority(Thread.MAX_PRIORITY);
+		assignedTo.setThreadPriority(Thread.MAX_PRIORITY);
 		break;
 	    case NORMAL:
-		assignedTo.setPriority(Thread.NORM_PRIORITY);
+		assignedTo.setThreadPriority(Thread.NORM_PRIORITY);
 		break;
 	    }
 	}
@@ -68,8 +83,8 @@ public class WrappedTask {
 	return assignedTo != null;
     }
 
-    void assignTo(WorkerThread thread) {
-	assignedTo = thread;
+    void assignTo(WorkerTask worker) {
+	assignedTo = worker;
     }
 
     /**
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.DataPointsBuffer;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.Range;
+
+/**
+ * Maximum intensities of a set of scans, binned by m/z, at multiple resolutions
+ * on the retention time axis. Level 0 contains one row of m/z bins per scan, or
+ * per group of consecutive scans for very long runs, so the memory used by a
+ * pyramid is bounded. Each following level contains the maximum of two
+ * consecutive rows of the previous level. The maximum intensity of any scan
+ * and m/z bin range can be found by reading a logarithmic number of rows,
+ * without loading the data points of the scans.
+ *
+ * A pyramid is filled scan by scan using addScan() and becomes usable after
+ * finish(). Finished pyramids can be shared by the visualizers of the same
+ * raw data file through getCachedPyramid() and cachePyramid(). The cache is
+ * keyed by weak references to the raw data files, so a pyramid only keeps the
+ * numbers of its scans, not the scans or the file.
+ */
+public class IntensityPyramid {
+
+    // Maximum number of m/z bins, and maximum number of values in level 0.
+    // All levels together are at most twice as large as level 0.
+    private static final int MAX_MZ_BINS = 1024;
+    private static final int MIN_MZ_BINS = 128;
+    private static final int MAX_LEVEL_0_SIZE = 4 * 1024 * 1024;
+
+    private static final Map<RawDataFile, List<SoftReference<IntensityPyramid>>> cache = new WeakHashMap<RawDataFile, List<SoftReference<IntensityPyramid>>>();
+
+    private final int scanNumbers[];
+    private final double retentionTimes[];
+    private final Range<Double> mzRange;
+    private final int numOfBins;
+    private final double binWidth;
+
+    // Each row of level 0 contains (1 << rowShift) consecutive scans
+    private final int rowShift;
+
+    // levels[level][row * numOfBins + bin]
+    private final float levels[][];
+
+    private volatile boolean finished = false;
+
+    /**
+     * Creates an empty pyramid for given scans, which must be sorted by
+     * retention time. The number of m/z bins is reduced for long runs, and
+     * for very long runs several scans share one row of level 0, so the size
+     * of the pyramid does not depend on the number of scans.
+     */
+    public IntensityPyramid(@Nonnull Scan scans[],
+	    @Nonnull Range<Double> mzRange) {
+
+	this.mzRange = mzRange;
+
+	scanNumbers = getScanNumbers(scans);
+	retentionTimes = new double[scans.length];
+	for (int i = 0; i < scans.length; i++)
+	    retentionTimes[i] = scans[i].getRetentionTime();
+
+	int bins = MAX_MZ_BINS;
+	while ((bins > MIN_MZ_BINS)
+		&& ((long) bins * scans.length > MAX_LEVEL_0_SIZE))
+	    bins /= 2;
+	numOfBins = bins;
+	binWidth = (mzRange.upperEndpoint() - mzRange.lowerEndpoint())
+		/ numOfBins;
+
+	int shift = 0;
+	while ((long) numOfBins * getNumberOfRows(scans.length, shift) > MAX_LEVEL_0_SIZE)
+	    shift++;
+	rowShift = shift;
+
+	List<float[]> levelList = new ArrayList<float[]>();
+	int rows = getNumberOfRows(scans.length, rowShift);
+	levelList.add(new float[rows * numOfBins]);
+	while (rows > 1) {
+	    rows = (rows + 1) / 2;
+	    levelList.add(new float[rows * numOfBins]);
+	}
+	levels = levelList.toArray(new float[0][]);
+
+    }
+
+    private static int getNumberOfRows(int numberOfScans, int shift) {
+	return (int) (((long) numberOfScans + (1 << shift) - 1) >> shift);
+    }
+
+    /**
+     * Adds the data points of the scan at given index to level 0
+     */
+    public void addScan(int scanIndex, @Nonnull DataPointsBuffer dataPoints) {
+	final float row[] = levels[0];
+	final int rowOffset = (scanIndex >> rowShift) * numOfBins;
+	final double mzMin = mzRange.lowerEndpoint(), mzMax = mzRange
+		.upperEndpoint();
+	for (int i = dataPoints.findFirstMZ(mzMin); i < dataPoints.size(); i++) {
+	    final double mz = dataPoints.getMZ(i);
+	    if (mz > mzMax)
+		break;
+	    final int bin = getBinIndex(mz);
+	    final float intensity = (float) dataPoints.getIntensity(i);
+	    if (intensity > row[rowOffset + bin])
+		row[rowOffset + bin] = intensity;
+	}
+    }
+
+    /**
+     * Calculates the upper levels, after all scans were added
+     */
+    public void finish() {
+	for (int level = 1; level < levels.length; level++) {
+	    final float lower[] = levels[level - 1], upper[] = levels[level];
+	    final int lowerRows = lower.length / numOfBins;
+	    for (int row = 0; row < lowerRows; row++) {
+		final int lowerOffset = row * numOfBins;
+		final int upperOffset = (row / 2) * numOfBins;
+		for (int bin = 0; bin < numOfBins; bin++) {
+		    if (lower[lowerOffset + bin] > upper[upperOffset + bin])
+			upper[upperOffset + bin] = lower[lowerOffset + bin];
+		}
+	    }
+	}
+	finished = true;
+    }
+
+    public boolean isFinished() {
+	return finished;
+    }
+
+    public @Nonnull Range<Double> getMZRange() {
+	return mzRange;
+    }
+
+    public int getNumberOfScans() {
+	return retentionTimes.length;
+    }
+
+    public int getNumberOfBins() {
+	return numOfBins;
+    }
+
+    public double getBinWidth() {
+	return binWidth;
+    }
+
+    /**
+     * Returns the number of consecutive scans binned together in one row of
+     * level 0. Ranges of fewer scans cannot be told apart by the pyramid.
+     */
+    public int getScansPerRow() {
+	return 1 << rowShift;
+    }
+
+    /**
+     * Returns the index of the m/z bin containing given m/z value. Values
+     * outside of the pyramid m/z range are assigned to the first or last bin.
+     */
+    public int getBinIndex(double mz) {
+	int bin = (int) ((mz - mzRange.lowerEndpoint()) / binWidth);
+	if (bin < 0)
+	    return 0;
+	if (bin >= numOfBins)
+	    return numOfBins - 1;
+	return bin;
+    }
+
+    /**
+     * Returns the index of the first bin whose center is greater or equal to
+     * given m/z value. Using bin centers, adjacent m/z ranges never share a
+     * bin.
+     */
+    public int getFirstBinIndex(double mz) {
+	return (int) Math.ceil((mz - mzRange.lowerEndpoint()) / binWidth
+		- 0.5);
+    }
+
+    /**
+     * Returns the index of the first scan with retention time greater or equal
+     * to given value, or the number of scans if there is no such scan
+     */
+    public int getFirstScanIndex(double rt) {
+	int low = 0, high = retentionTimes.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (retentionTimes[middle] < rt)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Returns the index of the last scan with retention time less or equal to
+     * given value, or -1 if there is no such scan
+     */
+    public int getLastScanIndex(double rt) {
+	int low = 0, high = retentionTimes.length;
+	while (low < high) {
+	    int middle = (low + high) >>> 1;
+	    if (retentionTimes[middle] <= rt)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low - 1;
+    }
+
+    /**
+     * Returns the maximum intensity of the m/z bins firstBin to lastBin in the
+     * scans firstScan to lastScan (all inclusive). Indexes are clipped to the
+     * pyramid size. If several scans share a row of level 0, the rows
+     * containing firstScan and lastScan are read as a whole. The pyramid must
+     * be finished.
+     */
+    public double getMaxIntensity(int firstScan, int lastScan, int firstBin,
+	    int lastBin) {
+
+	assert finished;
+
+	firstScan = Math.max(firstScan, 0);
+	lastScan = Math.min(lastScan, retentionTimes.length - 1);
+	firstBin = Math.max(firstBin, 0);
+	lastBin = Math.min(lastBin, numOfBins - 1);
+	if ((firstScan > lastScan) || (firstBin > lastBin))
+	    return 0;
+
+	firstScan >>= rowShift;
+	lastScan >>= rowShift;
+
+	float maxIntensity = 0;
+	int level = 0;
+	while (firstScan <= lastScan) {
+	    if ((firstScan & 1) == 1) {
+		maxIntensity = Math.max(maxIntensity,
+			getRowMax(level, firstScan, firstBin, lastBin));
+		firstScan++;
+	    }
+	    if ((lastScan & 1) == 0) {
+		maxIntensity = Math.max(maxIntensity,
+			getRowMax(level, lastScan, firstBin, lastBin));
+		lastScan--;
+	    }
+	    if (firstScan > lastScan)
+		break;
+	    firstScan >>= 1;
+	    lastScan >>= 1;
+	    level++;
+	}
+	return maxIntensity;
+    }
+
+    private float getRowMax(int level, int row, int firstBin, int lastBin) {
+	final float values[] = levels[level];
+	final int offset = row * numOfBins;
+	float max = 0;
+	for (int bin = firstBin; bin <= lastBin; bin++) {
+	    if (values[offset + bin] > max)
+		max = values[offset + bin];
+	}
+	return max;
+    }
+
+    /**
+     * Returns a finished pyramid of given scans whose m/z range encloses given
+     * range, or null
+     */
+    public static synchronized @Nullable IntensityPyramid getCachedPyramid(
+	    @Nonnull RawDataFile dataFile, @Nonnull Scan scans[],
+	    @Nonnull Range<Double> mzRange) {
+	List<SoftReference<IntensityPyramid>> pyramids = cache.get(dataFile);
+	if (pyramids == null)
+	    return null;
+	final int scanNumbers[] = getScanNumbers(scans);
+	Iterator<SoftReference<IntensityPyramid>> iterator = pyramids
+		.iterator();
+	while (iterator.hasNext()) {
+	    IntensityPyramid pyramid = iterator.next().get();
+	    if (pyramid == null) {
+		iterator.remove();
+		continue;
+	    }
+	    if (pyramid.mzRange.encloses(mzRange)
+		    && Arrays.equals(pyramid.scanNumbers, scanNumbers))
+		return pyramid;
+	}
+	return null;
+    }
+
+    /**
+     * Makes a finished pyramid available to other visualizers of the same raw
+     * data file. Pyramids are only softly referenced by the cache.
+     */
+    public static synchronized void cachePyramid(
+	    @Nonnull RawDataFile dataFile, @Nonnull IntensityPyramid pyramid) {
+	assert pyramid.finished;
+	List<SoftReference<IntensityPyramid>> pyramids = cache.get(dataFile);
+	if (pyramids == null) {
+	    pyramids = new ArrayList<SoftReference<IntensityPyramid>>();
+	    cache.put(dataFile, pyramids);
+	}
+	pyramids.add(new SoftReference<IntensityPyramid>(pyramid));
+    }
+
+    private static int[] getScanNumbers(Scan scans[]) {
+	int scanNumbers[] = new int[scans.length];
+	for (int i = 0; i < scans.length; i++)
+	    scanNumbers[i] = scans[i].getScanNumber();
+	return scanNumbers;
+    }
+
+}
@@ -31,6 +31,7 @@ import java.util.Arrays;
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
@@ -104,17 +105,54 @@ public class ScanUtils {
      */
     public static @Nonnull DataPoint findBasePeak(@Nonnull Scan scan,
 	    @Nonnull Range<Double> mzRange) {
+	return findBasePeak(scan, mzRange,
+		new DataPointsBuffer(scan.getNumberOfDataPoints()));
+    }
+
+    /**
+     * Find a base peak of a given scan in a given m/z range, using the given
+     * buffer for reading the scan data points. Callers which search many scans
+     * should reuse the same buffer.
+     * 
+     * @return base peak, or null if there is no data point in the m/z range
+     */
+    public static DataPoint findBasePeak(@Nonnull Scan scan,
+	    @Nonnull Range<Double> mzRange, @Nonnull DataPointsBuffer buffer) {
 
-	DataPoint dataPoints[] = scan.getDataPointsByMass(mzRange);
-	DataPoint basePeak = null;
+	scan.getDataPoints(buffer);
 
-	for (DataPoint dp : dataPoints) {
-	    if ((basePeak == null)
-		    || (dp.getIntensity() > basePeak.getIntensity()))
-		basePeak = dp;
+	int basePeakIndex = findBasePeakIndex(buffer, mzRange);
+	if (basePeakIndex < 0)
+	    return null;
+
+	return buffer.getDataPoint(basePeakIndex);
+    }
+
+    /**
+     * Find the index of the base peak in a given m/z range of data points
+     * which were already read into the buffer
+     * 
+     * @return index of the base peak, or -1 if there is no data point in the
+     *         m/z range
+     */
+    public static int findBasePeakIndex(@Nonnull DataPointsBuffer buffer,
+	    @Nonnull Range<Double> mzRange) {
+
+	final double mzValues[] = buffer.getMZValues();
+	final double intensityValues[] = buffer.getIntensityValues();
+	final double highMZ = mzRange.upperEndpoint();
+	int basePeakIndex = -1;
+
+	for (int i = buffer.findFirstMZ(mzRange.lowerEndpoint()); i < buffer
+		.size(); i++) {
+	    if (mzValues[i] > highMZ)
+		break;
+	    if ((basePeakIndex < 0)
+		    || (intensityValues[i] > intensityValues[basePeakIndex]))
+		basePeakIndex = i;
 	}
 
-	return basePeak;
+	return basePeakIndex;
     }
 
     /**
@@ -127,10 +165,29 @@ public class ScanUtils {
      * @return the total ion count of the scan within the mass range.
      */
     public static double calculateTIC(Scan scan, Range<Double> mzRange) {
+	return calculateTIC(scan, mzRange,
+		new DataPointsBuffer(scan.getNumberOfDataPoints()));
+    }
+
+    /**
+     * Calculate the total ion count of a scan within a given mass range, using
+     * the given buffer for reading the scan data points.
+     */
+    public static double calculateTIC(Scan scan, Range<Double> mzRange,
+	    DataPointsBuffer buffer) {
+
+	scan.getDataPoints(buffer);
+
+	final double mzValues[] = buffer.getMZValues();
+	final double intensityValues[] = buffer.getIntensityValues();
+	final double highMZ = mzRange.upperEndpoint();
 
 	double tic = 0.0;
-	for (final DataPoint dataPoint : scan.getDataPointsByMass(mzRange)) {
-	    tic += dataPoint.getIntensity();
+	for (int i = buffer.findFirstMZ(mzRange.lowerEndpoint()); i < buffer
+		.size(); i++) {
+	    if (mzValues[i] > highMZ)
+		break;
+	    tic += intensityValues[i];
 	}
 	return tic;
     }
@@ -393,24 +450,31 @@ public class ScanUtils {
      */
     public static MassSpectrumType detectSpectrumType(
             @Nonnull DataPoint[] dataPoints) {
+        DataPointsBuffer buffer = new DataPointsBuffer(dataPoints.length);
+        buffer.setDataPoints(dataPoints);
+        return detectSpectrumType(buffer);
+    }
 
-        double[] intensityValues = new double[dataPoints.length];
-        double[] mzValues = new double[dataPoints.length];
+    /**
+     * @see #detectSpectrumType(DataPoint[])
+     */
+    public static MassSpectrumType detectSpectrumType(
+            @Nonnull DataPointsBuffer dataPoints) {
+
+        final double[] intensityValues = dataPoints.getIntensityValues();
+        final double[] mzValues = dataPoints.getMZValues();
 
         // If the spectrum has less than 5 data points, it should be centroided.
-        if (dataPoints.length < 5)
+        if (dataPoints.size() < 5)
             return MassSpectrumType.CENTROIDED;
 
         int basePeakIndex = 0;
         boolean hasZeroDataPoint = false;
 
         // Go through the data points and find the highest one
-        int size = dataPoints.length;
+        int size = dataPoints.size();
         for (int i = 0; i < size; i++) {
 
-            intensityValues[i] = dataPoints[i].getIntensity();
-            mzValues[i] = dataPoints[i].getMZ();
-
             // Update the maxDataPointIndex accordingly
             if (intensityValues[i] > intensityValues[basePeakIndex])
                 basePeakIndex = i;
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import net.sf.mzmine.taskcontrol.TaskMetrics;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExitCode;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeadLessRunMonitorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test the JSON report and the final heartbeat of a run with one step
+     */
+    @Test
+    public void testJSONReport() throws IOException {
+
+	File reportFile = new File(folder.getRoot(), "report.json");
+	File heartbeatFile = new File(folder.getRoot(), "heartbeat.json");
+
+	runBatch(reportFile, heartbeatFile);
+
+	String report = read(reportFile);
+	Assert.assertTrue(report.contains("\"batchFile\": \"test.xml\","));
+	Assert.assertTrue(report.contains("\"exitCode\": \"OK\","));
+	Assert.assertTrue(report.contains("\"name\": \"Batch test.xml\","));
+	Assert.assertTrue(report.contains("\"name\": \"Step 1: \\\"Test\\\"\","));
+
+	// Scans are counted by the step and by the whole run
+	Assert.assertEquals(2, count(report, "\"scansRead\": 3,"));
+	Assert.assertEquals(2, count(report, "\"bytesRead\": 24,"));
+	Assert.assertEquals(2, count(report, "\"status\": \"FINISHED\","));
+	Assert.assertEquals(1, count(report, "\"status\": \"CANCELED\","));
+
+	// Balanced braces and brackets, no trailing commas
+	Assert.assertEquals(count(report, "{"), count(report, "}"));
+	Assert.assertEquals(count(report, "["), count(report, "]"));
+	Assert.assertFalse(report.matches("(?s).*,\\s*[}\\]].*"));
+
+	String heartbeat = read(heartbeatFile);
+	Assert.assertTrue(heartbeat.contains("\"status\": \"OK\","));
+	Assert.assertTrue(heartbeat.contains("\"scansRead\": 3,"));
+	Assert.assertTrue(heartbeat.contains("\"runningTasks\": []"));
+	Assert.assertFalse(new File(folder.getRoot(), ".heartbeat.json.tmp")
+		.exists());
+
+    }
+
+    /**
+     * Test the CSV report, which has one line for the run and one for each
+     * step
+     */
+    @Test
+    public void testCSVReport() throws IOException {
+
+	File reportFile = new File(folder.getRoot(), "report.csv");
+
+	runBatch(reportFile, null);
+
+	String lines[] = read(reportFile).split("\n");
+	Assert.assertEquals(3, lines.length);
+	Assert.assertEquals("id,level,name,status,wall_time_ms,cpu_time_ms,"
+		+ "peak_heap_bytes,bytes_read,scans_read,rows_created,"
+		+ "scans_per_second,rows_per_second", lines[0]);
+
+	String run[] = lines[1].split(",");
+	Assert.assertEquals("0", run[0]);
+	Assert.assertEquals("run", run[1]);
+	Assert.assertEquals("\"Batch test.xml\"", run[2]);
+	Assert.assertEquals("FINISHED", run[3]);
+	Assert.assertEquals("24", run[7]);
+	Assert.assertEquals("3", run[8]);
+	Assert.assertEquals("0", run[9]);
+
+	String step[] = lines[2].split(",");
+	Assert.assertEquals("1", step[0]);
+	Assert.assertEquals("step", step[1]);
+	Assert.assertEquals("\"Step 1: \"\"Test\"\"\"", step[2]);
+	Assert.assertEquals("FINISHED", step[3]);
+	Assert.assertEquals("3", step[8]);
+
+    }
+
+    /**
+     * Runs a batch with one finished step reading three scans and one
+     * canceled step, monitored by a HeadLessRunMonitor
+     */
+    private void runBatch(File reportFile, File heartbeatFile) {
+
+	HeadLessRunMonitor monitor = new HeadLessRunMonitor(new File(
+		"test.xml"), reportFile, heartbeatFile, 1);
+	monitor.start();
+
+	TaskMetrics step = new TaskMetrics("Step 1: \"Test\"",
+		TaskMetrics.getCurrent());
+	step.started(null);
+	TaskMetrics previous = TaskMetrics.enter(step);
+	for (int i = 0; i < 3; i++)
+	    TaskMetrics.scanRead(8);
+	TaskMetrics.exit(previous);
+	step.finished(TaskStatus.FINISHED);
+
+	if (reportFile.getName().endsWith(".json")) {
+	    TaskMetrics canceledStep = new TaskMetrics("Step 2",
+		    TaskMetrics.getCurrent());
+	    canceledStep.started(null);
+	    canceledStep.finished(TaskStatus.CANCELED);
+	}
+
+	monitor.finish(ExitCode.OK);
+
+    }
+
+    private static String read(File file) throws IOException {
+	return new String(Files.readAllBytes(file.toPath()),
+		StandardCharsets.UTF_8);
+    }
+
+    private static int count(String text, String pattern) {
+	int count = 0;
+	for (int i = text.indexOf(pattern); i >= 0; i = text.indexOf(pattern,
+		i + pattern.length()))
+	    count++;
+	return count;
+    }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.batchmode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineModuleCategory;
+import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.impl.MZmineProcessingStepImpl;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskPriority;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.impl.TaskControllerImpl;
+import net.sf.mzmine.util.ExitCode;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs a batch of an import step, two steps which process each raw data file
+ * on its own and an alignment step on two files
+ */
+public class BatchTaskTest {
+
+    // Maximum time the first file waits for the second file to get ahead
+    private static final long PIPELINE_TIMEOUT = 10;
+
+    private static Object previousTaskController;
+
+    // Events of the step tasks, in the order they happened
+    private final List<String> events = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    // Released when the second file was processed by the last per-file step
+    private final CountDownLatch secondFilePicked = new CountDownLatch(1);
+    private volatile boolean secondFileGotAhead;
+
+    private volatile PeakList alignedPeakLists[];
+
+    /**
+     * The step tasks run in their own threads, so any number of them can run
+     * at the same time
+     */
+    private static class ThreadPerTaskController extends TaskControllerImpl {
+        @Override
+        public void addTasks(Task tasks[], TaskPriority priority) {
+            for (Task task : tasks)
+                new Thread(task).start();
+        }
+    }
+
+    @BeforeClass
+    public static void initTaskController() throws Exception {
+        Field taskController = MZmineCore.class
+                .getDeclaredField("taskController");
+        taskController.setAccessible(true);
+        previousTaskController = taskController.get(null);
+        taskController.set(null, new ThreadPerTaskController());
+    }
+
+    @AfterClass
+    public static void restoreTaskController() throws Exception {
+        Field taskController = MZmineCore.class
+                .getDeclaredField("taskController");
+        taskController.setAccessible(true);
+        taskController.set(null, previousTaskController);
+    }
+
+    @Test
+    public void testTwoFileBatch() {
+
+        BatchQueue queue = new BatchQueue();
+        queue.add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
+                new ImportModule(), new NoParameters()));
+        queue.add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
+                new FilterModule(), new RawDataFileParameters()));
+        queue.add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
+                new PickModule(), new RawDataFileParameters()));
+        queue.add(new MZmineProcessingStepImpl<MZmineProcessingModule>(
+                new AlignModule(), new PeakListParameters()));
+
+        ParameterSet parameters = new BatchModeParameters();
+        parameters.getParameter(BatchModeParameters.batchQueue)
+                .setValue(queue);
+
+        MZmineProjectImpl project = new MZmineProjectImpl();
+        BatchTask batch = new BatchTask(project, parameters);
+        batch.run();
+        assertEquals(batch.getErrorMessage(), TaskStatus.FINISHED,
+                batch.getStatus());
+
+        // The second file does not wait for the first one between the
+        // per-file steps
+        assertTrue("Second file waited for the first file",
+                secondFileGotAhead);
+
+        // Each file went through the per-file steps in order, between the
+        // import and the alignment
+        assertEquals("import", events.get(0));
+        assertEquals("align", events.get(events.size() - 1));
+        assertEquals(6, events.size());
+        for (String file : new String[] { "a", "b" }) {
+            int filtered = events.indexOf("filter " + file);
+            int picked = events.indexOf("pick " + file + " filtered");
+            assertTrue(events.toString(), filtered > 0);
+            assertTrue(events.toString(), picked > filtered);
+        }
+
+        // The alignment got the peak lists of all files, in the order of the
+        // files
+        assertEquals(2, alignedPeakLists.length);
+        assertEquals("a filtered peaks", alignedPeakLists[0].getName());
+        assertEquals("b filtered peaks", alignedPeakLists[1].getName());
+
+        assertEquals(4, project.getDataFiles().length);
+        assertEquals(2, project.getPeakLists().length);
+
+    }
+
+    private static RawDataFile createDataFile(String name) {
+        RawDataFile dataFile = mock(RawDataFile.class);
+        when(dataFile.getName()).thenReturn(name);
+        when(dataFile.getScanNumbers()).thenReturn(new int[0]);
+        return dataFile;
+    }
+
+    private static PeakList createPeakList(RawDataFile dataFile) {
+        String name = dataFile.getName() + " peaks";
+        PeakList peakList = mock(PeakList.class);
+        when(peakList.getName()).thenReturn(name);
+        when(peakList.getRawDataFiles()).thenReturn(
+                new RawDataFile[] { dataFile });
+        when(peakList.getRows()).thenReturn(new PeakListRow[0]);
+        return peakList;
+    }
+
+    /**
+     * Task which runs given code. Failures are reported as errors, which
+     * stop the batch.
+     */
+    private static abstract class StepTestTask extends AbstractTask {
+
+        public void run() {
+            setStatus(TaskStatus.PROCESSING);
+            try {
+                process();
+            } catch (Throwable e) {
+                setStatus(TaskStatus.ERROR);
+                setErrorMessage(e.toString());
+                return;
+            }
+            setStatus(TaskStatus.FINISHED);
+        }
+
+        abstract void process();
+
+        public String getTaskDescription() {
+            return "Test step";
+        }
+
+        public double getFinishedPercentage() {
+            return 0;
+        }
+
+    }
+
+    /**
+     * Imports two files, as the raw data import does
+     */
+    private class ImportModule extends TestModule {
+
+        ImportModule() {
+            super("Import", MZmineModuleCategory.RAWDATA);
+        }
+
+        @Override
+        public ExitCode runModule(@Nonnull final MZmineProject project,
+                @Nonnull ParameterSet parameters,
+                @Nonnull Collection<Task> tasks) {
+            tasks.add(new StepTestTask() {
+                void process() {
+                    events.add("import");
+                    project.addFile(createDataFile("a"));
+                    project.addFile(createDataFile("b"));
+                }
+            });
+            return ExitCode.OK;
+        }
+
+    }
+
+    /**
+     * Creates a filtered file from each file. The first file waits until the
+     * second file was processed by the next step.
+     */
+    private class FilterModule extends TestModule {
+
+        FilterModule() {
+            super("Filter", MZmineModuleCategory.RAWDATAFILTERING);
+        }
+
+        @Override
+        public ExitCode runModule(@Nonnull final MZmineProject project,
+                @Nonnull ParameterSet parameters,
+                @Nonnull Collection<Task> tasks) {
+            for (final RawDataFile dataFile : parameters
+                    .getParameter(RawDataFileParameters.dataFiles).getValue()
+                    .getMatchingRawDataFiles()) {
+                tasks.add(new StepTestTask() {
+                    void process() {
+                        if (dataFile.getName().equals("a")) {
+                            try {
+                                secondFileGotAhead = secondFilePicked.await(
+                                        PIPELINE_TIMEOUT, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                // ignore
+                            }
+                        }
+                        events.add("filter " + dataFile.getName());
+                        project.addFile(createDataFile(dataFile.getName()
+                                + " filtered"));
+                    }
+                });
+            }
+            return ExitCode.OK;
+        }
+
+    }
+
+    /**
+     * Creates a peak list from each file
+     */
+    private class PickModule extends TestModule {
+
+        PickModule() {
+            super("Pick", MZmineModuleCategory.PEAKPICKING);
+        }
+
+        @Override
+        public ExitCode runModule(@Nonnull final MZmineProject project,
+                @Nonnull ParameterSet parameters,
+                @Nonnull Collection<Task> tasks) {
+            for (final RawDataFile dataFile : parameters
+                    .getParameter(RawDataFileParameters.dataFiles).getValue()
+                    .getMatchingRawDataFiles()) {
+                tasks.add(new StepTestTask() {
+                    void process() {
+                        events.add("pick " + dataFile.getName());
+                        project.addPeakList(createPeakList(dataFile));
+                        if (dataFile.getName().startsWith("b"))
+                            secondFilePicked.countDown();
+                    }
+                });
+            }
+            return ExitCode.OK;
+        }
+
+    }
+
+    /**
+     * Records the peak lists it gets
+     */
+    private class AlignModule extends TestModule {
+
+        AlignModule() {
+            super("Align", MZmineModuleCategory.ALIGNMENT);
+        }
+
+        @Override
+        public ExitCode runModule(@Nonnull MZmineProject project,
+                @Nonnull ParameterSet parameters,
+                @Nonnull Collection<Task> tasks) {
+            events.add("align");
+            alignedPeakLists = parameters
+                    .getParameter(PeakListParameters.peakLists).getValue()
+                    .getMatchingPeakLists();
+            return ExitCode.OK;
+        }
+
+    }
+
+    private static abstract class TestModule implements
+            MZmineProcessingModule {
+
+        private final String name;
+        private final MZmineModuleCategory category;
+
+        TestModule(String name, MZmineModuleCategory category) {
+            this.name = name;
+            this.category = category;
+        }
+
+        @Override
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        @Override
+        public @Nonnull String getDescription() {
+            return name;
+        }
+
+        @Override
+        public @Nonnull MZmineModuleCategory getModuleCategory() {
+            return category;
+        }
+
+        @Override
+        public @Nonnull Class<? extends ParameterSet> getParameterSetClass() {
+            return NoParameters.class;
+        }
+
+    }
+
+    public static class NoParameters extends SimpleParameterSet {
+        public NoParameters() {
+            super(new Parameter[0]);
+        }
+    }
+
+    public static class RawDataFileParameters extends SimpleParameterSet {
+
+        public static final RawDataFilesParameter dataFiles = new RawDataFilesParameter();
+
+        public RawDataFileParameters() {
+            super(new Parameter[] { dataFiles.cloneParameter() });
+            getParameter(dataFiles).setValue(
+                    RawDataFilesSelectionType.BATCH_LAST_FILES);
+        }
+
+    }
+
+    public static class PeakListParameters extends SimpleParameterSet {
+
+        public static final PeakListsParameter peakLists = new PeakListsParameter();
+
+        public PeakListParameters() {
+            super(new Parameter[] { peakLists.cloneParameter() });
+            getParameter(peakLists).setValue(
+                    PeakListsSelectionType.BATCH_LAST_PEAKLISTS);
+        }
+
+    }
+
+}
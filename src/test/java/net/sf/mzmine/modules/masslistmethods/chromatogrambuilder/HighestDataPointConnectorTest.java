@@ -0,0 +1,184 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator.PeakInvestigatorDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator.PeakInvestigatorMzTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MaximumMZTolerance;
+
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Range;
+
+/**
+ * Checks that the m/z indexed search of HighestDataPointConnector builds
+ * exactly the same chromatograms as the linear search.
+ */
+public class HighestDataPointConnectorTest {
+
+    private static final int NUM_OF_SCANS = 300;
+    private static final int NUM_OF_IONS = 400;
+
+    @Test
+    public void testMaximumMZTolerance() {
+        DataPoint scans[][] = generateScans(new Random(1), false);
+        compareConnectors(scans, new MaximumMZTolerance(0.005, 10));
+        compareConnectors(scans, new MaximumMZTolerance(0.05, 0));
+    }
+
+    @Test
+    public void testPeakInvestigatorMzTolerance() {
+        DataPoint scans[][] = generateScans(new Random(2), true);
+        compareConnectors(scans, new PeakInvestigatorMzTolerance());
+    }
+
+    private void compareConnectors(DataPoint scans[][],
+            MZTolerance mzTolerance) {
+
+        RawDataFile dataFile = createDataFile();
+        int scanNumbers[] = new int[NUM_OF_SCANS];
+        for (int i = 0; i < NUM_OF_SCANS; i++)
+            scanNumbers[i] = i + 1;
+
+        HighestDataPointConnector linear = new HighestDataPointConnector(
+                dataFile, scanNumbers, 0.05, 0, mzTolerance, false);
+        HighestDataPointConnector indexed = new HighestDataPointConnector(
+                dataFile, scanNumbers, 0.05, 0, mzTolerance, true);
+
+        for (int i = 0; i < NUM_OF_SCANS; i++) {
+            // addScan() sorts the array, so each connector gets its own copy
+            linear.addScan(scanNumbers[i], scans[i].clone());
+            indexed.addScan(scanNumbers[i], scans[i].clone());
+        }
+
+        Chromatogram expected[] = linear.finishChromatograms();
+        Chromatogram actual[] = indexed.finishChromatograms();
+
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            int expectedScans[] = expected[i].getScanNumbers();
+            assertArrayEquals(expectedScans, actual[i].getScanNumbers());
+            for (int scanNumber : expectedScans) {
+                DataPoint expectedDp = expected[i].getDataPoint(scanNumber);
+                DataPoint actualDp = actual[i].getDataPoint(scanNumber);
+                // getScanNumbers() lists all scans, also those outside of
+                // the chromatogram
+                if (expectedDp == null) {
+                    assertNull(actualDp);
+                    continue;
+                }
+                assertNotNull(actualDp);
+                assertEquals(expectedDp.getMZ(), actualDp.getMZ(), 0);
+                assertEquals(expectedDp.getIntensity(),
+                        actualDp.getIntensity(), 0);
+            }
+        }
+
+    }
+
+    /**
+     * Generates scans containing a set of drifting ions, with occasional gaps,
+     * plus random noise. Intensities are coarsely quantized so that ties
+     * between chromatograms are common.
+     */
+    private DataPoint[][] generateScans(Random random,
+            boolean peakInvestigator) {
+
+        double ionMZ[] = new double[NUM_OF_IONS];
+        for (int i = 0; i < NUM_OF_IONS; i++)
+            ionMZ[i] = 100 + random.nextInt(200) + random.nextDouble() * 0.1;
+
+        DataPoint scans[][] = new DataPoint[NUM_OF_SCANS][];
+        for (int s = 0; s < NUM_OF_SCANS; s++) {
+            int numOfNoise = random.nextInt(100);
+            DataPoint scan[] = new DataPoint[NUM_OF_IONS + numOfNoise];
+            int n = 0;
+            for (int i = 0; i < NUM_OF_IONS; i++) {
+                if (random.nextInt(10) == 0)
+                    continue;
+                double mz = ionMZ[i] + (random.nextDouble() - 0.5) * 0.004;
+                scan[n++] = createDataPoint(random, mz, peakInvestigator);
+            }
+            for (int i = 0; i < numOfNoise; i++) {
+                double mz = 100 + random.nextDouble() * 200;
+                scan[n++] = createDataPoint(random, mz, peakInvestigator);
+            }
+            scans[s] = new DataPoint[n];
+            System.arraycopy(scan, 0, scans[s], 0, n);
+        }
+        return scans;
+    }
+
+    private DataPoint createDataPoint(Random random, double mz,
+            boolean peakInvestigator) {
+        double intensity = 1000 * (1 + random.nextInt(20));
+        if (!peakInvestigator)
+            return new SimpleDataPoint(mz, intensity);
+        return new PeakInvestigatorDataPoint(mz, intensity,
+                random.nextDouble() * 0.003, 0, 0.001);
+    }
+
+    private RawDataFile createDataFile() {
+        // The connectors query the scans very often, so the mocks must not
+        // record their invocations
+        RawDataFile dataFile = mock(RawDataFile.class, withSettings()
+                .stubOnly());
+        when(dataFile.getDataRTRange(anyInt())).thenReturn(
+                Range.closed(0.0, NUM_OF_SCANS / 100.0));
+        when(dataFile.getScanNumbers(eq(2),
+                Matchers.<Range<Double>> any())).thenReturn(new int[0]);
+        final Scan scans[] = new Scan[NUM_OF_SCANS + 1];
+        for (int scanNumber = 1; scanNumber <= NUM_OF_SCANS; scanNumber++) {
+            Scan scan = mock(Scan.class, withSettings().stubOnly());
+            when(scan.getScanNumber()).thenReturn(scanNumber);
+            when(scan.getRetentionTime()).thenReturn(scanNumber / 100.0);
+            scans[scanNumber] = scan;
+        }
+        when(dataFile.getScan(anyInt())).thenAnswer(new Answer<Scan>() {
+            @Override
+            public Scan answer(InvocationOnMock invocation) {
+                int scanNumber = (Integer) invocation.getArguments()[0];
+                return scans[scanNumber];
+            }
+        });
+        return dataFile;
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MaximumMZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.project.impl.ProjectManagerImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.Ostermiller.util.CSVParser;
+import com.google.common.collect.Range;
+
+/**
+ * Checks that CustomDBSearchTask assigns the same identities, in the same
+ * order, as the original implementation, which matched every database line
+ * against every row of the peak list.
+ */
+public class CustomDBSearchTaskTest {
+
+    private static final FieldItem FIELD_ORDER[] = { FieldItem.FIELD_ID,
+	    FieldItem.FIELD_MZ, FieldItem.FIELD_RT, FieldItem.FIELD_NAME,
+	    FieldItem.FIELD_FORMULA };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The task notifies the current project about the new identities and
+     * repaints the main window unless running headless
+     */
+    @BeforeClass
+    public static void initCore() throws Exception {
+	Field projectManager = MZmineCore.class
+		.getDeclaredField("projectManager");
+	projectManager.setAccessible(true);
+	if (projectManager.get(null) == null) {
+	    ProjectManagerImpl manager = new ProjectManagerImpl();
+	    manager.initModule();
+	    projectManager.set(null, manager);
+	}
+	Field desktop = MZmineCore.class.getDeclaredField("desktop");
+	desktop.setAccessible(true);
+	if (desktop.get(null) == null)
+	    desktop.set(null, new HeadLessDesktop());
+    }
+
+    /**
+     * With a ppm tolerance and closely spaced rows, the m/z windows of
+     * neighbouring rows overlap, so most entries match several rows
+     */
+    @Test
+    public void testOverlappingPpmWindows() throws IOException {
+	MZTolerance mzTolerance = new MaximumMZTolerance(0, 50);
+	for (int seed = 1; seed <= 3; seed++)
+	    compareWithLineByLineSearch(new Random(seed), 400, 2000,
+		    mzTolerance, new RTTolerance(true, 0.5));
+    }
+
+    @Test
+    public void testAbsoluteTolerance() throws IOException {
+	compareWithLineByLineSearch(new Random(10), 300, 1500,
+		new MaximumMZTolerance(0.005, 0), new RTTolerance(false, 0.05));
+    }
+
+    @Test
+    public void testEmptyPeakList() throws IOException {
+	compareWithLineByLineSearch(new Random(20), 0, 100,
+		new MaximumMZTolerance(0.005, 10), new RTTolerance(true, 0.5));
+    }
+
+    private void compareWithLineByLineSearch(Random random, int numOfRows,
+	    int numOfEntries, MZTolerance mzTolerance, RTTolerance rtTolerance)
+	    throws IOException {
+
+	double rowMZs[] = new double[numOfRows];
+	double rowRTs[] = new double[numOfRows];
+	for (int i = 0; i < numOfRows; i++) {
+	    // Every tenth row repeats the m/z of the previous row
+	    if ((i % 10 == 9))
+		rowMZs[i] = rowMZs[i - 1];
+	    else
+		rowMZs[i] = 200 + random.nextDouble() * 2;
+	    rowRTs[i] = 1 + random.nextDouble() * 10;
+	}
+
+	File dataBaseFile = writeDatabase(random, rowMZs, rowRTs,
+		numOfEntries, mzTolerance, rtTolerance);
+
+	PeakList peakList = createPeakList(rowMZs, rowRTs);
+	ParameterSet parameters = new CustomDBSearchParameters();
+	parameters.getParameter(CustomDBSearchParameters.dataBaseFile)
+		.setValue(dataBaseFile);
+	parameters.getParameter(CustomDBSearchParameters.fieldSeparator)
+		.setValue(",");
+	parameters.getParameter(CustomDBSearchParameters.fieldOrder).setValue(
+		FIELD_ORDER);
+	parameters.getParameter(CustomDBSearchParameters.ignoreFirstLine)
+		.setValue(true);
+	parameters.getParameter(CustomDBSearchParameters.mzTolerance)
+		.setValue(mzTolerance);
+	parameters.getParameter(CustomDBSearchParameters.rtTolerance)
+		.setValue(rtTolerance);
+
+	CustomDBSearchTask task = new CustomDBSearchTask(peakList, parameters);
+	task.run();
+	assertEquals(task.getErrorMessage(), TaskStatus.FINISHED,
+		task.getStatus());
+
+	PeakList expectedPeakList = createPeakList(rowMZs, rowRTs);
+	searchLineByLine(expectedPeakList, dataBaseFile, mzTolerance,
+		rtTolerance);
+
+	for (int i = 0; i < numOfRows; i++) {
+	    PeakIdentity expected[] = expectedPeakList.getRow(i)
+		    .getPeakIdentities();
+	    PeakIdentity actual[] = peakList.getRow(i).getPeakIdentities();
+	    assertEquals("Identities of row " + i, describe(expected),
+		    describe(actual));
+	    assertEquals("Preferred identity of row " + i,
+		    describe(expectedPeakList.getRow(i)
+			    .getPreferredPeakIdentity()), describe(peakList
+			    .getRow(i).getPreferredPeakIdentity()));
+	}
+
+    }
+
+    /**
+     * Writes a database with entries close to the rows, often right at the
+     * border of their tolerance ranges, and with the special values handled
+     * by the search: m/z or RT 0 (matching any row), NaN fields, repeated m/z
+     * values and names (only the first identity of a name is kept), and lines
+     * which cannot be parsed
+     */
+    private File writeDatabase(Random random, double rowMZs[],
+	    double rowRTs[], int numOfEntries, MZTolerance mzTolerance,
+	    RTTolerance rtTolerance) throws IOException {
+
+	File dataBaseFile = folder.newFile();
+	Writer writer = new FileWriter(dataBaseFile);
+	try {
+	    writer.write("ID,m/z,RT,Name,Formula\n");
+	    String previousMZ = "201";
+	    for (int i = 0; i < numOfEntries; i++) {
+
+		String mz, rt;
+		if (rowMZs.length == 0) {
+		    mz = String.valueOf(200 + random.nextDouble() * 2);
+		    rt = String.valueOf(1 + random.nextDouble() * 10);
+		} else {
+		    int row = random.nextInt(rowMZs.length);
+		    Range<Double> mzRange = mzTolerance
+			    .getToleranceRange(rowMZs[row]);
+		    Range<Double> rtRange = rtTolerance
+			    .getToleranceRange(rowRTs[row]);
+		    mz = String.valueOf(nearBorder(random, mzRange));
+		    rt = String.valueOf(nearBorder(random, rtRange));
+		}
+
+		switch (random.nextInt(20)) {
+		case 0:
+		    mz = "0";
+		    break;
+		case 1:
+		    rt = "0";
+		    break;
+		case 2:
+		    mz = "0";
+		    rt = "0";
+		    break;
+		case 3:
+		    mz = "NaN";
+		    break;
+		case 4:
+		    rt = "NaN";
+		    break;
+		case 5:
+		case 6:
+		    mz = previousMZ;
+		    break;
+		case 7:
+		    mz = "unknown";
+		    break;
+		case 8:
+		    rt = "";
+		    break;
+		}
+		previousMZ = mz;
+
+		writer.write("ID" + i + "," + mz + "," + rt + ",Compound "
+			+ random.nextInt(numOfEntries / 2 + 1) + ",C"
+			+ (i + 1) + "\n");
+	    }
+	} finally {
+	    writer.close();
+	}
+	return dataBaseFile;
+
+    }
+
+    /**
+     * Returns a value inside the given range or just outside of it, often
+     * close to one of its ends
+     */
+    private static double nearBorder(Random random, Range<Double> range) {
+	double lower = range.lowerEndpoint(), upper = range.upperEndpoint();
+	double width = upper - lower;
+	switch (random.nextInt(4)) {
+	case 0:
+	    return lower + width * (random.nextDouble() * 0.002 - 0.001);
+	case 1:
+	    return upper + width * (random.nextDouble() * 0.002 - 0.001);
+	case 2:
+	    return random.nextBoolean() ? lower : upper;
+	default:
+	    return lower + width * (random.nextDouble() * 1.2 - 0.1);
+	}
+    }
+
+    private static PeakList createPeakList(double rowMZs[], double rowRTs[]) {
+	RawDataFile dataFile = mock(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("peaks", dataFile);
+	for (int i = 0; i < rowMZs.length; i++) {
+	    SimplePeakListRow row = new SimplePeakListRow(i + 1);
+	    row.setAverageMZ(rowMZs[i]);
+	    row.setAverageRT(rowRTs[i]);
+	    peakList.addRow(row);
+	}
+	return peakList;
+    }
+
+    /**
+     * Original implementation of the search, which parsed the whole database
+     * in memory and matched each line against all rows
+     */
+    private static void searchLineByLine(PeakList peakList,
+	    File dataBaseFile, MZTolerance mzTolerance, RTTolerance rtTolerance)
+	    throws IOException {
+
+	FileReader dbFileReader = new FileReader(dataBaseFile);
+	String databaseValues[][] = CSVParser.parse(dbFileReader, ',');
+	dbFileReader.close();
+
+	// The first line holds the column names
+	for (int line = 1; line < databaseValues.length; line++) {
+	    try {
+		processOneLine(peakList, dataBaseFile,
+			databaseValues[line], mzTolerance, rtTolerance);
+	    } catch (Exception e) {
+		// ingore incorrect lines
+	    }
+	}
+
+    }
+
+    private static void processOneLine(PeakList peakList, File dataBaseFile,
+	    String values[], MZTolerance mzTolerance, RTTolerance rtTolerance) {
+
+	int numOfColumns = Math.min(FIELD_ORDER.length, values.length);
+
+	String lineID = null, lineName = null, lineFormula = null;
+	double lineMZ = 0, lineRT = 0;
+
+	for (int i = 0; i < numOfColumns; i++) {
+	    if (FIELD_ORDER[i] == FieldItem.FIELD_ID)
+		lineID = values[i];
+	    if (FIELD_ORDER[i] == FieldItem.FIELD_NAME)
+		lineName = values[i];
+	    if (FIELD_ORDER[i] == FieldItem.FIELD_FORMULA)
+		lineFormula = values[i];
+	    if (FIELD_ORDER[i] == FieldItem.FIELD_MZ)
+		lineMZ = Double.parseDouble(values[i]);
+	    if (FIELD_ORDER[i] == FieldItem.FIELD_RT)
+		lineRT = Double.parseDouble(values[i]);
+	}
+
+	SimplePeakIdentity newIdentity = new SimplePeakIdentity(lineName,
+		lineFormula, dataBaseFile.getName(), lineID, null);
+
+	for (PeakListRow peakRow : peakList.getRows()) {
+
+	    Range<Double> mzRange = mzTolerance.getToleranceRange(peakRow
+		    .getAverageMZ());
+	    Range<Double> rtRange = rtTolerance.getToleranceRange(peakRow
+		    .getAverageRT());
+
+	    boolean mzMatches = (lineMZ == 0d) || mzRange.contains(lineMZ);
+	    boolean rtMatches = (lineRT == 0d) || rtRange.contains(lineRT);
+
+	    if (mzMatches && rtMatches)
+		peakRow.addPeakIdentity(newIdentity, false);
+	}
+
+    }
+
+    private static String describe(PeakIdentity... identities) {
+	StringBuilder description = new StringBuilder();
+	for (PeakIdentity identity : identities) {
+	    if (identity == null)
+		continue;
+	    description.append(identity
+		    .getPropertyValue(PeakIdentity.PROPERTY_ID));
+	    description.append(' ');
+	    description.append(identity.getName());
+	    description.append('\n');
+	}
+	return description.toString();
+    }
+
+}
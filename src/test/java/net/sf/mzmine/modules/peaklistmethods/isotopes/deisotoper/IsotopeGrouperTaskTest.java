@@ -0,0 +1,304 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.main.impl.MZmineConfigurationImpl;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MaximumMZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+/**
+ * Checks that IsotopeGrouperTask finds the same isotope patterns as the
+ * original implementation, which compared every pair of peaks.
+ */
+public class IsotopeGrouperTaskTest {
+
+    private static final double ISOTOPE_DISTANCE = 1.0033;
+
+    /**
+     * The descriptions of the isotope patterns are formatted using the number
+     * formats of the MZmine configuration
+     */
+    @BeforeClass
+    public static void initConfiguration() throws Exception {
+	Field configuration = MZmineCore.class
+		.getDeclaredField("configuration");
+	configuration.setAccessible(true);
+	if (configuration.get(null) == null)
+	    configuration.set(null, new MZmineConfigurationImpl());
+    }
+
+    /**
+     * With a large ppm tolerance, the tolerance range at the m/z of a candidate
+     * is noticeably wider than at the m/z of the main peak. Candidates are
+     * placed right at the border of the tolerance range.
+     */
+    @Test
+    public void testLargePpmTolerance() {
+	MZTolerance mzTolerance = new MaximumMZTolerance(0, 300);
+	for (int seed = 1; seed <= 3; seed++) {
+	    PeakList peakList = generatePeakList(new Random(seed), 300,
+		    mzTolerance);
+	    compareWithPairwiseSearch(peakList, mzTolerance, 3, false);
+	    compareWithPairwiseSearch(peakList, mzTolerance, 3, true);
+	}
+    }
+
+    @Test
+    public void testAbsoluteTolerance() {
+	MZTolerance mzTolerance = new MaximumMZTolerance(0.01, 0);
+	PeakList peakList = generatePeakList(new Random(10), 500, mzTolerance);
+	compareWithPairwiseSearch(peakList, mzTolerance, 2, false);
+	compareWithPairwiseSearch(peakList, mzTolerance, 2, true);
+    }
+
+    private void compareWithPairwiseSearch(PeakList peakList,
+	    MZTolerance mzTolerance, int maximumCharge, boolean monotonicShape) {
+
+	RTTolerance rtTolerance = new RTTolerance(true, 0.1);
+
+	ParameterSet parameters = new IsotopeGrouperParameters();
+	parameters.getParameter(IsotopeGrouperParameters.suffix).setValue(
+		"deisotoped");
+	parameters.getParameter(IsotopeGrouperParameters.mzTolerance)
+		.setValue(mzTolerance);
+	parameters.getParameter(IsotopeGrouperParameters.rtTolerance)
+		.setValue(rtTolerance);
+	parameters.getParameter(IsotopeGrouperParameters.monotonicShape)
+		.setValue(monotonicShape);
+	parameters.getParameter(IsotopeGrouperParameters.maximumCharge)
+		.setValue(maximumCharge);
+	parameters.getParameter(IsotopeGrouperParameters.representativeIsotope)
+		.setValue(IsotopeGrouperParameters.ChooseTopIntensity);
+	parameters.getParameter(IsotopeGrouperParameters.autoRemove).setValue(
+		false);
+
+	MZmineProjectImpl project = new MZmineProjectImpl();
+	IsotopeGrouperTask task = new IsotopeGrouperTask(project, peakList,
+		parameters);
+	task.run();
+	assertEquals(TaskStatus.FINISHED, task.getStatus());
+	PeakList deisotoped = project.getPeakLists()[0];
+
+	List<Feature[]> expectedPatterns = new ArrayList<Feature[]>();
+	List<Integer> expectedCharges = new ArrayList<Integer>();
+	findPatternsPairwise(peakList, mzTolerance, rtTolerance,
+		maximumCharge, monotonicShape, expectedPatterns,
+		expectedCharges);
+
+	assertEquals(expectedPatterns.size(), deisotoped.getNumberOfRows());
+	for (int i = 0; i < expectedPatterns.size(); i++) {
+	    Feature expectedPattern[] = expectedPatterns.get(i);
+	    PeakListRow row = deisotoped.getRow(i);
+	    assertEquals(peakList.getPeakRow(expectedPattern[0]).getID(),
+		    row.getID());
+
+	    Feature peak = row.getPeaks()[0];
+	    IsotopePattern isotopePattern = peak.getIsotopePattern();
+	    if (expectedPattern.length == 1) {
+		assertNull(isotopePattern);
+		continue;
+	    }
+	    assertNotNull(isotopePattern);
+	    assertEquals(expectedCharges.get(i).intValue(), peak.getCharge());
+	    DataPoint isotopes[] = isotopePattern.getDataPoints();
+	    assertEquals(expectedPattern.length, isotopes.length);
+	    for (int j = 0; j < isotopes.length; j++) {
+		assertEquals(expectedPattern[j].getMZ(), isotopes[j].getMZ(), 0);
+		assertEquals(expectedPattern[j].getHeight(),
+			isotopes[j].getIntensity(), 0);
+	    }
+	}
+    }
+
+    /**
+     * The original implementation of IsotopeGrouperTask, which checks all
+     * peaks for each expected isotope of each peak
+     */
+    private static void findPatternsPairwise(PeakList peakList,
+	    MZTolerance mzTolerance, RTTolerance rtTolerance,
+	    int maximumCharge, boolean monotonicShape,
+	    List<Feature[]> patterns, List<Integer> charges) {
+
+	Feature sortedPeaks[] = peakList.getPeaks(peakList.getRawDataFile(0));
+	Arrays.sort(sortedPeaks, new PeakSorter(SortingProperty.Height,
+		SortingDirection.Descending));
+
+	for (int ind = 0; ind < sortedPeaks.length; ind++) {
+
+	    Feature aPeak = sortedPeaks[ind];
+	    if (aPeak == null)
+		continue;
+
+	    int bestFitCharge = 0;
+	    List<Feature> bestFitPeaks = null;
+	    for (int charge = 1; charge <= maximumCharge; charge++) {
+		List<Feature> fittedPeaks = new ArrayList<Feature>();
+		fittedPeaks.add(aPeak);
+		if (!monotonicShape) {
+		    fitHalfPatternPairwise(aPeak, charge, -1, fittedPeaks,
+			    sortedPeaks, mzTolerance, rtTolerance);
+		}
+		fitHalfPatternPairwise(aPeak, charge, 1, fittedPeaks,
+			sortedPeaks, mzTolerance, rtTolerance);
+		if ((bestFitPeaks == null)
+			|| (fittedPeaks.size() > bestFitPeaks.size())) {
+		    bestFitCharge = charge;
+		    bestFitPeaks = fittedPeaks;
+		}
+	    }
+
+	    patterns.add(bestFitPeaks.toArray(new Feature[0]));
+	    charges.add(bestFitCharge);
+
+	    if (bestFitPeaks.size() == 1)
+		continue;
+	    for (int i = 0; i < sortedPeaks.length; i++) {
+		if (bestFitPeaks.contains(sortedPeaks[i]))
+		    sortedPeaks[i] = null;
+	    }
+	}
+    }
+
+    private static void fitHalfPatternPairwise(Feature p, int charge,
+	    int direction, List<Feature> fittedPeaks, Feature sortedPeaks[],
+	    MZTolerance mzTolerance, RTTolerance rtTolerance) {
+
+	double mainMZ = p.getMZ();
+	double mainRT = p.getRT();
+
+	boolean followingPeakFound;
+	int n = 1;
+	do {
+	    followingPeakFound = false;
+	    List<Feature> goodCandidates = new ArrayList<Feature>();
+	    for (Feature candidatePeak : sortedPeaks) {
+		if (candidatePeak == null)
+		    continue;
+		double isotopeMZ = candidatePeak.getMZ() - ISOTOPE_DISTANCE
+			* direction * n / (double) charge;
+		if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
+			&& rtTolerance.checkWithinTolerance(
+				candidatePeak.getRT(), mainRT)
+			&& (!fittedPeaks.contains(candidatePeak))) {
+		    goodCandidates.add(candidatePeak);
+		}
+	    }
+	    if (!goodCandidates.isEmpty()) {
+		fittedPeaks.addAll(goodCandidates);
+		n++;
+		followingPeakFound = true;
+	    }
+	} while (followingPeakFound);
+    }
+
+    /**
+     * Generates isotope patterns of random charge around random m/z values.
+     * The isotopes are placed close to the border of the tolerance range at
+     * the m/z of the first isotope, some of them just inside and some just
+     * outside. Some patterns overlap
+     * in m/z and RT, and there are random noise peaks.
+     */
+    private static PeakList generatePeakList(Random random,
+	    int numOfPatterns, MZTolerance mzTolerance) {
+
+	RawDataFile dataFile = mock(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("peaks", dataFile);
+
+	List<double[]> peaks = new ArrayList<double[]>();
+	for (int i = 0; i < numOfPatterns; i++) {
+	    double mainMZ = 200 + random.nextDouble() * 1800;
+	    double mainRT = random.nextDouble() * 10;
+	    int charge = 1 + random.nextInt(3);
+	    int numOfIsotopes = 1 + random.nextInt(4);
+	    for (int n = 0; n < numOfIsotopes; n++) {
+		double expectedMZ = mainMZ + ISOTOPE_DISTANCE * n / charge;
+		Range<Double> toleranceRange = mzTolerance
+			.getToleranceRange(mainMZ);
+		double halfWidth = (toleranceRange.upperEndpoint() - toleranceRange
+			.lowerEndpoint()) / 2;
+		double offset = (n == 0) ? 0 : halfWidth
+			* (0.999 + random.nextDouble() * 0.002);
+		if (random.nextBoolean())
+		    offset = -offset;
+		peaks.add(new double[] { expectedMZ + offset,
+			mainRT + random.nextDouble() * 0.05 });
+	    }
+	}
+	for (int i = 0; i < numOfPatterns / 2; i++) {
+	    peaks.add(new double[] { 200 + random.nextDouble() * 1800,
+		    random.nextDouble() * 10 });
+	}
+
+	int id = 1;
+	for (double peak[] : peaks) {
+	    double height = 1000 + random.nextDouble() * 100000;
+	    SimplePeakListRow row = new SimplePeakListRow(id++);
+	    row.addPeak(dataFile, createFeature(dataFile, peak[0], peak[1],
+		    height));
+	    peakList.addRow(row);
+	}
+	return peakList;
+    }
+
+    private static Feature createFeature(RawDataFile dataFile, double mz,
+	    double rt, double height) {
+	return new SimpleFeature(dataFile, mz, rt, height, height * 10,
+		new int[] { 1 },
+		new DataPoint[] { new SimpleDataPoint(mz, height) },
+		FeatureStatus.DETECTED, 1, -1, Range.singleton(rt),
+		Range.singleton(mz), Range.singleton(height));
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_24.PeakListOpenHandler_2_24;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class PeakListBinarySaveHandlerTest {
+
+	/**
+	 * Test that a peak list read back by PeakListOpenHandler_2_24 has the same
+	 * rows, identities, applied methods and features as the saved one.
+	 */
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		RawDataFile file1 = new RawDataFileImpl("sample1.mzML");
+		RawDataFile file2 = new RawDataFileImpl("sample2.mzML");
+
+		SimplePeakList peakList = new SimplePeakList("sample peaks",
+				new RawDataFile[] { file1, file2 });
+		peakList.setDateCreated("2016/01/02 03:04:05");
+		peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+				"Chromatogram builder", "Min time span: 0.2"));
+		peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+				"Isotopic peaks grouper", "m/z tolerance: 0.001 m/z or 5.0 ppm"));
+
+		SimplePeakListRow row1 = new SimplePeakListRow(7);
+		row1.setComment("Internal standard");
+		row1.addPeak(file1, createFeature(file1, 200.125, 1.5, 3));
+		row1.addPeak(file2, createFeature(file2, 200.25, 1.75, 4));
+		row1.addPeakIdentity(new SimplePeakIdentity("Glucose", "C6H12O6",
+				"Custom database search", "HMDB00122", null), false);
+		row1.addPeakIdentity(new SimplePeakIdentity("Fructose", "C6H12O6",
+				"Custom database search", "HMDB00660",
+				"http://www.hmdb.ca/metabolites/HMDB00660"), true);
+		peakList.addRow(row1);
+
+		SimplePeakListRow row2 = new SimplePeakListRow(3);
+		SimpleFeature isotopeFeature = createFeature(file2, 301.5, 4.25, 2);
+		isotopeFeature.setCharge(2);
+		isotopeFeature.setIsotopePattern(new SimpleIsotopePattern(
+				new DataPoint[] { new SimpleDataPoint(301.5, 1000),
+						new SimpleDataPoint(302.0, 250) },
+				IsotopePatternStatus.DETECTED, "Monoisotopic m/z 301.5"));
+		row2.addPeak(file2, isotopeFeature);
+		peakList.addRow(row2);
+
+		SimplePeakListRow row3 = new SimplePeakListRow(12);
+		row3.setComment("No identity");
+		row3.addPeak(file1, createFeature(file1, 150.0, 0.5, 1));
+		peakList.addRow(row3);
+
+		Hashtable<RawDataFile, String> saveIDs = new Hashtable<RawDataFile, String>();
+		saveIDs.put(file1, "#1");
+		saveIDs.put(file2, "#2");
+		ByteArrayOutputStream savedBytes = new ByteArrayOutputStream();
+		new PeakListBinarySaveHandler(savedBytes, saveIDs)
+				.savePeakList(peakList);
+
+		Hashtable<String, RawDataFile> openIDs = new Hashtable<String, RawDataFile>();
+		openIDs.put("#1", file1);
+		openIDs.put("#2", file2);
+		PeakList loaded = new PeakListOpenHandler_2_24(openIDs)
+				.readPeakList(new ByteArrayInputStream(savedBytes
+						.toByteArray()));
+
+		assertEquals("sample peaks", loaded.getName());
+		assertEquals("2016/01/02 03:04:05",
+				((SimplePeakList) loaded).getDateCreated());
+		assertArrayEquals(new RawDataFile[] { file1, file2 },
+				loaded.getRawDataFiles());
+
+		PeakListAppliedMethod savedMethods[] = peakList.getAppliedMethods();
+		PeakListAppliedMethod loadedMethods[] = loaded.getAppliedMethods();
+		assertEquals(savedMethods.length, loadedMethods.length);
+		for (int i = 0; i < savedMethods.length; i++) {
+			assertEquals(savedMethods[i].getDescription(),
+					loadedMethods[i].getDescription());
+			assertEquals(savedMethods[i].getParameters(),
+					loadedMethods[i].getParameters());
+		}
+
+		assertEquals(peakList.getNumberOfRows(), loaded.getNumberOfRows());
+		for (int i = 0; i < peakList.getNumberOfRows(); i++) {
+			PeakListRow savedRow = peakList.getRow(i);
+			PeakListRow loadedRow = loaded.getRow(i);
+			assertEquals(savedRow.getID(), loadedRow.getID());
+			assertEquals(savedRow.getComment(), loadedRow.getComment());
+			assertIdentitiesEqual(savedRow, loadedRow);
+			assertEquals(savedRow.getNumberOfPeaks(),
+					loadedRow.getNumberOfPeaks());
+			for (RawDataFile dataFile : savedRow.getRawDataFiles()) {
+				assertFeaturesEqual(savedRow.getPeak(dataFile),
+						loadedRow.getPeak(dataFile));
+			}
+		}
+	}
+
+	private static void assertIdentitiesEqual(PeakListRow savedRow,
+			PeakListRow loadedRow) {
+		PeakIdentity savedIdentities[] = savedRow.getPeakIdentities();
+		PeakIdentity loadedIdentities[] = loadedRow.getPeakIdentities();
+		assertEquals(savedIdentities.length, loadedIdentities.length);
+		for (int i = 0; i < savedIdentities.length; i++) {
+			assertEquals(savedIdentities[i].getAllProperties(),
+					loadedIdentities[i].getAllProperties());
+		}
+		if (savedRow.getPreferredPeakIdentity() == null) {
+			assertNull(loadedRow.getPreferredPeakIdentity());
+		} else {
+			assertEquals(savedRow.getPreferredPeakIdentity().getName(),
+					loadedRow.getPreferredPeakIdentity().getName());
+		}
+	}
+
+	private static void assertFeaturesEqual(Feature saved, Feature loaded) {
+		assertNotNull(loaded);
+		assertSame(saved.getDataFile(), loaded.getDataFile());
+		assertEquals(saved.getMZ(), loaded.getMZ(), 0);
+		assertEquals(saved.getRT(), loaded.getRT(), 0);
+		assertEquals(saved.getHeight(), loaded.getHeight(), 0);
+		assertEquals(saved.getArea(), loaded.getArea(), 0);
+		assertEquals(saved.getFeatureStatus(), loaded.getFeatureStatus());
+		assertEquals(saved.getCharge(), loaded.getCharge());
+		assertEquals(saved.getRepresentativeScanNumber(),
+				loaded.getRepresentativeScanNumber());
+		assertEquals(saved.getMostIntenseFragmentScanNumber(),
+				loaded.getMostIntenseFragmentScanNumber());
+		assertEquals(saved.getRawDataPointsRTRange(),
+				loaded.getRawDataPointsRTRange());
+		assertEquals(saved.getRawDataPointsMZRange(),
+				loaded.getRawDataPointsMZRange());
+		assertEquals(saved.getRawDataPointsIntensityRange(),
+				loaded.getRawDataPointsIntensityRange());
+
+		assertArrayEquals(saved.getScanNumbers(), loaded.getScanNumbers());
+		for (int scanNumber : saved.getScanNumbers()) {
+			DataPoint savedDataPoint = saved.getDataPoint(scanNumber);
+			DataPoint loadedDataPoint = loaded.getDataPoint(scanNumber);
+			assertEquals(savedDataPoint.getMZ(), loadedDataPoint.getMZ(), 0);
+			assertEquals(savedDataPoint.getIntensity(),
+					loadedDataPoint.getIntensity(), 0);
+		}
+
+		if (saved.getIsotopePattern() == null) {
+			assertNull(loaded.getIsotopePattern());
+		} else {
+			assertEquals(saved.getIsotopePattern().getStatus(), loaded
+					.getIsotopePattern().getStatus());
+			assertEquals(saved.getIsotopePattern().getDescription(), loaded
+					.getIsotopePattern().getDescription());
+			DataPoint savedIsotopes[] = saved.getIsotopePattern()
+					.getDataPoints();
+			DataPoint loadedIsotopes[] = loaded.getIsotopePattern()
+					.getDataPoints();
+			assertEquals(savedIsotopes.length, loadedIsotopes.length);
+			for (int i = 0; i < savedIsotopes.length; i++) {
+				assertEquals(savedIsotopes[i].getMZ(),
+						loadedIsotopes[i].getMZ(), 0);
+				assertEquals(savedIsotopes[i].getIntensity(),
+						loadedIsotopes[i].getIntensity(), 0);
+			}
+		}
+	}
+
+	/**
+	 * Creates a feature over the given number of scans. All values are exactly
+	 * representable as floats, so the data points survive the saving.
+	 */
+	private static SimpleFeature createFeature(RawDataFile dataFile,
+			double mz, double rt, int numOfScans) {
+		int scanNumbers[] = new int[numOfScans];
+		DataPoint dataPoints[] = new DataPoint[numOfScans];
+		for (int i = 0; i < numOfScans; i++) {
+			scanNumbers[i] = 10 + 3 * i;
+			dataPoints[i] = new SimpleDataPoint(mz + i * 0.0625,
+					1000 * (i + 1));
+		}
+		return new SimpleFeature(dataFile, mz, rt, 1000 * numOfScans,
+				500 * numOfScans, scanNumbers, dataPoints,
+				FeatureStatus.DETECTED, scanNumbers[0], -1, Range.closed(
+						rt - 0.25, rt + 0.25), Range.closed(mz, mz + 0.0625
+						* numOfScans), Range.closed(1000.0,
+						1000.0 * numOfScans));
+	}
+
+}
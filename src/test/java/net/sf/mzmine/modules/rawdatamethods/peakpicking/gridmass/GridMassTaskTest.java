@@ -0,0 +1,485 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.gridmass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.main.impl.MZmineConfigurationImpl;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Range;
+
+/**
+ * Checks that GridMassTask, which finds the spots per tile of scans and joins
+ * and removes spots using a SpotIndex, builds the same peaks as the original
+ * implementation, which found the spots of the whole file at once and checked
+ * every spot within the m/z tolerance.
+ */
+public class GridMassTaskTest {
+
+    private static final int NUM_OF_SCANS = 300;
+
+    /**
+     * The parameters and the comments of the peaks use the number formats of
+     * the MZmine configuration
+     */
+    @BeforeClass
+    public static void initConfiguration() throws Exception {
+	Field configuration = MZmineCore.class
+		.getDeclaredField("configuration");
+	configuration.setAccessible(true);
+	if (configuration.get(null) == null)
+	    configuration.set(null, new MZmineConfigurationImpl());
+    }
+
+    @Test
+    public void testSyntheticData() {
+	for (int seed = 1; seed <= 2; seed++)
+	    compareWithOriginal(generateScans(new Random(seed)), 0.02);
+    }
+
+    @Test
+    public void testWideMZTolerance() {
+	compareWithOriginal(generateScans(new Random(3)), 0.05);
+    }
+
+    private void compareWithOriginal(DataPoint scans[][], double mzTolerance) {
+
+	RawDataFile dataFile = createDataFile(scans);
+	ParameterSet parameters = new GridMassParameters();
+	parameters.getParameter(GridMassParameters.scanSelection).setValue(
+		new ScanSelection(1));
+	parameters.getParameter(GridMassParameters.suffix).setValue(
+		"chromatograms");
+	parameters.getParameter(GridMassParameters.minimumHeight).setValue(
+		1000.0);
+	parameters.getParameter(GridMassParameters.mzTolerance).setValue(
+		mzTolerance);
+	parameters.getParameter(GridMassParameters.timeSpan).setValue(
+		Range.closed(0.1, 0.6));
+	parameters.getParameter(GridMassParameters.smoothingTimeSpan)
+		.setValue(0.03);
+	parameters.getParameter(GridMassParameters.smoothingTimeMZ).setValue(
+		0.01);
+	parameters.getParameter(GridMassParameters.intensitySimilarity)
+		.setValue(0.5);
+	parameters.getParameter(GridMassParameters.ignoreTimes)
+		.setValue("0-0");
+	parameters.getParameter(GridMassParameters.showDebug).setValue(
+		GridMassParameters.debugLevels[0]);
+
+	MZmineProjectImpl project = new MZmineProjectImpl();
+	RecordingGridMassTask task = new RecordingGridMassTask(project,
+		dataFile, parameters);
+	task.run();
+	assertEquals(TaskStatus.FINISHED, task.getStatus());
+
+	MZmineProjectImpl originalProject = new MZmineProjectImpl();
+	OriginalGridMassTask originalTask = new OriginalGridMassTask(
+		originalProject, dataFile, parameters);
+	originalTask.run();
+	assertEquals(TaskStatus.FINISHED, originalTask.getStatus());
+
+	// The data must cover the cases which are handled differently
+	assertTrue("No spot crosses a tile border", task.stitchedSpots > 0);
+	assertTrue("No spots were joined", task.joins > 0);
+	assertTrue("No spots were removed", task.removedSpots > 0);
+	assertEquals(originalTask.joins, task.joins);
+
+	PeakList expected = originalProject.getPeakLists()[0];
+	PeakList actual = project.getPeakLists()[0];
+	assertTrue(expected.getNumberOfRows() > 10);
+	assertEquals(expected.getNumberOfRows(), actual.getNumberOfRows());
+	for (int i = 0; i < expected.getNumberOfRows(); i++) {
+	    PeakListRow expectedRow = expected.getRow(i);
+	    PeakListRow actualRow = actual.getRow(i);
+	    // The spot ids in the comments are counted across all tasks
+	    assertEquals(withoutSpotId(expectedRow.getComment()),
+		    withoutSpotId(actualRow.getComment()));
+	    Feature expectedPeak = expectedRow.getPeaks()[0];
+	    Feature actualPeak = actualRow.getPeaks()[0];
+	    assertEquals(expectedPeak.getMZ(), actualPeak.getMZ(), 0);
+	    assertEquals(expectedPeak.getRT(), actualPeak.getRT(), 0);
+	    assertEquals(expectedPeak.getHeight(), actualPeak.getHeight(), 0);
+	    assertEquals(expectedPeak.getArea(), actualPeak.getArea(), 0);
+	    int expectedScans[] = expectedPeak.getScanNumbers();
+	    assertArrayEquals(expectedScans, actualPeak.getScanNumbers());
+	    for (int scanNumber : expectedScans) {
+		DataPoint expectedDp = expectedPeak.getDataPoint(scanNumber);
+		DataPoint actualDp = actualPeak.getDataPoint(scanNumber);
+		if (expectedDp == null) {
+		    assertEquals(null, actualDp);
+		    continue;
+		}
+		assertEquals(expectedDp.getMZ(), actualDp.getMZ(), 0);
+		assertEquals(expectedDp.getIntensity(),
+			actualDp.getIntensity(), 0);
+	    }
+	}
+    }
+
+    private static String withoutSpotId(String comment) {
+	return comment.substring(comment.indexOf(" : "));
+    }
+
+    /**
+     * Generates scans with Gaussian peaks, pairs of neighbouring peaks of
+     * similar height, long traces with several maxima and random noise. Some
+     * peaks are placed at the borders of the tiles of scans.
+     */
+    private DataPoint[][] generateScans(Random random) {
+
+	List<double[]> peaks = new ArrayList<double[]>(); // m/z, scan, sigma,
+							  // height
+	for (int i = 0; i < 60; i++) {
+	    double mz = 100 + random.nextDouble() * 40;
+	    double scan = random.nextInt(NUM_OF_SCANS);
+	    if (i % 4 == 0)
+		scan = GridMassTask.SCANS_PER_TILE * (1 + random.nextInt(4)) + random.nextInt(7) - 3;
+	    double sigma = 2 + random.nextDouble() * 10;
+	    double height = 2000 + random.nextDouble() * 100000;
+	    peaks.add(new double[] { mz, scan, sigma, height });
+	    if (i % 3 == 0) {
+		// A second maximum close to the first one
+		peaks.add(new double[] { mz + random.nextDouble() * 0.004,
+			scan + sigma * (2.5 + random.nextDouble()), sigma,
+			height * (0.6 + random.nextDouble() * 0.8) });
+	    }
+	}
+	for (int i = 0; i < 6; i++) {
+	    double mz = 100 + random.nextDouble() * 40;
+	    int first = random.nextInt(NUM_OF_SCANS / 2);
+	    for (int scan = first; scan < first + 150; scan += 12) {
+		peaks.add(new double[] { mz + random.nextDouble() * 0.004,
+			scan, 4, 5000 + random.nextDouble() * 1000 });
+	    }
+	}
+
+	DataPoint scans[][] = new DataPoint[NUM_OF_SCANS][];
+	for (int s = 0; s < NUM_OF_SCANS; s++) {
+	    List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+	    for (double peak[] : peaks) {
+		double d = (s - peak[1]) / peak[2];
+		double intensity = peak[3] * Math.exp(-d * d / 2);
+		if (intensity < 50)
+		    continue;
+		double mz = peak[0] + (random.nextDouble() - 0.5) * 0.002;
+		dataPoints.add(new SimpleDataPoint(mz, intensity));
+	    }
+	    for (int i = 0; i < 100; i++) {
+		double mz = 100 + random.nextDouble() * 40;
+		dataPoints.add(new SimpleDataPoint(mz,
+			random.nextDouble() * 1500));
+	    }
+	    scans[s] = dataPoints.toArray(new DataPoint[0]);
+	    Arrays.sort(scans[s], new DataPointSorter(SortingProperty.MZ,
+		    SortingDirection.Ascending));
+	}
+	return scans;
+    }
+
+    private RawDataFile createDataFile(DataPoint dataPoints[][]) {
+	// The task queries the scans very often, so the mocks must not record
+	// their invocations
+	RawDataFile dataFile = mock(RawDataFile.class, withSettings()
+		.stubOnly());
+	when(dataFile.getDataRTRange(anyInt())).thenReturn(
+		Range.closed(0.01, NUM_OF_SCANS / 100.0));
+	when(dataFile.getScanNumbers(eq(2), Matchers.<Range<Double>> any()))
+		.thenReturn(new int[0]);
+	final Scan scans[] = new Scan[NUM_OF_SCANS + 1];
+	int scanNumbers[] = new int[NUM_OF_SCANS];
+	for (int scanNumber = 1; scanNumber <= NUM_OF_SCANS; scanNumber++) {
+	    Scan scan = mock(Scan.class, withSettings().stubOnly());
+	    when(scan.getScanNumber()).thenReturn(scanNumber);
+	    when(scan.getMSLevel()).thenReturn(1);
+	    when(scan.getRetentionTime()).thenReturn(scanNumber / 100.0);
+	    when(scan.getDataPoints()).thenReturn(dataPoints[scanNumber - 1]);
+	    scans[scanNumber] = scan;
+	    scanNumbers[scanNumber - 1] = scanNumber;
+	}
+	when(dataFile.getScanNumbers()).thenReturn(scanNumbers);
+	when(dataFile.getScan(anyInt())).thenAnswer(new Answer<Scan>() {
+	    @Override
+	    public Scan answer(InvocationOnMock invocation) {
+		int scanNumber = (Integer) invocation.getArguments()[0];
+		return scans[scanNumber];
+	    }
+	});
+	return dataFile;
+    }
+
+    /**
+     * Counts the spots which were stitched across tiles, joined and removed
+     */
+    private static class RecordingGridMassTask extends GridMassTask {
+
+	int stitchedSpots, joins, removedSpots;
+
+	RecordingGridMassTask(MZmineProjectImpl project, RawDataFile dataFile,
+		ParameterSet parameters) {
+	    super(project, dataFile, parameters);
+	}
+
+	@Override
+	List<SpotByProbes> findSpots(double byMZ, int byScan, int scanR,
+		double mzR) throws ExecutionException {
+	    List<SpotByProbes> spots = super.findSpots(byMZ, byScan, scanR,
+		    mzR);
+	    for (SpotByProbes s : spots) {
+		int firstTile = s.probes.get(0).scan
+			/ GridMassTask.SCANS_PER_TILE;
+		int lastTile = s.probes.get(s.size() - 1).scan
+			/ GridMassTask.SCANS_PER_TILE;
+		if (firstTile != lastTile)
+		    stitchedSpots++;
+	    }
+	    return spots;
+	}
+
+	@Override
+	int joinSpots(List<SpotByProbes> spots, int scanR, double mzR) {
+	    joins = super.joinSpots(spots, scanR, mzR);
+	    return joins;
+	}
+
+	@Override
+	void removeLongSpots(List<SpotByProbes> spots) {
+	    int before = countSpots(spots);
+	    super.removeLongSpots(spots);
+	    removedSpots = before - countSpots(spots);
+	}
+
+	private static int countSpots(List<SpotByProbes> spots) {
+	    int count = 0;
+	    for (SpotByProbes s : spots) {
+		if (s.center != null)
+		    count++;
+	    }
+	    return count;
+	}
+
+    }
+
+    /**
+     * The original implementation of GridMassTask, which moved all probes of
+     * the file before grouping them into spots, and checked every spot within
+     * the m/z tolerance when joining and removing spots
+     */
+    private static class OriginalGridMassTask extends GridMassTask {
+
+	int joins;
+
+	OriginalGridMassTask(MZmineProjectImpl project, RawDataFile dataFile,
+		ParameterSet parameters) {
+	    super(project, dataFile, parameters);
+	}
+
+	@Override
+	List<SpotByProbes> findSpots(double byMZ, int byScan, int scanR,
+		double mzR) {
+
+	    int totalScans = roi.length;
+	    int i;
+	    double m;
+	    int ndata = (int) Math
+		    .round((((double) totalScans / (double) byScan) + 1)
+			    * ((maxMasa - minMasa + byMZ) / byMZ));
+	    Probe probes[] = new Probe[ndata];
+	    int idata = 0;
+	    for (i = 0; i < totalScans; i += byScan) {
+		for (m = minMasa - (i % 2) * byMZ / 2; m <= maxMasa; m += byMZ) {
+		    probes[idata++] = new Probe(m, i);
+		}
+	    }
+
+	    for (i = 0; i < idata; i++) {
+		moveProbeToCenter(probes[i], scanR, mzR);
+		if (probes[i].intensityCenter < minimumHeight) {
+		    probes[i] = null;
+		}
+	    }
+	    int okProbes = 0;
+	    for (i = 0; i < idata; i++) {
+		if (probes[i] != null)
+		    okProbes++;
+	    }
+	    if (okProbes > 0) {
+		Probe[] pArr = new Probe[okProbes];
+		for (okProbes = i = 0; i < idata; i++) {
+		    if (probes[i] != null) {
+			pArr[okProbes++] = probes[i];
+		    }
+		}
+		probes = pArr;
+	    }
+
+	    Arrays.sort(probes);
+	    SpotByProbes sbp = new SpotByProbes();
+	    ArrayList<SpotByProbes> spots = new ArrayList<SpotByProbes>();
+	    double mzA = -1;
+	    int scanA = -1;
+	    for (i = 0; i < probes.length; i++) {
+		if (probes[i] != null
+			&& probes[i].intensityCenter >= minimumHeight) {
+		    if (probes[i].mzCenter != mzA
+			    || probes[i].scanCenter != scanA) {
+			if (sbp.size() > 0) {
+			    spots.add(sbp);
+			    sbp.assignSpotId();
+			}
+			sbp = new SpotByProbes();
+			mzA = probes[i].mzCenter;
+			scanA = probes[i].scanCenter;
+		    }
+		    sbp.addProbe(probes[i]);
+		}
+	    }
+	    if (sbp.size() > 0) {
+		spots.add(sbp);
+		sbp.assignSpotId();
+	    }
+	    return spots;
+	}
+
+	@Override
+	int joinSpots(List<SpotByProbes> spots, int scanR, double mzR) {
+	    int i, j;
+	    int criticScans = Math.max(1, tolScans / 2);
+	    for (i = 0; i < spots.size() - 1; i++) {
+		SpotByProbes s1 = spots.get(i);
+		if (s1.center != null && s1.size() > 0) {
+		    for (j = i; j > 0
+			    && j < spots.size()
+			    && spots.get(j - 1).center != null
+			    && spots.get(j - 1).center.mzCenter + mzTol > s1.center.mzCenter; j--)
+			;
+		    for (; j < spots.size(); j++) {
+			SpotByProbes s2 = spots.get(j);
+			if (i != j && s2.center != null) {
+			    if (s2.center.mzCenter - s1.center.mzCenter > mzTol)
+				break;
+			    int l = Math.min(Math.abs(s1.minScan - s2.minScan),
+				    Math.abs(s1.minScan - s2.maxScan));
+			    int r = Math.min(Math.abs(s1.maxScan - s2.minScan),
+				    Math.abs(s1.maxScan - s2.maxScan));
+			    int d = Math.min(l, r);
+			    boolean overlap = !(s2.maxScan < s1.minScan || s2.minScan > s1.maxScan);
+			    if ((d <= criticScans || overlap)
+				    && (intensityRatio(
+					    s1.center.intensityCenter,
+					    s2.center.intensityCenter) > intensitySimilarity)) {
+				assignSpotIdToDatumsFromSpotId(s1, s2, scanR,
+					mzR);
+				s1.addProbesFromSpot(s2, true);
+				j = i; // restart
+				joins++;
+			    }
+			}
+		    }
+		}
+	    }
+	    return joins;
+	}
+
+	@Override
+	void removeLongSpots(List<SpotByProbes> spots) {
+	    int i, j;
+	    for (i = 0; i < spots.size() - 1; i++) {
+		SpotByProbes s1 = spots.get(i);
+		if (s1.center != null && s1.size() > 0) {
+		    int totalScans = s1.maxScan - s1.minScan + 1;
+		    int lScan = s1.minScan;
+		    int rScan = s1.maxScan;
+		    ArrayList<Integer> toRemove = new ArrayList<Integer>();
+		    toRemove.add(i);
+		    for (j = i; j > 0
+			    && j < spots.size()
+			    && spots.get(j - 1).center != null
+			    && spots.get(j - 1).center.mzCenter + mzTol > s1.center.mzCenter; j--)
+			;
+		    for (; j < spots.size(); j++) {
+			SpotByProbes s2 = spots.get(j);
+			if (i != j && s2.center != null) {
+			    if (s2.center.mzCenter - s1.center.mzCenter > mzTol)
+				break;
+			    if (intensityRatio(s1.center.intensityCenter,
+				    s2.center.intensityCenter) > intensitySimilarity) {
+				int dl = Math.min(Math.abs(lScan - s2.minScan),
+					Math.abs(lScan - s2.maxScan));
+				int dr = Math.min(Math.abs(rScan - s2.minScan),
+					Math.abs(rScan - s2.maxScan));
+				int md = Math.min(dl, dr);
+				if (md <= maxTolScans
+					|| !(s2.maxScan < lScan || s2.minScan > rScan)) {
+				    totalScans += s2.maxScan - s2.minScan + 1;
+				    toRemove.add(j);
+				    lScan = Math.min(lScan, s2.minScan);
+				    rScan = Math.max(rScan, s2.maxScan);
+				}
+			    }
+			}
+		    }
+		    if (totalScans * rtPerScan > maximumTimeSpan) {
+			for (Integer J : toRemove) {
+			    spots.get(J).clear();
+			}
+		    }
+		}
+	    }
+	}
+
+    }
+
+}
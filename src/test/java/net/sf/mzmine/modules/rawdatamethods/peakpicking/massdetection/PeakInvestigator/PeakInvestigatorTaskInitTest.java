@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 
 import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.DataPointsBuffer;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
@@ -70,6 +71,11 @@ public class PeakInvestigatorTaskInitTest {
 			return null;
 		}
 
+		@Override
+		public void getDataPoints(DataPointsBuffer buffer) {
+			buffer.clear();
+		}
+
 		@Override
 		public DataPoint[] getDataPointsByMass(Range<Double> mzRange) {
 			return null;
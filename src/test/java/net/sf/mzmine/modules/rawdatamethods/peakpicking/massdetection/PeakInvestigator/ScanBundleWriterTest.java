@@ -0,0 +1,122 @@
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.PeakInvestigator;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+import org.junit.Test;
+import org.xeustechnologies.jtar.TarEntry;
+import org.xeustechnologies.jtar.TarInputStream;
+
+import com.google.common.collect.Range;
+
+public class ScanBundleWriterTest {
+
+	/**
+	 * Test that the entries are written in the order in which the scans were
+	 * added, even if there are more scans than can be pending at once.
+	 */
+	@Test
+	public void testEntryOrder() throws IOException {
+		ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+		try (ScanBundleWriter writer = new ScanBundleWriter(bundle)) {
+			for (int i = 1; i <= 500; i++) {
+				writer.addScan("scan_" + String.format("%04d", i) + ".txt",
+						createScan(i, i % 7));
+			}
+		}
+
+		List<String> names = new ArrayList<String>();
+		for (String[] entry : readBundle(bundle.toByteArray()))
+			names.add(entry[0]);
+
+		assertEquals(500, names.size());
+		for (int i = 1; i <= 500; i++) {
+			assertEquals("scan_" + String.format("%04d", i) + ".txt",
+					names.get(i - 1));
+		}
+	}
+
+	/**
+	 * Test that the content of a scan file is identical to the file written by
+	 * StorableScan.exportToFile(), including its checksum line.
+	 */
+	@Test
+	public void testScanContent() throws IOException {
+		RawDataFileImpl dataFile = new RawDataFileImpl("test.mzML");
+		Path exportDirectory = Files.createTempDirectory("mzmine-test");
+		try {
+			dataFile.addScan(createScan(12, 3));
+			Scan storedScan = dataFile.getScan(12);
+
+			assertEquals(3, storedScan.exportToFile("",
+					exportDirectory.toString(), "scan_0012.txt"));
+			File exportedFile = exportDirectory.resolve("scan_0012.txt")
+					.toFile();
+			String expected = new String(Files.readAllBytes(exportedFile
+					.toPath()), StandardCharsets.UTF_8);
+			exportedFile.delete();
+
+			ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+			try (ScanBundleWriter writer = new ScanBundleWriter(bundle)) {
+				writer.addScan("scan_0012.txt", storedScan);
+			}
+
+			List<String[]> entries = readBundle(bundle.toByteArray());
+			assertEquals(1, entries.size());
+			assertTrue(expected.startsWith("# Scan Number: 12"));
+			assertEquals(expected, entries.get(0)[1]);
+		} finally {
+			dataFile.close();
+			exportDirectory.toFile().delete();
+		}
+	}
+
+	private Scan createScan(int scanNumber, int numberOfDataPoints) {
+		DataPoint dataPoints[] = new DataPoint[numberOfDataPoints];
+		for (int i = 0; i < numberOfDataPoints; i++)
+			dataPoints[i] = new SimpleDataPoint(100.0 + i, 1000.0 + i);
+		return new SimpleScan(null, scanNumber, 1, scanNumber, 0, 0,
+				new int[0], dataPoints, MassSpectrumType.CENTROIDED,
+				PolarityType.POSITIVE, "", Range.closed(100.0, 200.0));
+	}
+
+	/**
+	 * Reads all entries of a bundle as pairs of file name and content
+	 */
+	private List<String[]> readBundle(byte bundle[]) throws IOException {
+		List<String[]> entries = new ArrayList<String[]>();
+		TarInputStream tis = new TarInputStream(new GZIPInputStream(
+				new ByteArrayInputStream(bundle)));
+		TarEntry entry;
+		while ((entry = tis.getNextEntry()) != null) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			int bytesRead;
+			byte buf[] = new byte[1024];
+			while ((bytesRead = tis.read(buf, 0, 1024)) > -1)
+				content.write(buf, 0, bytesRead);
+			entries.add(new String[] { entry.getName(),
+					new String(content.toByteArray(), StandardCharsets.UTF_8) });
+		}
+		tis.close();
+		return entries;
+	}
+
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrumReader.Header;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLSpectrumReader.ParsedSpectrum;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the mzML reader on small generated files, covering the binary
+ * array encodings, the referenceable parameter groups, the precursor and
+ * retention time parameters and the use of the spectrum index
+ */
+public class MzMLSpectrumReaderTest {
+
+    private static final double MZ_VALUES[] = { 100.5, 200.25, 300.125 };
+    private static final double INTENSITY_VALUES[] = { 1000, 2000.5, 0 };
+
+    // Data types of the binary arrays
+    private static final String FLOAT_32 = "MS:1000521",
+            FLOAT_64 = "MS:1000523", INTEGER_32 = "MS:1000519",
+            INTEGER_64 = "MS:1000522";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUncompressedArrays() throws Exception {
+        List<ParsedSpectrum> spectra = readSequentially(writeFile(false, 0,
+                spectrum("scan=1", MS1, "",
+                        mzArray(FLOAT_32, false, MZ_VALUES)
+                        + intensityArray(FLOAT_64, false, INTENSITY_VALUES))));
+        assertEquals(1, spectra.size());
+        assertDataPoints(MZ_VALUES, INTENSITY_VALUES, spectra.get(0));
+    }
+
+    @Test
+    public void testZlibCompressedArrays() throws Exception {
+        List<ParsedSpectrum> spectra = readSequentially(writeFile(false, 0,
+                spectrum("scan=1", MS1, "",
+                        mzArray(FLOAT_64, true, MZ_VALUES)
+                        + intensityArray(FLOAT_32, true, INTENSITY_VALUES))));
+        assertDataPoints(MZ_VALUES, INTENSITY_VALUES, spectra.get(0));
+    }
+
+    @Test
+    public void testIntegerArrays() throws Exception {
+        double counts[] = { 5, 0, 123456 };
+        List<ParsedSpectrum> spectra = readSequentially(writeFile(false, 0,
+                spectrum("scan=1", MS1, "",
+                        mzArray(FLOAT_64, false, MZ_VALUES)
+                        + intensityArray(INTEGER_32, false, counts)),
+                spectrum("scan=2", MS1, "",
+                        mzArray(FLOAT_64, true, MZ_VALUES)
+                        + intensityArray(INTEGER_64, true, counts))));
+        assertDataPoints(MZ_VALUES, counts, spectra.get(0));
+        assertDataPoints(MZ_VALUES, counts, spectra.get(1));
+    }
+
+    /**
+     * The MS level and polarity of the spectrum and the type, precision and
+     * compression of the arrays are only given by parameter groups
+     */
+    @Test
+    public void testReferenceableParamGroups() throws Exception {
+        String spectrum = "<spectrum index=\"0\" id=\"scan=1\" defaultArrayLength=\"3\">\n"
+                + "<referenceableParamGroupRef ref=\"msnNegative\"/>\n"
+                + "<referenceableParamGroupRef ref=\"undefinedGroup\"/>\n"
+                + "<binaryDataArrayList count=\"2\">\n"
+                + "<binaryDataArray encodedLength=\"0\">\n"
+                + "<referenceableParamGroupRef ref=\"zlibMZ\"/>\n"
+                + "<binary>" + encode(MZ_VALUES, true, false, true)
+                + "</binary>\n</binaryDataArray>\n"
+                + "<binaryDataArray encodedLength=\"0\">\n"
+                + "<referenceableParamGroupRef ref=\"intensity\"/>\n"
+                + "<binary>" + encode(INTENSITY_VALUES, false, false, false)
+                + "</binary>\n</binaryDataArray>\n"
+                + "</binaryDataArrayList>\n</spectrum>\n";
+        List<ParsedSpectrum> spectra = readSequentially(writeFile(false, 0,
+                spectrum));
+        ParsedSpectrum parsed = spectra.get(0);
+        assertEquals(2, parsed.msLevel);
+        assertEquals(PolarityType.NEGATIVE, parsed.polarity);
+        assertDataPoints(MZ_VALUES, INTENSITY_VALUES, parsed);
+    }
+
+    /**
+     * The scan start time is in minutes unless its unit is seconds
+     */
+    @Test
+    public void testRetentionTimeUnits() throws Exception {
+        List<ParsedSpectrum> spectra = readSequentially(writeFile(false, 0,
+                spectrum("scan=1", MS1, scanStartTime("2.5", null), ""),
+                spectrum("scan=2", MS1, scanStartTime("3.5", "UO:0000031"),
+                        ""),
+                spectrum("scan=3", MS1, scanStartTime("4.5", "MS:1000038"),
+                        ""),
+                spectrum("scan=4", MS1, scanStartTime("330", "UO:0000010"),
+                        "")));
+        assertEquals(2.5, spectra.get(0).retentionTime, 0);
+        assertEquals(3.5, spectra.get(1).retentionTime, 0);
+        assertEquals(4.5, spectra.get(2).retentionTime, 0);
+        assertEquals(5.5, spectra.get(3).retentionTime, 0);
+        assertEquals(0, spectra.get(0).dataPoints.length);
+    }
+
+    /**
+     * Only the first precursor is used, unless it has no selected ion. The
+     * m/z is given with different accessions in mzML 1.0 and 1.1.0.
+     */
+    @Test
+    public void testPrecursors() throws Exception {
+        String secondPrecursor = "<precursor spectrumRef=\"scan=2\">"
+                + "<selectedIonList count=\"1\"><selectedIon>"
+                + cvParam("MS:1000744", "999.9", null)
+                + cvParam("MS:1000041", "4", null)
+                + "</selectedIon></selectedIonList></precursor>\n";
+        List<ParsedSpectrum> spectra = readSequentially(writeFile(false, 0,
+                spectrum("scan=1", MS1, "", ""),
+                spectrum("scan=2", MS2,
+                        precursor("scan=1", "MS:1000744", "445.12", "2")
+                                + secondPrecursor, ""),
+                spectrum("scan=3", MS2,
+                        precursor("scan=1", "MS:1000040", "512.5", null),
+                        ""),
+                spectrum("scan=4", MS2,
+                        "<precursor spectrumRef=\"scan=1\"/>\n"
+                                + secondPrecursor, "")));
+
+        assertNull(spectra.get(0).precursorId);
+        assertEquals(0, spectra.get(0).precursorMz, 0);
+
+        assertEquals(2, spectra.get(1).msLevel);
+        assertEquals("scan=1", spectra.get(1).precursorId);
+        assertEquals(445.12, spectra.get(1).precursorMz, 0);
+        assertEquals(2, spectra.get(1).precursorCharge);
+
+        assertEquals(512.5, spectra.get(2).precursorMz, 0);
+        assertEquals(0, spectra.get(2).precursorCharge);
+
+        assertEquals("scan=1", spectra.get(3).precursorId);
+        assertEquals(0, spectra.get(3).precursorMz, 0);
+        assertEquals(0, spectra.get(3).precursorCharge);
+    }
+
+    @Test
+    public void testNumpressArrayIsRejected() throws Exception {
+        String numpressArray = "<binaryDataArray encodedLength=\"0\">"
+                + cvParam("MS:1000514", "", null)
+                + cvParam("MS:1002312", "", null) + "<binary>"
+                + encode(MZ_VALUES, true, false, false)
+                + "</binary></binaryDataArray>\n";
+        File file = writeFile(false, 0, spectrum("scan=1", MS1, "",
+                numpressArray));
+
+        try {
+            readSequentially(file);
+            fail("MS-Numpress array was decoded");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("MS-Numpress"));
+        }
+
+        MzMLReadTask task = new MzMLReadTask(mock(MZmineProject.class),
+                file, new ScanCollector());
+        task.run();
+        assertEquals(TaskStatus.ERROR, task.getStatus());
+        assertTrue(task.getErrorMessage().contains("MS-Numpress"));
+    }
+
+    /**
+     * The spectra of an indexed file are read in batches starting at the
+     * offsets of the index
+     */
+    @Test
+    public void testValidIndex() throws Exception {
+        String spectra[] = createRun(75);
+        File indexed = writeFile(true, 0, spectra);
+
+        long offsets[] = MzMLSpectrumReader.readSpectrumOffsets(indexed,
+                MzMLSpectrumReader.createInputFactory());
+        assertNotNull(offsets);
+        assertArrayEquals(getSpectrumOffsets(indexed), offsets);
+        assertTrue(MzMLSpectrumReader.checkSpectrumOffsets(indexed, offsets,
+                new int[] { 0, 32, 64 }));
+
+        assertEquals(describe(readSequentially(indexed)),
+                describe(readIndexed(indexed, offsets)));
+        assertEquals(describeScans(readWithTask(writeFile(false, 0,
+                spectra))), describeScans(readWithTask(indexed)));
+    }
+
+    /**
+     * An index whose offsets do not point to the spectra, e.g. because the
+     * file was edited, is ignored and the file is read sequentially
+     */
+    @Test
+    public void testStaleIndex() throws Exception {
+        String spectra[] = createRun(75);
+        File stale = writeFile(true, 17, spectra);
+
+        long offsets[] = MzMLSpectrumReader.readSpectrumOffsets(stale,
+                MzMLSpectrumReader.createInputFactory());
+        assertNotNull(offsets);
+        assertEquals(75, offsets.length);
+        assertFalse(MzMLSpectrumReader.checkSpectrumOffsets(stale, offsets,
+                new int[] { 0, 32, 64 }));
+
+        List<Scan> scans = readWithTask(stale);
+        assertEquals(75, scans.size());
+        assertEquals(describeScans(readWithTask(writeFile(true, 0, spectra))),
+                describeScans(scans));
+    }
+
+    @Test
+    public void testNoIndex() throws Exception {
+        String spectra[] = createRun(10);
+        File file = writeFile(false, 0, spectra);
+        assertNull(MzMLSpectrumReader.readSpectrumOffsets(file,
+                MzMLSpectrumReader.createInputFactory()));
+
+        List<Scan> scans = readWithTask(file);
+        assertEquals(10, scans.size());
+        Scan ms1 = scans.get(0), ms2 = scans.get(1);
+        assertEquals(1, ms1.getScanNumber());
+        assertArrayEquals(new int[] { 2, 3 }, ms1.getFragmentScanNumbers());
+        assertEquals(2, ms2.getScanNumber());
+        assertEquals(2, ms2.getMSLevel());
+        assertEquals(401.5, ms2.getPrecursorMZ(), 0);
+        assertEquals(2, ms2.getPrecursorCharge());
+        assertEquals(PolarityType.POSITIVE, ms2.getPolarity());
+        assertEquals(1.5, ms2.getRetentionTime(), 1e-10);
+    }
+
+    /**
+     * A file written by a converter is read the same way with and without
+     * its index
+     */
+    @Test
+    public void testConvertedFile() throws Exception {
+        File file = new File(getClass().getClassLoader()
+                .getResource("centroided1.mzML").toURI());
+        long offsets[] = MzMLSpectrumReader.readSpectrumOffsets(file,
+                MzMLSpectrumReader.createInputFactory());
+        assertEquals(100, offsets.length);
+        List<ParsedSpectrum> sequential = readSequentially(file);
+        assertEquals(100, sequential.size());
+        assertEquals(describe(sequential),
+                describe(readIndexed(file, offsets)));
+    }
+
+    // Parameters of the spectra
+    private static final String MS1 = cvParam("MS:1000511", "1", null)
+            + cvParam("MS:1000130", "", null);
+    private static final String MS2 = cvParam("MS:1000511", "2", null)
+            + cvParam("MS:1000130", "", null);
+
+    /**
+     * Creates spectra of alternating MS1 scans and two fragment scans
+     */
+    private static String[] createRun(int numOfSpectra) throws IOException {
+        String spectra[] = new String[numOfSpectra];
+        for (int i = 0; i < numOfSpectra; i++) {
+            String id = "scan=" + (i + 1);
+            String rt = scanStartTime(String.valueOf(i * 30 + 60),
+                    "UO:0000010");
+            double mzValues[] = { 100 + i, 200 + i, 300.5 + i };
+            double intensities[] = { i, 2 * i, 3 * i };
+            String arrays = mzArray(FLOAT_64, (i % 2) == 0, mzValues)
+                    + intensityArray(FLOAT_32, (i % 3) == 0, intensities);
+            if (i % 3 == 0) {
+                spectra[i] = spectrum(id, MS1, rt, arrays);
+            } else {
+                String parentId = "scan=" + (i - (i % 3) + 1);
+                spectra[i] = spectrum(id, MS2, rt
+                        + precursor(parentId, "MS:1000744",
+                                String.valueOf(400.5 + i), "2"), arrays);
+            }
+        }
+        return spectra;
+    }
+
+    private static String spectrum(String id, String params, String content,
+            String arrays) {
+        StringBuilder spectrum = new StringBuilder();
+        spectrum.append("<spectrum index=\"0\" id=\"" + id
+                + "\" defaultArrayLength=\"3\">\n");
+        spectrum.append(params);
+        spectrum.append(content);
+        if (arrays.length() > 0) {
+            spectrum.append("<binaryDataArrayList count=\"2\">\n");
+            spectrum.append(arrays);
+            spectrum.append("</binaryDataArrayList>\n");
+        }
+        spectrum.append("</spectrum>\n");
+        return spectrum.toString();
+    }
+
+    private static String scanStartTime(String value, String unitAccession) {
+        return "<scanList count=\"1\"><scan>"
+                + cvParam("MS:1000016", value, unitAccession)
+                + "</scan></scanList>\n";
+    }
+
+    private static String precursor(String spectrumRef, String mzAccession,
+            String mz, String charge) {
+        return "<precursorList count=\"1\"><precursor spectrumRef=\""
+                + spectrumRef + "\"><selectedIonList count=\"1\">"
+                + "<selectedIon>" + cvParam(mzAccession, mz, null)
+                + ((charge == null) ? "" : cvParam("MS:1000041", charge,
+                        null))
+                + "</selectedIon></selectedIonList></precursor>"
+                + "</precursorList>\n";
+    }
+
+    private static String mzArray(String dataType, boolean zlib,
+            double values[]) throws IOException {
+        return binaryDataArray("MS:1000514", dataType, zlib, values);
+    }
+
+    private static String intensityArray(String dataType, boolean zlib,
+            double values[]) throws IOException {
+        return binaryDataArray("MS:1000515", dataType, zlib, values);
+    }
+
+    private static String binaryDataArray(String arrayType, String dataType,
+            boolean zlib, double values[]) throws IOException {
+        boolean doublePrecision = dataType.equals(FLOAT_64)
+                || dataType.equals(INTEGER_64);
+        boolean integerValues = dataType.equals(INTEGER_32)
+                || dataType.equals(INTEGER_64);
+        return "<binaryDataArray encodedLength=\"0\">\n"
+                + cvParam(dataType, "", null)
+                + cvParam(zlib ? "MS:1000574" : "MS:1000576", "", null)
+                + cvParam(arrayType, "", null) + "<binary>"
+                + encode(values, doublePrecision, integerValues, zlib)
+                + "</binary>\n</binaryDataArray>\n";
+    }
+
+    private static String cvParam(String accession, String value,
+            String unitAccession) {
+        return "<cvParam cvRef=\"MS\" accession=\"" + accession
+                + "\" name=\"\" value=\"" + value + "\""
+                + ((unitAccession == null) ? "" : " unitAccession=\""
+                        + unitAccession + "\"") + "/>\n";
+    }
+
+    private static String encode(double values[], boolean doublePrecision,
+            boolean integerValues, boolean zlib) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                values.length * (doublePrecision ? 8 : 4)).order(
+                ByteOrder.LITTLE_ENDIAN);
+        for (double value : values) {
+            if (integerValues && doublePrecision)
+                buffer.putLong((long) value);
+            else if (integerValues)
+                buffer.putInt((int) value);
+            else if (doublePrecision)
+                buffer.putDouble(value);
+            else
+                buffer.putFloat((float) value);
+        }
+        byte bytes[] = buffer.array();
+        if (zlib) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            DeflaterOutputStream deflater = new DeflaterOutputStream(
+                    compressed, new Deflater());
+            deflater.write(bytes);
+            deflater.close();
+            bytes = compressed.toByteArray();
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /**
+     * Writes an mzML file with given spectra. The offsets of an indexed file
+     * are moved by given shift, to create a stale index.
+     */
+    private File writeFile(boolean indexed, int offsetShift,
+            String... spectra) throws IOException {
+
+        StringBuilder document = new StringBuilder();
+        document.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (indexed)
+            document.append("<indexedmzML xmlns=\"http://psi.hupo.org/ms/mzml\">\n");
+        document.append("<mzML xmlns=\"http://psi.hupo.org/ms/mzml\" version=\"1.1.0\">\n");
+        document.append("<referenceableParamGroupList count=\"3\">\n");
+        document.append("<referenceableParamGroup id=\"msnNegative\">\n"
+                + cvParam("MS:1000511", "2", null)
+                + cvParam("MS:1000129", "", null)
+                + "</referenceableParamGroup>\n");
+        document.append("<referenceableParamGroup id=\"zlibMZ\">\n"
+                + cvParam("MS:1000514", "", null)
+                + cvParam(FLOAT_64, "", null)
+                + cvParam("MS:1000574", "", null)
+                + "</referenceableParamGroup>\n");
+        document.append("<referenceableParamGroup id=\"intensity\">\n"
+                + cvParam("MS:1000515", "", null)
+                + cvParam(FLOAT_32, "", null)
+                + "</referenceableParamGroup>\n");
+        document.append("</referenceableParamGroupList>\n");
+        document.append("<run id=\"run\">\n<spectrumList count=\""
+                + spectra.length + "\">\n");
+        long offsets[] = new long[spectra.length];
+        for (int i = 0; i < spectra.length; i++) {
+            offsets[i] = document.length();
+            document.append(spectra[i]);
+        }
+        document.append("</spectrumList>\n</run>\n</mzML>\n");
+        if (indexed) {
+            long indexListOffset = document.length();
+            document.append("<indexList count=\"1\">\n<index name=\"spectrum\">\n");
+            for (long offset : offsets)
+                document.append("<offset>" + (offset + offsetShift)
+                        + "</offset>\n");
+            document.append("</index>\n</indexList>\n");
+            document.append("<indexListOffset>" + indexListOffset
+                    + "</indexListOffset>\n");
+            document.append("</indexedmzML>\n");
+        }
+
+        File file = folder.newFile();
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(document.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            stream.close();
+        }
+        return file;
+
+    }
+
+    /**
+     * Returns the offsets of the spectrum elements found in the file
+     */
+    private static long[] getSpectrumOffsets(File file) throws IOException {
+        String content = new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.US_ASCII);
+        List<Long> offsets = new ArrayList<Long>();
+        int offset = -1;
+        while ((offset = content.indexOf("<spectrum ", offset + 1)) >= 0)
+            offsets.add((long) offset);
+        long result[] = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = offsets.get(i);
+        return result;
+    }
+
+    private static List<ParsedSpectrum> readSequentially(File file)
+            throws Exception {
+        XMLInputFactory factory = MzMLSpectrumReader.createInputFactory();
+        InputStream stream = new FileInputStream(file);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            MzMLSpectrumReader spectrumReader = new MzMLSpectrumReader(
+                    MzMLSpectrumReader.readHeader(reader));
+            List<ParsedSpectrum> spectra = new ArrayList<ParsedSpectrum>();
+            ParsedSpectrum spectrum;
+            while ((spectrum = spectrumReader.readNextSpectrum(reader)) != null)
+                spectra.add(spectrum);
+            reader.close();
+            return spectra;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the spectra in batches of 10, starting at the offsets of the
+     * index
+     */
+    private static List<ParsedSpectrum> readIndexed(File file, long offsets[])
+            throws Exception {
+        XMLInputFactory factory = MzMLSpectrumReader.createInputFactory();
+        Header header;
+        InputStream stream = new FileInputStream(file);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            header = MzMLSpectrumReader.readHeader(reader);
+            reader.close();
+        } finally {
+            stream.close();
+        }
+        List<ParsedSpectrum> spectra = new ArrayList<ParsedSpectrum>();
+        for (int first = 0; first < offsets.length; first += 10) {
+            int last = Math.min(first + 10, offsets.length);
+            long endOffset = (last < offsets.length) ? offsets[last] : -1;
+            spectra.addAll(new MzMLSpectrumReader(header).readSpectra(file,
+                    factory, header.encoding, offsets[first], endOffset, last
+                            - first));
+        }
+        return spectra;
+    }
+
+    private static List<Scan> readWithTask(File file) {
+        ScanCollector collector = new ScanCollector();
+        MzMLReadTask task = new MzMLReadTask(mock(MZmineProject.class), file,
+                collector);
+        task.run();
+        assertEquals(task.getErrorMessage(), TaskStatus.FINISHED,
+                task.getStatus());
+        return collector.scans;
+    }
+
+    private static void assertDataPoints(double mzValues[],
+            double intensityValues[], ParsedSpectrum spectrum) {
+        assertEquals(mzValues.length, spectrum.dataPoints.length);
+        for (int i = 0; i < mzValues.length; i++) {
+            assertEquals(mzValues[i], spectrum.dataPoints[i].getMZ(), 0);
+            assertEquals(intensityValues[i],
+                    spectrum.dataPoints[i].getIntensity(), 0);
+        }
+    }
+
+    private static String describe(List<ParsedSpectrum> spectra) {
+        StringBuilder description = new StringBuilder();
+        for (ParsedSpectrum spectrum : spectra) {
+            description.append(spectrum.id + " " + spectrum.msSpectrum + " "
+                    + spectrum.msLevel + " " + spectrum.retentionTime + " "
+                    + spectrum.polarity + " " + spectrum.scanDefinition + " "
+                    + spectrum.precursorId + " " + spectrum.precursorMz + " "
+                    + spectrum.precursorCharge + " " + spectrum.spectrumType);
+            for (DataPoint dataPoint : spectrum.dataPoints)
+                description.append(" " + dataPoint.getMZ() + ":"
+                        + dataPoint.getIntensity());
+            description.append('\n');
+        }
+        return description.toString();
+    }
+
+    private static String describeScans(List<Scan> scans) {
+        StringBuilder description = new StringBuilder();
+        for (Scan scan : scans) {
+            description.append(scan.getScanNumber() + " "
+                    + scan.getMSLevel() + " " + scan.getRetentionTime() + " "
+                    + scan.getPolarity() + " " + scan.getScanDefinition()
+                    + " " + scan.getPrecursorMZ() + " "
+                    + scan.getPrecursorCharge() + " "
+                    + scan.getSpectrumType());
+            int fragmentScans[] = scan.getFragmentScanNumbers();
+            if (fragmentScans != null) {
+                for (int fragmentScan : fragmentScans)
+                    description.append(" #" + fragmentScan);
+            }
+            for (DataPoint dataPoint : scan.getDataPoints())
+                description.append(" " + dataPoint.getMZ() + ":"
+                        + dataPoint.getIntensity());
+            description.append('\n');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Collects the scans written by the read task, in the order they were
+     * written
+     */
+    private static class ScanCollector implements RawDataFileWriter {
+
+        final List<Scan> scans = new ArrayList<Scan>();
+
+        @Override
+        public void addScan(Scan newScan) {
+            scans.add(newScan);
+        }
+
+        @Override
+        public RawDataFile finishWriting() {
+            return mock(RawDataFile.class);
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.taskcontrol;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TaskMetricsTest {
+
+    /**
+     * Test that the values counted by a task are also counted by all its
+     * parents, but not by its siblings
+     */
+    @Test
+    public void testParentRollUp() {
+
+	TaskMetrics batch = new TaskMetrics("Batch", null);
+	TaskMetrics step = new TaskMetrics("Step", batch);
+	TaskMetrics task1 = new TaskMetrics("Task 1", step);
+	TaskMetrics task2 = new TaskMetrics("Task 2", step);
+
+	TaskMetrics previous = TaskMetrics.enter(task1);
+	TaskMetrics.scanRead(100);
+	TaskMetrics.scanRead(0);
+	TaskMetrics.rowsCreated(5);
+	TaskMetrics.exit(previous);
+
+	previous = TaskMetrics.enter(task2);
+	TaskMetrics.scanRead(50);
+	TaskMetrics.exit(previous);
+
+	Assert.assertEquals(2, task1.getScansRead());
+	Assert.assertEquals(100, task1.getBytesRead());
+	Assert.assertEquals(5, task1.getRowsCreated());
+	Assert.assertEquals(1, task2.getScansRead());
+	Assert.assertEquals(50, task2.getBytesRead());
+	Assert.assertEquals(0, task2.getRowsCreated());
+
+	for (TaskMetrics parent : new TaskMetrics[] { step, batch }) {
+	    Assert.assertEquals(3, parent.getScansRead());
+	    Assert.assertEquals(150, parent.getBytesRead());
+	    Assert.assertEquals(5, parent.getRowsCreated());
+	}
+
+	List<TaskMetrics> children = step.getChildren();
+	Assert.assertEquals(2, children.size());
+	Assert.assertSame(task1, children.get(0));
+	Assert.assertSame(task2, children.get(1));
+
+    }
+
+    /**
+     * Test that nested enter() and exit() calls restore the previous metrics
+     * and charge the scans read in between to the innermost metrics only
+     */
+    @Test
+    public void testEnterExitNesting() {
+
+	TaskMetrics outer = new TaskMetrics("Outer", null);
+	TaskMetrics inner = new TaskMetrics("Inner", outer);
+
+	Assert.assertNull(TaskMetrics.getCurrent());
+
+	TaskMetrics previousOuter = TaskMetrics.enter(outer);
+	Assert.assertNull(previousOuter);
+	Assert.assertSame(outer, TaskMetrics.getCurrent());
+	TaskMetrics.scanRead(10);
+
+	TaskMetrics previousInner = TaskMetrics.enter(inner);
+	Assert.assertSame(outer, previousInner);
+	Assert.assertSame(inner, TaskMetrics.getCurrent());
+	TaskMetrics.scanRead(20);
+	TaskMetrics.scanRead(20);
+
+	TaskMetrics.exit(previousInner);
+	Assert.assertSame(outer, TaskMetrics.getCurrent());
+
+	// The inner scans are added when the thread leaves the inner metrics
+	Assert.assertEquals(2, inner.getScansRead());
+	Assert.assertEquals(40, inner.getBytesRead());
+	TaskMetrics.scanRead(10);
+
+	TaskMetrics.exit(previousOuter);
+	Assert.assertNull(TaskMetrics.getCurrent());
+
+	Assert.assertEquals(2, inner.getScansRead());
+	Assert.assertEquals(4, outer.getScansRead());
+	Assert.assertEquals(60, outer.getBytesRead());
+
+	// Scans read without any current metrics are not counted anywhere
+	TaskMetrics.scanRead(10);
+	Assert.assertEquals(4, outer.getScansRead());
+
+    }
+
+    /**
+     * Test that values counted by several threads working for the same task
+     * are all added up
+     */
+    @Test
+    public void testParallelThreads() throws InterruptedException {
+
+	final TaskMetrics parent = new TaskMetrics("Parent", null);
+	final TaskMetrics task = new TaskMetrics("Task", parent);
+
+	Thread threads[] = new Thread[4];
+	for (int i = 0; i < threads.length; i++) {
+	    threads[i] = new Thread() {
+		public void run() {
+		    TaskMetrics previous = TaskMetrics.enter(task);
+		    for (int j = 0; j < 1000; j++)
+			TaskMetrics.scanRead(8);
+		    TaskMetrics.exit(previous);
+		}
+	    };
+	    threads[i].start();
+	}
+	for (Thread thread : threads)
+	    thread.join();
+
+	Assert.assertEquals(4000, task.getScansRead());
+	Assert.assertEquals(32000, parent.getBytesRead());
+
+    }
+
+    /**
+     * Test the status and times of metrics shared by several tasks
+     */
+    @Test
+    public void testStartedFinished() {
+
+	TaskMetrics metrics = new TaskMetrics("Step", null);
+	Assert.assertEquals(TaskStatus.WAITING, metrics.getStatus());
+	Assert.assertEquals(0, metrics.getWallTime());
+
+	metrics.started(null);
+	Assert.assertEquals(TaskStatus.PROCESSING, metrics.getStatus());
+	Assert.assertTrue(TaskMetrics.getRunningMetrics().contains(metrics));
+	long startTime = metrics.getStartTime();
+	Assert.assertNotEquals(0, startTime);
+
+	// A second start keeps the start time of the first one
+	metrics.started(null);
+	Assert.assertEquals(startTime, metrics.getStartTime());
+
+	metrics.finished(TaskStatus.CANCELED);
+	Assert.assertEquals(TaskStatus.CANCELED, metrics.getStatus());
+	Assert.assertFalse(TaskMetrics.getRunningMetrics().contains(metrics));
+	Assert.assertTrue(metrics.getEndTime() >= startTime);
+	Assert.assertTrue(metrics.getPeakHeap() > 0);
+
+    }
+
+}